@@ -56,6 +56,71 @@ public class TezJobConfig {
   public static final int TEZ_RUNTIME_IFILE_READAHEAD_BYTES_DEFAULT =
       4 * 1024 * 1024;
 
+  /**
+   * Whether IFile writers store keys as the length of the prefix shared with
+   * the previous key, followed by the rest of the key. Saves space for sorted
+   * output with long keys. Consumers need to run a Tez version which
+   * understands the format.
+   */
+  @Private
+  @Unstable
+  public static final String TEZ_RUNTIME_IFILE_KEY_PREFIX_COMPRESSION = TEZ_RUNTIME_PREFIX +
+      "ifile.key-prefix-compression";
+  public static final boolean TEZ_RUNTIME_IFILE_KEY_PREFIX_COMPRESSION_DEFAULT = false;
+
+  /**
+   * With key prefix compression, the maximum number of consecutive keys
+   * stored relative to the previous key before a full key is written.
+   */
+  @Private
+  @Unstable
+  public static final String TEZ_RUNTIME_IFILE_KEY_PREFIX_RESTART_INTERVAL = TEZ_RUNTIME_PREFIX +
+      "ifile.key-prefix-compression.restart-interval";
+  public static final int TEZ_RUNTIME_IFILE_KEY_PREFIX_RESTART_INTERVAL_DEFAULT = 16;
+
+  /**
+   * If positive, sorted outputs record a key about every this many bytes
+   * within each partition, in a key index file next to the output index.
+   * Readers can use it to start reading a partition at a given key. Only
+   * written for uncompressed output. 0 to disable.
+   */
+  @Private
+  @Unstable
+  public static final String TEZ_RUNTIME_IFILE_KEY_INDEX_INTERVAL_BYTES = TEZ_RUNTIME_PREFIX +
+      "ifile.key-index.interval-bytes";
+  public static final int TEZ_RUNTIME_IFILE_KEY_INDEX_INTERVAL_BYTES_DEFAULT = 0;
+
+  /**
+   * Whether compressed IFile data is compressed in independent blocks, on
+   * threads shared by all writers of the process. Data written this way is
+   * read by the same version of Tez whether or not this is set.
+   */
+  @Private
+  @Unstable
+  public static final String TEZ_RUNTIME_IFILE_PARALLEL_COMPRESSION = TEZ_RUNTIME_PREFIX +
+      "ifile.parallel-compression";
+  public static final boolean TEZ_RUNTIME_IFILE_PARALLEL_COMPRESSION_DEFAULT = false;
+
+  /**
+   * Size of the blocks which are compressed independently, with parallel
+   * compression.
+   */
+  @Private
+  @Unstable
+  public static final String TEZ_RUNTIME_IFILE_PARALLEL_COMPRESSION_BLOCK_SIZE =
+      TEZ_RUNTIME_PREFIX + "ifile.parallel-compression.block-size";
+  public static final int TEZ_RUNTIME_IFILE_PARALLEL_COMPRESSION_BLOCK_SIZE_DEFAULT = 256 * 1024;
+
+  /**
+   * The maximum number of blocks of one IFile which are compressed at the same
+   * time, with parallel compression. Each of them buffers two blocks.
+   */
+  @Private
+  @Unstable
+  public static final String TEZ_RUNTIME_IFILE_PARALLEL_COMPRESSION_PARALLELISM =
+      TEZ_RUNTIME_PREFIX + "ifile.parallel-compression.parallelism";
+  public static final int TEZ_RUNTIME_IFILE_PARALLEL_COMPRESSION_PARALLELISM_DEFAULT = 4;
+
   public static final int TEZ_RUNTIME_IFILE_BUFFER_SIZE_DEFAULT = -1;
 
   /**
@@ -96,6 +161,41 @@ public class TezJobConfig {
 	      "sort.threads";
   public static final int TEZ_RUNTIME_SORT_THREADS_DEFAULT = 1;
 
+  /**
+   * Whether the PipelinedSorter should allocate its sort buffer (key/value
+   * data and the per-record metadata) in direct, off-heap memory instead of on
+   * the JVM heap. The buffer is then sized from io.sort.mb and is not taken
+   * from the heap memory assigned to the output, so -XX:MaxDirectMemorySize
+   * must be large enough to hold it. A buffer released by a sorter is reused
+   * by the next sorter of the same size in the JVM.
+   */
+  @Private @Unstable
+  public static final String TEZ_RUNTIME_PIPELINED_SORTER_DIRECT_BUFFERS = TEZ_RUNTIME_PREFIX +
+      "pipelined.sorter.direct-buffers";
+  public static final boolean TEZ_RUNTIME_PIPELINED_SORTER_DIRECT_BUFFERS_DEFAULT = false;
+
+  /**
+   * Whether the PipelinedSorter should first bucket each span by partition with
+   * a counting sort, and then sort keys within each partition in parallel on
+   * the sort threads. Useful for outputs with a large number of partitions.
+   */
+  @Private @Unstable
+  public static final String TEZ_RUNTIME_PIPELINED_SORTER_PARTITION_BUCKETING = TEZ_RUNTIME_PREFIX +
+      "pipelined.sorter.partition-bucketing.enabled";
+  public static final boolean TEZ_RUNTIME_PIPELINED_SORTER_PARTITION_BUCKETING_DEFAULT = false;
+
+  /**
+   * Whether the sorters should compare a fixed-width normalized prefix of each
+   * key before falling back to the key comparator. Only takes effect for key
+   * types with a known prefix extractor (Text, BytesWritable, IntWritable,
+   * LongWritable with their default comparators) or when the configured
+   * comparator provides its own prefixes.
+   */
+  @Private @Unstable
+  public static final String TEZ_RUNTIME_SORT_KEY_PREFIX_ENABLED = TEZ_RUNTIME_PREFIX +
+      "sort.key-prefix.enabled";
+  public static final boolean TEZ_RUNTIME_SORT_KEY_PREFIX_ENABLED_DEFAULT = false;
+
   /**
    * Size of the buffer to use if not writing directly to disk.
    */
@@ -110,6 +210,35 @@ public class TezJobConfig {
   @Private
   public static final String TEZ_RUNTIME_UNORDERED_OUTPUT_MAX_PER_BUFFER_SIZE_BYTES = TEZ_RUNTIME_PREFIX +
       "unordered.output.max-per-buffer.size-bytes";
+
+  /**
+   * Whether the unordered partitioned output aggregates records with the
+   * same key in a hash table, and runs the configured combiner on them,
+   * before writing them to its buffers. Has no effect if no combiner is set.
+   */
+  @Private @Unstable
+  public static final String TEZ_RUNTIME_UNORDERED_OUTPUT_HASH_AGGREGATION_ENABLED =
+      TEZ_RUNTIME_PREFIX + "unordered.output.hash-aggregation.enabled";
+  public static final boolean TEZ_RUNTIME_UNORDERED_OUTPUT_HASH_AGGREGATION_ENABLED_DEFAULT = false;
+
+  /**
+   * Fraction of the memory of the unordered partitioned output used by the
+   * hash aggregation table. The rest is used by the output buffers.
+   */
+  @Private @Unstable
+  public static final String TEZ_RUNTIME_UNORDERED_OUTPUT_HASH_AGGREGATION_MEMORY_FRACTION =
+      TEZ_RUNTIME_PREFIX + "unordered.output.hash-aggregation.memory-fraction";
+  public static final float TEZ_RUNTIME_UNORDERED_OUTPUT_HASH_AGGREGATION_MEMORY_FRACTION_DEFAULT =
+      0.25f;
+
+  /**
+   * Size of the hash table used by ShuffledHashGroupedInput to group values
+   * by key. Records which do not fit are spilled to disk.
+   */
+  @Private @Unstable
+  public static final String TEZ_RUNTIME_HASH_GROUPED_INPUT_TABLE_SIZE_MB = TEZ_RUNTIME_PREFIX +
+      "hash-grouped.input.table.size-mb";
+  public static final int TEZ_RUNTIME_HASH_GROUPED_INPUT_TABLE_SIZE_MB_DEFAULT = 100;
   
   /**
    * Specifies a partitioner class, which is used in Tez Runtime components
@@ -189,6 +318,136 @@ public class TezJobConfig {
       "shuffle.ssl.enable";
   public static final boolean TEZ_RUNTIME_SHUFFLE_ENABLE_SSL_DEFAULT = false;
 
+  /**
+   * Whether inputs produced on the same node should be read directly from the
+   * local disks, instead of being fetched from the ShuffleHandler over HTTP.
+   * Falls back to HTTP if the local output cannot be read.
+   */
+  @Private
+  @Unstable
+  public static final String TEZ_RUNTIME_SHUFFLE_LOCAL_FETCH_ENABLED = TEZ_RUNTIME_PREFIX +
+      "shuffle.local-fetch.enabled";
+  public static final boolean TEZ_RUNTIME_SHUFFLE_LOCAL_FETCH_ENABLED_DEFAULT = false;
+
+  /**
+   * Whether the unordered shuffle should fetch over non-blocking connections
+   * multiplexed by a few selector threads, instead of using one blocking
+   * fetcher thread per host. Not used with SSL.
+   */
+  @Private
+  @Unstable
+  public static final String TEZ_RUNTIME_SHUFFLE_NIO_ENABLED = TEZ_RUNTIME_PREFIX +
+      "shuffle.nio.enabled";
+  public static final boolean TEZ_RUNTIME_SHUFFLE_NIO_ENABLED_DEFAULT = false;
+
+  /**
+   * Number of selector threads used by the non-blocking shuffle fetcher.
+   */
+  @Private
+  @Unstable
+  public static final String TEZ_RUNTIME_SHUFFLE_NIO_SELECTORS = TEZ_RUNTIME_PREFIX +
+      "shuffle.nio.selectors";
+  public static final int TEZ_RUNTIME_SHUFFLE_NIO_SELECTORS_DEFAULT = 2;
+
+  /**
+   * Maximum number of concurrent host connections for the non-blocking
+   * shuffle fetcher.
+   */
+  @Private
+  @Unstable
+  public static final String TEZ_RUNTIME_SHUFFLE_NIO_MAX_CONNECTIONS = TEZ_RUNTIME_PREFIX +
+      "shuffle.nio.max-connections";
+  public static final int TEZ_RUNTIME_SHUFFLE_NIO_MAX_CONNECTIONS_DEFAULT = 256;
+
+  /**
+   * Maximum number of contiguous partitions fetched from a host in a single
+   * request by the unordered shuffle, when a task reads more than one
+   * partition of a source (e.g. after auto reduce parallelism). Values above
+   * 1 require a ShuffleHandler which serves partition ranges
+   * (reduce=&lt;first&gt;-&lt;last&gt;).
+   */
+  @Private
+  @Unstable
+  public static final String TEZ_RUNTIME_SHUFFLE_FETCH_MAX_PARTITIONS_PER_REQUEST =
+      TEZ_RUNTIME_PREFIX + "shuffle.fetch.max-partitions-per-request";
+  public static final int TEZ_RUNTIME_SHUFFLE_FETCH_MAX_PARTITIONS_PER_REQUEST_DEFAULT = 1;
+
+  /**
+   * Largest in-memory input, in bytes, for which the unordered shuffle
+   * recycles buffers through a pool instead of allocating a new one per
+   * fetched input. Larger inputs are allocated individually. Set to 0 to
+   * disable pooling.
+   */
+  @Private
+  @Unstable
+  public static final String TEZ_RUNTIME_SHUFFLE_FETCH_BUFFER_POOL_MAX_BUFFER_SIZE =
+      TEZ_RUNTIME_PREFIX + "shuffle.fetch.buffer-pool.max-buffer-size";
+  public static final int TEZ_RUNTIME_SHUFFLE_FETCH_BUFFER_POOL_MAX_BUFFER_SIZE_DEFAULT =
+      4 * 1024 * 1024;
+
+  /**
+   * Whether inputs which the unordered shuffle fetched to local disk are read
+   * back through a memory mapping of the file, instead of a buffered stream.
+   */
+  @Private
+  @Unstable
+  public static final String TEZ_RUNTIME_SHUFFLE_FETCH_DISK_INPUT_MMAP_ENABLED =
+      TEZ_RUNTIME_PREFIX + "shuffle.fetch.disk-input.mmap.enabled";
+  public static final boolean TEZ_RUNTIME_SHUFFLE_FETCH_DISK_INPUT_MMAP_ENABLED_DEFAULT = true;
+
+  /**
+   * Upper bound on the bytes of fetched inputs which have not yet been
+   * consumed by the reader of an unordered shuffle. No new fetches are
+   * scheduled while this is exceeded. -1 for no limit.
+   */
+  @Private
+  @Unstable
+  public static final String TEZ_RUNTIME_SHUFFLE_FETCH_MAX_UNCONSUMED_BYTES =
+      TEZ_RUNTIME_PREFIX + "shuffle.fetch.max-unconsumed-bytes";
+  public static final long TEZ_RUNTIME_SHUFFLE_FETCH_MAX_UNCONSUMED_BYTES_DEFAULT = -1;
+
+  /**
+   * Maximum number of fetchers of the ordered shuffle which copy from the
+   * same ShuffleHandler at once. Hosts with many pending inputs are split
+   * between idle fetchers up to this limit.
+   */
+  @Private
+  @Unstable
+  public static final String TEZ_RUNTIME_SHUFFLE_FETCH_MAX_CONCURRENT_PER_HOST =
+      TEZ_RUNTIME_PREFIX + "shuffle.fetch.max-concurrent-per-host";
+  public static final int TEZ_RUNTIME_SHUFFLE_FETCH_MAX_CONCURRENT_PER_HOST_DEFAULT = 2;
+
+  /**
+   * Whether fetches which are much slower than the others are duplicated.
+   * The unfinished inputs of a slow fetch are fetched from another host which
+   * has an attempt of the same input if there is one, and otherwise over a
+   * new connection to the same host. The first copy to complete is used.
+   */
+  @Private
+  @Unstable
+  public static final String TEZ_RUNTIME_SHUFFLE_FETCH_SPECULATION_ENABLED =
+      TEZ_RUNTIME_PREFIX + "shuffle.fetch.speculation.enabled";
+  public static final boolean TEZ_RUNTIME_SHUFFLE_FETCH_SPECULATION_ENABLED_DEFAULT = false;
+
+  /**
+   * Fraction of the median transfer rate of fetches below which a fetch is
+   * duplicated.
+   */
+  @Private
+  @Unstable
+  public static final String TEZ_RUNTIME_SHUFFLE_FETCH_SPECULATION_SLOW_FRACTION =
+      TEZ_RUNTIME_PREFIX + "shuffle.fetch.speculation.slow-fraction";
+  public static final float TEZ_RUNTIME_SHUFFLE_FETCH_SPECULATION_SLOW_FRACTION_DEFAULT = 0.25f;
+
+  /**
+   * Time in milliseconds a fetch has to run before it can be duplicated.
+   */
+  @Private
+  @Unstable
+  public static final String TEZ_RUNTIME_SHUFFLE_FETCH_SPECULATION_MIN_RUNTIME_MS =
+      TEZ_RUNTIME_PREFIX + "shuffle.fetch.speculation.min-runtime-ms";
+  public static final long TEZ_RUNTIME_SHUFFLE_FETCH_SPECULATION_MIN_RUNTIME_MS_DEFAULT = 10000;
+
 
   public static final String TEZ_RUNTIME_SHUFFLE_INPUT_BUFFER_PERCENT = TEZ_RUNTIME_PREFIX +
       "shuffle.input.buffer.percent";
@@ -206,6 +465,41 @@ public class TezJobConfig {
       "shuffle.merge.percent";
   public static final float TEZ_RUNTIME_SHUFFLE_MERGE_PERCENT_DEFAULT = 0.90f;
 
+  /**
+   * Whether the shuffle adapts its use of memory to the usage of the heap.
+   * While the heap is above
+   * {@link #TEZ_RUNTIME_SHUFFLE_MEMORY_ADAPTIVE_HEAP_THRESHOLD} after garbage
+   * collection, fetched inputs go to disk and the largest inputs in memory are
+   * spilled. While it is well below, up to
+   * {@link #TEZ_RUNTIME_SHUFFLE_MEMORY_ADAPTIVE_MAX_EXTRA_PERCENT} more inputs
+   * are kept in memory.
+   */
+  @Private
+  @Unstable
+  public static final String TEZ_RUNTIME_SHUFFLE_MEMORY_ADAPTIVE = TEZ_RUNTIME_PREFIX +
+      "shuffle.memory.adaptive";
+  public static final boolean TEZ_RUNTIME_SHUFFLE_MEMORY_ADAPTIVE_DEFAULT = false;
+
+  /**
+   * Fraction of the maximum size of the old generation which is considered
+   * heap pressure, when used after a garbage collection.
+   */
+  @Private
+  @Unstable
+  public static final String TEZ_RUNTIME_SHUFFLE_MEMORY_ADAPTIVE_HEAP_THRESHOLD =
+      TEZ_RUNTIME_PREFIX + "shuffle.memory.adaptive.heap-threshold";
+  public static final float TEZ_RUNTIME_SHUFFLE_MEMORY_ADAPTIVE_HEAP_THRESHOLD_DEFAULT = 0.85f;
+
+  /**
+   * Memory which the shuffle may use in addition to its memory limit while
+   * the heap is idle, as a fraction of the limit.
+   */
+  @Private
+  @Unstable
+  public static final String TEZ_RUNTIME_SHUFFLE_MEMORY_ADAPTIVE_MAX_EXTRA_PERCENT =
+      TEZ_RUNTIME_PREFIX + "shuffle.memory.adaptive.max-extra.percent";
+  public static final float TEZ_RUNTIME_SHUFFLE_MEMORY_ADAPTIVE_MAX_EXTRA_PERCENT_DEFAULT = 0.25f;
+
   /**
    * TODO TEZAM3 default value ?
    */
@@ -218,6 +512,35 @@ public class TezJobConfig {
   public static final boolean TEZ_RUNTIME_SHUFFLE_ENABLE_MEMTOMEM_DEFAULT =
       false;
 
+  /**
+   * Memory used to read ahead of the merge, on background threads, for
+   * on-disk segments of the final shuffle merge. It is requested in addition
+   * to the shuffle memory. 0 to read segments on the merge thread.
+   */
+  @Private
+  @Unstable
+  public static final String TEZ_RUNTIME_SHUFFLE_MERGE_PREFETCH_MEMORY = TEZ_RUNTIME_PREFIX +
+      "shuffle.merge.prefetch.memory";
+  public static final long TEZ_RUNTIME_SHUFFLE_MERGE_PREFETCH_MEMORY_DEFAULT = 0;
+
+  /**
+   * Number of threads reading ahead for merge segments.
+   */
+  @Private
+  @Unstable
+  public static final String TEZ_RUNTIME_SHUFFLE_MERGE_PREFETCH_THREADS = TEZ_RUNTIME_PREFIX +
+      "shuffle.merge.prefetch.threads";
+  public static final int TEZ_RUNTIME_SHUFFLE_MERGE_PREFETCH_THREADS_DEFAULT = 4;
+
+  /**
+   * Size of each of the two buffers which a merge segment reads ahead into.
+   */
+  @Private
+  @Unstable
+  public static final String TEZ_RUNTIME_SHUFFLE_MERGE_PREFETCH_BUFFER_SIZE = TEZ_RUNTIME_PREFIX +
+      "shuffle.merge.prefetch.buffer-size";
+  public static final int TEZ_RUNTIME_SHUFFLE_MERGE_PREFETCH_BUFFER_SIZE_DEFAULT = 256 * 1024;
+
 
   // TODO Maybe rename to reflect what this actually does
   public static final String TEZ_RUNTIME_INPUT_BUFFER_PERCENT = TEZ_RUNTIME_PREFIX +
@@ -345,6 +668,12 @@ public class TezJobConfig {
   static {
     keys.add(TEZ_RUNTIME_IFILE_READAHEAD);
     keys.add(TEZ_RUNTIME_IFILE_READAHEAD_BYTES);
+    keys.add(TEZ_RUNTIME_IFILE_KEY_PREFIX_COMPRESSION);
+    keys.add(TEZ_RUNTIME_IFILE_KEY_PREFIX_RESTART_INTERVAL);
+    keys.add(TEZ_RUNTIME_IFILE_KEY_INDEX_INTERVAL_BYTES);
+    keys.add(TEZ_RUNTIME_IFILE_PARALLEL_COMPRESSION);
+    keys.add(TEZ_RUNTIME_IFILE_PARALLEL_COMPRESSION_BLOCK_SIZE);
+    keys.add(TEZ_RUNTIME_IFILE_PARALLEL_COMPRESSION_PARALLELISM);
     keys.add(TEZ_RUNTIME_IO_FILE_BUFFER_SIZE);
     keys.add(TEZ_RUNTIME_IO_SORT_FACTOR);
     keys.add(TEZ_RUNTIME_SORT_SPILL_PERCENT);
@@ -352,8 +681,14 @@ public class TezJobConfig {
     keys.add(TEZ_RUNTIME_INDEX_CACHE_MEMORY_LIMIT_BYTES);
     keys.add(TEZ_RUNTIME_COMBINE_MIN_SPILLS);
     keys.add(TEZ_RUNTIME_SORT_THREADS);
+    keys.add(TEZ_RUNTIME_PIPELINED_SORTER_DIRECT_BUFFERS);
+    keys.add(TEZ_RUNTIME_PIPELINED_SORTER_PARTITION_BUCKETING);
+    keys.add(TEZ_RUNTIME_SORT_KEY_PREFIX_ENABLED);
     keys.add(TEZ_RUNTIME_UNORDERED_OUTPUT_BUFFER_SIZE_MB);
     keys.add(TEZ_RUNTIME_UNORDERED_OUTPUT_MAX_PER_BUFFER_SIZE_BYTES);
+    keys.add(TEZ_RUNTIME_UNORDERED_OUTPUT_HASH_AGGREGATION_ENABLED);
+    keys.add(TEZ_RUNTIME_UNORDERED_OUTPUT_HASH_AGGREGATION_MEMORY_FRACTION);
+    keys.add(TEZ_RUNTIME_HASH_GROUPED_INPUT_TABLE_SIZE_MB);
     keys.add(TEZ_RUNTIME_PARTITIONER_CLASS);
     keys.add(TEZ_RUNTIME_COMBINER_CLASS);
     keys.add(TEZ_RUNTIME_COUNTERS_MAX_KEY);
@@ -369,12 +704,30 @@ public class TezJobConfig {
     keys.add(TEZ_RUNTIME_SHUFFLE_KEEP_ALIVE_MAX_CONNECTIONS);
     keys.add(TEZ_RUNTIME_SHUFFLE_READ_TIMEOUT);
     keys.add(TEZ_RUNTIME_SHUFFLE_BUFFER_SIZE);
+    keys.add(TEZ_RUNTIME_SHUFFLE_LOCAL_FETCH_ENABLED);
+    keys.add(TEZ_RUNTIME_SHUFFLE_NIO_ENABLED);
+    keys.add(TEZ_RUNTIME_SHUFFLE_NIO_SELECTORS);
+    keys.add(TEZ_RUNTIME_SHUFFLE_NIO_MAX_CONNECTIONS);
+    keys.add(TEZ_RUNTIME_SHUFFLE_FETCH_MAX_PARTITIONS_PER_REQUEST);
+    keys.add(TEZ_RUNTIME_SHUFFLE_FETCH_BUFFER_POOL_MAX_BUFFER_SIZE);
+    keys.add(TEZ_RUNTIME_SHUFFLE_FETCH_DISK_INPUT_MMAP_ENABLED);
+    keys.add(TEZ_RUNTIME_SHUFFLE_FETCH_MAX_UNCONSUMED_BYTES);
+    keys.add(TEZ_RUNTIME_SHUFFLE_FETCH_MAX_CONCURRENT_PER_HOST);
+    keys.add(TEZ_RUNTIME_SHUFFLE_FETCH_SPECULATION_ENABLED);
+    keys.add(TEZ_RUNTIME_SHUFFLE_FETCH_SPECULATION_SLOW_FRACTION);
+    keys.add(TEZ_RUNTIME_SHUFFLE_FETCH_SPECULATION_MIN_RUNTIME_MS);
     keys.add(TEZ_RUNTIME_SHUFFLE_ENABLE_SSL);
     keys.add(TEZ_RUNTIME_SHUFFLE_INPUT_BUFFER_PERCENT);
     keys.add(TEZ_RUNTIME_SHUFFLE_MEMORY_LIMIT_PERCENT);
     keys.add(TEZ_RUNTIME_SHUFFLE_MERGE_PERCENT);
+    keys.add(TEZ_RUNTIME_SHUFFLE_MEMORY_ADAPTIVE);
+    keys.add(TEZ_RUNTIME_SHUFFLE_MEMORY_ADAPTIVE_HEAP_THRESHOLD);
+    keys.add(TEZ_RUNTIME_SHUFFLE_MEMORY_ADAPTIVE_MAX_EXTRA_PERCENT);
     keys.add(TEZ_RUNTIME_SHUFFLE_MEMTOMEM_SEGMENTS);
     keys.add(TEZ_RUNTIME_SHUFFLE_ENABLE_MEMTOMEM);
+    keys.add(TEZ_RUNTIME_SHUFFLE_MERGE_PREFETCH_MEMORY);
+    keys.add(TEZ_RUNTIME_SHUFFLE_MERGE_PREFETCH_THREADS);
+    keys.add(TEZ_RUNTIME_SHUFFLE_MERGE_PREFETCH_BUFFER_SIZE);
     keys.add(TEZ_RUNTIME_INPUT_BUFFER_PERCENT);
     keys.add(TEZ_RUNTIME_GROUP_COMPARATOR_CLASS);
     keys.add(TEZ_RUNTIME_INTERNAL_SORTER_CLASS);
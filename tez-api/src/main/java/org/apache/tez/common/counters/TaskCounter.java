@@ -169,4 +169,16 @@ public enum TaskCounter {
    * Number of disk to disk merges performed during the sort-merge
    */
   NUM_DISK_TO_DISK_MERGES,
+
+  /**
+   * Number of in-memory shuffle buffers which were reused from the buffer
+   * pool. Used by ShuffledUnorderedKVInput
+   */
+  SHUFFLE_BUFFER_POOL_HITS,
+
+  /**
+   * Number of in-memory shuffle buffers which had to be newly allocated
+   * because the buffer pool had none of the required size
+   */
+  SHUFFLE_BUFFER_POOL_MISSES,
 }
\ No newline at end of file
@@ -111,6 +111,18 @@ public class TezConfiguration extends Configuration {
       TEZ_AM_PREFIX + "task.listener.thread-count";
   public static final int TEZ_AM_TASK_LISTENER_THREAD_COUNT_DEFAULT = 30;
 
+  /**
+   * Number of threads dispatching events in the AM. With more than 1, the
+   * events for the tasks and task attempts of a vertex are dispatched on one
+   * of the additional threads, chosen by the vertex. All other events are
+   * dispatched on a single thread.
+   */
+  @Unstable
+  @Private
+  public static final String TEZ_AM_DISPATCHER_THREAD_COUNT =
+      TEZ_AM_PREFIX + "dispatcher.thread-count";
+  public static final int TEZ_AM_DISPATCHER_THREAD_COUNT_DEFAULT = 1;
+
   /*
    * MR AM Service Authorization
    * These are the same as MR which allows Tez to run in secure
@@ -221,6 +233,32 @@ public class TezConfiguration extends Configuration {
       + "max-events-per-heartbeat.max";
   public static final int TEZ_TASK_MAX_EVENTS_PER_HEARTBEAT_DEFAULT = 100;
 
+  /**
+   * Maximum time, in milliseconds, for which the AM holds a task heartbeat
+   * waiting for new events for the task, instead of the task polling at
+   * TEZ_TASK_AM_HEARTBEAT_INTERVAL_MS. Events generated by the task while a
+   * heartbeat is held are sent once it returns. 0 disables long polling.
+   * The AM holds at most half of TEZ_AM_TASK_LISTENER_THREAD_COUNT
+   * heartbeats at a time.
+   */
+  @Unstable
+  @Private
+  public static final String TEZ_TASK_AM_HEARTBEAT_LONG_POLL_TIMEOUT_MS = TEZ_TASK_PREFIX
+      + "am.heartbeat.long-poll.timeout-ms";
+  public static final long TEZ_TASK_AM_HEARTBEAT_LONG_POLL_TIMEOUT_MS_DEFAULT = 0;
+
+  /**
+   * Whether CompositeDataMovementEvents are routed to the destination tasks
+   * when the tasks ask for events, instead of when they are received by the
+   * AM. Spreads the routing of large edges over the heartbeat handlers,
+   * instead of the central dispatcher.
+   */
+  @Unstable
+  @Private
+  public static final String TEZ_AM_COMPOSITE_EVENTS_LAZY_ROUTING_ENABLED = TEZ_AM_PREFIX
+      + "composite-events.lazy-routing.enabled";
+  public static final boolean TEZ_AM_COMPOSITE_EVENTS_LAZY_ROUTING_ENABLED_DEFAULT = false;
+
   /**
    * Whether to generate counters per IO or not. Enabling this will rename
    * CounterGroups / CounterNames to making thme unique per Vertex +
@@ -430,6 +430,12 @@ public class DAGAppMaster extends AbstractService {
   
   @VisibleForTesting
   protected Dispatcher createDispatcher() {
+    int numThreads = amConf.getInt(TezConfiguration.TEZ_AM_DISPATCHER_THREAD_COUNT,
+        TezConfiguration.TEZ_AM_DISPATCHER_THREAD_COUNT_DEFAULT);
+    if (numThreads > 1) {
+      LOG.info("Using PartitionedDispatcher with " + numThreads + " threads");
+      return new PartitionedDispatcher(numThreads);
+    }
     return new AsyncDispatcher();
   }
 
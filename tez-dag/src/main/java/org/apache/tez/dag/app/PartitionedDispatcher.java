@@ -0,0 +1,332 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.tez.dag.app;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.metrics2.MetricsCollector;
+import org.apache.hadoop.metrics2.MetricsException;
+import org.apache.hadoop.metrics2.MetricsRecordBuilder;
+import org.apache.hadoop.metrics2.MetricsSource;
+import org.apache.hadoop.metrics2.lib.DefaultMetricsSystem;
+import org.apache.hadoop.metrics2.lib.Interns;
+import org.apache.hadoop.metrics2.lib.MetricsRegistry;
+import org.apache.hadoop.metrics2.lib.MutableRate;
+import org.apache.hadoop.service.AbstractService;
+import org.apache.hadoop.util.ShutdownHookManager;
+import org.apache.hadoop.yarn.event.Dispatcher;
+import org.apache.hadoop.yarn.event.Event;
+import org.apache.hadoop.yarn.event.EventHandler;
+import org.apache.hadoop.yarn.exceptions.YarnRuntimeException;
+import org.apache.tez.dag.app.dag.event.TaskAttemptEvent;
+import org.apache.tez.dag.app.dag.event.TaskEvent;
+import org.apache.tez.dag.records.TezVertexID;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+
+/**
+ * Dispatches events on several threads, instead of the single thread of
+ * AsyncDispatcher. The events for the tasks and task attempts of a vertex are
+ * dispatched on one of the task threads, chosen by the vertex. All other
+ * events, e.g. for the DAG, the vertices, the scheduler and the containers,
+ * are dispatched on a single thread. The events for an entity are dispatched
+ * in the order they are sent.
+ *
+ * Publishes the number of queued events for each thread, and the queue and
+ * processing times for each event type.
+ */
+@Private
+@SuppressWarnings({ "rawtypes", "unchecked" })
+public class PartitionedDispatcher extends AbstractService implements Dispatcher {
+
+  private static final Log LOG = LogFactory.getLog(PartitionedDispatcher.class);
+
+  static final String METRICS_SOURCE_NAME = "PartitionedDispatcher";
+
+  private final Partition[] partitions;
+  private final Map<Class<? extends Enum>, EventHandler> eventDispatchers =
+      new HashMap<Class<? extends Enum>, EventHandler>();
+  private final EventHandler handlerInstance = new GenericEventHandler();
+  private volatile boolean stopped = false;
+  private boolean exitOnDispatchException;
+
+  private final MetricsRegistry registry = new MetricsRegistry(METRICS_SOURCE_NAME);
+  private final ConcurrentMap<Enum, EventTypeMetrics> eventTypeMetrics =
+      new ConcurrentHashMap<Enum, EventTypeMetrics>();
+
+  /**
+   * @param numThreads the total number of threads, at least 2: one for the
+   *          events which are not for tasks or task attempts, and at least
+   *          one for the events for tasks and task attempts.
+   */
+  public PartitionedDispatcher(int numThreads) {
+    super(PartitionedDispatcher.class.getName());
+    Preconditions.checkArgument(numThreads > 1,
+        "PartitionedDispatcher needs at least 2 threads, got " + numThreads);
+    partitions = new Partition[numThreads];
+    for (int i = 0; i < numThreads; i++) {
+      partitions[i] = new Partition(i);
+    }
+  }
+
+  @Override
+  protected void serviceInit(Configuration conf) throws Exception {
+    this.exitOnDispatchException = conf.getBoolean(
+        Dispatcher.DISPATCHER_EXIT_ON_ERROR_KEY,
+        Dispatcher.DEFAULT_DISPATCHER_EXIT_ON_ERROR);
+    super.serviceInit(conf);
+  }
+
+  @Override
+  protected void serviceStart() throws Exception {
+    for (Partition partition : partitions) {
+      partition.start();
+    }
+    try {
+      DefaultMetricsSystem.instance().register(METRICS_SOURCE_NAME,
+          "Event dispatcher metrics", new DispatcherMetricsSource());
+    } catch (MetricsException e) {
+      // e.g. already registered by another dispatcher in this JVM
+      LOG.warn("Failed to register dispatcher metrics", e);
+    }
+    super.serviceStart();
+  }
+
+  @Override
+  protected void serviceStop() throws Exception {
+    stopped = true;
+    for (Partition partition : partitions) {
+      partition.stop();
+    }
+    super.serviceStop();
+  }
+
+  @Override
+  public EventHandler getEventHandler() {
+    return handlerInstance;
+  }
+
+  @Override
+  public void register(Class<? extends Enum> eventType, EventHandler handler) {
+    EventHandler registeredHandler = eventDispatchers.get(eventType);
+    LOG.info("Registering " + eventType + " for " + handler.getClass());
+    if (registeredHandler == null) {
+      eventDispatchers.put(eventType, handler);
+    } else if (!(registeredHandler instanceof MultiListenerHandler)) {
+      MultiListenerHandler multiHandler = new MultiListenerHandler();
+      multiHandler.addHandler(registeredHandler);
+      multiHandler.addHandler(handler);
+      eventDispatchers.put(eventType, multiHandler);
+    } else {
+      ((MultiListenerHandler) registeredHandler).addHandler(handler);
+    }
+  }
+
+  @VisibleForTesting
+  int getPartition(Event event) {
+    TezVertexID vertexId = null;
+    if (event instanceof TaskEvent) {
+      vertexId = ((TaskEvent) event).getTaskID().getVertexID();
+    } else if (event instanceof TaskAttemptEvent) {
+      vertexId = ((TaskAttemptEvent) event).getTaskAttemptID().getTaskID().getVertexID();
+    }
+    if (vertexId == null) {
+      return 0;
+    }
+    return 1 + (vertexId.getId() % (partitions.length - 1));
+  }
+
+  @VisibleForTesting
+  int getQueueSize(int partition) {
+    return partitions[partition].eventQueue.size();
+  }
+
+  private void dispatch(QueuedEvent queuedEvent) {
+    Event event = queuedEvent.event;
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Dispatching the event " + event.getClass().getName() + "."
+          + event.toString());
+    }
+    EventTypeMetrics metrics = getEventTypeMetrics(event.getType());
+    long startTime = System.nanoTime();
+    metrics.queueTime.add((startTime - queuedEvent.queueTime) / 1000);
+
+    Class<? extends Enum> type = event.getType().getDeclaringClass();
+    try {
+      EventHandler handler = eventDispatchers.get(type);
+      if (handler != null) {
+        handler.handle(event);
+      } else {
+        throw new Exception("No handler for registered for " + type);
+      }
+    } catch (Throwable t) {
+      LOG.fatal("Error in dispatcher thread", t);
+      if (exitOnDispatchException
+          && !ShutdownHookManager.get().isShutdownInProgress()) {
+        LOG.info("Exiting, bbye..");
+        System.exit(-1);
+      }
+    } finally {
+      metrics.processingTime.add((System.nanoTime() - startTime) / 1000);
+    }
+  }
+
+  private EventTypeMetrics getEventTypeMetrics(Enum type) {
+    EventTypeMetrics metrics = eventTypeMetrics.get(type);
+    if (metrics == null) {
+      // the registry does not allow creating a metric twice
+      synchronized (eventTypeMetrics) {
+        metrics = eventTypeMetrics.get(type);
+        if (metrics == null) {
+          String name = type.getDeclaringClass().getSimpleName() + "." + type.name();
+          metrics = new EventTypeMetrics(
+              registry.newRate(name + ".QueueTimeUs", "Time queued for " + name, false),
+              registry.newRate(name + ".ProcessingTimeUs", "Time to process " + name, false));
+          eventTypeMetrics.put(type, metrics);
+        }
+      }
+    }
+    return metrics;
+  }
+
+  private static class EventTypeMetrics {
+    final MutableRate queueTime;
+    final MutableRate processingTime;
+
+    EventTypeMetrics(MutableRate queueTime, MutableRate processingTime) {
+      this.queueTime = queueTime;
+      this.processingTime = processingTime;
+    }
+  }
+
+  private static class QueuedEvent {
+    final Event event;
+    final long queueTime;
+
+    QueuedEvent(Event event) {
+      this.event = event;
+      this.queueTime = System.nanoTime();
+    }
+  }
+
+  private class Partition implements Runnable {
+    private final int index;
+    private final BlockingQueue<QueuedEvent> eventQueue =
+        new LinkedBlockingQueue<QueuedEvent>();
+    private Thread thread;
+
+    Partition(int index) {
+      this.index = index;
+    }
+
+    void start() {
+      thread = new Thread(this);
+      thread.setName("PartitionedDispatcher event handler " + index);
+      thread.start();
+    }
+
+    void stop() throws InterruptedException {
+      if (thread != null) {
+        thread.interrupt();
+        try {
+          thread.join();
+        } catch (InterruptedException ie) {
+          LOG.warn("Interrupted Exception while stopping", ie);
+        }
+      }
+    }
+
+    @Override
+    public void run() {
+      while (!stopped && !Thread.currentThread().isInterrupted()) {
+        QueuedEvent queuedEvent;
+        try {
+          queuedEvent = eventQueue.take();
+        } catch (InterruptedException ie) {
+          if (!stopped) {
+            LOG.warn("PartitionedDispatcher thread " + index + " interrupted", ie);
+          }
+          return;
+        }
+        dispatch(queuedEvent);
+      }
+    }
+  }
+
+  private class GenericEventHandler implements EventHandler<Event> {
+    @Override
+    public void handle(Event event) {
+      Partition partition = partitions[getPartition(event)];
+      int qSize = partition.eventQueue.size();
+      if (qSize != 0 && qSize % 1000 == 0) {
+        LOG.info("Size of event-queue " + partition.index + " is " + qSize);
+      }
+      try {
+        partition.eventQueue.put(new QueuedEvent(event));
+      } catch (InterruptedException e) {
+        if (!stopped) {
+          LOG.warn("PartitionedDispatcher thread interrupted", e);
+        }
+        throw new YarnRuntimeException(e);
+      }
+    }
+  }
+
+  private static class MultiListenerHandler implements EventHandler<Event> {
+    private final List<EventHandler<Event>> listofHandlers =
+        new ArrayList<EventHandler<Event>>();
+
+    @Override
+    public void handle(Event event) {
+      for (EventHandler<Event> handler : listofHandlers) {
+        handler.handle(event);
+      }
+    }
+
+    void addHandler(EventHandler<Event> handler) {
+      listofHandlers.add(handler);
+    }
+  }
+
+  private class DispatcherMetricsSource implements MetricsSource {
+    @Override
+    public void getMetrics(MetricsCollector collector, boolean all) {
+      MetricsRecordBuilder builder = collector.addRecord(METRICS_SOURCE_NAME)
+          .setContext("tez");
+      for (Partition partition : partitions) {
+        builder.addGauge(Interns.info("EventQueueSize" + partition.index,
+            "Events queued for thread " + partition.index),
+            partition.eventQueue.size());
+      }
+      registry.snapshot(builder, all);
+    }
+  }
+}
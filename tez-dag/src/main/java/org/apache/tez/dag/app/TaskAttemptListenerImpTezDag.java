@@ -25,6 +25,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -90,16 +91,28 @@ public class TaskAttemptListenerImpTezDag extends AbstractService implements
     }
     ContainerId containerId;
     long lastRequestId;
+    // null while the heartbeat with lastRequestId waits for events
     TezHeartbeatResponse lastReponse;
     TezTaskAttemptID currentAttemptId;
+    // The task for which the heartbeat with lastRequestId waits, if any
+    Task waitingTask;
   }
 
+  // Time for which a heartbeat waits for the heartbeat before it, which may
+  // be handled concurrently while the container long-polls for events.
+  private static final long PREVIOUS_HEARTBEAT_WAIT_MS = 5000;
+
   private ConcurrentMap<TezTaskAttemptID, ContainerId> attemptToInfoMap =
       new ConcurrentHashMap<TezTaskAttemptID, ContainerId>();
 
   private ConcurrentHashMap<ContainerId, ContainerInfo> registeredContainers =
       new ConcurrentHashMap<ContainerId, ContainerInfo>();
 
+  // Limits the RPC handlers held by heartbeats waiting for events, so that
+  // some are always available for other calls.
+  private Semaphore waitingHeartbeats = new Semaphore(
+      TezConfiguration.TEZ_AM_TASK_LISTENER_THREAD_COUNT_DEFAULT / 2);
+
   public TaskAttemptListenerImpTezDag(AppContext context,
       TaskHeartbeatHandler thh, ContainerHeartbeatHandler chh,
       JobTokenSecretManager jobTokenSecretManager) {
@@ -110,6 +123,14 @@ public class TaskAttemptListenerImpTezDag extends AbstractService implements
     this.containerHeartbeatHandler = chh;
   }
 
+  @Override
+  public void serviceInit(Configuration conf) throws Exception {
+    waitingHeartbeats = new Semaphore(Math.max(1,
+        conf.getInt(TezConfiguration.TEZ_AM_TASK_LISTENER_THREAD_COUNT,
+            TezConfiguration.TEZ_AM_TASK_LISTENER_THREAD_COUNT_DEFAULT) / 2));
+    super.serviceInit(conf);
+  }
+
   @Override
   public void serviceStart() {
     startRpcServer();
@@ -455,56 +476,135 @@ public class TaskAttemptListenerImpTezDag extends AbstractService implements
       return response;
     }
 
+    TezTaskAttemptID taskAttemptID = request.getCurrentTaskAttemptID();
+    Task task;
     synchronized (containerInfo) {
       pingContainerHeartbeatHandler(containerId);
 
       if(containerInfo.lastRequestId == requestId) {
+        if (containerInfo.lastReponse != null) {
+          LOG.warn("Old sequenceId received: " + requestId
+              + ", Re-sending last response to client");
+          return containerInfo.lastReponse;
+        }
+        // The events of the request have been routed already, respond
+        // without waiting
         LOG.warn("Old sequenceId received: " + requestId
-            + ", Re-sending last response to client");
-        return containerInfo.lastReponse;
+            + " while the request waits for events, responding right away");
+        return createHeartbeatResponse(request, containerInfo.waitingTask);
       }
 
-      TezHeartbeatResponse response = new TezHeartbeatResponse();
-      response.setLastRequestId(requestId);
+      if (taskAttemptID == null) {
+        return completeHeartbeat(containerInfo, request, null);
+      }
 
-      TezTaskAttemptID taskAttemptID = request.getCurrentTaskAttemptID();
-      if (taskAttemptID != null) {
-        ContainerId containerIdFromMap = attemptToInfoMap.get(taskAttemptID);
-        if(containerIdFromMap == null || !containerIdFromMap.equals(containerId)) {
-          throw new TezException("Attempt " + taskAttemptID
-            + " is not recognized for heartbeat");
-        }
+      ContainerId containerIdFromMap = attemptToInfoMap.get(taskAttemptID);
+      if(containerIdFromMap == null || !containerIdFromMap.equals(containerId)) {
+        throw new TezException("Attempt " + taskAttemptID
+          + " is not recognized for heartbeat");
+      }
 
-        if(containerInfo.lastRequestId+1 != requestId) {
-          throw new TezException("Container " + containerId
-              + " has invalid request id. Expected: "
-              + containerInfo.lastRequestId+1
-              + " and actual: " + requestId);
-        }
+      waitForPreviousHeartbeat(containerInfo, requestId);
+      if(containerInfo.lastRequestId+1 != requestId) {
+        throw new TezException("Container " + containerId
+            + " has invalid request id. Expected: "
+            + containerInfo.lastRequestId+1
+            + " and actual: " + requestId);
+      }
+      if (containerInfo.waitingTask != null) {
+        // The container sends events or its completion while the previous
+        // heartbeat waits, let that one return
+        containerInfo.waitingTask.notifyTezEventsPending();
+      }
 
-        List<TezEvent> inEvents = request.getEvents();
-        if (LOG.isDebugEnabled()) {
-          LOG.debug("Ping from " + taskAttemptID.toString() +
-              " events: " + (inEvents != null? inEvents.size() : -1));
-        }
-        if(inEvents!=null && !inEvents.isEmpty()) {
-          TezVertexID vertexId = taskAttemptID.getTaskID().getVertexID();
-          context.getEventHandler().handle(
-              new VertexEventRouteEvent(vertexId, inEvents));
-        }
-        taskHeartbeatHandler.pinged(taskAttemptID);
-        List<TezEvent> outEvents = context
-            .getCurrentDAG()
-            .getVertex(taskAttemptID.getTaskID().getVertexID())
-            .getTask(taskAttemptID.getTaskID())
-            .getTaskAttemptTezEvents(taskAttemptID, request.getStartIndex(),
-                request.getMaxEvents());
-        response.setEvents(outEvents);
+      List<TezEvent> inEvents = request.getEvents();
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Ping from " + taskAttemptID.toString() +
+            " events: " + (inEvents != null? inEvents.size() : -1));
+      }
+      if(inEvents!=null && !inEvents.isEmpty()) {
+        TezVertexID vertexId = taskAttemptID.getTaskID().getVertexID();
+        context.getEventHandler().handle(
+            new VertexEventRouteEvent(vertexId, inEvents));
+      }
+      taskHeartbeatHandler.pinged(taskAttemptID);
+      task = context
+          .getCurrentDAG()
+          .getVertex(taskAttemptID.getTaskID().getVertexID())
+          .getTask(taskAttemptID.getTaskID());
+      if (request.getMaxWaitTime() <= 0 || !waitingHeartbeats.tryAcquire()) {
+        return completeHeartbeat(containerInfo, request, task);
       }
+      // Record the request before waiting, so that a retry of it is not
+      // routed again and the next heartbeat is accepted
       containerInfo.lastRequestId = requestId;
-      containerInfo.lastReponse = response;
-      return response;
+      containerInfo.lastReponse = null;
+      containerInfo.waitingTask = task;
+      containerInfo.notifyAll();
+    }
+
+    // Wait outside the lock on the container, which the dispatcher needs to
+    // register and unregister attempts.
+    try {
+      task.waitForTaskAttemptTezEvents(request.getStartIndex(), request.getMaxWaitTime());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new TezException("Interrupted while waiting for events for " + taskAttemptID);
+    } finally {
+      waitingHeartbeats.release();
+    }
+    synchronized (containerInfo) {
+      if (containerInfo.lastRequestId != requestId) {
+        // A later heartbeat has been handled while waiting, do not record
+        // this response over its one
+        return createHeartbeatResponse(request, task);
+      }
+      return completeHeartbeat(containerInfo, request, task);
+    }
+  }
+
+  /**
+   * Waits until the heartbeat before requestId is recorded. It may still be
+   * in another handler when the container sends events while long polling.
+   * Must be called with the lock on containerInfo held.
+   */
+  private void waitForPreviousHeartbeat(ContainerInfo containerInfo, long requestId)
+      throws TezException {
+    long endTime = System.currentTimeMillis() + PREVIOUS_HEARTBEAT_WAIT_MS;
+    while (containerInfo.lastRequestId + 1 < requestId) {
+      long remaining = endTime - System.currentTimeMillis();
+      if (remaining <= 0) {
+        return;
+      }
+      try {
+        containerInfo.wait(remaining);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new TezException("Interrupted while waiting for heartbeat "
+            + (requestId - 1) + " of " + containerInfo.containerId);
+      }
+    }
+  }
+
+  private TezHeartbeatResponse completeHeartbeat(ContainerInfo containerInfo,
+      TezHeartbeatRequest request, Task task) {
+    TezHeartbeatResponse response = createHeartbeatResponse(request, task);
+    containerInfo.lastRequestId = request.getRequestId();
+    containerInfo.lastReponse = response;
+    containerInfo.waitingTask = null;
+    containerInfo.notifyAll();
+    return response;
+  }
+
+  private TezHeartbeatResponse createHeartbeatResponse(TezHeartbeatRequest request, Task task) {
+    TezHeartbeatResponse response = new TezHeartbeatResponse();
+    response.setLastRequestId(request.getRequestId());
+    if (task != null) {
+      List<TezEvent> outEvents = task.getTaskAttemptTezEvents(
+          request.getCurrentTaskAttemptID(), request.getStartIndex(), request.getMaxEvents());
+      response.setEvents(outEvents);
     }
+    return response;
   }
 
   private Map<String, TezLocalResource> convertLocalResourceMap(Map<String, LocalResource> ylrs)
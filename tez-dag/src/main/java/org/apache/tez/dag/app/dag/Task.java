@@ -79,6 +79,20 @@ public interface Task {
   
   public List<TezEvent> getTaskAttemptTezEvents(TezTaskAttemptID attemptID,
       int fromEventId, int maxEvents);
+
+  /**
+   * Waits until there are more than fromEventId events for the attempts of
+   * this task, until {@link #notifyTezEventsPending()} is called, or until the
+   * timeout expires.
+   */
+  public void waitForTaskAttemptTezEvents(int fromEventId, long timeout)
+      throws InterruptedException;
+
+  /**
+   * Wakes up the callers waiting for events, e.g. when there are events
+   * pending to be routed to the task.
+   */
+  public void notifyTezEventsPending();
   
   public List<String> getDiagnostics();
 
@@ -1227,13 +1227,16 @@ public class DAGImpl implements org.apache.tez.dag.app.dag.DAG,
   }
 
   private void createDAGEdges(DAGImpl dag) {
+    boolean routeCompositeEventsLazily = dag.conf.getBoolean(
+        TezConfiguration.TEZ_AM_COMPOSITE_EVENTS_LAZY_ROUTING_ENABLED,
+        TezConfiguration.TEZ_AM_COMPOSITE_EVENTS_LAZY_ROUTING_ENABLED_DEFAULT);
     for (EdgePlan edgePlan : dag.getJobPlan().getEdgeList()) {
       EdgeProperty edgeProperty = DagTypeConverters
           .createEdgePropertyMapFromDAGPlan(edgePlan);
 
       // edge manager may be also set via API when using custom edge type
       dag.edges.put(edgePlan.getId(),
-          new Edge(edgeProperty, dag.getEventHandler()));
+          new Edge(edgeProperty, dag.getEventHandler(), routeCompositeEventsLazily));
     }
   }
 
@@ -19,8 +19,11 @@
 package org.apache.tez.dag.app.dag.impl;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.annotation.Nullable;
@@ -103,11 +106,37 @@ public class Edge {
   private Vertex sourceVertex;
   private Vertex destinationVertex; // this may end up being a list for shared edge
   private EventMetaData destinationMetaInfo;
+  private final boolean routeCompositeEventsLazily;
+  // Composite events which are not routed yet
+  private List<TezEvent> pendingCompositeEvents = new ArrayList<TezEvent>();
+  // Events routed from composite events, by destination task index, until the
+  // destination tasks take them
+  private Map<Integer, List<TezEvent>> routedCompositeEvents = Maps.newHashMap();
+  // Held while routing the pending composite events, which is done without
+  // holding the edge monitor. Taken before the edge monitor.
+  private final Object compositeEventsRoutingLock = new Object();
+  private boolean routingCompositeEvents = false;
+  // Destination tasks with heartbeats waiting for events
+  private final Set<Task> destinationTasksWaitingForEvents =
+      Collections.newSetFromMap(new ConcurrentHashMap<Task, Boolean>());
 
   @SuppressWarnings("rawtypes")
   public Edge(EdgeProperty edgeProperty, EventHandler eventHandler) {
+    this(edgeProperty, eventHandler, false);
+  }
+
+  /**
+   * @param routeCompositeEventsLazily whether CompositeDataMovementEvents are
+   *          routed when the destination tasks take them, with
+   *          {@link #takePendingEventsForDestination(int)}, instead of when
+   *          they are received.
+   */
+  @SuppressWarnings("rawtypes")
+  public Edge(EdgeProperty edgeProperty, EventHandler eventHandler,
+      boolean routeCompositeEventsLazily) {
     this.edgeProperty = edgeProperty;
     this.eventHandler = eventHandler;
+    this.routeCompositeEventsLazily = routeCompositeEventsLazily;
     createEdgeManager();
   }
 
@@ -153,7 +182,16 @@ public class Edge {
         null);
   }
 
-  public synchronized void setCustomEdgeManager(EdgeManagerDescriptor descriptor) {
+  public void setCustomEdgeManager(EdgeManagerDescriptor descriptor) {
+    // the edge manager is not replaced while pending events are routed
+    synchronized (compositeEventsRoutingLock) {
+      synchronized (this) {
+        setCustomEdgeManagerInternal(descriptor);
+      }
+    }
+  }
+
+  private void setCustomEdgeManagerInternal(EdgeManagerDescriptor descriptor) {
     EdgeProperty modifiedEdgeProperty =
         new EdgeProperty(descriptor,
             edgeProperty.getDataSourceType(),
@@ -162,6 +200,10 @@ public class Edge {
             edgeProperty.getEdgeDestination());
     this.edgeProperty = modifiedEdgeProperty;
     boolean wasUnInitialized = (edgeManager == null);
+    if (!wasUnInitialized) {
+      // events received so far are routed by the current edge manager
+      routePendingCompositeEvents();
+    }
     createEdgeManager();
     initialize();
     if (wasUnInitialized) {
@@ -269,6 +311,21 @@ public class Edge {
   
 
   private void handleCompositeDataMovementEvent(TezEvent tezEvent) {
+    if (routeCompositeEventsLazily) {
+      boolean wasEmpty;
+      synchronized (this) {
+        wasEmpty = pendingCompositeEvents.isEmpty();
+        pendingCompositeEvents.add(tezEvent);
+      }
+      // Wake up the heartbeats waiting for events. They have already been
+      // woken up for the earlier events, which are still pending.
+      if (wasEmpty) {
+        for (Task task : destinationTasksWaitingForEvents) {
+          task.notifyTezEventsPending();
+        }
+      }
+      return;
+    }
     CompositeDataMovementEvent compEvent = (CompositeDataMovementEvent) tezEvent.getEvent();
     EventMetaData srcInfo = tezEvent.getSourceInfo();
     
@@ -278,18 +335,163 @@ public class Edge {
     }
   }
   
+  /**
+   * Returns whether there are events, routed lazily, which the destination
+   * task has not taken yet.
+   */
+  public synchronized boolean hasPendingEventsForDestination(int destTaskIndex) {
+    return !pendingCompositeEvents.isEmpty() || routingCompositeEvents
+        || routedCompositeEvents.containsKey(destTaskIndex);
+  }
+
+  /**
+   * Routes the pending composite events, and returns the events for the
+   * destination task which it has not taken yet.
+   */
+  public List<TezEvent> takePendingEventsForDestination(int destTaskIndex) {
+    synchronized (compositeEventsRoutingLock) {
+      routePendingCompositeEvents();
+      synchronized (this) {
+        List<TezEvent> events = routedCompositeEvents.remove(destTaskIndex);
+        if (events == null) {
+          return Collections.emptyList();
+        }
+        return events;
+      }
+    }
+  }
+
+  /**
+   * Registers a destination task with heartbeats waiting for events, to be
+   * woken up when composite events are received.
+   */
+  public void addDestinationTaskWaitingForEvents(Task task) {
+    if (routeCompositeEventsLazily) {
+      destinationTasksWaitingForEvents.add(task);
+    }
+  }
+
+  public void removeDestinationTaskWaitingForEvents(Task task) {
+    destinationTasksWaitingForEvents.remove(task);
+  }
+
+  // Each event is routed once, for all the destination tasks. Must be called
+  // with compositeEventsRoutingLock held. Events keep being received, and
+  // checked for, while they are routed.
+  private void routePendingCompositeEvents() {
+    List<TezEvent> compositeEvents;
+    synchronized (this) {
+      if (pendingCompositeEvents.isEmpty()) {
+        return;
+      }
+      compositeEvents = pendingCompositeEvents;
+      pendingCompositeEvents = new ArrayList<TezEvent>();
+      routingCompositeEvents = true;
+    }
+    try {
+      Map<Integer, List<TezEvent>> routedEvents = routeCompositeEvents(compositeEvents);
+      synchronized (this) {
+        for (Map.Entry<Integer, List<TezEvent>> entry : routedEvents.entrySet()) {
+          List<TezEvent> events = routedCompositeEvents.get(entry.getKey());
+          if (events == null) {
+            routedCompositeEvents.put(entry.getKey(), entry.getValue());
+          } else {
+            events.addAll(entry.getValue());
+          }
+        }
+      }
+    } finally {
+      synchronized (this) {
+        routingCompositeEvents = false;
+      }
+    }
+  }
+
+  private Map<Integer, List<TezEvent>> routeCompositeEvents(List<TezEvent> compositeEvents) {
+    Preconditions.checkState(edgeManager != null, 
+        "Edge Manager must be initialized by this time");
+    Map<Integer, List<TezEvent>> routedEvents = Maps.newHashMap();
+    int destNumTasks = destinationVertex.getTotalTasks();
+    for (TezEvent tezEvent : compositeEvents) {
+      CompositeDataMovementEvent compEvent = (CompositeDataMovementEvent) tezEvent.getEvent();
+      EventMetaData srcInfo = tezEvent.getSourceInfo();
+      int srcTaskIndex = srcInfo.getTaskAttemptID().getTaskID().getId();
+      for (DataMovementEvent dmEvent : compEvent.getEvents()) {
+        Map<Integer, List<Integer>> destTaskAndInputIndices = Maps.newHashMap();
+        edgeManager.routeDataMovementEventToDestination(dmEvent,
+            srcTaskIndex, dmEvent.getSourceIndex(), destTaskAndInputIndices);
+        if (destTaskAndInputIndices.isEmpty()) {
+          throw new TezUncheckedException("Event must be routed." +
+              " sourceVertex=" + sourceVertex.getVertexId() +
+              " srcIndex = " + srcTaskIndex +
+              " destAttemptId=" + destinationVertex.getVertexId() +
+              " edgeManager=" + edgeManager.getClass().getName() + 
+              " Event type=" + tezEvent.getEventType());
+        }
+        Map<Integer, List<TezEvent>> destTaskEvents = routeDmEventOrIfEvent(
+            new TezEvent(dmEvent, srcInfo), true, destTaskAndInputIndices);
+        for (Map.Entry<Integer, List<TezEvent>> entry : destTaskEvents.entrySet()) {
+          int destTaskIndex = entry.getKey();
+          if (destTaskIndex < 0 || destTaskIndex >= destNumTasks) {
+            throw new TezUncheckedException("Unexpected destination task." +
+                " sourceVertex=" + sourceVertex.getVertexId() +
+                " srcTaskIndex = " + srcTaskIndex +
+                " destVertex=" + destinationVertex.getVertexId() +
+                " destTaskIndex=" + destTaskIndex + 
+                " destNumTasks=" + destNumTasks + 
+                " edgeManager=" + edgeManager.getClass().getName());
+          }
+          List<TezEvent> events = routedEvents.get(destTaskIndex);
+          if (events == null) {
+            events = new ArrayList<TezEvent>();
+            routedEvents.put(destTaskIndex, events);
+          }
+          events.addAll(entry.getValue());
+        }
+      }
+    }
+    return routedEvents;
+  }
+
   void sendDmEventOrIfEventToTasks(TezEvent tezEvent, int srcTaskIndex,
       boolean isDataMovementEvent,
       Map<Integer, List<Integer>> taskAndInputIndices) {    
     Preconditions.checkState(edgeManager != null, 
         "Edge Manager must be initialized by this time");
+    Map<Integer, List<TezEvent>> destTaskEvents = routeDmEventOrIfEvent(tezEvent,
+        isDataMovementEvent, taskAndInputIndices);
+    for (Map.Entry<Integer, List<TezEvent>> entry : destTaskEvents.entrySet()) {
+      int destTaskIndex = entry.getKey();
+      Task destTask = destinationVertex.getTask(destTaskIndex);
+      if (destTask == null) {
+        throw new TezUncheckedException("Unexpected null task." +
+            " sourceVertex=" + sourceVertex.getVertexId() +
+            " srcTaskIndex = " + srcTaskIndex +
+            " destVertex=" + destinationVertex.getVertexId() +
+            " destTaskIndex=" + destTaskIndex + 
+            " destNumTasks=" + destinationVertex.getTotalTasks() + 
+            " edgeManager=" + edgeManager.getClass().getName());
+      }
+      TezTaskID destTaskId = destTask.getTaskId();
+      for (TezEvent tezEventToSend : entry.getValue()) {
+        sendEventToTask(destTaskId, tezEventToSend);
+      }
+    }
+  }
+
+  // Creates the events for the destination tasks, by destination task index
+  private Map<Integer, List<TezEvent>> routeDmEventOrIfEvent(TezEvent tezEvent,
+      boolean isDataMovementEvent,
+      Map<Integer, List<Integer>> taskAndInputIndices) {
     Event event = tezEvent.getEvent();
     boolean isFirstEvent = true;
     // cache of event object per input index
     Map<Integer, TezEvent> inputIndicesWithEvents = Maps.newHashMap(); 
+    Map<Integer, List<TezEvent>> destTaskEvents = Maps.newLinkedHashMap();
     for (Map.Entry<Integer, List<Integer>> entry : taskAndInputIndices.entrySet()) {
       int destTaskIndex = entry.getKey();
       List<Integer> inputIndices = entry.getValue();
+      List<TezEvent> events = new ArrayList<TezEvent>(inputIndices.size());
       for(int i=0; i<inputIndices.size(); ++i) {
         Integer inputIndex = inputIndices.get(i);
         TezEvent tezEventToSend = inputIndicesWithEvents.get(inputIndex);
@@ -320,20 +522,11 @@ public class Edge {
           // cache the event object per input because are unique per input index
           inputIndicesWithEvents.put(inputIndex, tezEventToSend);
         }
-        Task destTask = destinationVertex.getTask(destTaskIndex);
-        if (destTask == null) {
-          throw new TezUncheckedException("Unexpected null task." +
-              " sourceVertex=" + sourceVertex.getVertexId() +
-              " srcTaskIndex = " + srcTaskIndex +
-              " destVertex=" + destinationVertex.getVertexId() +
-              " destTaskIndex=" + destTaskIndex + 
-              " destNumTasks=" + destinationVertex.getTotalTasks() + 
-              " edgeManager=" + edgeManager.getClass().getName());
-        }
-        TezTaskID destTaskId = destTask.getTaskId();
-        sendEventToTask(destTaskId, tezEventToSend);      
+        events.add(tezEventToSend);
       }
+      destTaskEvents.put(destTaskIndex, events);
     }
+    return destTaskEvents;
   }
   
   public void sendTezEventToDestinationTasks(TezEvent tezEvent) {
@@ -19,6 +19,7 @@
 package org.apache.tez.dag.app.dag.impl;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.LinkedHashMap;
@@ -86,6 +87,7 @@ import org.apache.tez.dag.records.TezTaskAttemptID;
 import org.apache.tez.dag.records.TezTaskID;
 import org.apache.tez.dag.records.TezVertexID;
 import org.apache.tez.runtime.api.OutputCommitter;
+import org.apache.tez.runtime.api.impl.EventType;
 import org.apache.tez.runtime.api.impl.TezEvent;
 
 import com.google.common.annotations.VisibleForTesting;
@@ -119,7 +121,16 @@ public class TaskImpl implements Task, EventHandler<TaskEvent> {
   private final ContainerContext containerContext;
   private long scheduledTime;
 
-  private List<TezEvent> tezEventsForTaskAttempts = new ArrayList<TezEvent>();
+  private final TezEventStore tezEventsForTaskAttempts = new TezEventStore();
+  // Notified when events are added, for heartbeats waiting for events
+  private final Object tezEventsAdded = new Object();
+  // Incremented, with tezEventsAdded held, on each notification. Waiters do
+  // not check for events with tezEventsAdded held, as that needs the task and
+  // vertex locks, which are held by the callers notifying them.
+  private long tezEventsAddedCount = 0;
+  // Heartbeats waiting for events, guarded by tezEventsAdded. The task is
+  // registered with its input edges while there are any.
+  private int numTezEventsWaiters = 0;
   private static final List<TezEvent> EMPTY_TASK_ATTEMPT_TEZ_EVENTS =
       new ArrayList(0);
 
@@ -456,6 +467,14 @@ public class TaskImpl implements Task, EventHandler<TaskEvent> {
   public List<TezEvent> getTaskAttemptTezEvents(TezTaskAttemptID attemptID,
       int fromEventId, int maxEvents) {
     List<TezEvent> events = EMPTY_TASK_ATTEMPT_TEZ_EVENTS;
+    if (hasPendingTezEvents()) {
+      writeLock.lock();
+      try {
+        addPendingTezEvents(null);
+      } finally {
+        writeLock.unlock();
+      }
+    }
     readLock.lock();
 
     if (!attempts.containsKey(attemptID)) {
@@ -468,8 +487,8 @@ public class TaskImpl implements Task, EventHandler<TaskEvent> {
         int actualMax = Math.min(maxEvents,
             (tezEventsForTaskAttempts.size() - fromEventId));
         int toEventId = actualMax + fromEventId;
-        events = Collections.unmodifiableList(new ArrayList<TezEvent>(
-            tezEventsForTaskAttempts.subList(fromEventId, toEventId)));
+        events = Collections.unmodifiableList(
+            tezEventsForTaskAttempts.get(fromEventId, toEventId));
         LOG.info("TaskAttempt:" + attemptID + " sent events: (" + fromEventId
             + "-" + toEventId + ")");
         // currently not modifying the events so that we dont have to create
@@ -489,6 +508,100 @@ public class TaskImpl implements Task, EventHandler<TaskEvent> {
     }
   }
 
+  @Override
+  public void waitForTaskAttemptTezEvents(int fromEventId, long timeout)
+      throws InterruptedException {
+    long endTime = System.currentTimeMillis() + timeout;
+    long addedCount;
+    Collection<Edge> inputEdges = getVertex().getInputVertices().values();
+    // Registered before checking for events, so that the edges do not miss
+    // waking it up for events received after the check
+    synchronized (tezEventsAdded) {
+      if (numTezEventsWaiters++ == 0) {
+        setWaitingForPendingTezEvents(inputEdges, true);
+      }
+      addedCount = tezEventsAddedCount;
+    }
+    try {
+      if (getNumTezEvents() > fromEventId || hasPendingTezEvents()) {
+        return;
+      }
+      synchronized (tezEventsAdded) {
+        while (addedCount == tezEventsAddedCount) {
+          long remaining = endTime - System.currentTimeMillis();
+          if (remaining <= 0) {
+            return;
+          }
+          tezEventsAdded.wait(remaining);
+        }
+      }
+    } finally {
+      synchronized (tezEventsAdded) {
+        if (--numTezEventsWaiters == 0) {
+          setWaitingForPendingTezEvents(inputEdges, false);
+        }
+      }
+    }
+  }
+
+  // Must be called with tezEventsAdded held
+  private void setWaitingForPendingTezEvents(Collection<Edge> inputEdges,
+      boolean waiting) {
+    for (Edge edge : inputEdges) {
+      if (waiting) {
+        edge.addDestinationTaskWaitingForEvents(this);
+      } else {
+        edge.removeDestinationTaskWaitingForEvents(this);
+      }
+    }
+  }
+
+  @Override
+  public void notifyTezEventsPending() {
+    notifyTezEventsAdded();
+  }
+
+  private void notifyTezEventsAdded() {
+    synchronized (tezEventsAdded) {
+      tezEventsAddedCount++;
+      tezEventsAdded.notifyAll();
+    }
+  }
+
+  private boolean hasPendingTezEvents() {
+    for (Edge edge : getVertex().getInputVertices().values()) {
+      if (edge.hasPendingEventsForDestination(taskId.getId())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Adds the events which are routed lazily by the input edges, from the given
+   * source vertex or from all of them if null. Must be called with the write
+   * lock held.
+   */
+  private void addPendingTezEvents(String sourceVertexName) {
+    for (Edge edge : getVertex().getInputVertices().values()) {
+      if (sourceVertexName == null
+          || sourceVertexName.equals(edge.getSourceVertexName())) {
+        for (TezEvent tezEvent : edge.takePendingEventsForDestination(taskId.getId())) {
+          tezEventsForTaskAttempts.add(tezEvent);
+        }
+      }
+    }
+  }
+
+  private int getNumTezEvents() {
+    readLock.lock();
+    try {
+      return tezEventsForTaskAttempts.size();
+    } finally {
+      readLock.unlock();
+    }
+  }
+
   @Override
   public List<String> getDiagnostics() {
     readLock.lock();
@@ -1448,7 +1561,16 @@ public class TaskImpl implements Task, EventHandler<TaskEvent> {
     @Override
     public void transition(TaskImpl task, TaskEvent event) {
       TaskEventAddTezEvent addEvent = (TaskEventAddTezEvent) event;
-      task.tezEventsForTaskAttempts.add(addEvent.getTezEvent());
+      TezEvent tezEvent = addEvent.getTezEvent();
+      if (tezEvent.getDestinationInfo() != null
+          && (tezEvent.getEventType() == EventType.DATA_MOVEMENT_EVENT
+          || tezEvent.getEventType() == EventType.INPUT_FAILED_EVENT)) {
+        // Keep the order of the events received by the edge, e.g. an
+        // InputFailedEvent after the events of the failed attempt
+        task.addPendingTezEvents(tezEvent.getDestinationInfo().getEdgeVertexName());
+      }
+      task.tezEventsForTaskAttempts.add(tezEvent);
+      task.notifyTezEventsAdded();
     }
   }
 
@@ -0,0 +1,142 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.dag.app.dag.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.tez.runtime.api.events.DataMovementEvent;
+import org.apache.tez.runtime.api.impl.EventMetaData;
+import org.apache.tez.runtime.api.impl.EventType;
+import org.apache.tez.runtime.api.impl.TezEvent;
+
+/**
+ * Stores the events for the attempts of a task, in the order they are added.
+ *
+ * DataMovementEvents, which make up most of the events of large
+ * scatter-gather edges, are not stored as objects. Their indices and version
+ * are kept in arrays, with references to the payload and metadata they share
+ * with the events sent to the other tasks. Consecutive events which only
+ * differ by consecutive source and target indices, e.g. the partitions of a
+ * CompositeDataMovementEvent routed to the same task, are kept as a single
+ * range. The TezEvents are created when they are fetched. Other events are
+ * stored as they are.
+ *
+ * Not thread safe.
+ */
+class TezEventStore {
+
+  private static final int MIN_CAPACITY = 4;
+
+  // Per entry: either a stored event, or a range of DataMovementEvents
+  private TezEvent[] storedEvents = new TezEvent[0];
+  private byte[][] payloads = new byte[0][];
+  private EventMetaData[] sourceInfos = new EventMetaData[0];
+  private EventMetaData[] destinationInfos = new EventMetaData[0];
+  private int[] sourceIndices = new int[0];
+  private int[] targetIndices = new int[0];
+  private int[] versions = new int[0];
+  // Id of the first event of the entry
+  private int[] firstEventIds = new int[0];
+
+  private int numEntries = 0;
+  private int numEvents = 0;
+
+  void add(TezEvent event) {
+    if (event.getEventType() == EventType.DATA_MOVEMENT_EVENT) {
+      DataMovementEvent dmEvent = (DataMovementEvent) event.getEvent();
+      int last = numEntries - 1;
+      if (last >= 0 && storedEvents[last] == null
+          && payloads[last] == dmEvent.getUserPayload()
+          && sourceInfos[last] == event.getSourceInfo()
+          && destinationInfos[last] == event.getDestinationInfo()
+          && versions[last] == dmEvent.getVersion()) {
+        int rangeLength = numEvents - firstEventIds[last];
+        if (sourceIndices[last] + rangeLength == dmEvent.getSourceIndex()
+            && targetIndices[last] + rangeLength == dmEvent.getTargetIndex()) {
+          numEvents++;
+          return;
+        }
+      }
+      int entry = newEntry();
+      payloads[entry] = dmEvent.getUserPayload();
+      sourceInfos[entry] = event.getSourceInfo();
+      destinationInfos[entry] = event.getDestinationInfo();
+      sourceIndices[entry] = dmEvent.getSourceIndex();
+      targetIndices[entry] = dmEvent.getTargetIndex();
+      versions[entry] = dmEvent.getVersion();
+    } else {
+      int entry = newEntry();
+      storedEvents[entry] = event;
+    }
+    numEvents++;
+  }
+
+  int size() {
+    return numEvents;
+  }
+
+  /**
+   * @return the events from fromEventId (inclusive) to toEventId (exclusive)
+   */
+  List<TezEvent> get(int fromEventId, int toEventId) {
+    List<TezEvent> events = new ArrayList<TezEvent>(toEventId - fromEventId);
+    if (fromEventId >= toEventId) {
+      return events;
+    }
+    int entry = Arrays.binarySearch(firstEventIds, 0, numEntries, fromEventId);
+    if (entry < 0) {
+      // Within the range of the entry before the insertion point
+      entry = -entry - 2;
+    }
+    for (int eventId = fromEventId; eventId < toEventId; eventId++) {
+      if (entry + 1 < numEntries && firstEventIds[entry + 1] == eventId) {
+        entry++;
+      }
+      if (storedEvents[entry] != null) {
+        events.add(storedEvents[entry]);
+      } else {
+        int offset = eventId - firstEventIds[entry];
+        TezEvent event = new TezEvent(new DataMovementEvent(sourceIndices[entry] + offset,
+            targetIndices[entry] + offset, versions[entry], payloads[entry]),
+            sourceInfos[entry]);
+        event.setDestinationInfo(destinationInfos[entry]);
+        events.add(event);
+      }
+    }
+    return events;
+  }
+
+  private int newEntry() {
+    if (numEntries == firstEventIds.length) {
+      int capacity = Math.max(MIN_CAPACITY, numEntries + (numEntries >> 1));
+      storedEvents = Arrays.copyOf(storedEvents, capacity);
+      payloads = Arrays.copyOf(payloads, capacity);
+      sourceInfos = Arrays.copyOf(sourceInfos, capacity);
+      destinationInfos = Arrays.copyOf(destinationInfos, capacity);
+      sourceIndices = Arrays.copyOf(sourceIndices, capacity);
+      targetIndices = Arrays.copyOf(targetIndices, capacity);
+      versions = Arrays.copyOf(versions, capacity);
+      firstEventIds = Arrays.copyOf(firstEventIds, capacity);
+    }
+    firstEventIds[numEntries] = numEvents;
+    return numEntries++;
+  }
+}
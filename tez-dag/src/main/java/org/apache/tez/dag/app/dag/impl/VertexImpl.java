@@ -158,7 +158,10 @@ import com.google.common.collect.Multiset;
 import com.google.common.collect.Sets;
 
 /** Implementation of Vertex interface. Maintains the state machines of Vertex.
- * The read and write calls use ReadWriteLock for concurrency.
+ * The read and write calls use ReadWriteLock for concurrency. The state,
+ * task counts and diagnostics are also published as an immutable
+ * {@link VertexSnapshot} after each transition, so that status queries, e.g.
+ * from the DAGClient, do not wait for the transitions holding the write lock.
  */
 @SuppressWarnings({ "rawtypes", "unchecked" })
 public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex,
@@ -202,6 +205,9 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex,
   private int distanceFromRoot = 0;
 
   private final List<String> diagnostics = new ArrayList<String>();
+
+  // Read without locks. Updated with the write lock held.
+  private volatile VertexSnapshot snapshot;
   
   //task/attempt related datastructures
   @VisibleForTesting
@@ -549,7 +555,6 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex,
   private long startTimeRequested; // Time at which START request was received.
   private long startedTime; // Time when entering state STARTED
   private long finishTime;
-  private float progress;
 
   private final TezVertexID vertexId;  //runtime assigned id.
   private final VertexPlan vertexPlan;
@@ -679,6 +684,7 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex,
     // This "this leak" is okay because the retained pointer is in an
     //  instance variable.
     stateMachine = stateMachineFactory.make(this);
+    publishSnapshot();
   }
 
   protected StateMachine<VertexState, VertexEventType, VertexEvent> getStateMachine() {
@@ -711,34 +717,23 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex,
 
   @Override
   public Task getTask(TezTaskID taskID) {
-    readLock.lock();
-    try {
-      return tasks.get(taskID);
-    } finally {
-      readLock.unlock();
-    }
+    return getTasks().get(taskID);
   }
 
   @Override
   public Task getTask(int taskIndex) {
-    readLock.lock();
-    try {
-      // does it matter to create a duplicate list for efficiency
-      // instead of traversing the map
-      // local assign to LinkedHashMap to ensure that sequential traversal
-      // assumption is satisfied
-      LinkedHashMap<TezTaskID, Task> taskList = tasks;
-      int i=0;
-      for(Map.Entry<TezTaskID, Task> entry : taskList.entrySet()) {
-        if(taskIndex == i) {
-          return entry.getValue();
-        }
-        ++i;
+    // does it matter to create a duplicate list for efficiency
+    // instead of traversing the map
+    // the view returned by getTasks() keeps the order of the underlying
+    // LinkedHashMap, so the sequential traversal assumption is satisfied
+    int i=0;
+    for(Map.Entry<TezTaskID, Task> entry : getTasks().entrySet()) {
+      if(taskIndex == i) {
+        return entry.getValue();
       }
-      return null;
-    } finally {
-      readLock.unlock();
+      ++i;
     }
+    return null;
   }
 
   @Override
@@ -748,77 +743,50 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex,
 
   @Override
   public int getCompletedTasks() {
-    readLock.lock();
-    try {
-      return succeededTaskCount + failedTaskCount + killedTaskCount;
-    } finally {
-      readLock.unlock();
-    }
+    VertexSnapshot snapshot = this.snapshot;
+    return snapshot.succeededTaskCount + snapshot.failedTaskCount
+        + snapshot.killedTaskCount;
   }
 
   @Override
   public int getSucceededTasks() {
-    readLock.lock();
-    try {
-      return succeededTaskCount;
-    } finally {
-      readLock.unlock();
-    }
+    return snapshot.succeededTaskCount;
   }
 
   @Override
   public int getRunningTasks() {
-    readLock.lock();
-    try {
-      int num=0;
-      for (Task task : tasks.values()) {
-        if(task.getState() == TaskState.RUNNING)
-          num++;
-      }
-      return num;
-    } finally {
-      readLock.unlock();
+    int num=0;
+    for (Task task : getTasks().values()) {
+      if(task.getState() == TaskState.RUNNING)
+        num++;
     }
+    return num;
   }
 
   @Override
   public TezCounters getAllCounters() {
-
-    readLock.lock();
-
-    try {
-      VertexState state = getInternalState();
-      if (state == VertexState.ERROR || state == VertexState.FAILED
-          || state == VertexState.KILLED || state == VertexState.SUCCEEDED) {
-        this.mayBeConstructFinalFullCounters();
-        return fullCounters;
-      }
-
-      TezCounters counters = new TezCounters();
-      return incrTaskCounters(counters, tasks.values());
-
-    } finally {
-      readLock.unlock();
+    if (isFinished(snapshot.state)) {
+      this.mayBeConstructFinalFullCounters();
+      return fullCounters;
     }
+
+    TezCounters counters = new TezCounters();
+    return incrTaskCounters(counters, getTasks().values());
   }
 
   public VertexStats getVertexStats() {
+    if (isFinished(snapshot.state)) {
+      this.mayBeConstructFinalFullCounters();
+      return this.vertexStats;
+    }
 
-    readLock.lock();
-    try {
-      VertexState state = getInternalState();
-      if (state == VertexState.ERROR || state == VertexState.FAILED
-          || state == VertexState.KILLED || state == VertexState.SUCCEEDED) {
-        this.mayBeConstructFinalFullCounters();
-        return this.vertexStats;
-      }
-
-      VertexStats stats = new VertexStats();
-      return updateVertexStats(stats, tasks.values());
+    VertexStats stats = new VertexStats();
+    return updateVertexStats(stats, getTasks().values());
+  }
 
-    } finally {
-      readLock.unlock();
-    }
+  private static boolean isFinished(VertexState state) {
+    return state == VertexState.ERROR || state == VertexState.FAILED
+        || state == VertexState.KILLED || state == VertexState.SUCCEEDED;
   }
 
 
@@ -841,57 +809,41 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex,
 
   @Override
   public List<String> getDiagnostics() {
-    readLock.lock();
-    try {
-      return diagnostics;
-    } finally {
-      readLock.unlock();
-    }
+    return snapshot.diagnostics;
   }
 
   @Override
   public float getProgress() {
-    this.readLock.lock();
-    try {
-      computeProgress();
-      return progress;
-    } finally {
-      this.readLock.unlock();
-    }
+    return computeProgress();
   }
 
   @Override
   public ProgressBuilder getVertexProgress() {
-    this.readLock.lock();
-    try {
-      ProgressBuilder progress = new ProgressBuilder();
-      progress.setTotalTaskCount(numTasks);
-      progress.setSucceededTaskCount(succeededTaskCount);
-      progress.setRunningTaskCount(getRunningTasks());
-      progress.setFailedTaskCount(failedTaskCount);
-      progress.setKilledTaskCount(killedTaskCount);
-      return progress;
-    } finally {
-      this.readLock.unlock();
-    }
+    return getVertexProgress(snapshot);
+  }
+
+  private ProgressBuilder getVertexProgress(VertexSnapshot snapshot) {
+    ProgressBuilder progress = new ProgressBuilder();
+    progress.setTotalTaskCount(snapshot.numTasks);
+    progress.setSucceededTaskCount(snapshot.succeededTaskCount);
+    progress.setRunningTaskCount(getRunningTasks());
+    progress.setFailedTaskCount(snapshot.failedTaskCount);
+    progress.setKilledTaskCount(snapshot.killedTaskCount);
+    return progress;
   }
 
   @Override
   public VertexStatusBuilder getVertexStatus(
       Set<StatusGetOpts> statusOptions) {
-    this.readLock.lock();
-    try {
-      VertexStatusBuilder status = new VertexStatusBuilder();
-      status.setState(getInternalState());
-      status.setDiagnostics(diagnostics);
-      status.setProgress(getVertexProgress());
-      if (statusOptions.contains(StatusGetOpts.GET_COUNTERS)) {
-        status.setVertexCounters(getAllCounters());
-      }
-      return status;
-    } finally {
-      this.readLock.unlock();
+    VertexSnapshot snapshot = this.snapshot;
+    VertexStatusBuilder status = new VertexStatusBuilder();
+    status.setState(snapshot.state);
+    status.setDiagnostics(snapshot.diagnostics);
+    status.setProgress(getVertexProgress(snapshot));
+    if (statusOptions.contains(StatusGetOpts.GET_COUNTERS)) {
+      status.setVertexCounters(getAllCounters());
     }
+    return status;
   }
   
   @Override
@@ -908,22 +860,22 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex,
     }
   }
 
-  private void computeProgress() {
-    this.readLock.lock();
-    try {
-      float progress = 0f;
-      for (Task task : this.tasks.values()) {
-        progress += (task.isFinished() ? 1f : task.getProgress());
-      }
-      if (this.numTasks != 0) {
-        progress /= this.numTasks;
-      }
-      this.progress = progress;
-    } finally {
-      this.readLock.unlock();
+  private float computeProgress() {
+    float progress = 0f;
+    for (Task task : getTasks().values()) {
+      progress += (task.isFinished() ? 1f : task.getProgress());
+    }
+    int numTasks = this.numTasks;
+    if (numTasks != 0) {
+      progress /= numTasks;
     }
+    return progress;
   }
 
+  /**
+   * @return a view of the tasks which is not modified after it is returned:
+   *         the next change to the tasks is made on a copy.
+   */
   @Override
   public Map<TezTaskID, Task> getTasks() {
     synchronized (tasksSyncHandle) {
@@ -934,12 +886,7 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex,
 
   @Override
   public VertexState getState() {
-    readLock.lock();
-    try {
-      return getStateMachine().getCurrentState();
-    } finally {
-      readLock.unlock();
-    }
+    return snapshot.state;
   }
 
   /**
@@ -958,12 +905,7 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex,
 
   @Override
   public VertexTerminationCause getTerminationCause(){
-    readLock.lock();
-    try {
-      return terminationCause;
-    } finally {
-      readLock.unlock();
-    }
+    return snapshot.terminationCause;
   }
 
   @Override
@@ -974,7 +916,9 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex,
   private void handleParallelismUpdate(int newParallelism,
       Map<String, EdgeManagerDescriptor> sourceEdgeManagers,
       Map<String, RootInputSpecUpdate> rootInputSpecUpdates) {
-    LinkedHashMap<TezTaskID, Task> currentTasks = this.tasks;
+    // the tasks are read without the lock, remove them from a copy
+    LinkedHashMap<TezTaskID, Task> currentTasks =
+        new LinkedHashMap<TezTaskID, Task>(this.tasks);
     Iterator<Map.Entry<TezTaskID, Task>> iter = currentTasks.entrySet()
         .iterator();
     int i = 0;
@@ -986,12 +930,24 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex,
       }
       iter.remove();
     }
+    setTasks(currentTasks);
     this.recoveredSourceEdgeManagers = sourceEdgeManagers;
     this.recoveredRootInputSpecUpdates = rootInputSpecUpdates;
   }
 
   @Override
   public VertexState restoreFromEvent(HistoryEvent historyEvent) {
+    writeLock.lock();
+    try {
+      return restoreFromEventInternal(historyEvent);
+    } finally {
+      // the number of tasks and the diagnostics may have been recovered
+      publishSnapshot();
+      writeLock.unlock();
+    }
+  }
+
+  private VertexState restoreFromEventInternal(HistoryEvent historyEvent) {
     switch (historyEvent.getEventType()) {
       case VERTEX_INITIALIZED:
         recoveryInitEventSeen = true;
@@ -1246,7 +1202,9 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex,
   
         // assign to local variable of LinkedHashMap to make sure that changing
         // type of task causes compile error. We depend on LinkedHashMap for order
-        LinkedHashMap<TezTaskID, Task> currentTasks = this.tasks;
+        // The tasks are read without the lock, remove them from a copy
+        LinkedHashMap<TezTaskID, Task> currentTasks =
+            new LinkedHashMap<TezTaskID, Task>(this.tasks);
         Iterator<Map.Entry<TezTaskID, Task>> iter = currentTasks.entrySet()
             .iterator();
         int i = 0;
@@ -1266,6 +1224,7 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex,
           LOG.info("Removing task: " + entry.getKey());
           iter.remove();
         }
+        setTasks(currentTasks);
         LOG.info("Vertex " + logIdentifier + 
             " parallelism set to " + parallelism + " from " + numTasks);
         this.numTasks = parallelism;
@@ -1319,6 +1278,8 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex,
       }
 
     } finally {
+      // the number of tasks may have changed
+      publishSnapshot();
       writeLock.unlock();
     }
     
@@ -1371,10 +1332,28 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex,
     }
 
     finally {
+      publishSnapshot();
       writeLock.unlock();
     }
   }
 
+  /**
+   * Publishes the current state for the readers which do not take the lock.
+   * Called at the end of each transition, with the write lock held.
+   */
+  private void publishSnapshot() {
+    VertexSnapshot previous = snapshot;
+    List<String> diagnosticsCopy;
+    // diagnostics are only appended to
+    if (previous != null && previous.diagnostics.size() == diagnostics.size()) {
+      diagnosticsCopy = previous.diagnostics;
+    } else {
+      diagnosticsCopy = Collections.unmodifiableList(new ArrayList<String>(diagnostics));
+    }
+    snapshot = new VertexSnapshot(getStateMachine().getCurrentState(), terminationCause,
+        numTasks, succeededTaskCount, failedTaskCount, killedTaskCount, diagnosticsCopy);
+  }
+
   private VertexState getInternalState() {
     readLock.lock();
     try {
@@ -1393,12 +1372,19 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex,
         tasks = newTasks;
         lazyTasksCopyNeeded = false;
       }
+      tasks.put(task.getTaskId(), task);
     }
-    tasks.put(task.getTaskId(), task);
     // TODO Metrics
     //metrics.waitingTask(task);
   }
 
+  private void setTasks(LinkedHashMap<TezTaskID, Task> newTasks) {
+    synchronized (tasksSyncHandle) {
+      tasks = newTasks;
+      lazyTasksCopyNeeded = false;
+    }
+  }
+
   void setFinishTime() {
     finishTime = clock.getTime();
   }
@@ -1433,7 +1419,7 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex,
     VertexFinishedEvent finishEvt = new VertexFinishedEvent(vertexId,
         vertexName, initTimeRequested, initedTime, startTimeRequested,
         startedTime, clock.getTime(), state, StringUtils.join(LINE_SEPARATOR,
-            getDiagnostics()), getAllCounters(), getVertexStats());
+            diagnostics), getAllCounters(), getVertexStats());
     this.appContext.getHistoryHandler().handleCriticalEvent(
         new DAGHistoryEvent(getDAGId(), finishEvt));
   }
@@ -2971,6 +2957,31 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex,
     }
   }
 
+  /**
+   * The state of the vertex at the end of a transition.
+   */
+  private static class VertexSnapshot {
+    final VertexState state;
+    final VertexTerminationCause terminationCause;
+    final int numTasks;
+    final int succeededTaskCount;
+    final int failedTaskCount;
+    final int killedTaskCount;
+    final List<String> diagnostics;
+
+    VertexSnapshot(VertexState state, VertexTerminationCause terminationCause,
+        int numTasks, int succeededTaskCount, int failedTaskCount,
+        int killedTaskCount, List<String> diagnostics) {
+      this.state = state;
+      this.terminationCause = terminationCause;
+      this.numTasks = numTasks;
+      this.succeededTaskCount = succeededTaskCount;
+      this.failedTaskCount = failedTaskCount;
+      this.killedTaskCount = killedTaskCount;
+      this.diagnostics = diagnostics;
+    }
+  }
+
   private void mayBeConstructFinalFullCounters() {
     // Calculating full-counters. This should happen only once for the vertex.
     synchronized (this.fullCountersLock) {
@@ -71,25 +71,45 @@ public class TaskReporter {
   private final long pollInterval;
   private final long sendCounterInterval;
   private final int maxEventsToGet;
+  private final long longPollTimeout;
   private final AtomicLong requestCounter;
   private final String containerIdStr;
 
   private final ListeningExecutorService heartbeatExecutor;
+  // Sends the events added while a heartbeat long-polls for events
+  private final ListeningExecutorService eventSenderExecutor;
 
   @VisibleForTesting
   HeartbeatCallable currentCallable;
+  private ErrorReporter currentErrorReporter;
 
   public TaskReporter(TezTaskUmbilicalProtocol umbilical, long amPollInterval,
       long sendCounterInterval, int maxEventsToGet, AtomicLong requestCounter, String containerIdStr) {
+    this(umbilical, amPollInterval, sendCounterInterval, maxEventsToGet, 0, requestCounter,
+        containerIdStr);
+  }
+
+  /**
+   * @param longPollTimeout time in ms for which the AM may hold a heartbeat
+   *          until there are new events for the task. 0 to poll every
+   *          amPollInterval instead.
+   */
+  public TaskReporter(TezTaskUmbilicalProtocol umbilical, long amPollInterval,
+      long sendCounterInterval, int maxEventsToGet, long longPollTimeout,
+      AtomicLong requestCounter, String containerIdStr) {
     this.umbilical = umbilical;
     this.pollInterval = amPollInterval;
     this.sendCounterInterval = sendCounterInterval;
     this.maxEventsToGet = maxEventsToGet;
+    this.longPollTimeout = longPollTimeout;
     this.requestCounter = requestCounter;
     this.containerIdStr = containerIdStr;
     ExecutorService executor = Executors.newFixedThreadPool(1, new ThreadFactoryBuilder()
         .setDaemon(true).setNameFormat("TaskHeartbeatThread").build());
     heartbeatExecutor = MoreExecutors.listeningDecorator(executor);
+    ExecutorService eventSender = Executors.newFixedThreadPool(1, new ThreadFactoryBuilder()
+        .setDaemon(true).setNameFormat("TaskEventSenderThread").build());
+    eventSenderExecutor = MoreExecutors.listeningDecorator(eventSender);
   }
 
   /**
@@ -98,7 +118,8 @@ public class TaskReporter {
   public synchronized void registerTask(LogicalIOProcessorRuntimeTask task,
       ErrorReporter errorReporter) {
     currentCallable = new HeartbeatCallable(task, umbilical, pollInterval, sendCounterInterval,
-        maxEventsToGet, requestCounter, containerIdStr);
+        maxEventsToGet, longPollTimeout, requestCounter, containerIdStr);
+    currentErrorReporter = errorReporter;
     ListenableFuture<Boolean> future = heartbeatExecutor.submit(currentCallable);
     Futures.addCallback(future, new HeartbeatCallback(errorReporter));
   }
@@ -110,10 +131,12 @@ public class TaskReporter {
   public synchronized void unregisterTask(TezTaskAttemptID taskAttemptID) {
     currentCallable.markComplete();
     currentCallable = null;
+    currentErrorReporter = null;
   }
   
   public void shutdown() {
     heartbeatExecutor.shutdownNow();
+    eventSenderExecutor.shutdownNow();
   }
 
   private static class HeartbeatCallable implements Callable<Boolean> {
@@ -129,6 +152,7 @@ public class TaskReporter {
     private final long pollInterval;
     private final long sendCounterInterval;
     private final int maxEventsToGet;
+    private final long longPollTimeout;
     private final String containerIdStr;
 
     private final AtomicLong requestCounter;
@@ -148,14 +172,31 @@ public class TaskReporter {
      * Tracks the last non-OOB heartbeat number at which counters were sent to the AM. 
      */
     private int prevCounterSendHeartbeatNum = 0;
+    /*
+     * Time at which counters were last sent, used instead of the heartbeat number when long
+     * polling, since heartbeats are then not sent at a fixed interval.
+     */
+    private long prevCounterSendTime = 0;
+    /*
+     * Number of events received in the last heartbeat response. If the maximum, more events may
+     * be pending on the AM.
+     */
+    private int lastEventCount = 0;
+    /*
+     * Whether a heartbeat waits on the AM for events. Heartbeats sent meanwhile only send events,
+     * so that the events fetched by the waiting one are not fetched twice.
+     */
+    private boolean longPollInFlight = false;
 
     public HeartbeatCallable(LogicalIOProcessorRuntimeTask task,
         TezTaskUmbilicalProtocol umbilical, long amPollInterval, long sendCounterInterval,
-        int maxEventsToGet, AtomicLong requestCounter, String containerIdStr) {
+        int maxEventsToGet, long longPollTimeout, AtomicLong requestCounter,
+        String containerIdStr) {
 
       this.pollInterval = amPollInterval;
       this.sendCounterInterval = sendCounterInterval;
       this.maxEventsToGet = maxEventsToGet;
+      this.longPollTimeout = longPollTimeout;
       this.requestCounter = requestCounter;
       this.containerIdStr = containerIdStr;
 
@@ -173,15 +214,31 @@ public class TaskReporter {
     public Boolean call() throws Exception {
       // Heartbeat only for active tasks. Errors, etc will be reported directly.
       while (!task.isTaskDone() && !task.hadFatalError()) {
-        boolean result = heartbeat(null);
+        long heartbeatStartTime = System.currentTimeMillis();
+        boolean result = heartbeat(null, longPollTimeout);
         if (!result) {
           // AM sent a shouldDie=true
           LOG.info("Asked to die via task heartbeat");
           return false;
         }
+        long waitTime = pollInterval;
+        if (lastEventCount >= maxEventsToGet) {
+          // Fetch the remaining events right away
+          waitTime = 0;
+        } else if (longPollTimeout > 0) {
+          // The AM held the heartbeat until there were new events. Only wait
+          // if it returned early without any, e.g. when too many heartbeats
+          // were already held.
+          waitTime = lastEventCount > 0 ? 0
+              : pollInterval - (System.currentTimeMillis() - heartbeatStartTime);
+        }
+        if (waitTime <= 0) {
+          nonOobHeartbeatCounter++;
+          continue;
+        }
         lock.lock();
         try {
-          boolean interrupted = condition.await(pollInterval, TimeUnit.MILLISECONDS);
+          boolean interrupted = condition.await(waitTime, TimeUnit.MILLISECONDS);
           if (!interrupted) {
             nonOobHeartbeatCounter++;
           }
@@ -198,15 +255,54 @@ public class TaskReporter {
 
     /**
      * @param eventsArg
+     * @param maxWaitTime time in ms for which the AM may hold the heartbeat
+     *          until there are new events. Ignored if there are events to
+     *          send, or if the task is done.
      * @return
      * @throws IOException
      *           indicates an RPC communication failure.
      * @throws TezException
      *           indicates an exception somewhere in the AM.
      */
-    private synchronized boolean heartbeat(Collection<TezEvent> eventsArg) throws IOException,
-        TezException {
+    private boolean heartbeat(Collection<TezEvent> eventsArg, long maxWaitTime)
+        throws IOException, TezException {
+      TezHeartbeatRequest request;
+      synchronized (this) {
+        request = createRequest(eventsArg, maxWaitTime);
+        if (request.getMaxWaitTime() <= 0) {
+          return handleResponse(request, umbilical.heartbeat(request));
+        }
+        longPollInFlight = true;
+      }
+      // Wait for events without holding the lock, so that events and the
+      // completion of the task can be sent meanwhile. The AM then returns
+      // this heartbeat.
+      TezHeartbeatResponse response;
+      try {
+        response = umbilical.heartbeat(request);
+      } finally {
+        synchronized (this) {
+          longPollInFlight = false;
+        }
+      }
+      synchronized (this) {
+        return handleResponse(request, response);
+      }
+    }
 
+    /**
+     * Sends the events added while a heartbeat long-polls for events.
+     */
+    private synchronized boolean sendEvents() throws IOException, TezException {
+      if (eventsToSend.isEmpty() || task.isTaskDone() || task.hadFatalError()) {
+        // Already sent, or sent with the completion of the task
+        return true;
+      }
+      return heartbeat(null, 0);
+    }
+
+    private TezHeartbeatRequest createRequest(Collection<TezEvent> eventsArg,
+        long maxWaitTime) {
       if (eventsArg != null) {
         eventsToSend.addAll(eventsArg);
       }
@@ -215,6 +311,12 @@ public class TaskReporter {
       List<TezEvent> events = new ArrayList<TezEvent>();
       eventsToSend.drainTo(events);
 
+      if (!events.isEmpty() || task.isTaskDone() || task.hadFatalError()) {
+        // Do not hold events, or the completion of the task, until there are
+        // events for the task
+        maxWaitTime = 0;
+      }
+
       if (!task.isTaskDone() && !task.hadFatalError()) {
         TezCounters counters = null;
         /**
@@ -222,10 +324,18 @@ public class TaskReporter {
          * records would save CPU in DAG AM, but certain counters are updated very frequently. Until
          * real time decisions are made based on these counters, it can be sent once per second.
          */
-        // Not completely accurate, since OOB heartbeats could go out.
-        if ((nonOobHeartbeatCounter - prevCounterSendHeartbeatNum) * pollInterval >= sendCounterInterval) {
-          counters = task.getCounters();
-          prevCounterSendHeartbeatNum = nonOobHeartbeatCounter;
+        if (longPollTimeout > 0) {
+          long now = System.currentTimeMillis();
+          if (now - prevCounterSendTime >= sendCounterInterval) {
+            counters = task.getCounters();
+            prevCounterSendTime = now;
+          }
+        } else {
+          // Not completely accurate, since OOB heartbeats could go out.
+          if ((nonOobHeartbeatCounter - prevCounterSendHeartbeatNum) * pollInterval >= sendCounterInterval) {
+            counters = task.getCounters();
+            prevCounterSendHeartbeatNum = nonOobHeartbeatCounter;
+          }
         }
         updateEvent = new TezEvent(new TaskStatusUpdateEvent(counters, task.getProgress()),
             updateEventMetadata);
@@ -233,15 +343,20 @@ public class TaskReporter {
       }
 
       long requestId = requestCounter.incrementAndGet();
+      // Events for the task are fetched by the heartbeat waiting for them
+      int maxEvents = longPollInFlight ? 0 : maxEventsToGet;
       TezHeartbeatRequest request = new TezHeartbeatRequest(requestId, events, containerIdStr,
-          task.getTaskAttemptID(), task.getEventCounter(), maxEventsToGet);
+          task.getTaskAttemptID(), task.getEventCounter(), maxEvents, maxWaitTime);
       if (LOG.isDebugEnabled()) {
         Log.debug("Sending heartbeat to AM, request=" + request);
       }
 
       maybeLogCounters();
+      return request;
+    }
 
-      TezHeartbeatResponse response = umbilical.heartbeat(request);
+    private boolean handleResponse(TezHeartbeatRequest request, TezHeartbeatResponse response)
+        throws TezException {
       if (LOG.isDebugEnabled()) {
         LOG.debug("Received heartbeat response from AM, response=" + response);
       }
@@ -250,9 +365,12 @@ public class TaskReporter {
         LOG.info("Received should die response from AM");
         return false;
       }
-      if (response.getLastRequestId() != requestId) {
+      if (response.getLastRequestId() != request.getRequestId()) {
         throw new TezException("AM and Task out of sync" + ", responseReqId="
-            + response.getLastRequestId() + ", expectedReqId=" + requestId);
+            + response.getLastRequestId() + ", expectedReqId=" + request.getRequestId());
+      }
+      if (request.getMaxEvents() > 0) {
+        lastEventCount = response.getEvents() == null ? 0 : response.getEvents().size();
       }
 
       // The same umbilical is used by multiple tasks. Problematic in the case where multiple tasks
@@ -309,7 +427,7 @@ public class TaskReporter {
           task.getProgress()), updateEventMetadata);
       TezEvent taskCompletedEvent = new TezEvent(new TaskAttemptCompletedEvent(),
           updateEventMetadata);
-      return heartbeat(Lists.newArrayList(statusUpdateEvent, taskCompletedEvent));
+      return heartbeat(Lists.newArrayList(statusUpdateEvent, taskCompletedEvent), 0);
     }
 
     /**
@@ -333,13 +451,21 @@ public class TaskReporter {
       }
       TezEvent taskAttemptFailedEvent = new TezEvent(new TaskAttemptFailedEvent(diagnostics),
           srcMeta == null ? updateEventMetadata : srcMeta);
-      return heartbeat(Lists.newArrayList(statusUpdateEvent, taskAttemptFailedEvent));
+      return heartbeat(Lists.newArrayList(statusUpdateEvent, taskAttemptFailedEvent), 0);
     }
 
-    private void addEvents(TezTaskAttemptID taskAttemptID, Collection<TezEvent> events) {
+    /**
+     * @return true if a heartbeat is waiting for events, in which case the
+     *         events should be sent with {@link #sendEvents()}
+     */
+    private boolean addEvents(TezTaskAttemptID taskAttemptID, Collection<TezEvent> events) {
       if (events != null && !events.isEmpty()) {
         eventsToSend.addAll(events);
+        synchronized (this) {
+          return longPollInFlight;
+        }
       }
+      return false;
     }
   }
 
@@ -374,7 +500,17 @@ public class TaskReporter {
   }
 
   public void addEvents(TezTaskAttemptID taskAttemptID, Collection<TezEvent> events) {
-    currentCallable.addEvents(taskAttemptID, events);
+    final HeartbeatCallable callable = currentCallable;
+    if (callable.addEvents(taskAttemptID, events)) {
+      // Do not wait for the heartbeat waiting for events to return
+      ListenableFuture<Boolean> future = eventSenderExecutor.submit(new Callable<Boolean>() {
+        @Override
+        public Boolean call() throws Exception {
+          return callable.sendEvents();
+        }
+      });
+      Futures.addCallback(future, new HeartbeatCallback(currentErrorReporter));
+    }
   }
 
   public boolean canCommit(TezTaskAttemptID taskAttemptID) throws IOException {
@@ -93,6 +93,7 @@ public class TezChild {
   private final int amHeartbeatInterval;
   private final long sendCounterInterval;
   private final int maxEventsToGet;
+  private final long amHeartbeatLongPollTimeout;
 
   private final ListeningExecutorService executor;
   private final ObjectRegistryImpl objectRegistry;
@@ -127,6 +128,10 @@ public class TezChild {
     maxEventsToGet = defaultConf.getInt(TezConfiguration.TEZ_TASK_MAX_EVENTS_PER_HEARTBEAT,
         TezConfiguration.TEZ_TASK_MAX_EVENTS_PER_HEARTBEAT_DEFAULT);
 
+    amHeartbeatLongPollTimeout = defaultConf.getLong(
+        TezConfiguration.TEZ_TASK_AM_HEARTBEAT_LONG_POLL_TIMEOUT_MS,
+        TezConfiguration.TEZ_TASK_AM_HEARTBEAT_LONG_POLL_TIMEOUT_MS_DEFAULT);
+
     address = NetUtils.createSocketAddrForHost(host, port);
 
     ExecutorService executor = Executors.newFixedThreadPool(1, new ThreadFactoryBuilder()
@@ -168,7 +173,8 @@ public class TezChild {
         getTaskMaxSleepTime);
 
     taskReporter = new TaskReporter(umbilical, amHeartbeatInterval,
-        sendCounterInterval, maxEventsToGet, heartbeatCounter, containerIdString);
+        sendCounterInterval, maxEventsToGet, amHeartbeatLongPollTimeout, heartbeatCounter,
+        containerIdString);
 
     UserGroupInformation childUGI = null;
 
@@ -0,0 +1,151 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.tez.dag.app;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.service.Service;
+import org.apache.hadoop.yarn.api.records.Resource;
+import org.apache.hadoop.yarn.event.AsyncDispatcher;
+import org.apache.hadoop.yarn.event.Dispatcher;
+import org.apache.hadoop.yarn.event.EventHandler;
+import org.apache.hadoop.yarn.util.SystemClock;
+import org.apache.tez.dag.app.dag.event.DAGEvent;
+import org.apache.tez.dag.app.dag.event.DAGEventType;
+import org.apache.tez.dag.app.dag.event.TaskEvent;
+import org.apache.tez.dag.app.dag.event.TaskEventAddTezEvent;
+import org.apache.tez.dag.app.dag.event.TaskEventType;
+import org.apache.tez.dag.app.dag.impl.TaskImpl;
+import org.apache.tez.dag.records.TezDAGID;
+import org.apache.tez.dag.records.TezTaskAttemptID;
+import org.apache.tez.dag.records.TezTaskID;
+import org.apache.tez.dag.records.TezVertexID;
+import org.apache.tez.runtime.api.events.DataMovementEvent;
+import org.apache.tez.runtime.api.impl.EventMetaData;
+import org.apache.tez.runtime.api.impl.EventMetaData.EventProducerConsumerType;
+import org.apache.tez.runtime.api.impl.TezEvent;
+
+/**
+ * Measures the event throughput of the AM dispatchers, without YARN. Drives
+ * the TaskImpl state machines of several vertices: each task is scheduled,
+ * which sends an event to the DAG, and then receives DataMovementEvents.
+ *
+ * Usage: PartitionedDispatcherBenchmark [numThreads] [numVertices]
+ * [numTasksPerVertex] [numEventsPerTask]
+ *
+ * Runs with an AsyncDispatcher, and then with a PartitionedDispatcher with
+ * numThreads threads.
+ */
+public class PartitionedDispatcherBenchmark {
+
+  private final int numVertices;
+  private final int numTasks;
+  private final int numEvents;
+
+  public PartitionedDispatcherBenchmark(int numVertices, int numTasks, int numEvents) {
+    this.numVertices = numVertices;
+    this.numTasks = numTasks;
+    this.numEvents = numEvents;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int numThreads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+    int numVertices = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+    int numTasks = args.length > 2 ? Integer.parseInt(args[2]) : 5000;
+    int numEvents = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+
+    PartitionedDispatcherBenchmark benchmark =
+        new PartitionedDispatcherBenchmark(numVertices, numTasks, numEvents);
+    benchmark.run("AsyncDispatcher", new AsyncDispatcher());
+    benchmark.run("PartitionedDispatcher(" + numThreads + ")",
+        new PartitionedDispatcher(numThreads));
+  }
+
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  public void run(String name, Dispatcher dispatcher) throws InterruptedException {
+    Configuration conf = new Configuration();
+    final AtomicLong numHandled = new AtomicLong();
+    final Map<TezTaskID, TaskImpl> tasks = new HashMap<TezTaskID, TaskImpl>();
+
+    TezDAGID dagId = TezDAGID.getInstance("1000", 1, 1);
+    for (int i = 0; i < numVertices; i++) {
+      TezVertexID vertexId = TezVertexID.getInstance(dagId, i);
+      for (int j = 0; j < numTasks; j++) {
+        TaskImpl task = new BenchmarkTaskImpl(vertexId, j, dispatcher.getEventHandler(), conf);
+        tasks.put(task.getTaskId(), task);
+      }
+    }
+    dispatcher.register(TaskEventType.class, new EventHandler<TaskEvent>() {
+      @Override
+      public void handle(TaskEvent event) {
+        tasks.get(event.getTaskID()).handle(event);
+        numHandled.incrementAndGet();
+      }
+    });
+    // Stands in for the DAG and the vertices, on the central thread
+    dispatcher.register(DAGEventType.class, new EventHandler<DAGEvent>() {
+      @Override
+      public void handle(DAGEvent event) {
+        numHandled.incrementAndGet();
+      }
+    });
+    ((Service) dispatcher).init(conf);
+    ((Service) dispatcher).start();
+
+    // schedule, DAG scheduler update, and data movement events
+    long numTotal = (long) tasks.size() * (2 + numEvents);
+    long startTime = System.currentTimeMillis();
+    EventHandler eventHandler = dispatcher.getEventHandler();
+    for (TezTaskID taskId : tasks.keySet()) {
+      eventHandler.handle(new TaskEvent(taskId, TaskEventType.T_SCHEDULE));
+    }
+    for (int i = 0; i < numEvents; i++) {
+      for (TezTaskID taskId : tasks.keySet()) {
+        TezTaskAttemptID srcAttemptId = TezTaskAttemptID.getInstance(taskId, 0);
+        TezEvent tezEvent = new TezEvent(new DataMovementEvent(i, null),
+            new EventMetaData(EventProducerConsumerType.OUTPUT, "src", "dest", srcAttemptId));
+        eventHandler.handle(new TaskEventAddTezEvent(taskId, tezEvent));
+      }
+    }
+    while (numHandled.get() < numTotal) {
+      Thread.sleep(10);
+    }
+    long time = System.currentTimeMillis() - startTime;
+    ((Service) dispatcher).stop();
+
+    System.out.println(name + ": " + numTotal + " events in " + time + " ms, "
+        + (numTotal * 1000 / Math.max(time, 1)) + " events/s");
+  }
+
+  @SuppressWarnings("rawtypes")
+  private static class BenchmarkTaskImpl extends TaskImpl {
+    BenchmarkTaskImpl(TezVertexID vertexId, int taskIndex, EventHandler eventHandler,
+        Configuration conf) {
+      super(vertexId, taskIndex, eventHandler, conf, null, new SystemClock(), null, null,
+          false, Resource.newInstance(1024, 1), null);
+    }
+
+    @Override
+    protected void logJobHistoryTaskStartedEvent() {
+    }
+  }
+}
@@ -0,0 +1,133 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.tez.dag.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.yarn.event.Event;
+import org.apache.hadoop.yarn.event.EventHandler;
+import org.apache.tez.dag.app.dag.event.DAGEvent;
+import org.apache.tez.dag.app.dag.event.DAGEventType;
+import org.apache.tez.dag.app.dag.event.TaskAttemptEvent;
+import org.apache.tez.dag.app.dag.event.TaskAttemptEventType;
+import org.apache.tez.dag.app.dag.event.TaskEvent;
+import org.apache.tez.dag.app.dag.event.TaskEventType;
+import org.apache.tez.dag.records.TezDAGID;
+import org.apache.tez.dag.records.TezTaskAttemptID;
+import org.apache.tez.dag.records.TezTaskID;
+import org.apache.tez.dag.records.TezVertexID;
+import org.junit.Test;
+
+public class TestPartitionedDispatcher {
+
+  private static final TezDAGID DAG_ID = TezDAGID.getInstance("1000", 1, 1);
+
+  @Test(timeout = 5000)
+  public void testPartitions() {
+    PartitionedDispatcher dispatcher = new PartitionedDispatcher(3);
+    TezTaskID task0 = TezTaskID.getInstance(TezVertexID.getInstance(DAG_ID, 0), 0);
+    TezTaskID task1 = TezTaskID.getInstance(TezVertexID.getInstance(DAG_ID, 1), 5);
+    TezTaskID task2 = TezTaskID.getInstance(TezVertexID.getInstance(DAG_ID, 2), 0);
+
+    assertEquals(0, dispatcher.getPartition(new DAGEvent(DAG_ID, DAGEventType.DAG_INIT)));
+    // tasks and attempts of a vertex on the same partition
+    assertEquals(1, dispatcher.getPartition(new TaskEvent(task0, TaskEventType.T_SCHEDULE)));
+    assertEquals(1, dispatcher.getPartition(new TaskAttemptEvent(
+        TezTaskAttemptID.getInstance(task0, 0), TaskAttemptEventType.TA_SCHEDULE)));
+    assertEquals(2, dispatcher.getPartition(new TaskEvent(task1, TaskEventType.T_SCHEDULE)));
+    assertEquals(1, dispatcher.getPartition(new TaskEvent(task2, TaskEventType.T_SCHEDULE)));
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test(timeout = 10000)
+  public void testOrderPerEntity() throws Exception {
+    final int numVertices = 4;
+    final int numTasks = 10;
+    final int numEvents = 100;
+    final CountDownLatch done = new CountDownLatch(numVertices * numTasks * numEvents + 1);
+    final Map<TezTaskID, List<Integer>> receivedEvents =
+        Collections.synchronizedMap(new HashMap<TezTaskID, List<Integer>>());
+    PartitionedDispatcher dispatcher = new PartitionedDispatcher(3);
+    dispatcher.register(TaskEventType.class, new EventHandler<TaskEvent>() {
+      @Override
+      public void handle(TaskEvent event) {
+        receivedEvents.get(event.getTaskID()).add(((NumberedTaskEvent) event).number);
+        done.countDown();
+      }
+    });
+    dispatcher.register(DAGEventType.class, new EventHandler<DAGEvent>() {
+      @Override
+      public void handle(DAGEvent event) {
+        done.countDown();
+      }
+    });
+    dispatcher.init(new Configuration());
+    dispatcher.start();
+    try {
+      List<TezTaskID> taskIds = new ArrayList<TezTaskID>();
+      for (int i = 0; i < numVertices; i++) {
+        for (int j = 0; j < numTasks; j++) {
+          TezTaskID taskId = TezTaskID.getInstance(TezVertexID.getInstance(DAG_ID, i), j);
+          taskIds.add(taskId);
+          receivedEvents.put(taskId, new ArrayList<Integer>());
+        }
+      }
+      EventHandler<Event> handler = dispatcher.getEventHandler();
+      for (int i = 0; i < numEvents; i++) {
+        for (TezTaskID taskId : taskIds) {
+          handler.handle(new NumberedTaskEvent(taskId, i));
+        }
+      }
+      handler.handle(new DAGEvent(DAG_ID, DAGEventType.DAG_INIT));
+      assertTrue(done.await(5, TimeUnit.SECONDS));
+
+      for (TezTaskID taskId : taskIds) {
+        List<Integer> events = receivedEvents.get(taskId);
+        assertEquals(numEvents, events.size());
+        for (int i = 0; i < numEvents; i++) {
+          assertEquals(i, events.get(i).intValue());
+        }
+      }
+      for (int i = 0; i < 3; i++) {
+        assertEquals(0, dispatcher.getQueueSize(i));
+      }
+    } finally {
+      dispatcher.stop();
+    }
+  }
+
+  private static class NumberedTaskEvent extends TaskEvent {
+    final int number;
+
+    NumberedTaskEvent(TezTaskID taskId, int number) {
+      super(taskId, TaskEventType.T_ADD_TEZ_EVENT);
+      this.number = number;
+    }
+  }
+}
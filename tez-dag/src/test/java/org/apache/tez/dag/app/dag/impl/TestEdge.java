@@ -19,10 +19,13 @@
 package org.apache.tez.dag.app.dag.impl;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -115,6 +118,103 @@ public class TestEdge {
 
   }
   
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  @Test (timeout = 5000)
+  public void testLazyCompositeEventRouting() {
+    EventHandler eventHandler = mock(EventHandler.class);
+    EdgeProperty edgeProp = new EdgeProperty(DataMovementType.SCATTER_GATHER,
+        DataSourceType.PERSISTED, SchedulingType.SEQUENTIAL, mock(OutputDescriptor.class),
+        mock(InputDescriptor.class));
+    Edge edge = new Edge(edgeProp, eventHandler, true);
+
+    TezVertexID srcVertexID = createVertexID(1);
+    TezVertexID destVertexID = createVertexID(2);
+    LinkedHashMap<TezTaskID, Task> srcTasks = mockTasks(srcVertexID, 1);
+    LinkedHashMap<TezTaskID, Task> destTasks = mockTasks(destVertexID, 5);
+
+    TezTaskID srcTaskID = srcTasks.keySet().iterator().next();
+
+    edge.setSourceVertex(mockVertex("src", srcVertexID, srcTasks));
+    edge.setDestinationVertex(mockVertex("dest", destVertexID, destTasks));
+    edge.initialize();
+
+    TezTaskAttemptID srcTAID = createTAIDForTest(srcTaskID, 2);
+    EventMetaData srcMeta = new EventMetaData(EventProducerConsumerType.OUTPUT, "consumerVertex", "producerVertex", srcTAID);
+    CompositeDataMovementEvent cdmEvent = new CompositeDataMovementEvent(0, destTasks.size(), "bytes".getBytes());
+    cdmEvent.setVersion(2);
+
+    // Only the tasks with heartbeats waiting for events are woken up
+    Iterator<Task> destTaskIter = destTasks.values().iterator();
+    Task waitingTask = destTaskIter.next();
+    Task notWaitingTask = destTaskIter.next();
+    Task noLongerWaitingTask = destTaskIter.next();
+    edge.addDestinationTaskWaitingForEvents(waitingTask);
+    edge.addDestinationTaskWaitingForEvents(noLongerWaitingTask);
+    edge.removeDestinationTaskWaitingForEvents(noLongerWaitingTask);
+
+    edge.sendTezEventToDestinationTasks(new TezEvent(cdmEvent, srcMeta));
+
+    // Not routed until the destination tasks take the events
+    verify(eventHandler, never()).handle(any(Event.class));
+    verify(waitingTask).notifyTezEventsPending();
+    verify(notWaitingTask, never()).notifyTezEventsPending();
+    verify(noLongerWaitingTask, never()).notifyTezEventsPending();
+
+    for (int i = 0; i < destTasks.size(); i++) {
+      assertTrue(edge.hasPendingEventsForDestination(i));
+      List<TezEvent> events = edge.takePendingEventsForDestination(i);
+      assertEquals(1, events.size());
+      DataMovementEvent dmEvent = (DataMovementEvent) events.get(0).getEvent();
+      assertEquals(srcTAID.getId(), dmEvent.getVersion());
+      assertEquals(i, dmEvent.getSourceIndex());
+      assertEquals(srcTaskID.getId(), dmEvent.getTargetIndex());
+      assertTrue(Arrays.equals("bytes".getBytes(), dmEvent.getUserPayload()));
+      assertFalse(edge.hasPendingEventsForDestination(i));
+      assertTrue(edge.takePendingEventsForDestination(i).isEmpty());
+    }
+  }
+
+  @SuppressWarnings("rawtypes")
+  @Test (timeout = 5000)
+  public void testLazyCompositeEventNotification() {
+    EventHandler eventHandler = mock(EventHandler.class);
+    EdgeProperty edgeProp = new EdgeProperty(DataMovementType.SCATTER_GATHER,
+        DataSourceType.PERSISTED, SchedulingType.SEQUENTIAL, mock(OutputDescriptor.class),
+        mock(InputDescriptor.class));
+    Edge edge = new Edge(edgeProp, eventHandler, true);
+
+    TezVertexID srcVertexID = createVertexID(1);
+    TezVertexID destVertexID = createVertexID(2);
+    LinkedHashMap<TezTaskID, Task> srcTasks = mockTasks(srcVertexID, 3);
+    LinkedHashMap<TezTaskID, Task> destTasks = mockTasks(destVertexID, 2);
+
+    edge.setSourceVertex(mockVertex("src", srcVertexID, srcTasks));
+    edge.setDestinationVertex(mockVertex("dest", destVertexID, destTasks));
+    edge.initialize();
+
+    Iterator<TezTaskID> srcTaskIter = srcTasks.keySet().iterator();
+    Task waitingTask = destTasks.values().iterator().next();
+    edge.addDestinationTaskWaitingForEvents(waitingTask);
+
+    // Waiters are woken up once for the events received until they take them
+    edge.sendTezEventToDestinationTasks(createCompositeEvent(srcTaskIter.next(), destTasks.size()));
+    edge.sendTezEventToDestinationTasks(createCompositeEvent(srcTaskIter.next(), destTasks.size()));
+    verify(waitingTask, times(1)).notifyTezEventsPending();
+
+    assertEquals(2, edge.takePendingEventsForDestination(0).size());
+    edge.sendTezEventToDestinationTasks(createCompositeEvent(srcTaskIter.next(), destTasks.size()));
+    verify(waitingTask, times(2)).notifyTezEventsPending();
+    assertEquals(1, edge.takePendingEventsForDestination(0).size());
+    assertEquals(3, edge.takePendingEventsForDestination(1).size());
+  }
+
+  private TezEvent createCompositeEvent(TezTaskID srcTaskID, int count) {
+    TezTaskAttemptID srcTAID = createTAIDForTest(srcTaskID, 0);
+    EventMetaData srcMeta = new EventMetaData(EventProducerConsumerType.OUTPUT,
+        "consumerVertex", "producerVertex", srcTAID);
+    return new TezEvent(new CompositeDataMovementEvent(0, count, "bytes".getBytes()), srcMeta);
+  }
+
   @SuppressWarnings("rawtypes")
   private void verifyEvents(List<Event> events, TezTaskAttemptID srcTAID, LinkedHashMap<TezTaskID, Task> destTasks) {
     int count = 0;
@@ -383,6 +383,48 @@ public class TestTaskImpl {
     assertEquals(6, fetchedList.size());
   }
 
+  @Test(timeout = 60000)
+  public void testWaitForTezEvents() throws Exception {
+    final TezTaskID taskId = getNewTaskID();
+    scheduleTaskAttempt(taskId);
+    sendTezEventsToTask(taskId, 2);
+
+    // Returns right away if there are events, and at the timeout otherwise.
+    // The test times out if a call waits for an hour.
+    mockTask.waitForTaskAttemptTezEvents(1, HOUR_MS);
+    mockTask.waitForTaskAttemptTezEvents(2, 0);
+
+    // Wakes up when events are added
+    Thread waiter = startEventsWaiter(2);
+    sendTezEventsToTask(taskId, 1);
+    waiter.join();
+
+    // Wakes up when notified. Notifies until the waiter returns, since it
+    // may not be waiting yet.
+    waiter = startEventsWaiter(3);
+    while (waiter.isAlive()) {
+      mockTask.notifyTezEventsPending();
+      waiter.join(10);
+    }
+  }
+
+  private static final long HOUR_MS = 3600 * 1000;
+
+  private Thread startEventsWaiter(final int fromEventId) {
+    Thread waiter = new Thread() {
+      @Override
+      public void run() {
+        try {
+          mockTask.waitForTaskAttemptTezEvents(fromEventId, HOUR_MS);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+    };
+    waiter.start();
+    return waiter;
+  }
+
   @Test
   public void testTaskProgress() {
     LOG.info("--- START: testTaskProgress ---");
@@ -0,0 +1,101 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.dag.app.dag.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.tez.runtime.api.events.DataMovementEvent;
+import org.apache.tez.runtime.api.events.InputReadErrorEvent;
+import org.apache.tez.runtime.api.impl.EventMetaData;
+import org.apache.tez.runtime.api.impl.EventMetaData.EventProducerConsumerType;
+import org.apache.tez.runtime.api.impl.TezEvent;
+import org.junit.Test;
+
+public class TestTezEventStore {
+
+  @Test
+  public void testGet() {
+    EventMetaData srcInfo1 = new EventMetaData(EventProducerConsumerType.OUTPUT,
+        "v1", "v2", null);
+    EventMetaData srcInfo2 = new EventMetaData(EventProducerConsumerType.OUTPUT,
+        "v1", "v2", null);
+    EventMetaData destInfo = new EventMetaData(EventProducerConsumerType.INPUT,
+        "v2", "v1", null);
+    byte[] payload1 = new byte[] { 1 };
+    byte[] payload2 = new byte[] { 2 };
+
+    List<TezEvent> added = new ArrayList<TezEvent>();
+    // A range of partitions from the same source
+    for (int i = 0; i < 5; i++) {
+      added.add(createDMEvent(3 + i, 10 + i, 0, payload1, srcInfo1, destInfo));
+    }
+    // Same source, not consecutive
+    added.add(createDMEvent(9, 16, 0, payload1, srcInfo1, destInfo));
+    // Another source
+    added.add(createDMEvent(10, 17, 0, payload2, srcInfo2, destInfo));
+    // Another version
+    added.add(createDMEvent(11, 18, 1, payload2, srcInfo2, destInfo));
+    added.add(new TezEvent(new InputReadErrorEvent("diag", 0, 0), srcInfo1));
+    added.add(createDMEvent(12, 19, 1, payload2, srcInfo2, destInfo));
+
+    TezEventStore store = new TezEventStore();
+    for (TezEvent event : added) {
+      store.add(event);
+    }
+    assertEquals(added.size(), store.size());
+
+    for (int from = 0; from < added.size(); from++) {
+      for (int to = from; to <= added.size(); to++) {
+        List<TezEvent> events = store.get(from, to);
+        assertEquals(to - from, events.size());
+        for (int i = from; i < to; i++) {
+          verifyEvent(added.get(i), events.get(i - from));
+        }
+      }
+    }
+  }
+
+  private static TezEvent createDMEvent(int sourceIndex, int targetIndex, int version,
+      byte[] payload, EventMetaData srcInfo, EventMetaData destInfo) {
+    TezEvent event = new TezEvent(new DataMovementEvent(sourceIndex, targetIndex, version,
+        payload), srcInfo);
+    event.setDestinationInfo(destInfo);
+    return event;
+  }
+
+  private static void verifyEvent(TezEvent expected, TezEvent actual) {
+    assertEquals(expected.getEventType(), actual.getEventType());
+    assertSame(expected.getSourceInfo(), actual.getSourceInfo());
+    assertSame(expected.getDestinationInfo(), actual.getDestinationInfo());
+    if (expected.getEvent() instanceof DataMovementEvent) {
+      DataMovementEvent expectedEvent = (DataMovementEvent) expected.getEvent();
+      DataMovementEvent actualEvent = (DataMovementEvent) actual.getEvent();
+      assertEquals(expectedEvent.getSourceIndex(), actualEvent.getSourceIndex());
+      assertEquals(expectedEvent.getTargetIndex(), actualEvent.getTargetIndex());
+      assertEquals(expectedEvent.getVersion(), actualEvent.getVersion());
+      assertSame(expectedEvent.getUserPayload(), actualEvent.getUserPayload());
+    } else {
+      assertSame(expected, actual);
+    }
+  }
+}
@@ -35,6 +35,7 @@ import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -73,6 +74,7 @@ import org.apache.tez.dag.api.VertexLocationHint.TaskLocationHint;
 import org.apache.tez.dag.api.VertexManagerPlugin;
 import org.apache.tez.dag.api.VertexManagerPluginContext;
 import org.apache.tez.dag.api.VertexManagerPluginContext.TaskWithLocationHint;
+import org.apache.tez.dag.api.client.StatusGetOpts;
 import org.apache.tez.dag.api.client.VertexStatus;
 import org.apache.tez.dag.api.oldrecords.TaskState;
 import org.apache.tez.dag.api.records.DAGProtos;
@@ -117,6 +119,8 @@ import org.apache.tez.dag.app.dag.event.VertexEventType;
 import org.apache.tez.dag.app.dag.impl.DAGImpl.VertexGroupInfo;
 import org.apache.tez.dag.app.rm.TaskSchedulerEventHandler;
 import org.apache.tez.dag.history.HistoryEventHandler;
+import org.apache.tez.dag.history.events.VertexFinishedEvent;
+import org.apache.tez.dag.history.events.VertexInitializedEvent;
 import org.apache.tez.dag.library.vertexmanager.InputReadyVertexManager;
 import org.apache.tez.dag.library.vertexmanager.ShuffleVertexManager;
 import org.apache.tez.dag.records.TezDAGID;
@@ -1880,6 +1884,86 @@ public class TestVertexImpl {
     Assert.assertEquals(2, v.getCompletedTasks());
   }
 
+  @SuppressWarnings("unchecked")
+  @Test(timeout = 5000)
+  public void testVertexStatusAfterTransitions() {
+    initAllVertices(VertexState.INITED);
+
+    VertexImpl v = vertices.get("vertex2");
+    VertexStatus status = v.getVertexStatus(EnumSet.noneOf(StatusGetOpts.class));
+    Assert.assertEquals(VertexStatus.State.INITED, status.getState());
+    Assert.assertEquals(2, status.getProgress().getTotalTaskCount());
+    Assert.assertEquals(0, status.getProgress().getSucceededTaskCount());
+    startVertex(v);
+    Assert.assertEquals(VertexStatus.State.RUNNING,
+        v.getVertexStatus(EnumSet.noneOf(StatusGetOpts.class)).getState());
+
+    TezTaskID t1 = TezTaskID.getInstance(v.getVertexId(), 0);
+    TezTaskID t2 = TezTaskID.getInstance(v.getVertexId(), 1);
+    dispatcher.getEventHandler().handle(
+        new VertexEventTaskCompleted(t1, TaskState.SUCCEEDED));
+    dispatcher.await();
+    status = v.getVertexStatus(EnumSet.noneOf(StatusGetOpts.class));
+    Assert.assertEquals(VertexStatus.State.RUNNING, status.getState());
+    Assert.assertEquals(1, status.getProgress().getSucceededTaskCount());
+    Assert.assertEquals(1, v.getSucceededTasks());
+
+    dispatcher.getEventHandler().handle(
+        new VertexEventTaskCompleted(t2, TaskState.FAILED));
+    dispatcher.await();
+    status = v.getVertexStatus(EnumSet.noneOf(StatusGetOpts.class));
+    Assert.assertEquals(VertexStatus.State.FAILED, status.getState());
+    Assert.assertEquals(VertexState.FAILED, v.getState());
+    Assert.assertEquals(1, status.getProgress().getSucceededTaskCount());
+    Assert.assertEquals(1, status.getProgress().getFailedTaskCount());
+    Assert.assertEquals(2, v.getCompletedTasks());
+    Assert.assertEquals(VertexTerminationCause.OWN_TASK_FAILURE, v.getTerminationCause());
+    Assert.assertFalse(status.getDiagnostics().isEmpty());
+    Assert.assertEquals(v.getDiagnostics(), status.getDiagnostics());
+  }
+
+  @Test(timeout = 5000)
+  public void testVertexStatusAfterSetParallelism() {
+    initAllVertices(VertexState.INITED);
+    VertexImpl v3 = vertices.get("vertex3");
+    VertexImpl v1 = vertices.get("vertex1");
+    startVertex(vertices.get("vertex2"));
+    startVertex(v1);
+    Assert.assertEquals(2,
+        v3.getVertexStatus(EnumSet.noneOf(StatusGetOpts.class)).getProgress().getTotalTaskCount());
+
+    Map<String, EdgeManagerDescriptor> edgeManagerDescriptors =
+        Collections.singletonMap(v1.getName(),
+            new EdgeManagerDescriptor(EdgeManagerForTest.class.getName()));
+    Assert.assertTrue(v3.setParallelism(1, null, edgeManagerDescriptors, null));
+    // setParallelism is not a transition, but the change is published
+    Assert.assertEquals(1, v3.getTotalTasks());
+    Assert.assertEquals(1, v3.getVertexProgress().getTotalTaskCount());
+    Assert.assertEquals(1,
+        v3.getVertexStatus(EnumSet.noneOf(StatusGetOpts.class)).getProgress().getTotalTaskCount());
+  }
+
+  @Test(timeout = 5000)
+  public void testVertexStatusAfterRecovery() {
+    VertexImpl v = vertices.get("vertex2");
+    Assert.assertEquals(VertexState.NEW, v.getState());
+    int numTasks = 5;
+    v.restoreFromEvent(new VertexInitializedEvent(v.getVertexId(), v.getName(), 1000, 1001,
+        numTasks, "processor", null));
+    // Tasks are recreated from the recovery log, without any transition
+    Assert.assertEquals(numTasks, v.getTasks().size());
+    Assert.assertEquals(numTasks, v.getTotalTasks());
+    Assert.assertEquals(numTasks,
+        v.getVertexStatus(EnumSet.noneOf(StatusGetOpts.class)).getProgress().getTotalTaskCount());
+
+    String diagnostics = "recovered diagnostics";
+    v.restoreFromEvent(new VertexFinishedEvent(v.getVertexId(), v.getName(), 1000, 1001,
+        1002, 1003, 1004, VertexState.FAILED, diagnostics, null, null));
+    Assert.assertTrue(v.getDiagnostics().contains(diagnostics));
+    Assert.assertTrue(v.getVertexStatus(EnumSet.noneOf(StatusGetOpts.class)).getDiagnostics()
+        .contains(diagnostics));
+  }
+
   @SuppressWarnings("unchecked")
   @Test(timeout = 5000)
   @Ignore // FIXME fix verteximpl for this test to work
@@ -37,6 +37,7 @@ public class TezHeartbeatRequest implements Writable {
   private TezTaskAttemptID currentTaskAttemptID;
   private int startIndex;
   private int maxEvents;
+  private long maxWaitTime;
   private long requestId;
 
   public TezHeartbeatRequest() {
@@ -45,11 +46,22 @@ public class TezHeartbeatRequest implements Writable {
   public TezHeartbeatRequest(long requestId, List<TezEvent> events,
       String containerIdentifier, TezTaskAttemptID taskAttemptID,
       int startIndex, int maxEvents) {
+    this(requestId, events, containerIdentifier, taskAttemptID, startIndex, maxEvents, 0);
+  }
+
+  /**
+   * @param maxWaitTime time in ms for which the AM may hold the request
+   *          until there are events for the task attempt
+   */
+  public TezHeartbeatRequest(long requestId, List<TezEvent> events,
+      String containerIdentifier, TezTaskAttemptID taskAttemptID,
+      int startIndex, int maxEvents, long maxWaitTime) {
     this.containerIdentifier = containerIdentifier;
     this.requestId = requestId;
     this.events = Collections.unmodifiableList(events);
     this.startIndex = startIndex;
     this.maxEvents = maxEvents;
+    this.maxWaitTime = maxWaitTime;
     this.currentTaskAttemptID = taskAttemptID;
   }
 
@@ -69,6 +81,10 @@ public class TezHeartbeatRequest implements Writable {
     return maxEvents;
   }
 
+  public long getMaxWaitTime() {
+    return maxWaitTime;
+  }
+
   public long getRequestId() {
     return requestId;
   }
@@ -96,6 +112,7 @@ public class TezHeartbeatRequest implements Writable {
     }
     out.writeInt(startIndex);
     out.writeInt(maxEvents);
+    out.writeLong(maxWaitTime);
     out.writeLong(requestId);
     Text.writeString(out, containerIdentifier);
   }
@@ -118,6 +135,7 @@ public class TezHeartbeatRequest implements Writable {
     }
     startIndex = in.readInt();
     maxEvents = in.readInt();
+    maxWaitTime = in.readLong();
     requestId = in.readLong();
     containerIdentifier = Text.readString(in);
   }
@@ -129,6 +147,7 @@ public class TezHeartbeatRequest implements Writable {
         + ", requestId=" + requestId
         + ", startIndex=" + startIndex
         + ", maxEventsToGet=" + maxEvents
+        + ", maxWaitTime=" + maxWaitTime
         + ", taskAttemptId=" + currentTaskAttemptID
         + ", eventCount=" + (events != null ? events.size() : 0)
         + " }";
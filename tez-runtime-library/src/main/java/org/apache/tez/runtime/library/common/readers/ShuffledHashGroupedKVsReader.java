@@ -0,0 +1,540 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.readers;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalDirAllocator;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.serializer.Deserializer;
+import org.apache.hadoop.io.serializer.SerializationFactory;
+import org.apache.tez.common.TezJobConfig;
+import org.apache.tez.common.counters.TezCounter;
+import org.apache.tez.runtime.library.api.KeyValuesReader;
+import org.apache.tez.runtime.library.common.ConfigUtils;
+import org.apache.tez.runtime.library.common.sort.impl.IFile;
+import org.apache.tez.runtime.library.common.task.local.output.TezTaskOutputFiles;
+import org.apache.tez.runtime.library.common.writers.HashAggregationTable;
+import org.apache.tez.runtime.library.shuffle.common.FetchedInput;
+import org.apache.tez.runtime.library.shuffle.common.impl.ShuffleManager;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Groups the values of the fetched inputs by key, without sorting them. The
+ * records are grouped in a hash table. When the table is full, its records
+ * are spilled to disk, split by the hash of their keys into partitions. Each
+ * partition is then grouped on its own, and split further using other bits
+ * of the hash if it still does not fit in memory.
+ *
+ * Keys are compared by their serialized bytes. They are not returned in any
+ * particular order.
+ */
+public class ShuffledHashGroupedKVsReader<K, V> implements KeyValuesReader {
+
+  private static final Log LOG = LogFactory.getLog(ShuffledHashGroupedKVsReader.class);
+
+  private static final int PARTITION_BITS = 4;
+  private static final int NUM_PARTITIONS = 1 << PARTITION_BITS;
+  // Levels of partitioning, after which the table grows instead of spilling,
+  // up to the memory limit. Keys with the same hash, or a single key with too
+  // many values, cannot be split any further.
+  private static final int MAX_LEVELS = 4;
+
+  private final ShuffleManager shuffleManager;
+  private final Configuration conf;
+  private final CompressionCodec codec;
+  private final boolean ifileReadAhead;
+  private final int ifileReadAheadLength;
+  private final int ifileBufferSize;
+  private final boolean mmapDiskInputs;
+
+  private final Class<K> keyClass;
+  private final Class<V> valClass;
+  private final Deserializer<K> keyDeserializer;
+  private final Deserializer<V> valDeserializer;
+  private final DataInputBuffer keyIn = new DataInputBuffer();
+  private final DataInputBuffer valIn = new DataInputBuffer();
+  private final DataInputBuffer rawKey = new DataInputBuffer();
+  private final DataInputBuffer rawValue = new DataInputBuffer();
+
+  private final FileSystem rfs;
+  private final TezTaskOutputFiles spillFileAllocator;
+  private int numSpillFiles = 0;
+
+  private final TezCounter inputKeyCounter;
+  private final TezCounter inputValueCounter;
+  private final TezCounter spilledRecordsCounter;
+
+  private final long tableMemory;
+  private final long maxTableMemory;
+  private HashAggregationTable table;
+  private long currentTableMemory;
+
+  // Spilled partitions which still have to be grouped
+  private final LinkedList<SpilledPartition> pendingPartitions = new LinkedList<SpilledPartition>();
+  private boolean inputsRead = false;
+
+  // Records of the table being returned, null once all of them are returned
+  private HashAggregationTable.RecordIterator records;
+  // The iterator is positioned at a record which has not been returned yet
+  private boolean recordAvailable = false;
+  // No value of the current key has been returned yet
+  private boolean firstValue = false;
+  private int keyNumber = 0;
+  private K key;
+  private V value;
+
+  /**
+   * @param tableMemory memory for the table while the inputs are fetched
+   * @param maxTableMemory memory the table may grow to, once the fetched
+   *          inputs have been read, for keys which cannot be partitioned any
+   *          further
+   */
+  public ShuffledHashGroupedKVsReader(ShuffleManager shuffleManager, Configuration conf,
+      String uniqueIdentifier, long tableMemory, long maxTableMemory, CompressionCodec codec,
+      boolean ifileReadAhead, int ifileReadAheadLength, int ifileBufferSize,
+      TezCounter inputKeyCounter, TezCounter inputValueCounter,
+      TezCounter spilledRecordsCounter) throws IOException {
+    Preconditions.checkArgument(tableMemory > 0, "tableMemory should be > 0 bytes");
+    Preconditions.checkArgument(maxTableMemory >= tableMemory,
+        "maxTableMemory should be >= tableMemory");
+    this.shuffleManager = shuffleManager;
+    this.conf = conf;
+    this.tableMemory = tableMemory;
+    this.maxTableMemory = maxTableMemory;
+    this.codec = codec;
+    this.ifileReadAhead = ifileReadAhead;
+    this.ifileReadAheadLength = ifileReadAheadLength;
+    this.ifileBufferSize = ifileBufferSize;
+    this.inputKeyCounter = inputKeyCounter;
+    this.inputValueCounter = inputValueCounter;
+    this.spilledRecordsCounter = spilledRecordsCounter;
+    this.mmapDiskInputs = conf.getBoolean(
+        TezJobConfig.TEZ_RUNTIME_SHUFFLE_FETCH_DISK_INPUT_MMAP_ENABLED,
+        TezJobConfig.TEZ_RUNTIME_SHUFFLE_FETCH_DISK_INPUT_MMAP_ENABLED_DEFAULT);
+
+    this.keyClass = ConfigUtils.getIntermediateInputKeyClass(conf);
+    this.valClass = ConfigUtils.getIntermediateInputValueClass(conf);
+    SerializationFactory serializationFactory = new SerializationFactory(conf);
+    this.keyDeserializer = serializationFactory.getDeserializer(keyClass);
+    this.keyDeserializer.open(keyIn);
+    this.valDeserializer = serializationFactory.getDeserializer(valClass);
+    this.valDeserializer.open(valIn);
+
+    this.rfs = ((LocalFileSystem) FileSystem.getLocal(conf)).getRaw();
+    this.spillFileAllocator = new TezTaskOutputFiles(conf, uniqueIdentifier + "_hashgroup");
+  }
+
+  /**
+   * Moves to the next key. The values of the previous key which have not been
+   * read are skipped. The first call blocks until all the inputs are fetched.
+   */
+  @Override
+  public boolean next() throws IOException {
+    if (!inputsRead) {
+      inputsRead = true;
+      table = new HashAggregationTable(NUM_PARTITIONS, tableMemory);
+      currentTableMemory = tableMemory;
+      group(new FetchedInputSource(), 0);
+    }
+    keyNumber++;
+    if (firstValue) {
+      // Not even the first value of the previous key was read
+      recordAvailable = false;
+      firstValue = false;
+    }
+    while (true) {
+      while (records == null) {
+        if (pendingPartitions.isEmpty()) {
+          return false;
+        }
+        SpilledPartition partition = pendingPartitions.removeFirst();
+        try {
+          group(new SpilledPartitionSource(partition), partition.level);
+        } finally {
+          deleteFiles(partition);
+        }
+      }
+      if (!recordAvailable) {
+        recordAvailable = records.next();
+      }
+      // Skip the remaining values of the previous key
+      while (recordAvailable && !records.isNewKey()) {
+        recordAvailable = records.next();
+      }
+      if (recordAvailable) {
+        DataInputBuffer keyBytes = records.getKey();
+        keyIn.reset(keyBytes.getData(), keyBytes.getPosition(),
+            keyBytes.getLength() - keyBytes.getPosition());
+        key = keyDeserializer.deserialize(key);
+        firstValue = true;
+        inputKeyCounter.increment(1);
+        return true;
+      }
+      records = null;
+    }
+  }
+
+  @Override
+  public Object getCurrentKey() throws IOException {
+    return key;
+  }
+
+  /**
+   * Returns the values of the current key. They can only be read until
+   * {@link #next()} is called again.
+   */
+  @Override
+  public Iterable<Object> getCurrentValues() throws IOException {
+    return new Iterable<Object>() {
+      @Override
+      public Iterator<Object> iterator() {
+        return new ValuesIterator(keyNumber);
+      }
+    };
+  }
+
+  /**
+   * Deletes the spill files which have not been read.
+   */
+  public void close() throws IOException {
+    records = null;
+    table = null;
+    for (SpilledPartition partition : pendingPartitions) {
+      deleteFiles(partition);
+    }
+    pendingPartitions.clear();
+  }
+
+  private class ValuesIterator implements Iterator<Object> {
+
+    private final int keyNumber;
+
+    ValuesIterator(int keyNumber) {
+      this.keyNumber = keyNumber;
+    }
+
+    @Override
+    public boolean hasNext() {
+      Preconditions.checkState(keyNumber == ShuffledHashGroupedKVsReader.this.keyNumber,
+          "Cannot use values iterator on the previous K-V pair after next has been invoked to "
+              + "move to the next K-V pair");
+      if (records == null) {
+        return false;
+      }
+      if (!recordAvailable) {
+        try {
+          recordAvailable = records.next();
+        } catch (IOException e) {
+          throw new RuntimeException("problem advancing post rec#" + keyNumber, e);
+        }
+      }
+      return recordAvailable && (firstValue || !records.isNewKey());
+    }
+
+    @Override
+    public Object next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException("iterate past last value");
+      }
+      try {
+        DataInputBuffer valueBytes = records.getValue();
+        valIn.reset(valueBytes.getData(), valueBytes.getPosition(),
+            valueBytes.getLength() - valueBytes.getPosition());
+        value = valDeserializer.deserialize(value);
+      } catch (IOException e) {
+        throw new RuntimeException("problem reading value post rec#" + keyNumber, e);
+      }
+      recordAvailable = false;
+      firstValue = false;
+      inputValueCounter.increment(1);
+      return value;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException("Cannot remove elements");
+    }
+  }
+
+  /**
+   * Groups the records of a source in the table. If they do not all fit, the
+   * table is spilled, and the partitions are queued to be grouped at the next
+   * level. Otherwise the records of the table are ready to be returned.
+   */
+  private void group(RecordSource source, int level) throws IOException {
+    if (currentTableMemory != tableMemory) {
+      table = new HashAggregationTable(NUM_PARTITIONS, tableMemory);
+      currentTableMemory = tableMemory;
+    } else {
+      table.clear();
+    }
+    SpilledPartition[] partitions = null;
+    try {
+      while (source.next(rawKey, rawValue)) {
+        int partition = getPartition(rawKey, level);
+        if (add(partition)) {
+          continue;
+        }
+        if (level >= MAX_LEVELS - 1) {
+          growTable();
+          while (!add(partition)) {
+            growTable();
+          }
+          continue;
+        }
+        if (partitions == null) {
+          partitions = new SpilledPartition[NUM_PARTITIONS];
+          for (int i = 0; i < NUM_PARTITIONS; i++) {
+            partitions[i] = new SpilledPartition(level + 1);
+          }
+        }
+        spill(partitions, -1);
+        if (!add(partition)) {
+          // Record larger than the table
+          spill(partitions, partition);
+        }
+      }
+    } finally {
+      source.close();
+    }
+
+    recordAvailable = false;
+    if (partitions == null) {
+      records = table.getRecords();
+      return;
+    }
+    spill(partitions, -1);
+    for (int i = 0; i < NUM_PARTITIONS; i++) {
+      if (!partitions[i].files.isEmpty()) {
+        pendingPartitions.addFirst(partitions[i]);
+      }
+    }
+    records = null;
+  }
+
+  private void deleteFiles(SpilledPartition partition) {
+    for (Path file : partition.files) {
+      try {
+        rfs.delete(file, false);
+      } catch (IOException e) {
+        LOG.warn("Failed to delete spill file " + file, e);
+      }
+    }
+    partition.files.clear();
+  }
+
+  private boolean add(int partition) {
+    return table.add(partition, rawKey.getData(), rawKey.getPosition(),
+        rawKey.getLength() - rawKey.getPosition(), rawValue.getData(), rawValue.getPosition(),
+        rawValue.getLength() - rawValue.getPosition());
+  }
+
+  /**
+   * Grows the table, to at most maxTableMemory. Only done at the last level,
+   * i.e. for spilled partitions once all the fetched inputs have been read and
+   * released, so the memory assigned for fetching them is free.
+   */
+  private void growTable() throws IOException {
+    HashAggregationTable newTable;
+    do {
+      if (currentTableMemory >= maxTableMemory) {
+        throw new IOException("Values of keys which cannot be partitioned further do not fit in "
+            + maxTableMemory + " bytes assigned to the input. Increase "
+            + TezJobConfig.TEZ_RUNTIME_HASH_GROUPED_INPUT_TABLE_SIZE_MB
+            + " or the memory of the task, or use ShuffledMergedInput to sort the values "
+            + "instead of grouping them in memory");
+      }
+      currentTableMemory = Math.min(currentTableMemory * 2, maxTableMemory);
+      LOG.warn("Values of keys which cannot be partitioned further do not fit in memory. "
+          + "Growing the table to " + currentTableMemory + " bytes");
+      newTable = new HashAggregationTable(NUM_PARTITIONS, currentTableMemory);
+    } while (!copyTable(newTable));
+    table = newTable;
+  }
+
+  private boolean copyTable(HashAggregationTable newTable) throws IOException {
+    for (int i = 0; i < NUM_PARTITIONS; i++) {
+      HashAggregationTable.RecordIterator iter = table.getRecords(i);
+      while (iter.next()) {
+        DataInputBuffer k = iter.getKey();
+        DataInputBuffer v = iter.getValue();
+        if (!newTable.add(i, k.getData(), k.getPosition(), k.getLength() - k.getPosition(),
+            v.getData(), v.getPosition(), v.getLength() - v.getPosition())) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Writes each partition of the table to a new spill file, and clears the
+   * table.
+   *
+   * @param recordPartition partition of the current raw record, if it has to
+   *          be spilled as well, -1 otherwise
+   */
+  private void spill(SpilledPartition[] partitions, int recordPartition) throws IOException {
+    for (int i = 0; i < NUM_PARTITIONS; i++) {
+      boolean hasRecord = i == recordPartition;
+      if (!table.hasRecords(i) && !hasRecord) {
+        continue;
+      }
+      Path path = spillFileAllocator.getSpillFileForWrite(numSpillFiles++,
+          LocalDirAllocator.SIZE_UNKNOWN);
+      IFile.Writer writer = new IFile.Writer(conf, rfs, path, keyClass, valClass, codec, null,
+          null);
+      long numRecords = 0;
+      try {
+        HashAggregationTable.RecordIterator iter = table.getRecords(i);
+        while (iter.next()) {
+          writer.append(iter.getKey(), iter.getValue());
+          numRecords++;
+        }
+        if (hasRecord) {
+          writer.append(rawKey, rawValue);
+          numRecords++;
+        }
+      } finally {
+        writer.close();
+      }
+      partitions[i].files.add(path);
+      spilledRecordsCounter.increment(numRecords);
+    }
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Spilled " + table.getNumValues() + " values of " + table.getNumKeys()
+          + " keys at level " + partitions[0].level);
+    }
+    table.clear();
+  }
+
+  private static int getPartition(DataInputBuffer key, int level) {
+    int hash = WritableComparator.hashBytes(key.getData(), key.getPosition(),
+        key.getLength() - key.getPosition());
+    // Spread the bits, each level uses different ones
+    hash ^= hash >>> 16;
+    hash *= 0x85ebca6b;
+    hash ^= hash >>> 13;
+    hash *= 0xc2b2ae35;
+    hash ^= hash >>> 16;
+    return (hash >>> (level * PARTITION_BITS)) & (NUM_PARTITIONS - 1);
+  }
+
+  private interface RecordSource {
+    boolean next(DataInputBuffer key, DataInputBuffer value) throws IOException;
+
+    void close() throws IOException;
+  }
+
+  /**
+   * Reads the fetched inputs, waiting for them to be available.
+   */
+  private class FetchedInputSource implements RecordSource {
+    private FetchedInput currentInput;
+    private IFile.Reader currentReader;
+
+    @Override
+    public boolean next(DataInputBuffer key, DataInputBuffer value) throws IOException {
+      while (currentReader == null || !currentReader.nextRawKey(key)) {
+        close();
+        try {
+          currentInput = shuffleManager.getNextInput();
+        } catch (InterruptedException e) {
+          LOG.warn("Interrupted while waiting for next available input", e);
+          throw new IOException(e);
+        }
+        if (currentInput == null) {
+          return false;
+        }
+        currentReader = ShuffledUnorderedKVReader.openIFileReader(currentInput, codec,
+            ifileReadAhead, ifileReadAheadLength, ifileBufferSize, mmapDiskInputs);
+      }
+      currentReader.nextRawValue(value);
+      return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (currentReader != null) {
+        currentReader.close();
+        currentReader = null;
+        currentInput.free();
+        currentInput = null;
+      }
+    }
+  }
+
+  /**
+   * Reads the spill files of a partition.
+   */
+  private class SpilledPartitionSource implements RecordSource {
+    private final Iterator<Path> files;
+    private IFile.Reader currentReader;
+
+    SpilledPartitionSource(SpilledPartition partition) {
+      this.files = partition.files.iterator();
+    }
+
+    @Override
+    public boolean next(DataInputBuffer key, DataInputBuffer value) throws IOException {
+      while (currentReader == null || !currentReader.nextRawKey(key)) {
+        close();
+        if (!files.hasNext()) {
+          return false;
+        }
+        currentReader = new IFile.Reader(rfs, files.next(), codec, null, null, ifileReadAhead,
+            ifileReadAheadLength, ifileBufferSize);
+      }
+      currentReader.nextRawValue(value);
+      return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (currentReader != null) {
+        currentReader.close();
+        currentReader = null;
+      }
+    }
+  }
+
+  private static class SpilledPartition {
+    final int level;
+    final List<Path> files = new ArrayList<Path>();
+
+    SpilledPartition(int level) {
+      this.level = level;
+    }
+  }
+}
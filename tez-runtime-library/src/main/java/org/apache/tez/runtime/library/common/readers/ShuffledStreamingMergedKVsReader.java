@@ -0,0 +1,186 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.readers;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.util.Progress;
+import org.apache.tez.common.TezJobConfig;
+import org.apache.tez.common.counters.TezCounter;
+import org.apache.tez.runtime.library.api.KeyValuesReader;
+import org.apache.tez.runtime.library.common.ConfigUtils;
+import org.apache.tez.runtime.library.common.ValuesIterator;
+import org.apache.tez.runtime.library.common.sort.impl.TezMerger;
+import org.apache.tez.runtime.library.common.sort.impl.TezMerger.Segment;
+import org.apache.tez.runtime.library.common.sort.impl.TezRawKeyValueIterator;
+import org.apache.tez.runtime.library.shuffle.common.FetchedInput;
+import org.apache.tez.runtime.library.shuffle.common.impl.ShuffleManager;
+
+/**
+ * Groups the records of sorted inputs fetched by a {@link ShuffleManager}
+ * while other inputs are still being fetched.
+ *
+ * Whichever inputs have completed when the reader runs out of records are
+ * taken as a batch - waiting for at least one - and merged in memory, in a
+ * single pass, without spilling. Keys are grouped and sorted within a batch,
+ * but the same key may show up again in a later batch; this suits processors
+ * which aggregate per key (e.g. with a combiner), not ones which rely on a
+ * total order. A batch is closed, and its inputs freed, before the next one
+ * is taken, so memory is bounded by the batch size and the fetches the
+ * {@link ShuffleManager} lets run ahead of the reader.
+ */
+@Private
+@SuppressWarnings({ "rawtypes", "unchecked" })
+public class ShuffledStreamingMergedKVsReader implements KeyValuesReader {
+
+  private static final Log LOG = LogFactory.getLog(ShuffledStreamingMergedKVsReader.class);
+
+  private final ShuffleManager shuffleManager;
+  private final Configuration conf;
+  private final CompressionCodec codec;
+  private final boolean ifileReadAhead;
+  private final int ifileReadAheadLength;
+  private final int ifileBufferSize;
+  private final boolean mmapDiskInputs;
+  private final int maxInputsPerBatch;
+
+  private final RawComparator comparator;
+  private final Class keyClass;
+  private final Class valClass;
+
+  private final TezCounter inputKeyCounter;
+  private final TezCounter inputValueCounter;
+
+  private final List<FetchedInput> currentBatch = new ArrayList<FetchedInput>();
+  private TezRawKeyValueIterator currentIter;
+  private ValuesIterator currentValues;
+  private boolean done = false;
+
+  private int numBatches = 0;
+
+  public ShuffledStreamingMergedKVsReader(ShuffleManager shuffleManager, Configuration conf,
+      CompressionCodec codec, boolean ifileReadAhead, int ifileReadAheadLength,
+      int ifileBufferSize, TezCounter inputKeyCounter, TezCounter inputValueCounter) {
+    this.shuffleManager = shuffleManager;
+    this.conf = conf;
+    this.codec = codec;
+    this.ifileReadAhead = ifileReadAhead;
+    this.ifileReadAheadLength = ifileReadAheadLength;
+    this.ifileBufferSize = ifileBufferSize;
+    this.inputKeyCounter = inputKeyCounter;
+    this.inputValueCounter = inputValueCounter;
+    this.mmapDiskInputs = conf.getBoolean(
+        TezJobConfig.TEZ_RUNTIME_SHUFFLE_FETCH_DISK_INPUT_MMAP_ENABLED,
+        TezJobConfig.TEZ_RUNTIME_SHUFFLE_FETCH_DISK_INPUT_MMAP_ENABLED_DEFAULT);
+    this.maxInputsPerBatch = Math.max(2, conf.getInt(TezJobConfig.TEZ_RUNTIME_IO_SORT_FACTOR,
+        TezJobConfig.TEZ_RUNTIME_IO_SORT_FACTOR_DEFAULT));
+
+    this.comparator = ConfigUtils.getIntermediateInputKeyComparator(conf);
+    this.keyClass = ConfigUtils.getIntermediateInputKeyClass(conf);
+    this.valClass = ConfigUtils.getIntermediateInputValueClass(conf);
+  }
+
+  @Override
+  public boolean next() throws IOException {
+    if (done) {
+      return false;
+    }
+    while (currentValues == null || !currentValues.moveToNext()) {
+      closeCurrentBatch();
+      if (!takeNextBatch()) {
+        done = true;
+        LOG.info("Num batches merged: " + numBatches);
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public Object getCurrentKey() throws IOException {
+    return currentValues.getKey();
+  }
+
+  @Override
+  public Iterable<Object> getCurrentValues() throws IOException {
+    return currentValues.getValues();
+  }
+
+  /**
+   * Waits for the next completed input, and merges it with any others which
+   * are already available.
+   *
+   * @return false if all inputs have been consumed
+   */
+  private boolean takeNextBatch() throws IOException {
+    try {
+      FetchedInput input = shuffleManager.getNextInput();
+      if (input == null) {
+        return false;
+      }
+      currentBatch.add(input);
+      while (currentBatch.size() < maxInputsPerBatch && shuffleManager.newInputAvailable()) {
+        input = shuffleManager.getNextInput();
+        if (input == null) {
+          break;
+        }
+        currentBatch.add(input);
+      }
+    } catch (InterruptedException e) {
+      LOG.warn("Interrupted while waiting for next available input", e);
+      throw new IOException(e);
+    }
+
+    List<Segment> segments = new ArrayList<Segment>(currentBatch.size());
+    for (FetchedInput fetchedInput : currentBatch) {
+      segments.add(new Segment(ShuffledUnorderedKVReader.openIFileReader(fetchedInput, codec,
+          ifileReadAhead, ifileReadAheadLength, ifileBufferSize, mmapDiskInputs), false));
+    }
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Merging batch of " + segments.size() + " inputs");
+    }
+    // All segments fit in a single pass, nothing is written out
+    currentIter = TezMerger.merge(conf, null, keyClass, valClass, segments, segments.size(),
+        null, comparator, null, null, null, null, new Progress());
+    currentValues = new ValuesIterator(currentIter, comparator, keyClass, valClass, conf,
+        inputKeyCounter, inputValueCounter);
+    numBatches++;
+    return true;
+  }
+
+  private void closeCurrentBatch() throws IOException {
+    currentValues = null;
+    if (currentIter != null) {
+      currentIter.close();
+      currentIter = null;
+    }
+    for (FetchedInput fetchedInput : currentBatch) {
+      fetchedInput.free();
+    }
+    currentBatch.clear();
+  }
+}
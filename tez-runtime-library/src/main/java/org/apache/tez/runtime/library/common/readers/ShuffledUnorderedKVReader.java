@@ -19,6 +19,7 @@
 package org.apache.tez.runtime.library.common.readers;
 
 import java.io.IOException;
+import java.io.InputStream;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -27,11 +28,13 @@ import org.apache.hadoop.io.DataInputBuffer;
 import org.apache.hadoop.io.compress.CompressionCodec;
 import org.apache.hadoop.io.serializer.Deserializer;
 import org.apache.hadoop.io.serializer.SerializationFactory;
+import org.apache.tez.common.TezJobConfig;
 import org.apache.tez.common.counters.TezCounter;
 import org.apache.tez.runtime.library.api.KeyValueReader;
 import org.apache.tez.runtime.library.common.ConfigUtils;
 import org.apache.tez.runtime.library.common.shuffle.impl.InMemoryReader;
 import org.apache.tez.runtime.library.common.sort.impl.IFile;
+import org.apache.tez.runtime.library.shuffle.common.DiskFetchedInput;
 import org.apache.tez.runtime.library.shuffle.common.FetchedInput;
 import org.apache.tez.runtime.library.shuffle.common.FetchedInput.Type;
 import org.apache.tez.runtime.library.shuffle.common.impl.ShuffleManager;
@@ -54,6 +57,7 @@ public class ShuffledUnorderedKVReader<K, V> implements KeyValueReader {
   private final boolean ifileReadAhead;
   private final int ifileReadAheadLength;
   private final int ifileBufferSize;
+  private final boolean mmapDiskInputs;
   
   private final TezCounter inputRecordCounter;
   
@@ -78,6 +82,9 @@ public class ShuffledUnorderedKVReader<K, V> implements KeyValueReader {
     this.ifileReadAheadLength = ifileReadAheadLength;
     this.ifileBufferSize = ifileBufferSize;
     this.inputRecordCounter = inputRecordCounter;
+    this.mmapDiskInputs = conf.getBoolean(
+        TezJobConfig.TEZ_RUNTIME_SHUFFLE_FETCH_DISK_INPUT_MMAP_ENABLED,
+        TezJobConfig.TEZ_RUNTIME_SHUFFLE_FETCH_DISK_INPUT_MMAP_ENABLED_DEFAULT);
 
     this.keyClass = ConfigUtils.getIntermediateInputKeyClass(conf);
     this.valClass = ConfigUtils.getIntermediateInputValueClass(conf);
@@ -184,12 +191,33 @@ public class ShuffledUnorderedKVReader<K, V> implements KeyValueReader {
 
   public IFile.Reader openIFileReader(FetchedInput fetchedInput)
       throws IOException {
+    return openIFileReader(fetchedInput, codec, ifileReadAhead, ifileReadAheadLength,
+        ifileBufferSize, mmapDiskInputs);
+  }
+
+  static IFile.Reader openIFileReader(FetchedInput fetchedInput, CompressionCodec codec,
+      boolean ifileReadAhead, int ifileReadAheadLength, int ifileBufferSize,
+      boolean mmapDiskInputs) throws IOException {
     if (fetchedInput.getType() == Type.MEMORY) {
       MemoryFetchedInput mfi = (MemoryFetchedInput) fetchedInput;
 
       return new InMemoryReader(null, mfi.getInputAttemptIdentifier(),
           mfi.getBytes(), 0, (int) mfi.getActualSize());
     } else {
+      if (mmapDiskInputs) {
+        InputStream in = null;
+        try {
+          in = ((DiskFetchedInput) fetchedInput).getMappedInputStream();
+        } catch (IOException e) {
+          LOG.warn("Failed to map " + fetchedInput + ", reading it as a stream", e);
+        }
+        if (in != null) {
+          // Mapped data is read straight from the page cache, readahead does
+          // not apply. The IFile checksum is verified over the mapped bytes.
+          return new IFile.Reader(in, fetchedInput.getCompressedSize(), codec, null, null,
+              false, 0, ifileBufferSize);
+        }
+      }
       return new IFile.Reader(fetchedInput.getInputStream(),
           fetchedInput.getCompressedSize(), codec, null, null, ifileReadAhead,
           ifileReadAheadLength, ifileBufferSize);
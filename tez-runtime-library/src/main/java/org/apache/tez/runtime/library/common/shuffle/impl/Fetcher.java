@@ -21,7 +21,9 @@ import java.io.DataInputStream;
 import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
@@ -30,13 +32,17 @@ import javax.crypto.SecretKey;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.tez.common.TezJobConfig;
 import org.apache.tez.common.TezUtils;
 import org.apache.tez.common.counters.TezCounter;
 import org.apache.tez.runtime.api.TezInputContext;
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
 import org.apache.tez.runtime.library.common.shuffle.impl.MapOutput.Type;
 import org.apache.tez.runtime.library.shuffle.common.HttpConnection;
+import org.apache.tez.runtime.library.shuffle.common.LocalDiskInput;
 import org.apache.tez.runtime.library.shuffle.common.ShuffleUtils;
 import org.apache.tez.runtime.library.shuffle.common.HttpConnection.HttpConnectionParams;
 
@@ -69,9 +75,16 @@ class Fetcher extends Thread {
   private final SecretKey jobTokenSecret;
 
   private volatile boolean stopped = false;
+  // Set when the inputs of the current host were all fetched by another fetcher
+  private volatile boolean abandoned = false;
   
   private final boolean ifileReadAhead;
   private final int ifileReadAheadLength;
+
+  private final Configuration conf;
+  private final boolean localDiskFetchEnabled;
+  private final int localDiskBufferSize;
+
   private LinkedHashSet<InputAttemptIdentifier> remaining;
 
   volatile HttpURLConnection connection;
@@ -85,7 +98,7 @@ class Fetcher extends Thread {
       ShuffleClientMetrics metrics,
       Shuffle shuffle, SecretKey jobTokenSecret,
       boolean ifileReadAhead, int ifileReadAheadLength, CompressionCodec codec,
-      TezInputContext inputContext) throws IOException {
+      TezInputContext inputContext, Configuration conf) throws IOException {
     setDaemon(true);
     this.scheduler = scheduler;
     this.merger = merger;
@@ -109,6 +122,12 @@ class Fetcher extends Thread {
     this.ifileReadAhead = ifileReadAhead;
     this.ifileReadAheadLength = ifileReadAheadLength;
     this.httpConnectionParams = httpConnectionParams;
+    this.conf = conf;
+    this.localDiskFetchEnabled = conf.getBoolean(
+        TezJobConfig.TEZ_RUNTIME_SHUFFLE_LOCAL_FETCH_ENABLED,
+        TezJobConfig.TEZ_RUNTIME_SHUFFLE_LOCAL_FETCH_ENABLED_DEFAULT);
+    this.localDiskBufferSize = conf.getInt("io.file.buffer.size",
+        TezJobConfig.TEZ_RUNTIME_IFILE_BUFFER_SIZE_DEFAULT);
     if (codec != null) {
       this.codec = codec;
     } else {
@@ -161,6 +180,16 @@ class Fetcher extends Thread {
     }
   }
 
+  /**
+   * Stops copying from the current host, without reporting failures, once
+   * all of its inputs have been fetched by other fetchers. The fetcher then
+   * moves on to the next host. May be called from any thread.
+   */
+  void abandonCurrentFetch() {
+    abandoned = true;
+    cleanupCurrentConnection(true);
+  }
+
   private Object cleanupLock = new Object();
   private void cleanupCurrentConnection(boolean disconnect) {
     // Synchronizing on cleanupLock to ensure we don't run into a parallel close
@@ -189,6 +218,7 @@ class Fetcher extends Thread {
    */
   @VisibleForTesting
   protected void copyFromHost(MapHost host) throws IOException {
+    abandoned = false;
     // Get completed maps on 'host'
     List<InputAttemptIdentifier> srcAttempts = scheduler.getMapsForHost(host);
     currentPartition = host.getPartitionId();
@@ -206,13 +236,21 @@ class Fetcher extends Thread {
     
     // List of maps to be fetched yet
     remaining = new LinkedHashSet<InputAttemptIdentifier>(srcAttempts);
+
+    if (localDiskFetchEnabled && ShuffleUtils.isLocalHost(host.getHostName())) {
+      // Anything which can't be read locally is fetched over HTTP below.
+      if (!copyLocalMapOutputs(host) || remaining.isEmpty() || stopped) {
+        putBackRemainingMapOutputs(host);
+        return;
+      }
+    }
     
     // Construct the url and connect
     boolean connectSucceeded = false;
     
     try {
-      URL url = ShuffleUtils.constructInputURL(host.getBaseUrl(), srcAttempts,
-        httpConnectionParams.getKeepAlive());
+      URL url = ShuffleUtils.constructInputURL(host.getBaseUrl(),
+        new ArrayList<InputAttemptIdentifier>(remaining), httpConnectionParams.getKeepAlive());
       httpConnection = new HttpConnection(url, httpConnectionParams,
         logIdentifier, jobTokenSecret);
       connectSucceeded = httpConnection.connect();
@@ -226,7 +264,7 @@ class Fetcher extends Thread {
       input = httpConnection.getInputStream();
       httpConnection.validate();
     } catch (IOException ie) {
-      if (stopped) {
+      if (stopped || abandoned) {
         LOG.info("Not reporting fetch failure, since an Exception was caught after shutdown");
         cleanupCurrentConnection(true);
         putBackRemainingMapOutputs(host);
@@ -263,7 +301,7 @@ class Fetcher extends Thread {
       // after putting back the remaining maps to the 
       // yet_to_be_fetched list and marking the failed tasks.
       InputAttemptIdentifier[] failedTasks = null;
-      while (!remaining.isEmpty() && failedTasks == null) {
+      while (!remaining.isEmpty() && failedTasks == null && !abandoned) {
         // fail immediately after first failure because we dont know how much to 
         // skip for this error in the input stream. So we cannot move on to the 
         // remaining outputs. YARN-1773. Will get to them in the next retry.
@@ -280,7 +318,7 @@ class Fetcher extends Thread {
       cleanupCurrentConnection(false);
 
       // Sanity check
-      if (failedTasks == null && !remaining.isEmpty()) {
+      if (failedTasks == null && !remaining.isEmpty() && !abandoned) {
         throw new IOException("server didn't return all expected map outputs: "
             + remaining.size() + " left.");
       }
@@ -306,6 +344,79 @@ class Fetcher extends Thread {
     }
   }
 
+  /**
+   * Reads map outputs produced on this node directly from the local disks,
+   * bypassing the ShuffleHandler. The data is verified against the IFile
+   * checksums exactly as it would be when fetched over HTTP. Outputs which
+   * cannot be read locally are left in remaining.
+   *
+   * @return false if copying should stop for now, e.g. because the merger
+   *         asked to wait
+   */
+  private boolean copyLocalMapOutputs(MapHost host) {
+    for (Iterator<InputAttemptIdentifier> iter = remaining.iterator(); iter.hasNext();) {
+      if (stopped) {
+        return false;
+      }
+      InputAttemptIdentifier srcAttemptId = iter.next();
+      LocalDiskInput localInput = null;
+      MapOutput mapOutput = null;
+      try {
+        long startTime = System.currentTimeMillis();
+        localInput = LocalDiskInput.open(conf, srcAttemptId.getPathComponent(),
+            currentPartition, localDiskBufferSize);
+        long compressedLength = localInput.getCompressedLength();
+        long decompressedLength = localInput.getDecompressedLength();
+
+        try {
+          mapOutput = merger.reserve(srcAttemptId, decompressedLength, id);
+        } catch (IOException e) {
+          // Kill the reduce attempt
+          ioErrs.increment(1);
+          scheduler.reportLocalError(e);
+          return false;
+        }
+
+        if (mapOutput.getType() == Type.WAIT) {
+          LOG.info("fetcher#" + id + " - MergerManager returned Status.WAIT ...");
+          return false;
+        }
+
+        LOG.info("fetcher#" + id + " about to read output of map " +
+            mapOutput.getAttemptIdentifier() + " from local disk, decomp: " +
+            decompressedLength + " len: " + compressedLength + " to " +
+            mapOutput.getType());
+        if (mapOutput.getType() == Type.MEMORY) {
+          ShuffleUtils.shuffleToMemory(mapOutput.getMemory(), localInput.getInputStream(),
+            (int) decompressedLength, (int) compressedLength, codec, ifileReadAhead,
+            ifileReadAheadLength, LOG, mapOutput.getAttemptIdentifier().toString());
+        } else {
+          ShuffleUtils.shuffleToDisk(mapOutput.getDisk(), host.getHostIdentifier(),
+            localInput.getInputStream(), compressedLength, LOG,
+            mapOutput.getAttemptIdentifier().toString());
+        }
+
+        long endTime = System.currentTimeMillis();
+        scheduler.copySucceeded(srcAttemptId, host, compressedLength, decompressedLength,
+                                endTime - startTime, mapOutput);
+        iter.remove();
+        metrics.successFetch();
+      } catch (IOException e) {
+        if (mapOutput != null) {
+          mapOutput.abort();
+        }
+        if (stopped) {
+          return false;
+        }
+        LOG.warn("Failed to read output of " + srcAttemptId + " from local disk, will fetch it from "
+            + host.getHostIdentifier(), e);
+      } finally {
+        IOUtils.cleanup(LOG, localInput);
+      }
+    }
+    return true;
+  }
+
   private static InputAttemptIdentifier[] EMPTY_ATTEMPT_ID_ARRAY = new InputAttemptIdentifier[0];
   
   private InputAttemptIdentifier[] copyMapOutput(MapHost host,
@@ -397,7 +508,7 @@ class Fetcher extends Thread {
       metrics.successFetch();
       return null;
     } catch (IOException ioe) {
-      if (stopped) {
+      if (stopped || abandoned) {
         LOG.info("Not reporting fetch failure for exception during data copy: ["
             + ioe.getClass().getName() + ", " + ioe.getMessage() + "]");
         cleanupCurrentConnection(true);
@@ -0,0 +1,212 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.shuffle.impl;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * Tracks how much of the old generation of the heap is in use after garbage
+ * collections, and notifies a listener when it exceeds a threshold.
+ *
+ * The collection usage threshold of the pool is global to the JVM, so all
+ * monitors share a single registration. The threshold of the pool is set to
+ * the lowest threshold of the open monitors, and restored once the last one
+ * is closed.
+ */
+class HeapPressureMonitor {
+
+  private static final Log LOG = LogFactory.getLog(HeapPressureMonitor.class);
+
+  interface Listener {
+    /**
+     * Called on a JVM thread after a garbage collection which left more than
+     * the threshold in use.
+     */
+    void onHeapPressure();
+  }
+
+  // Guarded by HeapPressureMonitor.class
+  private static MemoryPoolMXBean oldGen;
+  private static long originalThreshold;
+  private static final List<HeapPressureMonitor> monitors =
+      new CopyOnWriteArrayList<HeapPressureMonitor>();
+
+  private static final NotificationListener notificationListener = new NotificationListener() {
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+      if (!MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(
+          notification.getType())) {
+        return;
+      }
+      MemoryNotificationInfo info =
+          MemoryNotificationInfo.from((CompositeData) notification.getUserData());
+      MemoryPoolMXBean pool = oldGen;
+      if (pool == null || !pool.getName().equals(info.getPoolName())) {
+        return;
+      }
+      for (HeapPressureMonitor monitor : monitors) {
+        monitor.usageExceeded(info.getUsage().getUsed());
+      }
+    }
+  };
+
+  private final long threshold;
+  private final Listener listener;
+
+  @VisibleForTesting
+  HeapPressureMonitor(long threshold, Listener listener) {
+    this.threshold = threshold;
+    this.listener = listener;
+  }
+
+  /**
+   * @param thresholdFraction fraction of the maximum size of the old
+   *          generation which is considered pressure
+   * @return the monitor, or null if the JVM doesn't report the usage of the
+   *         old generation after garbage collections
+   */
+  static synchronized HeapPressureMonitor create(float thresholdFraction, Listener listener) {
+    if (oldGen == null) {
+      oldGen = findOldGen();
+      if (oldGen == null) {
+        LOG.warn("Could not find the old generation memory pool, not monitoring the heap");
+        return null;
+      }
+    }
+    long threshold = (long) (oldGen.getUsage().getMax() * thresholdFraction);
+    LOG.info("Monitoring memory pool " + oldGen.getName() + ", threshold=" + threshold);
+    HeapPressureMonitor monitor = new HeapPressureMonitor(threshold, listener);
+    if (monitors.isEmpty()) {
+      originalThreshold = oldGen.getCollectionUsageThreshold();
+      getEmitter().addNotificationListener(notificationListener, null, null);
+    }
+    monitors.add(monitor);
+    updateThreshold();
+    return monitor;
+  }
+
+  private static MemoryPoolMXBean findOldGen() {
+    // The old generation is the largest heap pool which supports usage
+    // thresholds; young generation pools don't.
+    MemoryPoolMXBean largest = null;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP && pool.isUsageThresholdSupported()
+          && pool.isCollectionUsageThresholdSupported() && pool.getUsage().getMax() > 0
+          && (largest == null || pool.getUsage().getMax() > largest.getUsage().getMax())) {
+        largest = pool;
+      }
+    }
+    return largest;
+  }
+
+  private static NotificationEmitter getEmitter() {
+    return (NotificationEmitter) ManagementFactory.getMemoryMXBean();
+  }
+
+  private static void updateThreshold() {
+    long lowest = Long.MAX_VALUE;
+    for (HeapPressureMonitor monitor : monitors) {
+      lowest = Math.min(lowest, monitor.threshold);
+    }
+    oldGen.setCollectionUsageThreshold(lowest);
+  }
+
+  @VisibleForTesting
+  static synchronized int getNumMonitors() {
+    return monitors.size();
+  }
+
+  @VisibleForTesting
+  long getUsedAfterCollection() {
+    MemoryUsage usage = oldGen.getCollectionUsage();
+    return usage == null ? 0 : usage.getUsed();
+  }
+
+  @VisibleForTesting
+  static synchronized MemoryPoolMXBean getOldGen() {
+    return oldGen;
+  }
+
+  @VisibleForTesting
+  long getThreshold() {
+    return threshold;
+  }
+
+  /**
+   * @return true if the last garbage collection left more than the threshold
+   *         in use
+   */
+  boolean isUnderPressure() {
+    return getUsedAfterCollection() >= threshold;
+  }
+
+  /**
+   * @return the memory which was free below the threshold after the last
+   *         garbage collection
+   */
+  long getHeadroom() {
+    return Math.max(0, threshold - getUsedAfterCollection());
+  }
+
+  /**
+   * Called after a garbage collection left more than the lowest threshold of
+   * all monitors in use.
+   */
+  @VisibleForTesting
+  void usageExceeded(long used) {
+    if (used >= threshold) {
+      listener.onHeapPressure();
+    }
+  }
+
+  void close() {
+    synchronized (HeapPressureMonitor.class) {
+      if (!monitors.remove(this)) {
+        return;
+      }
+      if (monitors.isEmpty()) {
+        oldGen.setCollectionUsageThreshold(originalThreshold);
+        try {
+          getEmitter().removeNotificationListener(notificationListener);
+        } catch (ListenerNotFoundException e) {
+          // Already removed
+        }
+      } else {
+        updateThreshold();
+      }
+    }
+  }
+}
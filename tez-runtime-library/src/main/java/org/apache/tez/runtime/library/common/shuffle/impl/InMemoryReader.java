@@ -21,13 +21,16 @@ package org.apache.tez.runtime.library.common.shuffle.impl;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.List;
 
 import org.apache.hadoop.classification.InterfaceAudience;
 import org.apache.hadoop.classification.InterfaceStability;
 import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.RawComparator;
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
 import org.apache.tez.runtime.library.common.sort.impl.IFile;
 import org.apache.tez.runtime.library.common.sort.impl.IFile.Reader;
+import org.apache.tez.runtime.library.common.sort.impl.TezKeyIndex;
 
 /**
  * <code>IFile.InMemoryReader</code> to read map-outputs present in-memory.
@@ -41,6 +44,10 @@ public class InMemoryReader extends Reader {
   private int start;
   private int length;
   private int prevKeyPos;
+  // Array holding the previous key. Keys are referenced in place, unless they
+  // are stored relative to the previous key and need to be put together.
+  private byte[] prevKeyData;
+  private byte[] prefixedKeyBytes = new byte[0];
 
   public InMemoryReader(MergeManager merger, InputAttemptIdentifier taskAttemptId,
                         byte[] data, int start, int length)
@@ -98,22 +105,31 @@ public class InMemoryReader extends Reader {
       int pos = memDataIn.getPosition();
       byte[] data = memDataIn.getData();      
       if(currentKeyLength == IFile.RLE_MARKER) {
-        key.reset(data, prevKeyPos, prevKeyLength);
+        key.reset(prevKeyData, prevKeyPos, prevKeyLength);
         currentKeyLength = prevKeyLength;
         return KeyState.SAME_KEY;
       }      
-      key.reset(data, pos, currentKeyLength);
-      prevKeyPos = pos;
+      int storedKeyLength = currentKeyLength - currentSharedPrefixLength;
+      if (currentSharedPrefixLength > 0) {
+        setupPrefixedKey(data, pos, storedKeyLength);
+        key.reset(prefixedKeyBytes, 0, currentKeyLength);
+        prevKeyData = prefixedKeyBytes;
+        prevKeyPos = 0;
+      } else {
+        key.reset(data, pos, currentKeyLength);
+        prevKeyData = data;
+        prevKeyPos = pos;
+      }
       // Position for the next value
-      long skipped = memDataIn.skip(currentKeyLength);
-      if (skipped != currentKeyLength) {
+      long skipped = memDataIn.skip(storedKeyLength);
+      if (skipped != storedKeyLength) {
         throw new IOException("Rec# " + recNo + 
             ": Failed to skip past key of length: " + 
-            currentKeyLength);
+            storedKeyLength);
       }
 
       // Record the byte
-      bytesRead += currentKeyLength;
+      bytesRead += storedKeyLength;
       return KeyState.NEW_KEY;
     } catch (IOException ioe) {
       dumpOnError();
@@ -121,6 +137,20 @@ public class InMemoryReader extends Reader {
     }
   }
   
+  /**
+   * Puts together the start of the previous key and the suffix stored at pos.
+   */
+  private void setupPrefixedKey(byte[] data, int pos, int suffixLength) {
+    if (prefixedKeyBytes.length < currentKeyLength) {
+      // prevKeyData still refers to the old array if the prefix is in there
+      prefixedKeyBytes = new byte[currentKeyLength << 1];
+    }
+    if (prevKeyData != prefixedKeyBytes) {
+      System.arraycopy(prevKeyData, prevKeyPos, prefixedKeyBytes, 0, currentSharedPrefixLength);
+    }
+    System.arraycopy(data, pos, prefixedKeyBytes, currentSharedPrefixLength, suffixLength);
+  }
+
   public void nextRawValue(DataInputBuffer value) throws IOException {
     try {
       int pos = memDataIn.getPosition();
@@ -144,6 +174,12 @@ public class InMemoryReader extends Reader {
     }
   }
     
+  @Override
+  public boolean seekToKey(DataInputBuffer key, List<TezKeyIndex.Entry> keyIndex,
+      RawComparator comparator) throws IOException {
+    throw new IOException("Seek not supported for in-memory data");
+  }
+
   public void close() {
     // Release
     dataIn = null;
@@ -38,6 +38,8 @@ class MapHost {
   private final int partitionId;
   private final String baseUrl;
   private final String identifier;
+  // Penalties which have not expired yet
+  private int numPenalties = 0;
   // Tracks attempt IDs
   private List<InputAttemptIdentifier> maps = new ArrayList<InputAttemptIdentifier>();
   
@@ -68,6 +70,14 @@ class MapHost {
     return hostIdentifier;
   }
 
+  /**
+   * @return the host name, without the port of the ShuffleHandler
+   */
+  public String getHostName() {
+    int portIndex = hostIdentifier.lastIndexOf(':');
+    return portIndex < 0 ? hostIdentifier : hostIdentifier.substring(0, portIndex);
+  }
+
   public String getBaseUrl() {
     return baseUrl;
   }
@@ -116,9 +126,19 @@ class MapHost {
   }
   
   /**
-   * Mark the host as penalized
+   * Mark the host as penalized, until {@link #penaltyExpired()} has been
+   * called for this penalty and all the earlier ones.
    */
   public synchronized void penalize() {
     state = State.PENALIZED;
+    numPenalties++;
+  }
+
+  /**
+   * Called when one of the penalties of the host expires.
+   * @return true if the host is no longer penalized
+   */
+  public synchronized boolean penaltyExpired() {
+    return --numPenalties == 0;
   }
 }
@@ -21,6 +21,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
@@ -52,6 +53,7 @@ import org.apache.tez.runtime.library.common.Constants;
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
 import org.apache.tez.runtime.library.common.combine.Combiner;
 import org.apache.tez.runtime.library.common.sort.impl.IFile;
+import org.apache.tez.runtime.library.common.sort.impl.SegmentPrefetcher;
 import org.apache.tez.runtime.library.common.sort.impl.TezMerger;
 import org.apache.tez.runtime.library.common.sort.impl.TezRawKeyValueIterator;
 import org.apache.tez.runtime.library.common.sort.impl.IFile.Writer;
@@ -59,6 +61,8 @@ import org.apache.tez.runtime.library.common.sort.impl.TezMerger.Segment;
 import org.apache.tez.runtime.library.common.task.local.output.TezTaskOutputFiles;
 import org.apache.tez.runtime.library.hadoop.compat.NullProgressable;
 
+import com.google.common.annotations.VisibleForTesting;
+
 
 /**
  * Usage. Create instance. setInitialMemoryAvailable(long), configureAndStart()
@@ -84,7 +88,7 @@ public class MergeManager {
     new TreeSet<MapOutput>(new MapOutput.MapOutputComparator());
   private final IntermediateMemoryToMemoryMerger memToMemMerger;
 
-  private final Set<MapOutput> inMemoryMapOutputs = 
+  private final TreeSet<MapOutput> inMemoryMapOutputs = 
     new TreeSet<MapOutput>(new MapOutput.MapOutputComparator());
   private final InMemoryMerger inMemoryMerger;
   
@@ -100,8 +104,14 @@ public class MergeManager {
   
   private final int memToMemMergeOutputsThreshold; 
   private final long mergeThreshold;
+
+  // Null unless the memory use adapts to the heap usage
+  private final HeapPressureMonitor heapPressureMonitor;
+  // Memory which can be used in addition to memoryLimit while the heap is idle
+  private final long maxExtraMemory;
   
   private final long initialMemoryAvailable;
+  private final SegmentPrefetcher segmentPrefetcher;
 
   private final ExceptionReporter exceptionReporter;
   
@@ -147,7 +157,30 @@ public class MergeManager {
     this.conf = conf;
     this.localDirAllocator = localDirAllocator;
     this.exceptionReporter = exceptionReporter;
-    this.initialMemoryAvailable = initialMemoryAvailable;
+    // Memory to read ahead in the final merge is requested in addition to the
+    // shuffle memory. If less than requested was assigned, it is cut down
+    // proportionally.
+    long prefetchMemory = conf.getLong(
+        TezJobConfig.TEZ_RUNTIME_SHUFFLE_MERGE_PREFETCH_MEMORY,
+        TezJobConfig.TEZ_RUNTIME_SHUFFLE_MERGE_PREFETCH_MEMORY_DEFAULT);
+    if (prefetchMemory > 0) {
+      long memoryRequested = getInitialMemoryRequirement(conf,
+          inputContext.getTotalMemoryAvailableToTask());
+      if (initialMemoryAvailable < memoryRequested) {
+        prefetchMemory = (long) ((double) prefetchMemory * initialMemoryAvailable / memoryRequested);
+      }
+      this.segmentPrefetcher = new SegmentPrefetcher(
+          conf.getInt(TezJobConfig.TEZ_RUNTIME_SHUFFLE_MERGE_PREFETCH_THREADS,
+              TezJobConfig.TEZ_RUNTIME_SHUFFLE_MERGE_PREFETCH_THREADS_DEFAULT),
+          conf.getInt(TezJobConfig.TEZ_RUNTIME_SHUFFLE_MERGE_PREFETCH_BUFFER_SIZE,
+              TezJobConfig.TEZ_RUNTIME_SHUFFLE_MERGE_PREFETCH_BUFFER_SIZE_DEFAULT),
+          prefetchMemory, "MergePrefetcher ["
+              + TezUtils.cleanVertexName(inputContext.getSourceVertexName()) + "]");
+      this.initialMemoryAvailable = initialMemoryAvailable - prefetchMemory;
+    } else {
+      this.segmentPrefetcher = null;
+      this.initialMemoryAvailable = initialMemoryAvailable;
+    }
     
     this.combiner = combiner;
 
@@ -270,6 +303,38 @@ public class MergeManager {
       this.inMemoryMerger = new InMemoryMerger(this);
       
       this.onDiskMerger = new OnDiskMerger(this);
+
+    if (conf.getBoolean(TezJobConfig.TEZ_RUNTIME_SHUFFLE_MEMORY_ADAPTIVE,
+        TezJobConfig.TEZ_RUNTIME_SHUFFLE_MEMORY_ADAPTIVE_DEFAULT)) {
+      final float maxExtraPercent = conf.getFloat(
+          TezJobConfig.TEZ_RUNTIME_SHUFFLE_MEMORY_ADAPTIVE_MAX_EXTRA_PERCENT,
+          TezJobConfig.TEZ_RUNTIME_SHUFFLE_MEMORY_ADAPTIVE_MAX_EXTRA_PERCENT_DEFAULT);
+      if (maxExtraPercent < 0.0f) {
+        throw new IllegalArgumentException("Invalid value for "
+            + TezJobConfig.TEZ_RUNTIME_SHUFFLE_MEMORY_ADAPTIVE_MAX_EXTRA_PERCENT + ": "
+            + maxExtraPercent);
+      }
+      this.maxExtraMemory = (long) (memoryLimit * maxExtraPercent);
+      this.heapPressureMonitor = createHeapPressureMonitor(
+          conf.getFloat(TezJobConfig.TEZ_RUNTIME_SHUFFLE_MEMORY_ADAPTIVE_HEAP_THRESHOLD,
+              TezJobConfig.TEZ_RUNTIME_SHUFFLE_MEMORY_ADAPTIVE_HEAP_THRESHOLD_DEFAULT),
+          new HeapPressureMonitor.Listener() {
+            @Override
+            public void onHeapPressure() {
+              spillLargestInMemoryOutputs();
+            }
+          });
+      LOG.info("Adapting shuffle memory to heap usage, maxExtraMemory=" + maxExtraMemory);
+    } else {
+      this.maxExtraMemory = 0;
+      this.heapPressureMonitor = null;
+    }
+  }
+
+  @VisibleForTesting
+  HeapPressureMonitor createHeapPressureMonitor(float thresholdFraction,
+      HeapPressureMonitor.Listener listener) {
+    return HeapPressureMonitor.create(thresholdFraction, listener);
   }
 
   @Private
@@ -313,6 +378,14 @@ public class MergeManager {
       LOG.info("Initial Memory required for final merged output: " + maxRedBuffer + ", using factor: " + maxRedPer);
 
       long reqMem = Math.max(maxRedBuffer, memLimit);
+
+      long prefetchMemory = conf.getLong(
+          TezJobConfig.TEZ_RUNTIME_SHUFFLE_MERGE_PREFETCH_MEMORY,
+          TezJobConfig.TEZ_RUNTIME_SHUFFLE_MERGE_PREFETCH_MEMORY_DEFAULT);
+      if (prefetchMemory > 0) {
+        LOG.info("Initial Memory required for merge prefetching: " + prefetchMemory);
+        reqMem += prefetchMemory;
+      }
       return reqMem;
   }
 
@@ -324,6 +397,17 @@ public class MergeManager {
     return (requestedSize < maxSingleShuffleLimit); 
   }
 
+  /**
+   * @return memory which can be used in addition to memoryLimit, half of what
+   *         is free in the heap up to maxExtraMemory
+   */
+  private long getExtraMemory() {
+    if (heapPressureMonitor == null) {
+      return 0;
+    }
+    return Math.min(maxExtraMemory, heapPressureMonitor.getHeadroom() / 2);
+  }
+
   final private MapOutput stallShuffle = new MapOutput(null);
 
   public synchronized MapOutput reserve(InputAttemptIdentifier srcAttemptIdentifier, 
@@ -338,6 +422,14 @@ public class MergeManager {
                                 localDirAllocator, fetcher, true,
                                 mapOutputFile);
     }
+
+    if (heapPressureMonitor != null && heapPressureMonitor.isUnderPressure()) {
+      LOG.info(srcAttemptIdentifier + ": Shuffling to disk since the heap is under pressure."
+          + " UsedMemory is (" + usedMemory + ")");
+      return new MapOutput(srcAttemptIdentifier, this, requestedSize, conf,
+                                localDirAllocator, fetcher, true,
+                                mapOutputFile);
+    }
     
     // Stall shuffle if we are above the memory limit
 
@@ -354,16 +446,17 @@ public class MergeManager {
     // fetching, this will automatically trigger a merge thereby unlocking
     // all the stalled threads
     
-    if (usedMemory > memoryLimit) {
+    final long currentMemoryLimit = memoryLimit + getExtraMemory();
+    if (usedMemory > currentMemoryLimit) {
       LOG.debug(srcAttemptIdentifier + ": Stalling shuffle since usedMemory (" + usedMemory
-          + ") is greater than memoryLimit (" + memoryLimit + ")." + 
+          + ") is greater than memoryLimit (" + currentMemoryLimit + ")." + 
           " CommitMemory is (" + commitMemory + ")"); 
       return stallShuffle;
     }
     
     // Allow the in-memory shuffle to progress
     LOG.debug(srcAttemptIdentifier + ": Proceeding with shuffle since usedMemory ("
-        + usedMemory + ") is lesser than memoryLimit (" + memoryLimit + ")."
+        + usedMemory + ") is lesser than memoryLimit (" + currentMemoryLimit + ")."
         + "CommitMemory is (" + commitMemory + ")"); 
     return unconditionalReserve(srcAttemptIdentifier, requestedSize, true);
   }
@@ -395,9 +488,10 @@ public class MergeManager {
       // Can hang if mergeThreshold is really low.
       // TODO Can avoid spilling in case total input size is between
       // mergeTghreshold and total available size.
-      if (!inMemoryMerger.isInProgress() && commitMemory >= mergeThreshold) {
+      final long currentMergeThreshold = mergeThreshold + getExtraMemory();
+      if (!inMemoryMerger.isInProgress() && commitMemory >= currentMergeThreshold) {
         LOG.info("Starting inMemoryMerger's merge since commitMemory=" +
-            commitMemory + " > mergeThreshold=" + mergeThreshold + 
+            commitMemory + " > mergeThreshold=" + currentMergeThreshold + 
             ". Current usedMemory=" + usedMemory);
         inMemoryMapOutputs.addAll(inMemoryMergedMapOutputs);
         inMemoryMergedMapOutputs.clear();
@@ -417,6 +511,36 @@ public class MergeManager {
   }
   
   
+  /**
+   * Merges the largest in-memory map-outputs to disk, until about half of the
+   * committed memory is freed up.
+   */
+  private synchronized void spillLargestInMemoryOutputs() {
+    synchronized (inMemoryMerger) {
+      if (inMemoryMerger.isInProgress()) {
+        return;
+      }
+      inMemoryMapOutputs.addAll(inMemoryMergedMapOutputs);
+      inMemoryMergedMapOutputs.clear();
+      Set<MapOutput> toSpill = new TreeSet<MapOutput>(new MapOutput.MapOutputComparator());
+      long toSpillSize = 0;
+      Iterator<MapOutput> largestFirst = inMemoryMapOutputs.descendingIterator();
+      while (largestFirst.hasNext() && toSpillSize < commitMemory / 2) {
+        MapOutput mapOutput = largestFirst.next();
+        largestFirst.remove();
+        toSpill.add(mapOutput);
+        toSpillSize += mapOutput.getSize();
+      }
+      if (toSpill.isEmpty()) {
+        return;
+      }
+      LOG.info("Heap under pressure, spilling " + toSpill.size() + " map-outputs of size "
+          + toSpillSize + ". Current commitMemory=" + commitMemory + ", usedMemory="
+          + usedMemory);
+      inMemoryMerger.startMerge(toSpill);
+    }
+  }
+
   public synchronized void closeInMemoryMergedFile(MapOutput mapOutput) {
     inMemoryMergedMapOutputs.add(mapOutput);
     LOG.info("closeInMemoryMergedFile -> size: " + mapOutput.getSize() + 
@@ -448,6 +572,9 @@ public class MergeManager {
   }
   
   public TezRawKeyValueIterator close() throws Throwable {
+    if (heapPressureMonitor != null) {
+      heapPressureMonitor.close();
+    }
     // Wait for on-going merges to complete
     if (memToMemMerger != null) { 
       memToMemMerger.close();
@@ -891,7 +1018,8 @@ public class MergeManager {
       TezRawKeyValueIterator diskMerge = TezMerger.merge(
           job, fs, keyClass, valueClass, codec, diskSegments,
           ioSortFactor, numInMemSegments, tmpDir, comparator,
-          nullProgressable, false, spilledRecordsCounter, null, additionalBytesRead, null);
+          nullProgressable, false, spilledRecordsCounter, null, additionalBytesRead, null,
+          segmentPrefetcher);
       diskSegments.clear();
       if (0 == finalSegments.size()) {
         return diskMerge;
@@ -312,7 +312,7 @@ public class Shuffle implements ExceptionReporter {
         for (int i = 0; i < numFetchers; ++i) {
           Fetcher fetcher = new Fetcher(httpConnectionParams, scheduler, merger,
             metrics, Shuffle.this, jobTokenSecret, ifileReadAhead, ifileReadAheadLength,
-            codec, inputContext);
+            codec, inputContext, conf);
           fetchers.add(fetcher);
           fetcher.start();
         }
@@ -48,7 +48,9 @@ import org.apache.tez.runtime.api.events.InputReadErrorEvent;
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
 import org.apache.tez.runtime.library.common.TezRuntimeUtils;
 import org.apache.tez.runtime.library.common.shuffle.impl.MapOutput.Type;
+import org.apache.tez.runtime.library.shuffle.common.SlowFetchDetector;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Lists;
 
 class ShuffleScheduler {
@@ -57,10 +59,18 @@ class ShuffleScheduler {
       return 0L;
     }
   };
+  // Bytes copied by the current fetch of a fetcher thread
+  static ThreadLocal<Long> shuffleBytes = new ThreadLocal<Long>() {
+    protected Long initialValue() {
+      return 0L;
+    }
+  };
 
   private static final Log LOG = LogFactory.getLog(ShuffleScheduler.class);
   private static final long INITIAL_PENALTY = 2000l; // 2 seconds
   private static final float PENALTY_GROWTH_RATE = 1.3f;
+  // Weight of a new sample in the moving averages of host throughput and latency
+  private static final double EWMA_ALPHA = 0.3;
   
   // TODO NEWTEZ May need to be a string if attempting to fetch from multiple inputs.
   private boolean[] finishedMaps;
@@ -70,6 +80,16 @@ class ShuffleScheduler {
   //TODO NEWTEZ Clean this and other maps at some point
   private ConcurrentMap<String, InputAttemptIdentifier> pathToIdentifierMap = new ConcurrentHashMap<String, InputAttemptIdentifier>(); 
   private Set<MapHost> pendingHosts = new HashSet<MapHost>();
+  private final Map<String, HostStats> hostStats = new HashMap<String, HostStats>();
+  // null if slow fetches are not duplicated
+  private final SlowFetchDetector<Fetcher> slowFetchDetector;
+  private final Map<Fetcher, RunningFetch> runningFetches = new HashMap<Fetcher, RunningFetch>();
+  // Where each input can be fetched from, by input index. More than one
+  // location if there are several attempts of the source task.
+  private final Map<Integer, List<InputLocation>> inputLocations =
+      new HashMap<Integer, List<InputLocation>>();
+  // Set once a slow fetch has been duplicated
+  private boolean fetchesDuplicated = false;
   private Set<InputAttemptIdentifier> obsoleteInputs = new HashSet<InputAttemptIdentifier>();
   
   private final Random random = new Random(System.currentTimeMillis());
@@ -93,6 +113,11 @@ class ShuffleScheduler {
   private long lastProgressTime;
 
   private int maxTaskOutputAtOnce;
+  private final int maxFetchesPerHost;
+  // Number of fetchers waiting for a host
+  private int idleFetchers = 0;
+  // Moving average of the compressed size of an input
+  private double avgInputBytes = -1;
   private int maxFetchFailuresBeforeReporting;
   private boolean reportReadErrorImmediately = true; 
   private int maxFailedUniqueFetches = 5;
@@ -142,6 +167,11 @@ class ShuffleScheduler {
     this.maxTaskOutputAtOnce = Math.max(1, conf.getInt(
             TezJobConfig.TEZ_RUNTIME_SHUFFLE_FETCH_MAX_TASK_OUTPUT_AT_ONCE,
             TezJobConfig.TEZ_RUNTIME_SHUFFLE_FETCH_MAX_TASK_OUTPUT_AT_ONCE_DEFAULT));
+    this.maxFetchesPerHost = Math.max(1, conf.getInt(
+            TezJobConfig.TEZ_RUNTIME_SHUFFLE_FETCH_MAX_CONCURRENT_PER_HOST,
+            TezJobConfig.TEZ_RUNTIME_SHUFFLE_FETCH_MAX_CONCURRENT_PER_HOST_DEFAULT));
+    
+    this.slowFetchDetector = SlowFetchDetector.create(conf);
     
     this.skippedInputCounter = inputContext.getCounters().findCounter(TaskCounter.NUM_SKIPPED_INPUTS);
     
@@ -151,6 +181,8 @@ class ShuffleScheduler {
         + ", reportReadErrorImmediately=" + reportReadErrorImmediately
         + ", maxFailedUniqueFetches=" + maxFailedUniqueFetches
         + ", abortFailureLimit=" + abortFailureLimit
+        + ", maxFetchesPerHost=" + maxFetchesPerHost
+        + ", speculativeFetchEnabled=" + (slowFetchDetector != null)
         + ", maxMapRuntime=" + maxMapRuntime);
   }
 
@@ -164,6 +196,13 @@ class ShuffleScheduler {
     failureCounts.remove(srcAttemptIdentifier);
     if (host != null) {
       hostFailures.remove(host.getHostIdentifier());
+      if (output != null) {
+        updateFetchStats(host, bytesCompressed, milis);
+        shuffleBytes.set(shuffleBytes.get() + bytesCompressed);
+        if (slowFetchDetector != null && Thread.currentThread() instanceof Fetcher) {
+          slowFetchDetector.bytesFetched((Fetcher) Thread.currentThread(), bytesCompressed);
+        }
+      }
     }
     
     if (!isInputFinished(srcAttemptIdentifier.getInputIdentifier().getInputIndex())) {
@@ -181,6 +220,9 @@ class ShuffleScheduler {
         skippedInputCounter.increment(1);
       }
       setInputFinished(srcAttemptIdentifier.getInputIdentifier().getInputIndex());
+      if (fetchesDuplicated) {
+        abandonFinishedFetches();
+      }
       
       if (--remainingMaps == 0) {
         LOG.info("All inputs fetched for input vertex : " + inputContext.getSourceVertexName());
@@ -222,6 +264,12 @@ class ShuffleScheduler {
         + mbpsFormat.format(transferRate) + " MB/s)");
   }
 
+  /**
+   * Penalizes the host. Other fetchers copying from it at the same time carry
+   * on with their fetches, but no new fetch starts from the host until all
+   * its penalties have expired, including the ones added by concurrent
+   * failures.
+   */
   public synchronized void copyFailed(InputAttemptIdentifier srcAttempt,
                                       MapHost host,
                                       boolean readError,
@@ -366,6 +414,15 @@ class ShuffleScheduler {
       mapLocations.put(identifier, host);
     }
     host.addKnownMap(srcAttempt);
+    if (slowFetchDetector != null) {
+      Integer inputIndex = srcAttempt.getInputIdentifier().getInputIndex();
+      List<InputLocation> locations = inputLocations.get(inputIndex);
+      if (locations == null) {
+        locations = new ArrayList<InputLocation>(1);
+        inputLocations.put(inputIndex, locations);
+      }
+      locations.add(new InputLocation(host, srcAttempt));
+    }
     pathToIdentifierMap.put(
         getIdentifierFromPathAndReduceId(srcAttempt.getPathComponent(), partitionId), srcAttempt);
 
@@ -388,26 +445,197 @@ class ShuffleScheduler {
   }
 
   public synchronized MapHost getHost() throws InterruptedException {
-      while(pendingHosts.isEmpty()) {
-        wait();
-      }
-      
-      MapHost host = null;
-      Iterator<MapHost> iter = pendingHosts.iterator();
-      int numToPick = random.nextInt(pendingHosts.size());
-      for (int i=0; i <= numToPick; ++i) {
-        host = iter.next();
+      MapHost host;
+      while ((host = pickHost()) == null) {
+        if (slowFetchDetector != null && duplicateSlowFetches()) {
+          continue;
+        }
+        idleFetchers++;
+        try {
+          if (slowFetchDetector != null) {
+            // Wake up to look for slow fetches
+            wait(slowFetchDetector.getCheckInterval());
+          } else {
+            wait();
+          }
+        } finally {
+          idleFetchers--;
+        }
       }
       
       pendingHosts.remove(host);     
       host.markBusy();
+      getHostStats(host).activeFetches++;
+      if (slowFetchDetector != null && Thread.currentThread() instanceof Fetcher) {
+        slowFetchDetector.fetchStarted((Fetcher) Thread.currentThread(), false);
+      }
       
       LOG.info("Assigning " + host + " with " + host.getNumKnownMapOutputs() + 
                " to " + Thread.currentThread().getName());
       shuffleStart.set(System.currentTimeMillis());
+      shuffleBytes.set(0L);
       
       return host;
   }
+
+  /**
+   * Picks one of the pending hosts at random, weighted by the rate at which
+   * its inputs are expected to be fetched, skipping ShuffleHandlers which
+   * already serve the maximum number of fetchers. Hosts which have not been
+   * fetched from yet are weighted like the fastest known host, so that they
+   * get measured early.
+   * 
+   * @return the host, or null if none can be fetched from now
+   */
+  @VisibleForTesting
+  synchronized MapHost pickHost() {
+    List<MapHost> candidates = new ArrayList<MapHost>(pendingHosts.size());
+    List<Double> weights = new ArrayList<Double>(pendingHosts.size());
+    double maxWeight = 0;
+    for (Iterator<MapHost> iter = pendingHosts.iterator(); iter.hasNext();) {
+      MapHost host = iter.next();
+      if (host.getState() == MapHost.State.PENALIZED) {
+        // Added back by the referee once the penalty expires
+        iter.remove();
+        continue;
+      }
+      HostStats stats = getHostStats(host);
+      if (stats.activeFetches >= maxFetchesPerHost) {
+        continue;
+      }
+      double weight = stats.getInputsPerMs(host.getNumKnownMapOutputs(), avgInputBytes);
+      maxWeight = Math.max(maxWeight, weight);
+      candidates.add(host);
+      weights.add(weight);
+    }
+    if (candidates.isEmpty()) {
+      return null;
+    }
+
+    double total = 0;
+    for (int i = 0; i < weights.size(); i++) {
+      if (weights.get(i) < 0) {
+        weights.set(i, maxWeight > 0 ? maxWeight : 1);
+      }
+      total += weights.get(i);
+    }
+    double pick = random.nextDouble() * total;
+    for (int i = 0; i < candidates.size(); i++) {
+      pick -= weights.get(i);
+      if (pick < 0) {
+        return candidates.get(i);
+      }
+    }
+    return candidates.get(candidates.size() - 1);
+  }
+
+  /**
+   * Duplicates the fetches which are much slower than the others. Inputs
+   * which have an attempt on another host are fetched from there, the rest
+   * over a new connection to the same host, by the fetchers which are idle.
+   * 
+   * @return true if any inputs were made pending again
+   */
+  private boolean duplicateSlowFetches() {
+    boolean duplicated = false;
+    for (Fetcher slowFetcher : slowFetchDetector.getSlowFetches()) {
+      RunningFetch fetch = runningFetches.get(slowFetcher);
+      if (fetch == null) {
+        continue;
+      }
+      int numUnfinished = 0;
+      int numReplicas = 0;
+      for (InputAttemptIdentifier input : fetch.inputs) {
+        if (isInputFinished(input.getInputIdentifier().getInputIndex())) {
+          continue;
+        }
+        numUnfinished++;
+        InputLocation replica = findReplica(input, fetch.host);
+        if (replica != null) {
+          numReplicas++;
+          addDuplicateInput(replica.host, replica.attempt);
+        } else {
+          addDuplicateInput(fetch.host, input);
+        }
+      }
+      if (numUnfinished > 0) {
+        LOG.info("Duplicating slow fetch of " + numUnfinished + " inputs from " + fetch.host
+            + " by " + slowFetcher.getName() + ", " + numReplicas + " from other hosts");
+        fetchesDuplicated = true;
+        duplicated = true;
+      }
+    }
+    return duplicated;
+  }
+
+  private InputLocation findReplica(InputAttemptIdentifier input, MapHost host) {
+    List<InputLocation> locations = inputLocations.get(input.getInputIdentifier().getInputIndex());
+    if (locations != null) {
+      for (InputLocation location : locations) {
+        if (!location.attempt.equals(input) && !obsoleteInputs.contains(location.attempt)
+            && !location.host.getHostIdentifier().equals(host.getHostIdentifier())) {
+          return location;
+        }
+      }
+    }
+    return null;
+  }
+
+  private void addDuplicateInput(MapHost host, InputAttemptIdentifier input) {
+    host.addKnownMap(input);
+    // Busy hosts may be fetched from again, up to the limit per host.
+    // Penalized ones become pending once the penalty expires.
+    if (host.getState() != MapHost.State.PENALIZED) {
+      pendingHosts.add(host);
+    }
+  }
+
+  /**
+   * Makes fetchers stop copying from hosts whose inputs have all been
+   * fetched by other fetchers, e.g. the original fetch or the duplicate of a
+   * slow fetch.
+   */
+  private void abandonFinishedFetches() {
+    for (Map.Entry<Fetcher, RunningFetch> entry : runningFetches.entrySet()) {
+      if (entry.getKey() == Thread.currentThread() || entry.getValue().abandoned) {
+        continue;
+      }
+      boolean finished = true;
+      for (InputAttemptIdentifier input : entry.getValue().inputs) {
+        if (!isInputFinished(input.getInputIdentifier().getInputIndex())) {
+          finished = false;
+          break;
+        }
+      }
+      if (finished) {
+        LOG.info("Abandoning fetch from " + entry.getValue().host + " by "
+            + entry.getKey().getName() + " since all its inputs were fetched by other fetchers");
+        entry.getValue().abandoned = true;
+        entry.getKey().abandonCurrentFetch();
+      }
+    }
+  }
+
+  @VisibleForTesting
+  synchronized void updateFetchStats(MapHost host, long bytesCompressed, long millis) {
+    getHostStats(host).updateThroughput(bytesCompressed, millis);
+    avgInputBytes = avgInputBytes < 0 ? bytesCompressed : ewma(avgInputBytes, bytesCompressed);
+  }
+
+  @VisibleForTesting
+  synchronized HostStats getHostStats(MapHost host) {
+    HostStats stats = hostStats.get(host.getHostIdentifier());
+    if (stats == null) {
+      stats = new HostStats();
+      hostStats.put(host.getHostIdentifier(), stats);
+    }
+    return stats;
+  }
+
+  @VisibleForTesting
+  static double ewma(double average, double sample) {
+    return average + EWMA_ALPHA * (sample - average);
+  }
   
   public InputAttemptIdentifier getIdentifierForFetchedOutput(
       String path, int reduceId) {
@@ -450,12 +678,20 @@ class ShuffleScheduler {
     List<InputAttemptIdentifier> result = new ArrayList<InputAttemptIdentifier>();
     int includedMaps = 0;
     int totalSize = dedupedList.size();
+    int limit = maxTaskOutputAtOnce;
+    // If other fetchers are idle, leave them a share of the inputs of this
+    // host, so that they don't wait for a single fetcher to copy all of them
+    int helpers = Math.min(idleFetchers, maxFetchesPerHost - getHostStats(host).activeFetches);
+    boolean split = helpers > 0 && totalSize > 1;
+    if (split) {
+      limit = Math.min(limit, (totalSize + helpers) / (helpers + 1));
+    }
     Iterator<Map.Entry<Integer, InputAttemptIdentifier>> dedupedItr = dedupedList.entrySet().iterator();
     // find the maps that we still need, up to the limit
     while (dedupedItr.hasNext()) {
       InputAttemptIdentifier id = dedupedItr.next().getValue();
       result.add(id);
-      if (++includedMaps >= maxTaskOutputAtOnce) {
+      if (++includedMaps >= limit) {
         break;
       }
     }
@@ -465,20 +701,38 @@ class ShuffleScheduler {
       InputAttemptIdentifier id = dedupedItr.next().getValue();
       host.addKnownMap(id);
     }
+    if (split && includedMaps < totalSize) {
+      pendingHosts.add(host);
+      notifyAll();
+    }
     LOG.info("assigned " + includedMaps + " of " + totalSize + " to " +
              host + " to " + Thread.currentThread().getName());
+    if (slowFetchDetector != null && Thread.currentThread() instanceof Fetcher) {
+      runningFetches.put((Fetcher) Thread.currentThread(), new RunningFetch(host, result));
+    }
     return result;
   }
 
   public synchronized void freeHost(MapHost host) {
+    long fetchTime = System.currentTimeMillis() - shuffleStart.get();
+    HostStats stats = getHostStats(host);
+    stats.activeFetches--;
+    stats.updateLatency(fetchTime, shuffleBytes.get());
+    if (slowFetchDetector != null && Thread.currentThread() instanceof Fetcher) {
+      slowFetchDetector.fetchFinished((Fetcher) Thread.currentThread());
+      runningFetches.remove(Thread.currentThread());
+    }
+    // Other fetchers may still be copying from the host, up to the limit per
+    // ShuffleHandler, which is all that restricts fetching from it again
     if (host.getState() != MapHost.State.PENALIZED) {
       if (host.markAvailable() == MapHost.State.PENDING) {
         pendingHosts.add(host);
-        notifyAll();
       }
     }
+    // A slot for another fetcher on this ShuffleHandler may have been freed
+    notifyAll();
     LOG.info(host + " freed by " + Thread.currentThread().getName() + " in " + 
-             (System.currentTimeMillis()-shuffleStart.get()) + "ms");
+             fetchTime + "ms");
   }
 
   public synchronized void resetKnownMaps() {
@@ -486,6 +740,7 @@ class ShuffleScheduler {
     obsoleteInputs.clear();
     pendingHosts.clear();
     pathToIdentifierMap.clear();
+    inputLocations.clear();
   }
 
   /**
@@ -511,6 +766,74 @@ class ShuffleScheduler {
     return true;
   }
   
+  /**
+   * The inputs a fetcher is copying from a host.
+   */
+  private static class RunningFetch {
+    final MapHost host;
+    final List<InputAttemptIdentifier> inputs;
+    boolean abandoned = false;
+
+    RunningFetch(MapHost host, List<InputAttemptIdentifier> inputs) {
+      this.host = host;
+      this.inputs = inputs;
+    }
+  }
+
+  /**
+   * An attempt of an input, and the host it can be fetched from.
+   */
+  private static class InputLocation {
+    final MapHost host;
+    final InputAttemptIdentifier attempt;
+
+    InputLocation(MapHost host, InputAttemptIdentifier attempt) {
+      this.host = host;
+      this.attempt = attempt;
+    }
+  }
+
+  /**
+   * Measurements of the fetches from a ShuffleHandler, shared by the
+   * {@link MapHost}s of all its partitions.
+   */
+  @VisibleForTesting
+  static class HostStats {
+    // Number of fetchers copying from the ShuffleHandler, for any partition
+    int activeFetches = 0;
+    // Moving average of the transfer rate, in bytes/ms. -1 if not measured.
+    double bytesPerMs = -1;
+    // Moving average of the time of a fetch not spent transferring data,
+    // e.g. connecting and waiting for the ShuffleHandler. -1 if not measured.
+    double latencyMs = -1;
+
+    void updateThroughput(long bytes, long millis) {
+      double sample = (double) bytes / Math.max(1, millis);
+      bytesPerMs = bytesPerMs < 0 ? sample : ewma(bytesPerMs, sample);
+    }
+
+    void updateLatency(long fetchMillis, long bytes) {
+      if (bytes <= 0 || bytesPerMs <= 0) {
+        // Nothing was copied, e.g. the fetch failed
+        return;
+      }
+      double sample = Math.max(0, fetchMillis - bytes / bytesPerMs);
+      latencyMs = latencyMs < 0 ? sample : ewma(latencyMs, sample);
+    }
+
+    /**
+     * @return the expected number of inputs fetched per ms when fetching the
+     *         given inputs, or -1 if the host has not been measured yet
+     */
+    double getInputsPerMs(int numInputs, double avgInputBytes) {
+      if (bytesPerMs <= 0 || latencyMs < 0 || avgInputBytes < 0) {
+        return -1;
+      }
+      int inputs = Math.max(1, numInputs);
+      return inputs / (latencyMs + inputs * avgInputBytes / bytesPerMs + 1);
+    }
+  }
+
   /**
    * A structure that records the penalty for a host.
    */
@@ -555,7 +878,7 @@ class ShuffleScheduler {
           // take the first host that has an expired penalty
           MapHost host = penalties.take().host;
           synchronized (ShuffleScheduler.this) {
-            if (host.markAvailable() == MapHost.State.PENDING) {
+            if (host.penaltyExpired() && host.markAvailable() == MapHost.State.PENDING) {
               pendingHosts.add(host);
               ShuffleScheduler.this.notifyAll();
             }
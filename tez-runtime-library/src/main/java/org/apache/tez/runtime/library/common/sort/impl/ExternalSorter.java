@@ -89,9 +89,15 @@ public abstract class ExternalSorter {
 
   protected final IndexedSorter sorter;
 
+  // Normalized key prefixes compared ahead of the comparator, null if disabled
+  protected final KeyPrefixExtractor keyPrefixExtractor;
+
   // Compression for map-outputs
   protected final CompressionCodec codec;
 
+  // Whether a key index is written next to the output index
+  protected final boolean writeKeyIndex;
+
   // Counters
   // MR compatilbity layer needs to rename counters back to what MR requries.
 
@@ -128,7 +134,10 @@ public abstract class ExternalSorter {
     rfs = ((LocalFileSystem)FileSystem.getLocal(this.conf)).getRaw();
 
     int assignedMb = (int) (initialMemoryAvailable >> 20);
-    if (assignedMb <= 0) {
+    if (isSortBufferOffHeap(this.conf)) {
+      // Not taken from the heap memory assigned to the output
+      this.availableMemoryMb = getSortBufferSizeMb(this.conf);
+    } else if (assignedMb <= 0) {
       if (initialMemoryAvailable > 0) { // Rounded down to 0MB - may be > 0 && < 1MB
         this.availableMemoryMb = 1;
         LOG.warn("initialAvailableMemory: " + initialMemoryAvailable
@@ -154,6 +163,19 @@ public abstract class ExternalSorter {
     keySerializer = serializationFactory.getSerializer(keyClass);
     valSerializer = serializationFactory.getSerializer(valClass);
 
+    if (this.conf.getBoolean(TezJobConfig.TEZ_RUNTIME_SORT_KEY_PREFIX_ENABLED,
+        TezJobConfig.TEZ_RUNTIME_SORT_KEY_PREFIX_ENABLED_DEFAULT)) {
+      keyPrefixExtractor = KeyPrefixExtractors.get(keyClass, comparator);
+      if (keyPrefixExtractor == null) {
+        LOG.info("Key prefix sorting not available for key: " + keyClass.getName()
+            + ", comparator: " + comparator.getClass().getName());
+      } else {
+        LOG.info("Using key prefix extractor: " + keyPrefixExtractor.getClass().getName());
+      }
+    } else {
+      keyPrefixExtractor = null;
+    }
+
     //    counters    
     mapOutputByteCounter = outputContext.getCounters().findCounter(TaskCounter.OUTPUT_BYTES);
     mapOutputRecordCounter = outputContext.getCounters().findCounter(TaskCounter.OUTPUT_RECORDS);
@@ -173,6 +195,16 @@ public abstract class ExternalSorter {
       codec = null;
     }
 
+    if (this.conf.getInt(TezJobConfig.TEZ_RUNTIME_IFILE_KEY_INDEX_INTERVAL_BYTES,
+        TezJobConfig.TEZ_RUNTIME_IFILE_KEY_INDEX_INTERVAL_BYTES_DEFAULT) > 0) {
+      writeKeyIndex = codec == null;
+      if (!writeKeyIndex) {
+        LOG.info("Not writing a key index for compressed output");
+      }
+    } else {
+      writeKeyIndex = false;
+    }
+
     this.ifileReadAhead = this.conf.getBoolean(
         TezJobConfig.TEZ_RUNTIME_IFILE_READAHEAD,
         TezJobConfig.TEZ_RUNTIME_IFILE_READAHEAD_DEFAULT);
@@ -251,13 +283,37 @@ public abstract class ExternalSorter {
   }
 
   public static long getInitialMemoryRequirement(Configuration conf, long maxAvailableTaskMemory) {
-    int initialMemRequestMb = 
-        conf.getInt(
-            TezJobConfig.TEZ_RUNTIME_IO_SORT_MB, 
-            TezJobConfig.TEZ_RUNTIME_IO_SORT_MB_DEFAULT);
-    Preconditions.checkArgument(initialMemRequestMb != 0, "io.sort.mb should be larger than 0");
+    int initialMemRequestMb = getSortBufferSizeMb(conf);
+    if (isSortBufferOffHeap(conf)) {
+      LOG.info("SortBufferSize (io.sort.mb): " + initialMemRequestMb
+          + " is allocated off-heap, not requesting heap memory for it");
+      return 0;
+    }
     long reqBytes = initialMemRequestMb << 20;
     LOG.info("Requested SortBufferSize (io.sort.mb): " + initialMemRequestMb);
     return reqBytes;
   }
+
+  private static int getSortBufferSizeMb(Configuration conf) {
+    int sortBufferSizeMb =
+        conf.getInt(
+            TezJobConfig.TEZ_RUNTIME_IO_SORT_MB, 
+            TezJobConfig.TEZ_RUNTIME_IO_SORT_MB_DEFAULT);
+    Preconditions.checkArgument(sortBufferSizeMb != 0, "io.sort.mb should be larger than 0");
+    return sortBufferSizeMb;
+  }
+
+  /**
+   * Whether the sort buffer is allocated in direct memory, which is the case
+   * for the {@link PipelinedSorter} (more than one sort thread) with
+   * {@link TezJobConfig#TEZ_RUNTIME_PIPELINED_SORTER_DIRECT_BUFFERS} set.
+   * It is then sized from io.sort.mb instead of the heap memory assigned to
+   * the output.
+   */
+  static boolean isSortBufferOffHeap(Configuration conf) {
+    return conf.getInt(TezJobConfig.TEZ_RUNTIME_SORT_THREADS,
+        TezJobConfig.TEZ_RUNTIME_SORT_THREADS_DEFAULT) > 1
+        && conf.getBoolean(TezJobConfig.TEZ_RUNTIME_PIPELINED_SORTER_DIRECT_BUFFERS,
+            TezJobConfig.TEZ_RUNTIME_PIPELINED_SORTER_DIRECT_BUFFERS_DEFAULT);
+  }
 }
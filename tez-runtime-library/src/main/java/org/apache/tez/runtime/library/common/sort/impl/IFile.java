@@ -23,6 +23,9 @@ import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.logging.Log;
@@ -37,6 +40,7 @@ import org.apache.hadoop.io.DataInputBuffer;
 import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.BufferUtils;
 import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.RawComparator;
 import org.apache.hadoop.io.WritableUtils;
 import org.apache.hadoop.io.compress.CodecPool;
 import org.apache.hadoop.io.compress.CompressionCodec;
@@ -45,12 +49,18 @@ import org.apache.hadoop.io.compress.Compressor;
 import org.apache.hadoop.io.compress.Decompressor;
 import org.apache.hadoop.io.serializer.SerializationFactory;
 import org.apache.hadoop.io.serializer.Serializer;
+import org.apache.tez.common.TezJobConfig;
 import org.apache.tez.common.counters.TezCounter;
 
 /**
  * <code>IFile</code> is the simple <key-len, value-len, key, value> format
  * for the intermediate map-outputs in Map-Reduce.
  *
+ * Writers may replace the key length with {@link #RLE_MARKER} for a key which
+ * is the same as the previous one, or with {@link #PREFIX_MARKER} for a key
+ * which is stored relative to the previous one. Readers handle either, so the
+ * format of a file does not need to be known up front.
+ *
  * There is a <code>Writer</code> to write out map-outputs in this format and 
  * a <code>Reader</code> to read files of this format.
  */
@@ -60,7 +70,12 @@ public class IFile {
   private static final Log LOG = LogFactory.getLog(IFile.class);
   public static final int EOF_MARKER = -1; // End of File Marker
   public static final int RLE_MARKER = -2; // Repeat same key marker
+  // Key shares a prefix with the previous key. The record is laid out as
+  // <PREFIX_MARKER, value-len, shared-prefix-len, key-suffix-len, key-suffix, value>
+  public static final int PREFIX_MARKER = -3;
   public static final DataInputBuffer REPEAT_KEY = new DataInputBuffer();
+  // Shorter shared prefixes don't make up for the additional lengths stored
+  static final int MIN_SHARED_PREFIX_LENGTH = 3;
     
   /**
    * <code>IFile.Writer</code> to write out intermediate map-outputs. 
@@ -100,6 +115,17 @@ public class IFile {
     // de-dup keys or not
     private boolean rle = false;
 
+    // Keys stored relative to the previous key since the last full key, up to
+    // prefixRestartInterval. 0 if keys are always written in full.
+    private int prefixRestartInterval = 0;
+    private int keysSinceRestart = 0;
+
+    // A key is recorded in keyIndex about every keyIndexInterval bytes.
+    // 0 if there is no key index.
+    private int keyIndexInterval = 0;
+    private long nextKeyIndexOffset = 0;
+    private final List<TezKeyIndex.Entry> keyIndex = new ArrayList<TezKeyIndex.Entry>();
+
     public Writer(Configuration conf, FileSystem fs, Path file, 
                   Class keyClass, Class valueClass,
                   CompressionCodec codec,
@@ -124,7 +150,18 @@ public class IFile {
       this.checksumOut = new IFileOutputStream(out);
       this.rawOut = out;
       this.start = this.rawOut.getPos();
-      if (codec != null) {
+      if (codec != null && conf != null && conf.getBoolean(
+          TezJobConfig.TEZ_RUNTIME_IFILE_PARALLEL_COMPRESSION,
+          TezJobConfig.TEZ_RUNTIME_IFILE_PARALLEL_COMPRESSION_DEFAULT)) {
+        // Compressors are taken from the CodecPool for each block
+        this.compressedOut = ParallelCompression.createOutputStream(checksumOut, codec,
+            conf.getInt(TezJobConfig.TEZ_RUNTIME_IFILE_PARALLEL_COMPRESSION_BLOCK_SIZE,
+                TezJobConfig.TEZ_RUNTIME_IFILE_PARALLEL_COMPRESSION_BLOCK_SIZE_DEFAULT),
+            conf.getInt(TezJobConfig.TEZ_RUNTIME_IFILE_PARALLEL_COMPRESSION_PARALLELISM,
+                TezJobConfig.TEZ_RUNTIME_IFILE_PARALLEL_COMPRESSION_PARALLELISM_DEFAULT));
+        this.out = new FSDataOutputStream(this.compressedOut,  null);
+        this.compressOutput = true;
+      } else if (codec != null) {
         this.compressor = CodecPool.getCompressor(codec);
         if (this.compressor != null) {
           this.compressor.reset();
@@ -150,6 +187,19 @@ public class IFile {
         this.valueSerializer = serializationFactory.getSerializer(valueClass);
         this.valueSerializer.open(buffer);
       }
+
+      if (conf != null && conf.getBoolean(TezJobConfig.TEZ_RUNTIME_IFILE_KEY_PREFIX_COMPRESSION,
+          TezJobConfig.TEZ_RUNTIME_IFILE_KEY_PREFIX_COMPRESSION_DEFAULT)) {
+        this.prefixRestartInterval = Math.max(1, conf.getInt(
+            TezJobConfig.TEZ_RUNTIME_IFILE_KEY_PREFIX_RESTART_INTERVAL,
+            TezJobConfig.TEZ_RUNTIME_IFILE_KEY_PREFIX_RESTART_INTERVAL_DEFAULT));
+      }
+      // Offsets within compressed data can't be seeked to
+      if (conf != null && !compressOutput) {
+        this.keyIndexInterval = conf.getInt(
+            TezJobConfig.TEZ_RUNTIME_IFILE_KEY_INDEX_INTERVAL_BYTES,
+            TezJobConfig.TEZ_RUNTIME_IFILE_KEY_INDEX_INTERVAL_BYTES_DEFAULT);
+      }
     }
 
     public Writer(Configuration conf, FileSystem fs, Path file) 
@@ -229,7 +279,11 @@ public class IFile {
         sameKey = (BufferUtils.compare(previous, buffer) == 0);       
       }
       
+      int sharedPrefixLength = 0;
       if(!sameKey) {
+        if (!addKeyIndexEntry(buffer.getData(), 0, keyLength)) {
+          sharedPrefixLength = getSharedPrefixLength(buffer.getData(), 0, keyLength);
+        }
         BufferUtils.copy(buffer, previous);
       }
 
@@ -244,7 +298,7 @@ public class IFile {
       if(rle && sameKey) {
         WritableUtils.writeVInt(out, RLE_MARKER);                   // Same key as previous
         WritableUtils.writeVInt(out, valueLength);                  // value length
-        out.write(buffer.getData(), keyLength, buffer.getLength()); // only the value
+        out.write(buffer.getData(), keyLength, valueLength);         // only the value
         // Update bytes written
         decompressedBytesWritten += 0 + valueLength + 
                                     WritableUtils.getVIntSize(RLE_MARKER) + 
@@ -252,6 +306,10 @@ public class IFile {
         if (serializedUncompressedBytes != null) {
           serializedUncompressedBytes.increment(0 + valueLength);
         }
+      } else if (sharedPrefixLength > 0) {
+        // Only the part of the key which differs from the previous one
+        writePrefixRecord(buffer.getData(), 0, keyLength, sharedPrefixLength,
+            buffer.getData(), keyLength, valueLength);
       } else {        
         // Write the record out        
         WritableUtils.writeVInt(out, keyLength);                  // key length
@@ -306,6 +364,17 @@ public class IFile {
           serializedUncompressedBytes.increment(0 + valueLength);
         }
       } else {
+        int sharedPrefixLength = 0;
+        if (!addKeyIndexEntry(key.getData(), key.getPosition(), keyLength)) {
+          sharedPrefixLength = getSharedPrefixLength(key.getData(), key.getPosition(), keyLength);
+        }
+        if (sharedPrefixLength > 0) {
+          writePrefixRecord(key.getData(), key.getPosition(), keyLength, sharedPrefixLength,
+              value.getData(), value.getPosition(), valueLength);
+          BufferUtils.copy(key, previous);
+          ++numRecordsWritten;
+          return;
+        }
         WritableUtils.writeVInt(out, keyLength);
         WritableUtils.writeVInt(out, valueLength);
         out.write(key.getData(), key.getPosition(), keyLength);
@@ -333,6 +402,74 @@ public class IFile {
     public void updateCountersForExternalAppend(long length) {
       ++numRecordsWritten;
       decompressedBytesWritten += length;
+      // The next key can't refer to a key appended externally
+      previous.reset();
+      keysSinceRestart = 0;
+    }
+
+    /**
+     * @return the length of the prefix which the key shares with the previous
+     *         key, or 0 if it is to be written in full
+     */
+    private int getSharedPrefixLength(byte[] key, int offset, int length) {
+      if (prefixRestartInterval == 0) {
+        return 0;
+      }
+      if (keysSinceRestart == prefixRestartInterval) {
+        keysSinceRestart = 0;
+        return 0;
+      }
+      byte[] prev = previous.getData();
+      int maxShared = Math.min(length, previous.getLength());
+      int shared = 0;
+      while (shared < maxShared && prev[shared] == key[offset + shared]) {
+        shared++;
+      }
+      if (shared < MIN_SHARED_PREFIX_LENGTH) {
+        // Doesn't pay for the extra lengths, write it in full
+        keysSinceRestart = 0;
+        return 0;
+      }
+      keysSinceRestart++;
+      return shared;
+    }
+
+    /**
+     * Adds the key to the key index, if enough has been written since the
+     * last entry. The key then has to be written in full, so that reading can
+     * start at this record.
+     *
+     * @return true if the key was added
+     */
+    private boolean addKeyIndexEntry(byte[] key, int offset, int length) {
+      if (keyIndexInterval <= 0 || decompressedBytesWritten < nextKeyIndexOffset) {
+        return false;
+      }
+      keyIndex.add(new TezKeyIndex.Entry(Arrays.copyOfRange(key, offset, offset + length),
+          decompressedBytesWritten));
+      nextKeyIndexOffset = decompressedBytesWritten + keyIndexInterval;
+      keysSinceRestart = 0;
+      return true;
+    }
+
+    private void writePrefixRecord(byte[] key, int keyOffset, int keyLength,
+        int sharedPrefixLength, byte[] value, int valueOffset, int valueLength)
+        throws IOException {
+      int suffixLength = keyLength - sharedPrefixLength;
+      WritableUtils.writeVInt(out, PREFIX_MARKER);
+      WritableUtils.writeVInt(out, valueLength);
+      WritableUtils.writeVInt(out, sharedPrefixLength);
+      WritableUtils.writeVInt(out, suffixLength);
+      out.write(key, keyOffset + sharedPrefixLength, suffixLength);
+      out.write(value, valueOffset, valueLength);
+      decompressedBytesWritten += suffixLength + valueLength
+          + WritableUtils.getVIntSize(PREFIX_MARKER)
+          + WritableUtils.getVIntSize(valueLength)
+          + WritableUtils.getVIntSize(sharedPrefixLength)
+          + WritableUtils.getVIntSize(suffixLength);
+      if (serializedUncompressedBytes != null) {
+        serializedUncompressedBytes.increment(suffixLength + valueLength);
+      }
     }
     
     public long getRawLength() {
@@ -342,10 +479,20 @@ public class IFile {
     public long getCompressedLength() {
       return compressedBytesWritten;
     }
+
+    /**
+     * @return the key index of the data written so far, empty unless
+     *         {@link TezJobConfig#TEZ_RUNTIME_IFILE_KEY_INDEX_INTERVAL_BYTES}
+     *         is set and the data is not compressed
+     */
+    public List<TezKeyIndex.Entry> getKeyIndex() {
+      return keyIndex;
+    }
     
     public void setRLE(boolean rle) {
       this.rle = rle;
       previous.reset();
+      keysSinceRestart = 0;
     }
 
   }
@@ -381,7 +528,13 @@ public class IFile {
     protected int prevKeyLength;
     protected int currentKeyLength;
     protected int currentValueLength;
+    // For PREFIX_MARKER records, the number of leading bytes shared with the
+    // previous key. currentKeyLength is the length of the whole key.
+    protected int currentSharedPrefixLength;
     byte keyBytes[] = new byte[0];
+    // The current key was read by seekToKey, and is returned by the next
+    // call to readRawKey
+    private boolean keyPending = false;
     
     long startPos;
     
@@ -426,7 +579,7 @@ public class IFile {
       if (codec != null) {
         decompressor = CodecPool.getDecompressor(codec);
         if (decompressor != null) {
-          this.in = codec.createInputStream(checksumIn, decompressor);
+          this.in = ParallelCompression.createInputStream(checksumIn, codec, decompressor);
         } else {
           LOG.warn("Could not obtain decompressor from CodecPool");
           this.in = checksumIn;
@@ -482,6 +635,7 @@ public class IFile {
       
       // Read key and value lengths
       prevKeyLength = currentKeyLength;
+      currentSharedPrefixLength = 0;
       currentKeyLength = WritableUtils.readVInt(dIn);
       currentValueLength = WritableUtils.readVInt(dIn);
       bytesRead += WritableUtils.getVIntSize(currentKeyLength) +
@@ -493,6 +647,20 @@ public class IFile {
         return false;
       }      
       
+      if (currentKeyLength == PREFIX_MARKER) {
+        currentSharedPrefixLength = WritableUtils.readVInt(dIn);
+        int suffixLength = WritableUtils.readVInt(dIn);
+        bytesRead += WritableUtils.getVIntSize(currentSharedPrefixLength) +
+                     WritableUtils.getVIntSize(suffixLength);
+        if (currentSharedPrefixLength < 0 || currentSharedPrefixLength > prevKeyLength
+            || suffixLength < 0) {
+          throw new IOException("Rec# " + recNo + ": Invalid key prefix, shared: " +
+              currentSharedPrefixLength + ", suffix: " + suffixLength +
+              ", previous key-length: " + prevKeyLength);
+        }
+        currentKeyLength = currentSharedPrefixLength + suffixLength;
+      }
+
       // Sanity check
       if (currentKeyLength != RLE_MARKER && currentKeyLength < 0) {
         throw new IOException("Rec# " + recNo + ": Negative key-length: " + 
@@ -511,6 +679,11 @@ public class IFile {
     }
     
     public KeyState readRawKey(DataInputBuffer key) throws IOException {
+      if (keyPending) {
+        keyPending = false;
+        key.reset(keyBytes, currentKeyLength);
+        return KeyState.NEW_KEY;
+      }
       if (!positionToNextRecord(dataIn)) {
         if (LOG.isDebugEnabled()) {
           LOG.debug("currentKeyLength=" + currentKeyLength +
@@ -527,14 +700,17 @@ public class IFile {
         return KeyState.SAME_KEY;
       }
       if (keyBytes.length < currentKeyLength) {
-        keyBytes = new byte[currentKeyLength << 1];
+        // Keep the previous key, the start of it may be shared
+        keyBytes = Arrays.copyOf(keyBytes, currentKeyLength << 1);
       }
-      int i = readData(keyBytes, 0, currentKeyLength);
-      if (i != currentKeyLength) {
-        throw new IOException ("Asked for " + currentKeyLength + " Got: " + i);
+      // Only the part which is not shared with the previous key is stored
+      int toRead = currentKeyLength - currentSharedPrefixLength;
+      int i = readData(keyBytes, currentSharedPrefixLength, toRead);
+      if (i != toRead) {
+        throw new IOException ("Asked for " + toRead + " Got: " + i);
       }
       key.reset(keyBytes, currentKeyLength);
-      bytesRead += currentKeyLength;
+      bytesRead += toRead;
       return KeyState.NEW_KEY;
     }
     
@@ -556,6 +732,47 @@ public class IFile {
       ++numRecordsRead;
     }
     
+    /**
+     * Positions the reader at the first record with a key which is not less
+     * than the given key. Records before the closest preceding entry of the
+     * key index are skipped without being read. Must be called before any
+     * records are read, and is only supported for uncompressed data.
+     *
+     * @param key the key to look for
+     * @param keyIndex the key index entries of the data read by this reader
+     * @param comparator comparator of the keys
+     * @return false if all keys are less than the given key
+     * @throws IOException
+     */
+    public boolean seekToKey(DataInputBuffer key, List<TezKeyIndex.Entry> keyIndex,
+        RawComparator comparator) throws IOException {
+      if (recNo != 1 || bytesRead != 0) {
+        throw new IOException("Can only seek before reading records, read: " + bytesRead);
+      }
+      if (in != checksumIn) {
+        throw new IOException("Seek not supported for compressed data");
+      }
+      TezKeyIndex.Entry entry = TezKeyIndex.findEntry(keyIndex, key.getData(),
+          key.getPosition(), key.getLength() - key.getPosition(), comparator);
+      if (entry != null && entry.getOffset() > 0) {
+        checksumIn.skipWithoutChecksum(entry.getOffset());
+        bytesRead += entry.getOffset();
+      }
+
+      DataInputBuffer currentKey = new DataInputBuffer();
+      DataInputBuffer skippedValue = new DataInputBuffer();
+      while (readRawKey(currentKey) != KeyState.NO_KEY) {
+        if (comparator.compare(currentKey.getData(), currentKey.getPosition(),
+            currentKey.getLength() - currentKey.getPosition(), key.getData(),
+            key.getPosition(), key.getLength() - key.getPosition()) >= 0) {
+          keyPending = true;
+          return true;
+        }
+        nextRawValue(skippedValue);
+      }
+      return false;
+    }
+
     public void close() throws IOException {
       // Close the underlying stream
       in.close();
@@ -124,7 +124,7 @@ public class IFileInputStream extends InputStream {
     if (curReadahead != null) {
       curReadahead.cancel();
     }
-    if (currentOffset < dataLength) {
+    if (currentOffset < dataLength && !disableChecksumValidation) {
       byte[] t = new byte[Math.min((int)
             (Integer.MAX_VALUE & (dataLength - currentOffset)), 32 * 1024)];
       while (currentOffset < dataLength) {
@@ -142,6 +142,20 @@ public class IFileInputStream extends InputStream {
    throw new IOException("Skip not supported for IFileInputStream");
   }
   
+  /**
+   * Skips ahead in the data without reading it. The checksum can't be
+   * validated after that, and is not read when the stream is closed.
+   */
+  void skipWithoutChecksum(long n) throws IOException {
+    if (currentOffset + n > dataLength) {
+      throw new EOFException("Cannot skip " + n + " bytes at " + currentOffset
+          + ", dataLength=" + dataLength);
+    }
+    IOUtils.skipFully(in, n);
+    currentOffset += n;
+    disableChecksumValidation = true;
+  }
+
   public long getPosition() {
     return (currentOffset >= dataLength) ? dataLength : currentOffset;
   }
@@ -0,0 +1,40 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.sort.impl;
+
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+
+/**
+ * Extracts a fixed-width, normalized prefix from a serialized key, which the
+ * sorters use to resolve most comparisons without dereferencing the key bytes.
+ *
+ * Implementations must be consistent with the key comparator in use: if
+ * <code>getPrefix(a) < getPrefix(b)</code> (signed long comparison), the
+ * comparator must order <code>a</code> before <code>b</code>. Equal prefixes
+ * carry no information and are resolved by the comparator.
+ *
+ * A RawComparator may implement this interface directly to enable prefix
+ * sorting for custom key types.
+ */
+@Private
+public interface KeyPrefixExtractor {
+
+  long getPrefix(byte[] key, int start, int length);
+
+}
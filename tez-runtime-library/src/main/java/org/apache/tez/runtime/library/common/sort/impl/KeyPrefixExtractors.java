@@ -0,0 +1,110 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.sort.impl;
+
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * Built-in {@link KeyPrefixExtractor}s for the common Writable key types.
+ */
+@Private
+public final class KeyPrefixExtractors {
+
+  private KeyPrefixExtractors() {}
+
+  /**
+   * Returns the prefix extractor to use for the given key class and
+   * comparator, or null if prefixes cannot be used safely. The built-in
+   * extractors are only valid for the default comparator of their key class,
+   * so a custom comparator must implement {@link KeyPrefixExtractor} itself.
+   */
+  @SuppressWarnings("rawtypes")
+  public static KeyPrefixExtractor get(Class keyClass, RawComparator comparator) {
+    if (comparator instanceof KeyPrefixExtractor) {
+      return (KeyPrefixExtractor) comparator;
+    }
+    Class<?> comparatorClass = comparator.getClass();
+    if (keyClass == Text.class && comparatorClass == Text.Comparator.class) {
+      return new TextPrefixExtractor();
+    } else if (keyClass == BytesWritable.class
+        && comparatorClass == BytesWritable.Comparator.class) {
+      return new BytesWritablePrefixExtractor();
+    } else if (keyClass == IntWritable.class
+        && comparatorClass == IntWritable.Comparator.class) {
+      return new IntWritablePrefixExtractor();
+    } else if (keyClass == LongWritable.class
+        && comparatorClass == LongWritable.Comparator.class) {
+      return new LongWritablePrefixExtractor();
+    }
+    return null;
+  }
+
+  /**
+   * Packs the first 8 bytes of the range big-endian, zero padded, with the
+   * sign bit flipped so that a signed comparison of two prefixes matches the
+   * unsigned lexicographic order of the bytes.
+   */
+  static long getBytesPrefix(byte[] b, int start, int length) {
+    long prefix = 0;
+    final int n = Math.min(length, 8);
+    for (int i = 0; i < n; i++) {
+      prefix |= (b[start + i] & 0xffL) << (56 - 8 * i);
+    }
+    return prefix ^ Long.MIN_VALUE;
+  }
+
+  public static class TextPrefixExtractor implements KeyPrefixExtractor {
+    @Override
+    public long getPrefix(byte[] key, int start, int length) {
+      // skip the vint length, as Text.Comparator does
+      final int n = WritableUtils.decodeVIntSize(key[start]);
+      return getBytesPrefix(key, start + n, length - n);
+    }
+  }
+
+  public static class BytesWritablePrefixExtractor implements KeyPrefixExtractor {
+    private static final int LENGTH_BYTES = 4;
+
+    @Override
+    public long getPrefix(byte[] key, int start, int length) {
+      return getBytesPrefix(key, start + LENGTH_BYTES, length - LENGTH_BYTES);
+    }
+  }
+
+  public static class IntWritablePrefixExtractor implements KeyPrefixExtractor {
+    @Override
+    public long getPrefix(byte[] key, int start, int length) {
+      return WritableComparator.readInt(key, start);
+    }
+  }
+
+  public static class LongWritablePrefixExtractor implements KeyPrefixExtractor {
+    @Override
+    public long getPrefix(byte[] key, int start, int length) {
+      return WritableComparator.readLong(key, start);
+    }
+  }
+}
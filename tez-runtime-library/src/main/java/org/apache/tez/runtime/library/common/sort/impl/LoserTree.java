@@ -0,0 +1,194 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.sort.impl;
+
+import java.util.Arrays;
+
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A tournament tree of losers, for merging k sorted streams. Offers the same
+ * operations as {@link org.apache.hadoop.util.PriorityQueue}, but re-adjusting
+ * the smallest element after it changed takes exactly log2(k) calls to
+ * {@link #lessThan(Object, Object)} - one per level, against the loser stored
+ * there - where a heap needs up to two per level.
+ *
+ * Elements are added with {@link #put(Object)} before the merge starts; the
+ * tree is built on the first access after that. Removed elements are treated
+ * as larger than all others, so the shape of the tree never changes during a
+ * merge.
+ */
+@Private
+public abstract class LoserTree<T> {
+
+  // Leaves by index; null once removed
+  private Object[] leaves;
+  // tree[0] is the index of the current winner, tree[n] for 0 < n < k is the
+  // index of the loser of the match at internal node n. The leaf with index i
+  // sits at node k + i, and node n has children 2n and 2n + 1.
+  private int[] tree;
+  private int k;
+  private int numLeaves;
+  private int size;
+  private boolean built;
+
+  /**
+   * Determines the ordering of elements.
+   */
+  protected abstract boolean lessThan(Object a, Object b);
+
+  /**
+   * Sets up the tree for up to maxSize elements, and removes all elements.
+   */
+  protected final void initialize(int maxSize) {
+    leaves = new Object[Math.max(1, maxSize)];
+    tree = new int[leaves.length];
+    numLeaves = 0;
+    size = 0;
+    built = false;
+  }
+
+  /**
+   * Adds an element. The tree is rebuilt on the next access.
+   */
+  public final void put(T element) {
+    Preconditions.checkState(numLeaves < leaves.length, "LoserTree is full, size: "
+        + leaves.length);
+    leaves[numLeaves++] = element;
+    size++;
+    built = false;
+  }
+
+  /**
+   * @return the smallest element, or null if there are none left
+   */
+  @SuppressWarnings("unchecked")
+  public final T top() {
+    if (size == 0) {
+      return null;
+    }
+    ensureBuilt();
+    return (T) leaves[tree[0]];
+  }
+
+  /**
+   * Removes and returns the smallest element, or null if there are none left.
+   */
+  @SuppressWarnings("unchecked")
+  public final T pop() {
+    if (size == 0) {
+      return null;
+    }
+    ensureBuilt();
+    int winner = tree[0];
+    T result = (T) leaves[winner];
+    leaves[winner] = null;
+    size--;
+    replay(winner);
+    return result;
+  }
+
+  /**
+   * Should be called when the element returned by {@link #top()} changes.
+   */
+  public final void adjustTop() {
+    if (size == 0) {
+      return;
+    }
+    ensureBuilt();
+    replay(tree[0]);
+  }
+
+  /**
+   * @return the number of elements which have not been removed
+   */
+  public final int size() {
+    return size;
+  }
+
+  /**
+   * Removes all elements.
+   */
+  public final void clear() {
+    if (leaves != null) {
+      Arrays.fill(leaves, 0, numLeaves, null);
+    }
+    numLeaves = 0;
+    size = 0;
+    built = false;
+  }
+
+  private void ensureBuilt() {
+    if (!built) {
+      build();
+    }
+  }
+
+  private void build() {
+    k = numLeaves;
+    // Winners of the matches at each node, only needed while building
+    int[] winners = new int[2 * k];
+    for (int i = 0; i < k; i++) {
+      winners[k + i] = i;
+    }
+    for (int n = k - 1; n >= 1; n--) {
+      int left = winners[2 * n];
+      int right = winners[2 * n + 1];
+      if (beats(right, left)) {
+        winners[n] = right;
+        tree[n] = left;
+      } else {
+        winners[n] = left;
+        tree[n] = right;
+      }
+    }
+    tree[0] = winners[1];
+    built = true;
+  }
+
+  /**
+   * Plays the matches on the path from a leaf to the root again, after the
+   * element at that leaf changed.
+   */
+  private void replay(int leaf) {
+    int winner = leaf;
+    for (int n = (leaf + k) >>> 1; n >= 1; n >>>= 1) {
+      int loser = tree[n];
+      if (beats(loser, winner)) {
+        tree[n] = winner;
+        winner = loser;
+      }
+    }
+    tree[0] = winner;
+  }
+
+  private boolean beats(int a, int b) {
+    Object x = leaves[a];
+    Object y = leaves[b];
+    if (x == null) {
+      return false;
+    }
+    if (y == null) {
+      return true;
+    }
+    return lessThan(x, y);
+  }
+}
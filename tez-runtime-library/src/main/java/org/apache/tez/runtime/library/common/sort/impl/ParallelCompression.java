@@ -0,0 +1,504 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.sort.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionOutputStream;
+import org.apache.hadoop.io.compress.Compressor;
+import org.apache.hadoop.io.compress.Decompressor;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Compresses IFile data in independent blocks, so that several blocks of a
+ * stream can be compressed or decompressed at the same time.
+ *
+ * The compressed stream starts with {@link #MAGIC}, followed by blocks of
+ * <code>&lt;int raw-length, int compressed-length, compressed-bytes&gt;</code>,
+ * each of them compressed with the codec on its own. Regular compressed
+ * streams can't start with the magic bytes, so
+ * {@link #createInputStream(InputStream, CompressionCodec, Decompressor)}
+ * reads both kinds of data.
+ *
+ * The blocks are compressed on threads shared by all streams of the process,
+ * one per available processor. Readers decompress blocks ahead within a
+ * memory limit shared by all streams of the process as well, so that merges
+ * of many streams do not hold blocks for each of them.
+ */
+@Private
+public final class ParallelCompression {
+
+  // The first byte would be the sign of the block length of Hadoop's block
+  // compressed streams, and is not valid for zlib, gzip or bzip2 either
+  static final byte[] MAGIC = new byte[] { (byte) 0xFF, 'T', 'B', 'C' };
+
+  /**
+   * Blocks of a stream which are decompressed ahead of the reader, at most.
+   */
+  static final int READ_AHEAD_BLOCKS = 4;
+
+  /**
+   * Fraction of the heap for blocks decompressed ahead, by all streams.
+   */
+  static final float READ_AHEAD_MEMORY_FRACTION = 0.05f;
+
+  private static ThreadPoolExecutor compressionThreads;
+
+  private static volatile long readAheadMemoryLimit =
+      (long) (Runtime.getRuntime().maxMemory() * READ_AHEAD_MEMORY_FRACTION);
+  private static final AtomicLong readAheadMemoryUsed = new AtomicLong(0);
+
+  private ParallelCompression() {
+  }
+
+  private static synchronized ExecutorService getCompressionThreads() {
+    if (compressionThreads == null) {
+      int numThreads = Runtime.getRuntime().availableProcessors();
+      // Idle threads go away, so the pool needs no shutdown
+      compressionThreads = new ThreadPoolExecutor(numThreads, numThreads, 60, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(),
+          new ThreadFactoryBuilder().setDaemon(true).setNameFormat("IFileCompression #%d")
+              .build());
+      compressionThreads.allowCoreThreadTimeOut(true);
+    }
+    return compressionThreads;
+  }
+
+  /**
+   * Creates a stream which compresses blocks of blockSize bytes of the data
+   * written to it in parallel, and writes them to out in order.
+   *
+   * @param parallelism the maximum number of blocks of this stream which are
+   *          compressed at the same time
+   */
+  public static CompressionOutputStream createOutputStream(OutputStream out,
+      CompressionCodec codec, int blockSize, int parallelism) throws IOException {
+    Preconditions.checkArgument(blockSize > 0, "Invalid block size: " + blockSize);
+    Preconditions.checkArgument(parallelism > 0, "Invalid parallelism: " + parallelism);
+    return new ParallelBlockOutputStream(out, codec, blockSize, parallelism);
+  }
+
+  /**
+   * Creates a stream which decompresses data written by
+   * {@link #createOutputStream(OutputStream, CompressionCodec, int, int)},
+   * or by a regular compression stream of the codec.
+   *
+   * @param decompressor used if the data was not compressed in blocks
+   */
+  public static InputStream createInputStream(InputStream in, CompressionCodec codec,
+      Decompressor decompressor) throws IOException {
+    PushbackInputStream pushbackIn = new PushbackInputStream(in, MAGIC.length);
+    byte[] header = new byte[MAGIC.length];
+    int n = 0;
+    while (n < header.length) {
+      int read = pushbackIn.read(header, n, header.length - n);
+      if (read < 0) {
+        break;
+      }
+      n += read;
+    }
+    if (n == MAGIC.length && Arrays.equals(header, MAGIC)) {
+      return new ParallelBlockInputStream(pushbackIn, codec);
+    }
+    pushbackIn.unread(header, 0, n);
+    return codec.createInputStream(pushbackIn, decompressor);
+  }
+
+  /**
+   * @return false if the memory is not available for reading ahead
+   */
+  private static boolean reserveReadAheadMemory(long bytes) {
+    while (true) {
+      long used = readAheadMemoryUsed.get();
+      if (used + bytes > readAheadMemoryLimit) {
+        return false;
+      }
+      if (readAheadMemoryUsed.compareAndSet(used, used + bytes)) {
+        return true;
+      }
+    }
+  }
+
+  private static void releaseReadAheadMemory(long bytes) {
+    readAheadMemoryUsed.addAndGet(-bytes);
+  }
+
+  @VisibleForTesting
+  static long getReadAheadMemoryLimit() {
+    return readAheadMemoryLimit;
+  }
+
+  @VisibleForTesting
+  static void setReadAheadMemoryLimit(long limit) {
+    readAheadMemoryLimit = limit;
+  }
+
+  @VisibleForTesting
+  static long getReadAheadMemoryUsed() {
+    return readAheadMemoryUsed.get();
+  }
+
+  private static <T> T getResult(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for compression");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  private static void cancelAll(LinkedList<? extends Future<?>> futures) {
+    for (Future<?> future : futures) {
+      future.cancel(false);
+    }
+    futures.clear();
+  }
+
+  private static class ReadAheadBlock {
+    final Future<byte[]> raw;
+    // Read ahead memory reserved for the block
+    final long reserved;
+
+    ReadAheadBlock(Future<byte[]> raw, long reserved) {
+      this.raw = raw;
+      this.reserved = reserved;
+    }
+  }
+
+  private static class CompressedBlock {
+    final byte[] raw;
+    final int rawLength;
+    final DataOutputBuffer compressed;
+
+    CompressedBlock(byte[] raw, int rawLength, DataOutputBuffer compressed) {
+      this.raw = raw;
+      this.rawLength = rawLength;
+      this.compressed = compressed;
+    }
+  }
+
+  private static class ParallelBlockOutputStream extends CompressionOutputStream {
+
+    private final CompressionCodec codec;
+    private final int blockSize;
+    private final int parallelism;
+    private final DataOutputStream dataOut;
+
+    private final LinkedList<Future<CompressedBlock>> pendingBlocks =
+        new LinkedList<Future<CompressedBlock>>();
+    // Block buffers which have been written out, and can be filled again
+    private final LinkedList<byte[]> freeBuffers = new LinkedList<byte[]>();
+    private byte[] current;
+    private int count = 0;
+
+    ParallelBlockOutputStream(OutputStream out, CompressionCodec codec, int blockSize,
+        int parallelism) throws IOException {
+      super(out);
+      this.codec = codec;
+      this.blockSize = blockSize;
+      this.parallelism = parallelism;
+      this.dataOut = new DataOutputStream(out);
+      this.current = new byte[blockSize];
+      dataOut.write(MAGIC);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (count == blockSize) {
+        submitBlock();
+      }
+      current[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        if (count == blockSize) {
+          submitBlock();
+        }
+        int n = Math.min(len, blockSize - count);
+        System.arraycopy(b, off, current, count, n);
+        count += n;
+        off += n;
+        len -= n;
+      }
+    }
+
+    private void submitBlock() throws IOException {
+      if (count == 0) {
+        return;
+      }
+      if (pendingBlocks.size() >= parallelism) {
+        writeBlock(pendingBlocks.removeFirst());
+      }
+      final byte[] raw = current;
+      final int rawLength = count;
+      pendingBlocks.add(getCompressionThreads().submit(new Callable<CompressedBlock>() {
+        @Override
+        public CompressedBlock call() throws IOException {
+          return new CompressedBlock(raw, rawLength, compress(raw, rawLength));
+        }
+      }));
+      current = freeBuffers.isEmpty() ? new byte[blockSize] : freeBuffers.removeFirst();
+      count = 0;
+    }
+
+    private DataOutputBuffer compress(byte[] raw, int rawLength) throws IOException {
+      DataOutputBuffer compressed = new DataOutputBuffer(rawLength / 2 + 64);
+      Compressor compressor = CodecPool.getCompressor(codec);
+      try {
+        CompressionOutputStream compressedOut;
+        if (compressor != null) {
+          compressor.reset();
+          compressedOut = codec.createOutputStream(compressed, compressor);
+        } else {
+          compressedOut = codec.createOutputStream(compressed);
+        }
+        compressedOut.write(raw, 0, rawLength);
+        compressedOut.finish();
+      } finally {
+        CodecPool.returnCompressor(compressor);
+      }
+      return compressed;
+    }
+
+    private void writeBlock(Future<CompressedBlock> future) throws IOException {
+      CompressedBlock block = getResult(future);
+      dataOut.writeInt(block.rawLength);
+      dataOut.writeInt(block.compressed.getLength());
+      dataOut.write(block.compressed.getData(), 0, block.compressed.getLength());
+      freeBuffers.add(block.raw);
+    }
+
+    @Override
+    public void finish() throws IOException {
+      submitBlock();
+      while (!pendingBlocks.isEmpty()) {
+        writeBlock(pendingBlocks.removeFirst());
+      }
+      dataOut.flush();
+    }
+
+    @Override
+    public void resetState() throws IOException {
+      // Blocks are compressed independently, there is no state across them
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        finish();
+      } finally {
+        cancelAll(pendingBlocks);
+        out.close();
+      }
+    }
+  }
+
+  private static class ParallelBlockInputStream extends InputStream {
+
+    private final DataInputStream in;
+    private final CompressionCodec codec;
+
+    private final LinkedList<ReadAheadBlock> pendingBlocks = new LinkedList<ReadAheadBlock>();
+    private boolean lastBlockRead = false;
+    private byte[] current = new byte[0];
+    private int pos = 0;
+    // Raw length of the last block read
+    private int blockRawLength;
+    // Memory taken by the last block read, reserved for reading the next one
+    // ahead, since the blocks of a stream have the same size but for the last
+    private long blockMemory = 0;
+
+    ParallelBlockInputStream(InputStream in, CompressionCodec codec) {
+      this.in = new DataInputStream(in);
+      this.codec = codec;
+    }
+
+    /**
+     * Reads the next compressed block.
+     *
+     * @return the compressed block, null if there are no more blocks
+     */
+    private byte[] readBlock() throws IOException {
+      int first = in.read();
+      if (first < 0) {
+        lastBlockRead = true;
+        return null;
+      }
+      int rawLength = (first << 24) | (in.readUnsignedByte() << 16)
+          | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+      int compressedLength = in.readInt();
+      if (rawLength < 0 || compressedLength < 0) {
+        throw new IOException("Invalid compressed block, length: " + rawLength
+            + ", compressed length: " + compressedLength);
+      }
+      byte[] compressed = new byte[compressedLength];
+      in.readFully(compressed);
+      blockRawLength = rawLength;
+      blockMemory = (long) rawLength + compressedLength;
+      return compressed;
+    }
+
+    /**
+     * Starts decompressing the next blocks, as long as the read ahead memory
+     * is available.
+     */
+    private void readAhead() throws IOException {
+      while (!lastBlockRead && pendingBlocks.size() < READ_AHEAD_BLOCKS
+          && reserveReadAheadMemory(blockMemory)) {
+        long reserved = blockMemory;
+        final byte[] compressed;
+        try {
+          compressed = readBlock();
+        } catch (IOException e) {
+          releaseReadAheadMemory(reserved);
+          throw e;
+        }
+        if (compressed == null) {
+          releaseReadAheadMemory(reserved);
+          return;
+        }
+        final int length = blockRawLength;
+        pendingBlocks.add(new ReadAheadBlock(getCompressionThreads().submit(
+            new Callable<byte[]>() {
+              @Override
+              public byte[] call() throws IOException {
+                return decompress(compressed, length);
+              }
+            }), reserved));
+      }
+    }
+
+    private byte[] decompress(byte[] compressed, int rawLength) throws IOException {
+      byte[] raw = new byte[rawLength];
+      Decompressor decompressor = CodecPool.getDecompressor(codec);
+      try {
+        InputStream compressedIn;
+        if (decompressor != null) {
+          decompressor.reset();
+          compressedIn = codec.createInputStream(new ByteArrayInputStream(compressed),
+              decompressor);
+        } else {
+          compressedIn = codec.createInputStream(new ByteArrayInputStream(compressed));
+        }
+        IOUtils.readFully(compressedIn, raw, 0, rawLength);
+      } finally {
+        CodecPool.returnDecompressor(decompressor);
+      }
+      return raw;
+    }
+
+    /**
+     * @return false if there are no more blocks
+     */
+    private boolean nextBlock() throws IOException {
+      if (pendingBlocks.isEmpty()) {
+        // Nothing read ahead, the block needed now is decompressed here
+        byte[] compressed = lastBlockRead ? null : readBlock();
+        if (compressed == null) {
+          return false;
+        }
+        current = decompress(compressed, blockRawLength);
+      } else {
+        ReadAheadBlock block = pendingBlocks.removeFirst();
+        try {
+          current = getResult(block.raw);
+        } finally {
+          releaseReadAheadMemory(block.reserved);
+        }
+      }
+      pos = 0;
+      readAhead();
+      return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+      while (pos == current.length) {
+        if (!nextBlock()) {
+          return -1;
+        }
+      }
+      return current[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      while (pos == current.length) {
+        if (!nextBlock()) {
+          return -1;
+        }
+      }
+      int n = Math.min(len, current.length - pos);
+      System.arraycopy(current, pos, b, off, n);
+      pos += n;
+      return n;
+    }
+
+    @Override
+    public int available() {
+      return current.length - pos;
+    }
+
+    @Override
+    public void close() throws IOException {
+      for (ReadAheadBlock block : pendingBlocks) {
+        block.raw.cancel(false);
+        releaseReadAheadMemory(block.reserved);
+      }
+      pendingBlocks.clear();
+      in.close();
+    }
+  }
+}
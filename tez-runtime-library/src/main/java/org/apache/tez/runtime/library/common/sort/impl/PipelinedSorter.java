@@ -17,28 +17,42 @@
 */
 package org.apache.tez.runtime.library.common.sort.impl;
 
+import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RawLocalFileSystem;
 import org.apache.hadoop.io.DataInputBuffer;
 import org.apache.hadoop.io.HashComparator;
+import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.io.RawComparator;
 import org.apache.hadoop.util.IndexedSortable;
 import org.apache.hadoop.util.IndexedSorter;
@@ -50,6 +64,7 @@ import org.apache.tez.runtime.library.common.ConfigUtils;
 import org.apache.tez.runtime.library.common.sort.impl.IFile.Writer;
 import org.apache.tez.runtime.library.common.sort.impl.TezMerger.Segment;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 @SuppressWarnings({"unchecked", "rawtypes"})
@@ -72,19 +87,36 @@ public class PipelinedSorter extends ExternalSorter {
   private static final int VALLEN = 3;           // val len in acct
   private static final int NMETA = 4;            // num meta ints
   private static final int METASIZE = NMETA * 4; // size in bytes
+  private static final int PREFIXSIZE = 8;       // key prefix size in bytes
 
   // spill accounting
   volatile Throwable sortSpillException = null;
 
   int numSpills = 0;
+  // Key index of the first spill, which is the output if there are no others
+  private TezKeyIndex firstSpillKeyIndex;
   private final int minSpillsForCombine;
   private final HashComparator hasher;
   // SortSpans  
   private SortSpan span;
   private ByteBuffer largeBuffer;
+  // whether largeBuffer lives outside the JVM heap
+  private final boolean useDirectBuffers;
+
+  // A direct sort buffer given back by a sorter which is done with it, for
+  // the next sorter in this JVM (e.g. the next task of a reused container).
+  // Direct memory is only returned once GC runs the cleaner of a buffer, so
+  // allocating a new one per sorter can run out of it. Guarded by the class
+  private static ByteBuffer releasedDirectBuffer = null;
   // Merger
   private final SpanMerger merger; 
   private final ExecutorService sortmaster;
+  private final int sortThreads;
+  // bucket spans by partition before sorting keys within each partition
+  private final boolean bucketByPartition;
+  // bytes of largeBuffer set aside per item besides its data, which include
+  // the key prefix if enabled
+  private final int itemMetaSize;
 
   private final ArrayList<TezSpillRecord> indexCacheList =
     new ArrayList<TezSpillRecord>();
@@ -119,15 +151,28 @@ public class PipelinedSorter extends ExternalSorter {
     // buffers and accounting
     int maxMemUsage = sortmb << 20;
     maxMemUsage -= maxMemUsage % METASIZE;
-    largeBuffer = ByteBuffer.allocate(maxMemUsage);
-    LOG.info(TezJobConfig.TEZ_RUNTIME_IO_SORT_MB + " = " + sortmb);
+    useDirectBuffers = isSortBufferOffHeap(this.conf);
+    // kvmeta and kvbuffer of every SortSpan are slices of largeBuffer, so a
+    // direct allocation keeps both the data and the sort metadata off-heap
+    if (useDirectBuffers) {
+      largeBuffer = allocateDirectBuffer(maxMemUsage);
+    } else {
+      largeBuffer = ByteBuffer.allocate(maxMemUsage);
+    }
+    LOG.info(TezJobConfig.TEZ_RUNTIME_IO_SORT_MB + " = " + sortmb
+        + ", " + TezJobConfig.TEZ_RUNTIME_PIPELINED_SORTER_DIRECT_BUFFERS + " = " + useDirectBuffers);
+    itemMetaSize = METASIZE + (keyPrefixExtractor != null ? PREFIXSIZE : 0);
     // TODO: configurable setting?
     span = new SortSpan(largeBuffer, 1024*1024, 16);
     merger = new SpanMerger(comparator);
-    final int sortThreads = 
+    sortThreads = 
             this.conf.getInt(
                 TezJobConfig.TEZ_RUNTIME_SORT_THREADS, 
                 TezJobConfig.TEZ_RUNTIME_SORT_THREADS_DEFAULT);
+    bucketByPartition = partitions > 1 && this.conf.getBoolean(
+        TezJobConfig.TEZ_RUNTIME_PIPELINED_SORTER_PARTITION_BUCKETING,
+        TezJobConfig.TEZ_RUNTIME_PIPELINED_SORTER_PARTITION_BUCKETING_DEFAULT);
+    LOG.info(TezJobConfig.TEZ_RUNTIME_PIPELINED_SORTER_PARTITION_BUCKETING + " = " + bucketByPartition);
     sortmaster = Executors.newFixedThreadPool(sortThreads,
         new ThreadFactoryBuilder().setDaemon(true)
         .setNameFormat("Sorter [" + TezUtils.cleanVertexName(outputContext.getDestinationVertexName()) + "] #%d")
@@ -166,7 +211,7 @@ public class PipelinedSorter extends ExternalSorter {
       if(span.length() != 0) {
         items = span.length();
         perItem = span.kvbuffer.limit()/items;
-        items = (largeBuffer.capacity())/(METASIZE+perItem);
+        items = (largeBuffer.capacity())/(itemMetaSize+perItem);
         if(items > 1024*1024) {
             // our goal is to have 1M splits and sort early
             items = 1024*1024;
@@ -263,6 +308,8 @@ public class PipelinedSorter extends ExternalSorter {
     final Path filename =
       mapOutputFile.getSpillFileForWrite(numSpills, size);    
     FSDataOutputStream out = rfs.create(filename, true, 4096);
+    final TezKeyIndex keyIndex =
+        (writeKeyIndex && numSpills == 0) ? new TezKeyIndex(partitions) : null;
 
     try {
       merger.ready(); // wait for all the future results from sort threads
@@ -292,6 +339,9 @@ public class PipelinedSorter extends ExternalSorter {
                 writer.getRawLength(), 
                 writer.getCompressedLength());
         spillRec.putIndex(rec, i);
+        if (keyIndex != null) {
+          keyIndex.putEntries(writer.getKeyIndex(), i);
+        }
       }
 
       Path indexFilename =
@@ -299,6 +349,9 @@ public class PipelinedSorter extends ExternalSorter {
             * MAP_OUTPUT_INDEX_RECORD_LENGTH);
       // TODO: cache
       spillRec.writeToFile(indexFilename, conf);
+      if (keyIndex != null) {
+        firstSpillKeyIndex = keyIndex;
+      }
       ++numSpills;
     } catch(InterruptedException ie) {
       // TODO:the combiner has been interrupted
@@ -319,11 +372,11 @@ public class PipelinedSorter extends ExternalSorter {
     span.end();
     merger.add(span.sort(sorter, comparator));
     spill();
-    sortmaster.shutdown();
 
-    largeBuffer = null;
+    releaseBuffer();
 
     if(numSpills == 1) {
+      sortmaster.shutdown();
       // someday be able to pass this directly to shuffle
       // without writing to disk
       final Path filename =
@@ -331,14 +384,16 @@ public class PipelinedSorter extends ExternalSorter {
       Path indexFilename =
               mapOutputFile.getSpillIndexFile(0);
       sameVolRename(filename, mapOutputFile.getOutputFileForWriteInVolume(filename));
-      sameVolRename(indexFilename, mapOutputFile.getOutputIndexFileForWriteInVolume(indexFilename));
+      Path outputIndexFile = mapOutputFile.getOutputIndexFileForWriteInVolume(indexFilename);
+      sameVolRename(indexFilename, outputIndexFile);
+      if (firstSpillKeyIndex != null) {
+        firstSpillKeyIndex.writeToFile(TezKeyIndex.getKeyIndexFile(outputIndexFile), conf);
+      }
       return;
     }
     
-    //The output stream for the final single output file
-    FSDataOutputStream finalOut = rfs.create(finalOutputFile, true, 4096);
-
     final TezSpillRecord spillRec = new TezSpillRecord(partitions);
+    final TezKeyIndex keyIndex = writeKeyIndex ? new TezKeyIndex(partitions) : null;
     final ArrayList<TezSpillRecord> indexCacheList = new ArrayList<TezSpillRecord>();
 
     for(int i = 0; i < numSpills; i++) {
@@ -347,63 +402,34 @@ public class PipelinedSorter extends ExternalSorter {
       TezSpillRecord spillIndex = new TezSpillRecord(indexFilename, conf);
       indexCacheList.add(spillIndex);
     }
-    
-    for (int parts = 0; parts < partitions; parts++) {
-      //create the segments to be merged
-      List<Segment> segmentList =
-          new ArrayList<Segment>(numSpills);
-      for(int i = 0; i < numSpills; i++) {
-        Path spillFilename = mapOutputFile.getSpillFile(i);
-        TezIndexRecord indexRecord = indexCacheList.get(i).getIndex(parts);
-
-        Segment s =
-            new Segment(conf, rfs, spillFilename, indexRecord.getStartOffset(),
-                             indexRecord.getPartLength(), codec, ifileReadAhead,
-                             ifileReadAheadLength, ifileBufferSize, true);
-        segmentList.add(i, s);
-      }
-
-      int mergeFactor = 
-              this.conf.getInt(TezJobConfig.TEZ_RUNTIME_IO_SORT_FACTOR, 
-                  TezJobConfig.TEZ_RUNTIME_IO_SORT_FACTOR_DEFAULT);
-      // sort the segments only if there are intermediate merges
-      boolean sortSegments = segmentList.size() > mergeFactor;
-      //merge
-      TezRawKeyValueIterator kvIter = TezMerger.merge(conf, rfs,
-                     keyClass, valClass, codec,
-                     segmentList, mergeFactor,
-                     new Path(uniqueIdentifier),
-                     (RawComparator)ConfigUtils.getIntermediateOutputKeyComparator(conf), 
-                     nullProgressable, sortSegments, true,
-                     null, spilledRecordsCounter, null,
-                     null); // Not using any Progress in TezMerger. Should just work.
-
-      //write merged output to disk
-      long segmentStart = finalOut.getPos();
-      Writer writer =
-          new Writer(conf, finalOut, keyClass, valClass, codec,
-                           spilledRecordsCounter, null);
-      writer.setRLE(merger.needsRLE());
-      if (combiner == null || numSpills < minSpillsForCombine) {
-        TezMerger.writeFile(kvIter, writer, nullProgressable, TezJobConfig.TEZ_RUNTIME_RECORDS_BEFORE_PROGRESS_DEFAULT);
+
+    // The combiner is not thread safe, so merges which run it stay sequential
+    final boolean combineOnMerge = combiner != null && numSpills >= minSpillsForCombine;
+    final boolean needsRLE = merger.needsRLE();
+    try {
+      if (sortThreads > 1 && partitions > 1 && !combineOnMerge) {
+        mergePartitionsInParallel(indexCacheList, finalOutputFile, spillRec, keyIndex, needsRLE);
       } else {
-        runCombineProcessor(kvIter, writer);
+        //The output stream for the final single output file
+        FSDataOutputStream finalOut = rfs.create(finalOutputFile, true, 4096);
+        try {
+          for (int parts = 0; parts < partitions; parts++) {
+            final TezIndexRecord rec = mergePartition(parts, indexCacheList, finalOut,
+                new Path(uniqueIdentifier), keyIndex, needsRLE, combineOnMerge);
+            spillRec.putIndex(rec, parts);
+          }
+        } finally {
+          finalOut.close();
+        }
       }
-
-      //close
-      writer.close();
-
-      // record offsets
-      final TezIndexRecord rec = 
-          new TezIndexRecord(
-              segmentStart, 
-              writer.getRawLength(), 
-              writer.getCompressedLength());
-      spillRec.putIndex(rec, parts);
+    } finally {
+      sortmaster.shutdownNow();
     }
 
     spillRec.writeToFile(finalIndexFile, conf);
-    finalOut.close();
+    if (keyIndex != null) {
+      keyIndex.writeToFile(TezKeyIndex.getKeyIndexFile(finalIndexFile), conf);
+    }
     for(int i = 0; i < numSpills; i++) {
       Path indexFilename = mapOutputFile.getSpillIndexFile(i);
       Path spillFilename = mapOutputFile.getSpillFile(i);
@@ -412,7 +438,268 @@ public class PipelinedSorter extends ExternalSorter {
     }
   }
 
-  public void close() { }
+  /**
+   * Merge all spills of a single partition and write the result to out,
+   * starting at its current position. The keys of the partition are added to
+   * keyIndex, if it is not null.
+   * @return the index record of the merged partition within out
+   */
+  private TezIndexRecord mergePartition(int parts, List<TezSpillRecord> indexCacheList,
+      FSDataOutputStream out, Path tmpDir, TezKeyIndex keyIndex, boolean needsRLE,
+      boolean combineOnMerge) throws IOException {
+    //create the segments to be merged
+    List<Segment> segmentList =
+        new ArrayList<Segment>(numSpills);
+    for(int i = 0; i < numSpills; i++) {
+      Path spillFilename = mapOutputFile.getSpillFile(i);
+      TezIndexRecord indexRecord = indexCacheList.get(i).getIndex(parts);
+
+      Segment s =
+          new Segment(conf, rfs, spillFilename, indexRecord.getStartOffset(),
+                           indexRecord.getPartLength(), codec, ifileReadAhead,
+                           ifileReadAheadLength, ifileBufferSize, true);
+      segmentList.add(i, s);
+    }
+
+    int mergeFactor = 
+            this.conf.getInt(TezJobConfig.TEZ_RUNTIME_IO_SORT_FACTOR, 
+                TezJobConfig.TEZ_RUNTIME_IO_SORT_FACTOR_DEFAULT);
+    // sort the segments only if there are intermediate merges
+    boolean sortSegments = segmentList.size() > mergeFactor;
+    //merge
+    TezRawKeyValueIterator kvIter = TezMerger.merge(conf, rfs,
+                   keyClass, valClass, codec,
+                   segmentList, mergeFactor,
+                   tmpDir,
+                   (RawComparator)ConfigUtils.getIntermediateOutputKeyComparator(conf), 
+                   nullProgressable, sortSegments, true,
+                   null, spilledRecordsCounter, null,
+                   null); // Not using any Progress in TezMerger. Should just work.
+
+    //write merged output to disk
+    long segmentStart = out.getPos();
+    Writer writer =
+        new Writer(conf, out, keyClass, valClass, codec,
+                         spilledRecordsCounter, null);
+    writer.setRLE(needsRLE);
+    if (!combineOnMerge) {
+      TezMerger.writeFile(kvIter, writer, nullProgressable, TezJobConfig.TEZ_RUNTIME_RECORDS_BEFORE_PROGRESS_DEFAULT);
+    } else {
+      runCombineProcessor(kvIter, writer);
+    }
+
+    //close
+    writer.close();
+    if (keyIndex != null) {
+      keyIndex.putEntries(writer.getKeyIndex(), parts);
+    }
+
+    // record offsets
+    return new TezIndexRecord(
+            segmentStart, 
+            writer.getRawLength(), 
+            writer.getCompressedLength());
+  }
+
+  /**
+   * Merge partitions concurrently on the sortmaster pool, each straight into
+   * its own region of the final output. The size of a merged partition is
+   * only known once it has been written (compression, RLE), so a region is
+   * sized for the segments of the partition in all spills put together, which
+   * the merge does not exceed unless compression does worse on the merged
+   * data. Such a partition is merged again into a file of its own, and
+   * appended after the regions. The index points at each partition, the
+   * space left at the end of a region is never read.
+   */
+  private void mergePartitionsInParallel(final List<TezSpillRecord> indexCacheList,
+      final Path finalOutputFile, TezSpillRecord spillRec, final TezKeyIndex keyIndex,
+      final boolean needsRLE) throws IOException {
+    final String uniqueIdentifier = outputContext.getUniqueIdentifier();
+    final long[] regionStart = new long[partitions];
+    final long[] regionLength = new long[partitions];
+    long regionsEnd = 0;
+    for (int parts = 0; parts < partitions; parts++) {
+      regionStart[parts] = regionsEnd;
+      regionLength[parts] = getMergedPartitionBound(parts, indexCacheList);
+      regionsEnd += regionLength[parts];
+    }
+    final Path[] overflowFiles = new Path[partitions];
+    final List<Future<TezIndexRecord>> futures =
+        new ArrayList<Future<TezIndexRecord>>(partitions);
+    LOG.info("Merging " + partitions + " partitions with " + sortThreads + " threads");
+
+    rfs.mkdirs(finalOutputFile.getParent());
+    RandomAccessFile finalFile =
+        new RandomAccessFile(((RawLocalFileSystem) rfs).pathToFile(finalOutputFile), "rw");
+    try {
+      finalFile.setLength(0);
+      final FileChannel channel = finalFile.getChannel();
+      for (int parts = 0; parts < partitions; parts++) {
+        final int partition = parts;
+        futures.add(sortmaster.submit(new Callable<TezIndexRecord>() {
+          @Override
+          public TezIndexRecord call() throws IOException {
+            final Path tmpDir = new Path(uniqueIdentifier + "_" + partition);
+            try {
+              FSDataOutputStream out = new FSDataOutputStream(new BufferedOutputStream(
+                  new RegionOutputStream(channel, regionStart[partition],
+                      regionLength[partition]), 64 * 1024), null, regionStart[partition]);
+              TezIndexRecord rec = mergePartition(partition, indexCacheList, out, tmpDir,
+                  keyIndex, needsRLE, false);
+              out.close();
+              return rec;
+            } catch (RegionFullException e) {
+              LOG.info("Merged partition " + partition + " does not fit in "
+                  + regionLength[partition] + " bytes, merging it into a separate file");
+            }
+            overflowFiles[partition] = finalOutputFile.suffix("." + partition);
+            FSDataOutputStream out = rfs.create(overflowFiles[partition], true, 4096);
+            try {
+              return mergePartition(partition, indexCacheList, out, tmpDir, keyIndex, needsRLE,
+                  false);
+            } finally {
+              out.close();
+            }
+          }
+        }));
+      }
+
+      long overflowEnd = regionsEnd;
+      for (int parts = 0; parts < partitions; parts++) {
+        TezIndexRecord partRec;
+        try {
+          partRec = futures.get(parts).get();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while merging partition " + parts, e);
+        } catch (ExecutionException e) {
+          throw new IOException("Failed to merge partition " + parts, e.getCause());
+        }
+        if (overflowFiles[parts] != null) {
+          channel.position(overflowEnd);
+          FSDataInputStream in = rfs.open(overflowFiles[parts]);
+          try {
+            IOUtils.copyBytes(in, Channels.newOutputStream(channel), 64 * 1024, false);
+          } finally {
+            in.close();
+          }
+          partRec = new TezIndexRecord(overflowEnd, partRec.getRawLength(),
+              partRec.getPartLength());
+          overflowEnd += partRec.getPartLength();
+        }
+        spillRec.putIndex(partRec, parts);
+      }
+    } finally {
+      for (int parts = 0; parts < futures.size(); parts++) {
+        futures.get(parts).cancel(true);
+      }
+      finalFile.close();
+      for (int parts = 0; parts < partitions; parts++) {
+        if (overflowFiles[parts] != null) {
+          rfs.delete(overflowFiles[parts], false);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the space to set aside in the final output for a partition merged
+   *         from all spills
+   */
+  @VisibleForTesting
+  long getMergedPartitionBound(int partition, List<TezSpillRecord> indexCacheList) {
+    long length = 0;
+    for (TezSpillRecord spillIndex : indexCacheList) {
+      length += spillIndex.getIndex(partition).getPartLength();
+    }
+    return length;
+  }
+
+  /**
+   * Thrown when a merged partition outgrows its region of the final output.
+   */
+  private static class RegionFullException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    RegionFullException(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * Writes to a region of a file which is shared with concurrent writers.
+   */
+  private static class RegionOutputStream extends OutputStream {
+    private final FileChannel channel;
+    private final long end;
+    private long position;
+
+    RegionOutputStream(FileChannel channel, long start, long length) {
+      this.channel = channel;
+      this.position = start;
+      this.end = start + length;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (position + len > end) {
+        throw new RegionFullException("Region ending at " + end + " is full");
+      }
+      ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+      while (buf.hasRemaining()) {
+        position += channel.write(buf, position);
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    sortmaster.shutdownNow();
+    try {
+      // Sort tasks may still be using the buffer if the output failed
+      if (!sortmaster.awaitTermination(10, TimeUnit.SECONDS)) {
+        LOG.warn("Sort threads did not stop, not reusing the sort buffer");
+        largeBuffer = null;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      largeBuffer = null;
+    }
+    releaseBuffer();
+  }
+
+  private void releaseBuffer() {
+    if (largeBuffer != null && useDirectBuffers) {
+      releaseDirectBuffer(largeBuffer);
+    }
+    largeBuffer = null;
+  }
+
+  private static synchronized ByteBuffer allocateDirectBuffer(int size) {
+    ByteBuffer buffer = releasedDirectBuffer;
+    releasedDirectBuffer = null;
+    if (buffer != null && buffer.capacity() == size) {
+      LOG.info("Reusing direct sort buffer of " + size + " bytes");
+      buffer.clear();
+      return buffer;
+    }
+    // A buffer of another size is left to GC
+    return ByteBuffer.allocateDirect(size);
+  }
+
+  private static synchronized void releaseDirectBuffer(ByteBuffer buffer) {
+    releasedDirectBuffer = buffer;
+  }
+
+  @VisibleForTesting
+  static synchronized ByteBuffer getReleasedDirectBuffer() {
+    return releasedDirectBuffer;
+  }
 
   private interface PartitionedRawKeyValueIterator extends TezRawKeyValueIterator {
     int getPartition();
@@ -465,30 +752,31 @@ public class PipelinedSorter extends ExternalSorter {
     final ByteBuffer kvbuffer;
     final DataOutputStream out;    
     private RawComparator comparator; 
-    final int imeta[] = new int[NMETA];
-    final int jmeta[] = new int[NMETA];
     int keymax = 1;
     int valmax = 1;
-    private int i,j;
     private byte[] ki;
     private byte[] kj;
     private int index = 0;
     private InputByteBuffer hay = new InputByteBuffer();
     private long eq = 0;
+    // key prefixes indexed by item, reserved after kvmeta and only populated
+    // while sorting
+    private final LongBuffer prefixes;
 
     public SortSpan(ByteBuffer source, int maxItems, int perItem) {
       int capacity = source.remaining(); 
-      int metasize = METASIZE*maxItems;
       int dataSize = maxItems * perItem;
-      if(capacity < (metasize+dataSize)) {
+      if(capacity < (itemMetaSize*maxItems+dataSize)) {
         // try to allocate less meta space, because we have sample data
-        metasize = METASIZE*(capacity/(perItem+METASIZE));
+        maxItems = capacity/(perItem+itemMetaSize);
       }
+      int metasize = METASIZE*maxItems;
+      int reservedSize = itemMetaSize*maxItems;
       ByteBuffer reserved = source.duplicate();
       reserved.mark();
       LOG.info("reserved.remaining() = "+reserved.remaining());
-      LOG.info("reserved.size = "+metasize);
-      reserved.position(metasize);
+      LOG.info("reserved.size = "+reservedSize);
+      reserved.position(reservedSize);
       kvbuffer = reserved.slice();
       reserved.flip();
       reserved.limit(metasize);
@@ -496,17 +784,35 @@ public class PipelinedSorter extends ExternalSorter {
                 .slice()
                 .order(ByteOrder.nativeOrder())
                .asIntBuffer();
+      if(keyPrefixExtractor != null) {
+        reserved.limit(reservedSize);
+        reserved.position(metasize);
+        prefixes = reserved
+                .slice()
+                .order(ByteOrder.nativeOrder())
+                .asLongBuffer();
+      } else {
+        prefixes = null;
+      }
       out = new DataOutputStream(
               new BufferStreamWrapper(kvbuffer));
     }
 
-    public SpanIterator sort(IndexedSorter sorter, RawComparator comparator) {
+    public SpanIterator sort(IndexedSorter sorter, RawComparator comparator)
+        throws IOException {
     	this.comparator = comparator;
       ki = new byte[keymax];
       kj = new byte[keymax];
       LOG.info("begin sorting Span"+index + " ("+length()+")");
       if(length() > 1) {
-        sorter.sort(this, 0, length(), nullProgressable);
+        if(keyPrefixExtractor != null) {
+          computePrefixes();
+        }
+        if(bucketByPartition) {
+          sortByPartition(sorter);
+        } else {
+          sorter.sort(this, 0, length(), nullProgressable);
+        }
       }
       LOG.info("done sorting Span"+index);
       return new SpanIterator(this);
@@ -516,20 +822,85 @@ public class PipelinedSorter extends ExternalSorter {
       return (i * NMETA);
     }
 
+    private void computePrefixes() {
+      final int n = length();
+      for(int i = 0; i < n; i++) {
+        final int kvi = offsetFor(i);
+        final int istart = kvmeta.get(kvi + KEYSTART);
+        final int ilen = kvmeta.get(kvi + VALSTART) - istart;
+        kvbuffer.position(istart);
+        kvbuffer.get(ki, 0, ilen);
+        prefixes.put(i, keyPrefixExtractor.getPrefix(ki, 0, ilen));
+      }
+    }
+
+    /**
+     * Counting sort of the span on partition id, followed by a key sort of
+     * each partition. Buckets are handed to the sortmaster pool as soon as
+     * their items are in place, so key sorts overlap the rest of the pass.
+     */
+    private void sortByPartition(IndexedSorter sorter) throws IOException {
+      final int n = length();
+      final int[] bucketStart = new int[partitions];
+      final int[] bucketEnd = new int[partitions];
+      for(int i = 0; i < n; i++) {
+        bucketEnd[partitionOf(i)]++;
+      }
+      int sum = 0;
+      for(int p = 0; p < partitions; p++) {
+        bucketStart[p] = sum;
+        sum += bucketEnd[p];
+        bucketEnd[p] = sum;
+      }
+      final PartitionBucketSorter bucketSorter =
+          new PartitionBucketSorter(sorter, bucketStart, bucketEnd);
+      // in-place permutation; once bucket p is complete no later step touches it
+      final int[] next = bucketStart.clone();
+      for(int p = 0; p < partitions; p++) {
+        while(next[p] < bucketEnd[p]) {
+          final int q = partitionOf(next[p]);
+          if(q == p) {
+            next[p]++;
+          } else {
+            swap(next[p], next[q]);
+            next[q]++;
+          }
+        }
+        bucketSorter.ready(p);
+      }
+      bucketSorter.finish();
+    }
+
+    private int partitionOf(int i) {
+      return kvmeta.get(offsetFor(i) + PARTITION) >>> (32 - partitionBits);
+    }
+
     public void swap(final int mi, final int mj) {
       final int kvi = offsetFor(mi);
       final int kvj = offsetFor(mj);
 
-      kvmeta.position(kvi); kvmeta.get(imeta);
-      kvmeta.position(kvj); kvmeta.get(jmeta);
-      kvmeta.position(kvj); kvmeta.put(imeta);
-      kvmeta.position(kvi); kvmeta.put(jmeta);
+      // absolute accesses only, disjoint partition buckets are sorted concurrently
+      for(int k = 0; k < NMETA; k++) {
+        final int tmp = kvmeta.get(kvi + k);
+        kvmeta.put(kvi + k, kvmeta.get(kvj + k));
+        kvmeta.put(kvj + k, tmp);
+      }
 
-      if(i == mi || j == mj) i = -1;
-      if(i == mi || j == mj) j = -1;
+      if(prefixes != null) {
+        final long tmp = prefixes.get(mi);
+        prefixes.put(mi, prefixes.get(mj));
+        prefixes.put(mj, tmp);
+      }
     }
 
     public int compare(final int mi, final int mj) {
+      final int cmp = compare(mi, mj, kvbuffer, ki, kj);
+      if(cmp == 0) eq++;
+      return cmp;
+    }
+
+    private int compare(final int mi, final int mj, ByteBuffer kvbuffer,
+        byte[] ki, byte[] kj) {
       final int kvi = offsetFor(mi);
       final int kvj = offsetFor(mj);
       final int kvip = kvmeta.get(kvi + PARTITION);
@@ -538,6 +909,14 @@ public class PipelinedSorter extends ExternalSorter {
       if (kvip != kvjp) {
         return kvip - kvjp;
       }
+      // sort by key prefix
+      if (prefixes != null) {
+        final long ipre = prefixes.get(mi);
+        final long jpre = prefixes.get(mj);
+        if (ipre != jpre) {
+          return ipre < jpre ? -1 : 1;
+        }
+      }
       
       final int istart = kvmeta.get(kvi + KEYSTART);
       final int jstart = kvmeta.get(kvj + KEYSTART);
@@ -549,9 +928,114 @@ public class PipelinedSorter extends ExternalSorter {
       kvbuffer.position(jstart);
       kvbuffer.get(kj, 0, jlen);
       // sort by key
-      final int cmp = comparator.compare(ki, 0, ilen, kj, 0, jlen);
-      if(cmp == 0) eq++;
-      return cmp;
+      return comparator.compare(ki, 0, ilen, kj, 0, jlen);
+    }
+
+    /**
+     * Sorts a single partition bucket with its own scratch space and view of
+     * kvbuffer, so that several buckets of a span can be sorted at once.
+     */
+    private class BucketSortable implements IndexedSortable {
+      private final ByteBuffer buf = kvbuffer.duplicate();
+      private final byte[] bi = new byte[keymax];
+      private final byte[] bj = new byte[keymax];
+      private long eq = 0;
+
+      public int compare(final int mi, final int mj) {
+        final int cmp = SortSpan.this.compare(mi, mj, buf, bi, bj);
+        if(cmp == 0) eq++;
+        return cmp;
+      }
+
+      public void swap(final int mi, final int mj) {
+        SortSpan.this.swap(mi, mj);
+      }
+    }
+
+    /**
+     * Sorts completed partition buckets on the calling thread and on helper
+     * tasks in the sortmaster pool. The caller never waits for a helper that
+     * has not started, so this cannot deadlock when the span itself is being
+     * sorted on a pool thread.
+     */
+    private class PartitionBucketSorter implements Runnable {
+      private static final int DONE = -1;
+      private final IndexedSorter sorter;
+      private final int[] bucketStart;
+      private final int[] bucketEnd;
+      private final BlockingQueue<Integer> readyBuckets = new LinkedBlockingQueue<Integer>();
+      private final Semaphore sortedBuckets = new Semaphore(0);
+      private final AtomicLong bucketEq = new AtomicLong();
+      private final int helpers;
+      private int published = 0;
+      private volatile Throwable sortException = null;
+
+      public PartitionBucketSorter(IndexedSorter sorter, int[] bucketStart, int[] bucketEnd) {
+        this.sorter = sorter;
+        this.bucketStart = bucketStart;
+        this.bucketEnd = bucketEnd;
+        this.helpers = sortThreads - 1;
+        for(int i = 0; i < helpers; i++) {
+          sortmaster.submit(this);
+        }
+      }
+
+      public void ready(int partition) {
+        if(bucketEnd[partition] - bucketStart[partition] > 1) {
+          published++;
+          readyBuckets.add(partition);
+        }
+      }
+
+      public void finish() throws IOException {
+        final BucketSortable sortable = new BucketSortable();
+        Integer partition;
+        while((partition = readyBuckets.poll()) != null) {
+          sortBucket(sortable, partition);
+        }
+        for(int i = 0; i < helpers; i++) {
+          readyBuckets.add(DONE);
+        }
+        try {
+          sortedBuckets.acquire(published);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while sorting partition buckets", e);
+        }
+        if(sortException != null) {
+          throw new IOException("Failed to sort partition buckets", sortException);
+        }
+        eq += bucketEq.get();
+      }
+
+      @Override
+      public void run() {
+        final BucketSortable sortable = new BucketSortable();
+        try {
+          while(true) {
+            final int partition = readyBuckets.take();
+            if(partition == DONE) {
+              return;
+            }
+            sortBucket(sortable, partition);
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+
+      private void sortBucket(BucketSortable sortable, int partition) {
+        try {
+          sortable.eq = 0;
+          sorter.sort(sortable, bucketStart[partition], bucketEnd[partition],
+              nullProgressable);
+          bucketEq.addAndGet(sortable.eq);
+        } catch (Throwable t) {
+          sortException = t;
+        } finally {
+          sortedBuckets.release();
+        }
+      }
     }
 
     public SortSpan next() {
@@ -582,7 +1066,7 @@ public class PipelinedSorter extends ExternalSorter {
       }
       int perItem = kvbuffer.position()/items;
       LOG.info(String.format("Span%d.length = %d, perItem = %d", index, length(), perItem));
-      if(remaining.remaining() < METASIZE+perItem) {
+      if(remaining.remaining() < itemMetaSize+perItem) {
         return null;
       }
       return remaining;
@@ -760,7 +1244,7 @@ public class PipelinedSorter extends ExternalSorter {
         this.comparator = comparator;
     }
 
-    public SpanIterator call() {
+    public SpanIterator call() throws IOException {
       return sortable.sort(sorter, comparator);
     }
   }
@@ -0,0 +1,235 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.sort.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+import org.apache.hadoop.io.IOUtils;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Reads merge segments ahead of the merge on a bounded pool of I/O threads.
+ *
+ * Each prefetched segment gets two buffers: the merge consumes one while the
+ * next part of the segment is read into the other. The memory for all buffers
+ * is bounded; once it is in use, further segments are read on the merge
+ * thread as before. Buffers are given back when the segment is closed.
+ */
+@Private
+public class SegmentPrefetcher {
+
+  private static final Log LOG = LogFactory.getLog(SegmentPrefetcher.class);
+
+  private final ThreadPoolExecutor ioThreads;
+  private final int bufferSize;
+  private final long maxMemory;
+
+  // Guarded by this
+  private long usedMemory = 0;
+
+  public SegmentPrefetcher(int numThreads, int bufferSize, long maxMemory, String name) {
+    Preconditions.checkArgument(numThreads > 0, "Invalid number of threads: " + numThreads);
+    Preconditions.checkArgument(bufferSize > 0, "Invalid buffer size: " + bufferSize);
+    this.bufferSize = bufferSize;
+    this.maxMemory = maxMemory;
+    // Idle threads go away, the prefetcher lives as long as the merge output
+    // is being read and needs no shutdown.
+    this.ioThreads = new ThreadPoolExecutor(numThreads, numThreads, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat(name + " #%d").build());
+    this.ioThreads.allowCoreThreadTimeOut(true);
+    LOG.info("SegmentPrefetcher: numThreads=" + numThreads + ", bufferSize=" + bufferSize
+        + ", maxMemory=" + maxMemory);
+  }
+
+  /**
+   * Starts reading ahead from a stream, if the memory for it is available.
+   *
+   * @param in the stream, positioned at the start of the segment
+   * @param length number of bytes to read from the stream
+   * @return a stream over the next length bytes of in, which closes in when
+   *         closed. Either in itself, or one which is read ahead.
+   */
+  public InputStream prefetch(InputStream in, long length) {
+    if (length <= 0 || !reserve(2L * bufferSize)) {
+      return in;
+    }
+    return new PrefetchingInputStream(in, length);
+  }
+
+  private synchronized boolean reserve(long size) {
+    if (usedMemory + size > maxMemory) {
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Not prefetching segment, memory in use: " + usedMemory);
+      }
+      return false;
+    }
+    usedMemory += size;
+    return true;
+  }
+
+  private synchronized void unreserve(long size) {
+    usedMemory -= size;
+  }
+
+  @VisibleForTesting
+  synchronized long getUsedMemory() {
+    return usedMemory;
+  }
+
+  private class PrefetchingInputStream extends InputStream {
+
+    private final InputStream in;
+    // Bytes of in which have not been handed to a fill yet
+    private long remaining;
+
+    private byte[] current;
+    private int pos = 0;
+    private int limit = 0;
+
+    private byte[] next;
+    private Future<Integer> pendingFill;
+    private boolean closed = false;
+
+    PrefetchingInputStream(InputStream in, long length) {
+      this.in = in;
+      this.remaining = length;
+      this.current = new byte[bufferSize];
+      this.next = new byte[bufferSize];
+      scheduleFill();
+    }
+
+    private void scheduleFill() {
+      if (remaining == 0) {
+        pendingFill = null;
+        return;
+      }
+      final byte[] buffer = next;
+      final int toRead = (int) Math.min(bufferSize, remaining);
+      remaining -= toRead;
+      pendingFill = ioThreads.submit(new Callable<Integer>() {
+        @Override
+        public Integer call() throws IOException {
+          IOUtils.readFully(in, buffer, 0, toRead);
+          return toRead;
+        }
+      });
+    }
+
+    /**
+     * Waits for the pending fill, and starts the next one into the buffer
+     * which has been consumed.
+     *
+     * @return false at the end of the segment
+     */
+    private boolean swapBuffers() throws IOException {
+      if (closed) {
+        throw new IOException("Stream closed");
+      }
+      if (pendingFill == null) {
+        return false;
+      }
+      try {
+        limit = pendingFill.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for segment data");
+      } catch (ExecutionException e) {
+        pendingFill = null;
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+          throw (IOException) cause;
+        }
+        throw new IOException(cause);
+      }
+      pos = 0;
+      byte[] filled = next;
+      next = current;
+      current = filled;
+      scheduleFill();
+      return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (pos == limit && !swapBuffers()) {
+        return -1;
+      }
+      return current[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      Preconditions.checkPositionIndexes(off, off + len, b.length);
+      if (len == 0) {
+        return 0;
+      }
+      if (pos == limit && !swapBuffers()) {
+        return -1;
+      }
+      int n = Math.min(len, limit - pos);
+      System.arraycopy(current, pos, b, off, n);
+      pos += n;
+      return n;
+    }
+
+    @Override
+    public int available() {
+      return limit - pos;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      try {
+        // A fill which is running still uses the stream and the buffer
+        if (pendingFill != null && !pendingFill.cancel(false)) {
+          pendingFill.get();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (ExecutionException e) {
+        // Nothing is going to read the data
+      } finally {
+        pendingFill = null;
+        current = null;
+        next = null;
+        unreserve(2L * bufferSize);
+        in.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,190 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.sort.impl;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Checksum;
+
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.ChecksumException;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.util.PureJavaCrc32;
+
+/**
+ * A sparse index of the keys within each partition of a sorted output, which
+ * complements the offsets in {@link TezSpillRecord}. Every entry is a key
+ * written in full at the start of a record, and the offset of that record
+ * from the start of the partition. See
+ * {@link IFile.Reader#seekToKey(org.apache.hadoop.io.DataInputBuffer, List, RawComparator)}.
+ *
+ * The index is stored next to the index file of the output, in a file named
+ * by {@link #getKeyIndexFile(Path)}.
+ */
+@Private
+public class TezKeyIndex {
+
+  public static final String KEY_INDEX_SUFFIX_STRING = ".keys";
+
+  public static class Entry {
+    private final byte[] key;
+    private final long offset;
+
+    public Entry(byte[] key, long offset) {
+      this.key = key;
+      this.offset = offset;
+    }
+
+    public byte[] getKey() {
+      return key;
+    }
+
+    /**
+     * @return offset of the record from the start of the partition
+     */
+    public long getOffset() {
+      return offset;
+    }
+  }
+
+  private final List<List<Entry>> partitions;
+
+  public TezKeyIndex(int numPartitions) {
+    partitions = new ArrayList<List<Entry>>(numPartitions);
+    for (int i = 0; i < numPartitions; i++) {
+      partitions.add(Collections.<Entry>emptyList());
+    }
+  }
+
+  public TezKeyIndex(Path keyIndexFile, Configuration conf) throws IOException {
+    final FileSystem rfs = FileSystem.getLocal(conf).getRaw();
+    final FSDataInputStream in = rfs.open(keyIndexFile);
+    try {
+      Checksum crc = new PureJavaCrc32();
+      DataInputStream chk = new DataInputStream(new CheckedInputStream(in, crc));
+      int numPartitions = WritableUtils.readVInt(chk);
+      partitions = new ArrayList<List<Entry>>(numPartitions);
+      for (int i = 0; i < numPartitions; i++) {
+        int numEntries = WritableUtils.readVInt(chk);
+        List<Entry> entries = new ArrayList<Entry>(numEntries);
+        for (int j = 0; j < numEntries; j++) {
+          long offset = WritableUtils.readVLong(chk);
+          byte[] key = new byte[WritableUtils.readVInt(chk)];
+          chk.readFully(key);
+          entries.add(new Entry(key, offset));
+        }
+        partitions.add(entries);
+      }
+      if (crc.getValue() != in.readLong()) {
+        throw new ChecksumException("Checksum error reading key index: " + keyIndexFile, -1);
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * @return the key index file for the given output or spill index file
+   */
+  public static Path getKeyIndexFile(Path indexFile) {
+    return indexFile.suffix(KEY_INDEX_SUFFIX_STRING);
+  }
+
+  /**
+   * Return number of partitions in this index.
+   */
+  public int size() {
+    return partitions.size();
+  }
+
+  /**
+   * Get the entries of a partition, ordered by offset.
+   */
+  public List<Entry> getEntries(int partition) {
+    return partitions.get(partition);
+  }
+
+  public void putEntries(List<Entry> entries, int partition) {
+    partitions.set(partition, entries);
+  }
+
+  /**
+   * Finds the entry to start reading at, to find the first record with a key
+   * not less than the given key.
+   *
+   * @return the last entry with a key less than the given one, or null if
+   *         the partition has to be read from the start
+   */
+  public static Entry findEntry(List<Entry> entries, byte[] key, int offset, int length,
+      RawComparator comparator) {
+    // Keys are not unique. Starting at a key equal to the given one could
+    // skip records with the same key before it.
+    int low = 0;
+    int high = entries.size() - 1;
+    Entry found = null;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      byte[] midKey = entries.get(mid).getKey();
+      if (comparator.compare(midKey, 0, midKey.length, key, offset, length) < 0) {
+        found = entries.get(mid);
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Write this key index to the location provided.
+   */
+  public void writeToFile(Path loc, Configuration conf) throws IOException {
+    final FileSystem rfs = FileSystem.getLocal(conf).getRaw();
+    final FSDataOutputStream out = rfs.create(loc);
+    try {
+      Checksum crc = new PureJavaCrc32();
+      DataOutputStream chk = new DataOutputStream(new CheckedOutputStream(out, crc));
+      WritableUtils.writeVInt(chk, partitions.size());
+      for (List<Entry> entries : partitions) {
+        WritableUtils.writeVInt(chk, entries.size());
+        for (Entry entry : entries) {
+          WritableUtils.writeVLong(chk, entry.getOffset());
+          WritableUtils.writeVInt(chk, entry.getKey().length);
+          chk.write(entry.getKey());
+        }
+      }
+      chk.flush();
+      out.writeLong(crc.getValue());
+    } finally {
+      out.close();
+    }
+  }
+}
@@ -18,6 +18,7 @@
 package org.apache.tez.runtime.library.common.sort.impl;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -36,7 +37,6 @@ import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.DataInputBuffer;
 import org.apache.hadoop.io.RawComparator;
 import org.apache.hadoop.io.compress.CompressionCodec;
-import org.apache.hadoop.util.PriorityQueue;
 import org.apache.hadoop.util.Progress;
 import org.apache.hadoop.util.Progressable;
 import org.apache.tez.common.TezJobConfig;
@@ -185,13 +185,34 @@ public class TezMerger {
                           TezCounter bytesReadCounter,
                           Progress mergePhase)
     throws IOException {
-  return new MergeQueue(conf, fs, segments, comparator, reporter,
-                         sortSegments, codec, false).merge(keyClass, valueClass,
-                                             mergeFactor, inMemSegments,
-                                             tmpDir,
-                                             readsCounter, writesCounter,
-                                             bytesReadCounter,
-                                             mergePhase);
+  return merge(conf, fs, keyClass, valueClass, codec, segments, mergeFactor,
+      inMemSegments, tmpDir, comparator, reporter, sortSegments, readsCounter,
+      writesCounter, bytesReadCounter, mergePhase, null);
+}
+
+  /**
+   * Merges segments, reading on-disk segments ahead of the merge with the
+   * given prefetcher, if it is not null.
+   */
+  public static <K extends Object, V extends Object>
+  TezRawKeyValueIterator merge(Configuration conf, FileSystem fs,
+                          Class keyClass, Class valueClass,
+                          CompressionCodec codec,
+                          List<Segment> segments,
+                          int mergeFactor, int inMemSegments, Path tmpDir,
+                          RawComparator comparator, Progressable reporter,
+                          boolean sortSegments,
+                          TezCounter readsCounter,
+                          TezCounter writesCounter,
+                          TezCounter bytesReadCounter,
+                          Progress mergePhase,
+                          SegmentPrefetcher prefetcher)
+    throws IOException {
+  MergeQueue queue = new MergeQueue(conf, fs, segments, comparator, reporter,
+      sortSegments, codec, false);
+  queue.prefetcher = prefetcher;
+  return queue.merge(keyClass, valueClass, mergeFactor, inMemSegments, tmpDir,
+      readsCounter, writesCounter, bytesReadCounter, mergePhase);
 }
 
   public static <K extends Object, V extends Object>
@@ -288,11 +309,23 @@ public class TezMerger {
     }
 
     void init(TezCounter readsCounter, TezCounter byetsReadCounter) throws IOException {      
+      init(readsCounter, byetsReadCounter, null);
+    }
+
+    void init(TezCounter readsCounter, TezCounter byetsReadCounter,
+        SegmentPrefetcher prefetcher) throws IOException {
       if (reader == null) { 
         FSDataInputStream in = fs.open(file);
         in.seek(segmentOffset);
-        reader = new Reader(in, segmentLength, codec, readsCounter, byetsReadCounter,
-            ifileReadAhead, ifileReadAheadLength, bufferSize);
+        InputStream segmentIn = (prefetcher == null) ? in : prefetcher.prefetch(in, segmentLength);
+        if (segmentIn != in) {
+          // Read ahead by the prefetcher instead
+          reader = new Reader(segmentIn, segmentLength, codec, readsCounter, byetsReadCounter,
+              false, 0, bufferSize);
+        } else {
+          reader = new Reader(in, segmentLength, codec, readsCounter, byetsReadCounter,
+              ifileReadAhead, ifileReadAheadLength, bufferSize);
+        }
       }
       if (mapOutputsCounter != null) {
         mapOutputsCounter.increment(1);
@@ -368,7 +401,7 @@ public class TezMerger {
   }
 
   private static class MergeQueue<K extends Object, V extends Object> 
-  extends PriorityQueue<Segment> implements TezRawKeyValueIterator {
+  extends LoserTree<Segment> implements TezRawKeyValueIterator {
     Configuration conf;
     FileSystem fs;
     CompressionCodec codec;
@@ -396,6 +429,8 @@ public class TezMerger {
     final DataInputBuffer diskIFileValue = new DataInputBuffer();
     
     Segment minSegment;
+    // Reads ahead for on-disk segments, may be null
+    SegmentPrefetcher prefetcher;
     Comparator<Segment> segmentComparator =   
       new Comparator<Segment>() {
       public int compare(Segment o1, Segment o2) {
@@ -605,7 +640,7 @@ public class TezMerger {
             // Initialize the segment at the last possible moment;
             // this helps in ensuring we don't use buffers until we need them
 
-            segment.init(readsCounter, bytesReadCounter);
+            segment.init(readsCounter, bytesReadCounter, prefetcher);
             long startPos = segment.getPosition();
             boolean hasNext = segment.nextRawKey();
             long endPos = segment.getPosition();
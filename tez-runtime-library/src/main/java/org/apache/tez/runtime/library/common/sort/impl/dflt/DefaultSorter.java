@@ -46,6 +46,7 @@ import org.apache.tez.runtime.library.common.ConfigUtils;
 import org.apache.tez.runtime.library.common.sort.impl.ExternalSorter;
 import org.apache.tez.runtime.library.common.sort.impl.IFile;
 import org.apache.tez.runtime.library.common.sort.impl.TezIndexRecord;
+import org.apache.tez.runtime.library.common.sort.impl.TezKeyIndex;
 import org.apache.tez.runtime.library.common.sort.impl.TezMerger;
 import org.apache.tez.runtime.library.common.sort.impl.TezRawKeyValueIterator;
 import org.apache.tez.runtime.library.common.sort.impl.TezSpillRecord;
@@ -83,12 +84,20 @@ public class DefaultSorter extends ExternalSorter implements IndexedSortable {
   private final byte[] kvbuffer;        // main output buffer
   private final byte[] b0 = new byte[0];
 
+  // key prefixes for the records being sorted, indexed by (metapos - kvprefixbase)
+  private final long[] kvprefix;
+  private int kvprefixbase;
+  // whether the records being sorted have their key prefix in kvprefix
+  private boolean sortByPrefix;
+
   protected static final int VALSTART = 0;         // val offset in acct
   protected static final int KEYSTART = 1;         // key offset in acct
   protected static final int PARTITION = 2;        // partition offset in acct
   protected static final int VALLEN = 3;           // length of value
   protected static final int NMETA = 4;            // num meta ints
   protected static final int METASIZE = NMETA * 4; // size in bytes
+  // share of io.sort.mb set aside for key prefixes, if enabled
+  private static final int PREFIX_MEM_DIVISOR = 8;
 
   // spill accounting
   final int maxRec;
@@ -110,6 +119,8 @@ public class DefaultSorter extends ExternalSorter implements IndexedSortable {
     new ArrayList<TezSpillRecord>();
   private final int indexCacheMemoryLimit;
   private int totalIndexCacheMemory;
+  // Key index of the first spill, which is the output if there are no others
+  private TezKeyIndex firstSpillKeyIndex;
 
   public DefaultSorter(TezOutputContext outputContext, Configuration conf, int numOutputs,
       long initialMemoryAvailable) throws IOException {
@@ -133,6 +144,14 @@ public class DefaultSorter extends ExternalSorter implements IndexedSortable {
 
     // buffers and accounting
     int maxMemUsage = sortmb << 20;
+    if (keyPrefixExtractor != null) {
+      // Enough for spills of records with 40 bytes of key and value or more,
+      // larger spills are sorted without prefixes
+      kvprefix = new long[maxMemUsage / PREFIX_MEM_DIVISOR / 8];
+      maxMemUsage -= kvprefix.length * 8;
+    } else {
+      kvprefix = null;
+    }
     maxMemUsage -= maxMemUsage % METASIZE;
     kvbuffer = new byte[maxMemUsage];
     bufvoid = kvbuffer.length;
@@ -151,6 +170,9 @@ public class DefaultSorter extends ExternalSorter implements IndexedSortable {
       LOG.info("soft limit at " + softLimit);
       LOG.info("bufstart = " + bufstart + "; bufvoid = " + bufvoid);
       LOG.info("kvstart = " + kvstart + "; length = " + maxRec);
+      if (kvprefix != null) {
+        LOG.info("key prefixes = " + kvprefix.length);
+      }
     }
 
     // k/v serialization
@@ -377,7 +399,7 @@ public class DefaultSorter extends ExternalSorter implements IndexedSortable {
 
   /**
    * Compare logical range, st i, j MOD offset capacity.
-   * Compare by partition, then by key.
+   * Compare by partition, then by key prefix (if enabled), then by key.
    * @see IndexedSortable#compare
    */
   public int compare(final int mi, final int mj) {
@@ -389,6 +411,14 @@ public class DefaultSorter extends ExternalSorter implements IndexedSortable {
     if (kvip != kvjp) {
       return kvip - kvjp;
     }
+    // sort by key prefix
+    if (sortByPrefix) {
+      final long kvipre = kvprefix[mi - kvprefixbase];
+      final long kvjpre = kvprefix[mj - kvprefixbase];
+      if (kvipre != kvjpre) {
+        return kvipre < kvjpre ? -1 : 1;
+      }
+    }
     // sort by key
     return comparator.compare(kvbuffer,
         kvmeta.get(kvi + KEYSTART),
@@ -400,7 +430,7 @@ public class DefaultSorter extends ExternalSorter implements IndexedSortable {
 
   final byte META_BUFFER_TMP[] = new byte[METASIZE];
   /**
-   * Swap metadata for items i,j
+   * Swap metadata (and key prefixes, if enabled) for items i,j
    * @see IndexedSortable#swap
    */
   public void swap(final int mi, final int mj) {
@@ -409,6 +439,11 @@ public class DefaultSorter extends ExternalSorter implements IndexedSortable {
     System.arraycopy(kvbuffer, iOff, META_BUFFER_TMP, 0, METASIZE);
     System.arraycopy(kvbuffer, jOff, kvbuffer, iOff, METASIZE);
     System.arraycopy(META_BUFFER_TMP, 0, kvbuffer, jOff, METASIZE);
+    if (sortByPrefix) {
+      final long tmp = kvprefix[mi - kvprefixbase];
+      kvprefix[mi - kvprefixbase] = kvprefix[mj - kvprefixbase];
+      kvprefix[mj - kvprefixbase] = tmp;
+    }
   }
 
   /**
@@ -719,10 +754,32 @@ public class DefaultSorter extends ExternalSorter implements IndexedSortable {
       throws IOException, InterruptedException {
     final int mstart = getMetaStart();
     final int mend = getMetaEnd();
+    sortByPrefix = kvprefix != null && mend - mstart <= kvprefix.length;
+    if (sortByPrefix) {
+      computeKeyPrefixes(mstart, mend);
+    } else if (kvprefix != null) {
+      LOG.info("Sorting " + (mend - mstart) + " records without key prefixes, room for "
+          + kvprefix.length);
+    }
     sorter.sort(this, mstart, mend, nullProgressable);
     spill(mstart, mend);
   }
 
+  /**
+   * Extract the key prefix of every record in [mstart, mend) so that the sort
+   * can resolve most comparisons without touching the serialized keys.
+   */
+  private void computeKeyPrefixes(int mstart, int mend) {
+    final int count = mend - mstart;
+    kvprefixbase = mstart;
+    for (int i = 0; i < count; i++) {
+      final int kvoff = offsetFor(mstart + i);
+      final int keystart = kvmeta.get(kvoff + KEYSTART);
+      kvprefix[i] = keyPrefixExtractor.getPrefix(kvbuffer, keystart,
+          kvmeta.get(kvoff + VALSTART) - keystart);
+    }
+  }
+
   protected void spill(int mstart, int mend)
       throws IOException, InterruptedException {
 
@@ -740,6 +797,8 @@ public class DefaultSorter extends ExternalSorter implements IndexedSortable {
           mapOutputFile.getSpillFileForWrite(numSpills, size);
       out = rfs.create(filename);
 
+      final TezKeyIndex keyIndex =
+          (writeKeyIndex && numSpills == 0) ? new TezKeyIndex(partitions) : null;
       int spindex = mstart;
       final InMemValBytes value = createInMemValBytes();
       for (int i = 0; i < partitions; ++i) {
@@ -798,6 +857,9 @@ public class DefaultSorter extends ExternalSorter implements IndexedSortable {
                   writer.getRawLength(),
                   writer.getCompressedLength());
           spillRec.putIndex(rec, i);
+          if (keyIndex != null) {
+            keyIndex.putEntries(writer.getKeyIndex(), i);
+          }
 
           writer = null;
         } finally {
@@ -816,6 +878,9 @@ public class DefaultSorter extends ExternalSorter implements IndexedSortable {
         totalIndexCacheMemory +=
           spillRec.size() * MAP_OUTPUT_INDEX_RECORD_LENGTH;
       }
+      if (keyIndex != null) {
+        firstSpillKeyIndex = keyIndex;
+      }
       LOG.info("Finished spill " + numSpills);
       ++numSpills;
     } finally {
@@ -838,6 +903,8 @@ public class DefaultSorter extends ExternalSorter implements IndexedSortable {
       final Path filename =
           mapOutputFile.getSpillFileForWrite(numSpills, size);
       out = rfs.create(filename);
+      final TezKeyIndex keyIndex =
+          (writeKeyIndex && numSpills == 0) ? new TezKeyIndex(partitions) : null;
 
       // we don't run the combiner for a single record
       for (int i = 0; i < partitions; ++i) {
@@ -873,6 +940,9 @@ public class DefaultSorter extends ExternalSorter implements IndexedSortable {
                   writer.getRawLength(),
                   writer.getCompressedLength());
           spillRec.putIndex(rec, i);
+          if (keyIndex != null) {
+            keyIndex.putEntries(writer.getKeyIndex(), i);
+          }
 
           writer = null;
         } catch (IOException e) {
@@ -891,6 +961,9 @@ public class DefaultSorter extends ExternalSorter implements IndexedSortable {
         totalIndexCacheMemory +=
           spillRec.size() * MAP_OUTPUT_INDEX_RECORD_LENGTH;
       }
+      if (keyIndex != null) {
+        firstSpillKeyIndex = keyIndex;
+      }
       ++numSpills;
     } finally {
       if (out != null) out.close();
@@ -991,12 +1064,14 @@ public class DefaultSorter extends ExternalSorter implements IndexedSortable {
     if (numSpills == 1) { //the spill is the final output
       sameVolRename(filename[0],
           mapOutputFile.getOutputFileForWriteInVolume(filename[0]));
+      Path outputIndexFile = mapOutputFile.getOutputIndexFileForWriteInVolume(filename[0]);
       if (indexCacheList.size() == 0) {
-        sameVolRename(mapOutputFile.getSpillIndexFile(0),
-          mapOutputFile.getOutputIndexFileForWriteInVolume(filename[0]));
+        sameVolRename(mapOutputFile.getSpillIndexFile(0), outputIndexFile);
       } else {
-        indexCacheList.get(0).writeToFile(
-          mapOutputFile.getOutputIndexFileForWriteInVolume(filename[0]), conf);
+        indexCacheList.get(0).writeToFile(outputIndexFile, conf);
+      }
+      if (firstSpillKeyIndex != null) {
+        firstSpillKeyIndex.writeToFile(TezKeyIndex.getKeyIndexFile(outputIndexFile), conf);
       }
       return;
     }
@@ -1041,6 +1116,10 @@ public class DefaultSorter extends ExternalSorter implements IndexedSortable {
           sr.putIndex(rec, i);
         }
         sr.writeToFile(finalIndexFile, conf);
+        if (writeKeyIndex) {
+          new TezKeyIndex(partitions).writeToFile(TezKeyIndex.getKeyIndexFile(finalIndexFile),
+              conf);
+        }
       } finally {
         finalOut.close();
       }
@@ -1048,6 +1127,7 @@ public class DefaultSorter extends ExternalSorter implements IndexedSortable {
     }
     else {
       final TezSpillRecord spillRec = new TezSpillRecord(partitions);
+      final TezKeyIndex keyIndex = writeKeyIndex ? new TezKeyIndex(partitions) : null;
       for (int parts = 0; parts < partitions; parts++) {
         //create the segments to be merged
         List<Segment> segmentList =
@@ -1104,8 +1184,14 @@ public class DefaultSorter extends ExternalSorter implements IndexedSortable {
                 writer.getRawLength(),
                 writer.getCompressedLength());
         spillRec.putIndex(rec, parts);
+        if (keyIndex != null) {
+          keyIndex.putEntries(writer.getKeyIndex(), parts);
+        }
       }
       spillRec.writeToFile(finalIndexFile, conf);
+      if (keyIndex != null) {
+        keyIndex.writeToFile(TezKeyIndex.getKeyIndexFile(finalIndexFile), conf);
+      }
       finalOut.close();
       for(int i = 0; i < numSpills; i++) {
         rfs.delete(filename[i],true);
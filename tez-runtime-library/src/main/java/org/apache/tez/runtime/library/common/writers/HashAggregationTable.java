@@ -0,0 +1,311 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.writers;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.util.Progress;
+import org.apache.tez.runtime.library.common.sort.impl.TezRawKeyValueIterator;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * Groups serialized records by partition and key bytes, in a fixed amount of
+ * memory, so that all the values of a key can be processed together, e.g. by
+ * a combiner. Keys are looked up in an open addressing table. Keys
+ * and values are stored in a single byte array, the values of a key forming
+ * a linked list.
+ */
+@Private
+public class HashAggregationTable {
+
+  private static final int EMPTY = -1;
+  private static final int INT_SIZE = 4;
+  // Value header: offset of the next value of the key, and length
+  private static final int VALUE_HEADER_SIZE = 2 * INT_SIZE;
+  // Memory used by the entry arrays, per entry
+  private static final int ENTRY_SIZE = 7 * INT_SIZE;
+  // Memory budgeted per entry: up to 2 slots, and the entry arrays
+  private static final int BYTES_PER_ENTRY = 2 * INT_SIZE + ENTRY_SIZE;
+  // Entries per slot, at most
+  private static final float MAX_LOAD_FACTOR = 0.75f;
+  // Expected size of a key and a value, used to split the memory between
+  // entries and data
+  private static final int EXPECTED_RECORD_SIZE = 64;
+
+  private final byte[] data;
+  private int dataLength = 0;
+
+  private final int[] slots;
+  private final int maxEntries;
+  private int numEntries = 0;
+
+  private final int[] entryHash;
+  private final int[] entryPartition;
+  private final int[] entryKeyStart;
+  private final int[] entryKeyLength;
+  private final int[] entryFirstValue;
+  private final int[] entryLastValue;
+  // Next entry of the same partition, in insertion order
+  private final int[] entryNextInPartition;
+
+  private final int[] partitionFirstEntry;
+  private final int[] partitionLastEntry;
+
+  private long numValues = 0;
+
+  public HashAggregationTable(int numPartitions, long memory) {
+    long entries = memory / (BYTES_PER_ENTRY + EXPECTED_RECORD_SIZE);
+    entries = Math.max(1, Math.min(entries, Integer.MAX_VALUE / 4));
+    // The largest power of 2 within the 2 slots budgeted per entry. Fewer
+    // entries are allowed if needed to keep the load factor.
+    int numSlots = Integer.highestOneBit((int) Math.max(2, entries * 2));
+    maxEntries = (int) Math.max(1, Math.min(entries, (long) (numSlots * MAX_LOAD_FACTOR)));
+    slots = new int[numSlots];
+    Arrays.fill(slots, EMPTY);
+    entryHash = new int[maxEntries];
+    entryPartition = new int[maxEntries];
+    entryKeyStart = new int[maxEntries];
+    entryKeyLength = new int[maxEntries];
+    entryFirstValue = new int[maxEntries];
+    entryLastValue = new int[maxEntries];
+    entryNextInPartition = new int[maxEntries];
+    partitionFirstEntry = new int[numPartitions];
+    partitionLastEntry = new int[numPartitions];
+    Arrays.fill(partitionFirstEntry, EMPTY);
+    Arrays.fill(partitionLastEntry, EMPTY);
+    long dataSize = memory - (long) numSlots * INT_SIZE - (long) maxEntries * ENTRY_SIZE;
+    data = new byte[(int) Math.max(0, Math.min(dataSize, Integer.MAX_VALUE - 8))];
+  }
+
+  /**
+   * Adds a record, which is serialized in buffer as the key followed by the
+   * value.
+   *
+   * @return false if the table has no room for the record
+   */
+  public boolean add(int partition, byte[] buffer, int keyLength, int valueLength) {
+    return add(partition, buffer, 0, keyLength, buffer, keyLength, valueLength);
+  }
+
+  /**
+   * Adds a record, with the key and the value in separate buffers.
+   *
+   * @return false if the table has no room for the record
+   */
+  public boolean add(int partition, byte[] keyBuffer, int keyStart, int keyLength,
+      byte[] valueBuffer, int valueStart, int valueLength) {
+    int hash = WritableComparator.hashBytes(keyBuffer, keyStart, keyLength) * 31 + partition;
+    int mask = slots.length - 1;
+    int slot = mix(hash) & mask;
+    while (slots[slot] != EMPTY) {
+      int entry = slots[slot];
+      if (entryHash[entry] == hash && entryPartition[entry] == partition
+          && WritableComparator.compareBytes(data, entryKeyStart[entry], entryKeyLength[entry],
+              keyBuffer, keyStart, keyLength) == 0) {
+        return addValue(entry, valueBuffer, valueStart, valueLength);
+      }
+      slot = (slot + 1) & mask;
+    }
+
+    // New key
+    if (numEntries == maxEntries
+        || dataLength + keyLength + VALUE_HEADER_SIZE + valueLength > data.length) {
+      return false;
+    }
+    int entry = numEntries++;
+    slots[slot] = entry;
+    entryHash[entry] = hash;
+    entryPartition[entry] = partition;
+    entryKeyStart[entry] = dataLength;
+    entryKeyLength[entry] = keyLength;
+    entryFirstValue[entry] = EMPTY;
+    entryNextInPartition[entry] = EMPTY;
+    System.arraycopy(keyBuffer, keyStart, data, dataLength, keyLength);
+    dataLength += keyLength;
+    if (partitionLastEntry[partition] == EMPTY) {
+      partitionFirstEntry[partition] = entry;
+    } else {
+      entryNextInPartition[partitionLastEntry[partition]] = entry;
+    }
+    partitionLastEntry[partition] = entry;
+    return addValue(entry, valueBuffer, valueStart, valueLength);
+  }
+
+  private boolean addValue(int entry, byte[] buffer, int valueStart, int valueLength) {
+    if (dataLength + VALUE_HEADER_SIZE + valueLength > data.length) {
+      return false;
+    }
+    int value = dataLength;
+    writeInt(value, EMPTY);
+    writeInt(value + INT_SIZE, valueLength);
+    System.arraycopy(buffer, valueStart, data, value + VALUE_HEADER_SIZE, valueLength);
+    dataLength += VALUE_HEADER_SIZE + valueLength;
+    if (entryFirstValue[entry] == EMPTY) {
+      entryFirstValue[entry] = value;
+    } else {
+      writeInt(entryLastValue[entry], value);
+    }
+    entryLastValue[entry] = value;
+    numValues++;
+    return true;
+  }
+
+  public boolean isEmpty() {
+    return numEntries == 0;
+  }
+
+  public int getNumKeys() {
+    return numEntries;
+  }
+
+  public long getNumValues() {
+    return numValues;
+  }
+
+  /**
+   * @return the memory taken by the slots, the entries and the data
+   */
+  @VisibleForTesting
+  long getMemorySize() {
+    return (long) slots.length * INT_SIZE + (long) maxEntries * ENTRY_SIZE + data.length;
+  }
+
+  public boolean hasRecords(int partition) {
+    return partitionFirstEntry[partition] != EMPTY;
+  }
+
+  /**
+   * @return the records of a partition, with all the values of a key
+   *         following each other
+   */
+  public RecordIterator getRecords(int partition) {
+    return new RecordIterator(partition, partition);
+  }
+
+  /**
+   * @return the records of all the partitions, with all the values of a key
+   *         following each other
+   */
+  public RecordIterator getRecords() {
+    return new RecordIterator(0, partitionFirstEntry.length - 1);
+  }
+
+  /**
+   * Iterates over the records of a range of partitions. Invalidated by any
+   * change to the table.
+   */
+  public class RecordIterator implements TezRawKeyValueIterator {
+    private final DataInputBuffer key = new DataInputBuffer();
+    private final DataInputBuffer value = new DataInputBuffer();
+    private final Progress progress = new Progress();
+    private final int lastPartition;
+    private int partition;
+    private boolean started = false;
+    private boolean newKey = false;
+    private int entry = EMPTY;
+    private int nextValue = EMPTY;
+
+    RecordIterator(int firstPartition, int lastPartition) {
+      this.partition = firstPartition;
+      this.lastPartition = lastPartition;
+    }
+
+    @Override
+    public boolean next() throws IOException {
+      newKey = nextValue == EMPTY;
+      if (newKey) {
+        if (!started) {
+          entry = partitionFirstEntry[partition];
+          started = true;
+        } else if (entry != EMPTY) {
+          entry = entryNextInPartition[entry];
+        }
+        while (entry == EMPTY && partition < lastPartition) {
+          entry = partitionFirstEntry[++partition];
+        }
+        if (entry == EMPTY) {
+          return false;
+        }
+        key.reset(data, entryKeyStart[entry], entryKeyLength[entry]);
+        nextValue = entryFirstValue[entry];
+      }
+      value.reset(data, nextValue + VALUE_HEADER_SIZE, readInt(nextValue + INT_SIZE));
+      nextValue = readInt(nextValue);
+      return true;
+    }
+
+    /**
+     * @return whether the current record is the first one of its key
+     */
+    public boolean isNewKey() {
+      return newKey;
+    }
+
+    @Override
+    public DataInputBuffer getKey() throws IOException {
+      return key;
+    }
+
+    @Override
+    public DataInputBuffer getValue() throws IOException {
+      return value;
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+
+    @Override
+    public Progress getProgress() {
+      return progress;
+    }
+  }
+
+  public void clear() {
+    Arrays.fill(slots, EMPTY);
+    Arrays.fill(partitionFirstEntry, EMPTY);
+    Arrays.fill(partitionLastEntry, EMPTY);
+    numEntries = 0;
+    numValues = 0;
+    dataLength = 0;
+  }
+
+  private static int mix(int hash) {
+    // Spread the bits, since the slot is taken from the low bits
+    hash ^= (hash >>> 20) ^ (hash >>> 12);
+    return hash ^ (hash >>> 7) ^ (hash >>> 4);
+  }
+
+  private void writeInt(int pos, int v) {
+    data[pos] = (byte) (v >>> 24);
+    data[pos + 1] = (byte) (v >>> 16);
+    data[pos + 2] = (byte) (v >>> 8);
+    data[pos + 3] = (byte) v;
+  }
+
+  private int readInt(int pos) {
+    return ((data[pos] & 0xff) << 24) | ((data[pos + 1] & 0xff) << 16)
+        | ((data[pos + 2] & 0xff) << 8) | (data[pos + 3] & 0xff);
+  }
+}
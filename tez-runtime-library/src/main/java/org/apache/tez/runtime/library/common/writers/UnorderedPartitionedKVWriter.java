@@ -46,7 +46,9 @@ import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.LocalFileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.serializer.Serializer;
 import org.apache.hadoop.yarn.api.ApplicationConstants;
 import org.apache.tez.common.TezJobConfig;
 import org.apache.tez.common.TezUtils;
@@ -56,6 +58,8 @@ import org.apache.tez.runtime.api.Event;
 import org.apache.tez.runtime.api.TezOutputContext;
 import org.apache.tez.runtime.api.events.CompositeDataMovementEvent;
 import org.apache.tez.runtime.library.common.Constants;
+import org.apache.tez.runtime.library.common.TezRuntimeUtils;
+import org.apache.tez.runtime.library.common.combine.Combiner;
 import org.apache.tez.runtime.library.common.sort.impl.IFile;
 import org.apache.tez.runtime.library.common.sort.impl.TezIndexRecord;
 import org.apache.tez.runtime.library.common.sort.impl.IFile.Writer;
@@ -129,10 +133,55 @@ public class UnorderedPartitionedKVWriter extends BaseUnorderedPartitionedKVWrit
   private final ReentrantLock spillLock = new ReentrantLock();
   private final Condition spillInProgress = spillLock.newCondition();
 
+  // Hash aggregation, only set up if enabled and a combiner is configured.
+  private final Combiner combiner;
+  @VisibleForTesting
+  final HashAggregationTable aggregationTable;
+  private final DataOutputBuffer aggregationBuffer;
+  private final Serializer aggregationKeySerializer;
+  private final Serializer aggregationValSerializer;
+  private final IFile.Writer combineOutputWriter;
+  private int combinePartition;
+
   public UnorderedPartitionedKVWriter(TezOutputContext outputContext, Configuration conf,
       int numOutputs, long availableMemoryBytes) throws IOException {
     super(outputContext, conf, numOutputs);
     Preconditions.checkArgument(availableMemoryBytes > 0, "availableMemory should not be > 0 bytes");
+
+    Combiner aggregationCombiner = null;
+    if (conf.getBoolean(TezJobConfig.TEZ_RUNTIME_UNORDERED_OUTPUT_HASH_AGGREGATION_ENABLED,
+        TezJobConfig.TEZ_RUNTIME_UNORDERED_OUTPUT_HASH_AGGREGATION_ENABLED_DEFAULT)) {
+      aggregationCombiner = TezRuntimeUtils.instantiateCombiner(this.conf, outputContext);
+      if (aggregationCombiner == null) {
+        LOG.info("Hash aggregation enabled, but no combiner configured. Not aggregating");
+      }
+    }
+    combiner = aggregationCombiner;
+    if (combiner != null) {
+      float fraction = conf.getFloat(
+          TezJobConfig.TEZ_RUNTIME_UNORDERED_OUTPUT_HASH_AGGREGATION_MEMORY_FRACTION,
+          TezJobConfig.TEZ_RUNTIME_UNORDERED_OUTPUT_HASH_AGGREGATION_MEMORY_FRACTION_DEFAULT);
+      Preconditions.checkArgument(fraction > 0 && fraction < 1,
+          TezJobConfig.TEZ_RUNTIME_UNORDERED_OUTPUT_HASH_AGGREGATION_MEMORY_FRACTION
+              + " should be between 0 and 1 (exclusive)");
+      long tableMemory = (long) (availableMemoryBytes * fraction);
+      LOG.info("Running with hash aggregation, tableMemory=" + tableMemory + ", combiner="
+          + combiner.getClass().getName());
+      aggregationTable = new HashAggregationTable(numPartitions, tableMemory);
+      aggregationBuffer = new DataOutputBuffer();
+      aggregationKeySerializer = serializationFactory.getSerializer(keyClass);
+      aggregationValSerializer = serializationFactory.getSerializer(valClass);
+      aggregationKeySerializer.open(aggregationBuffer);
+      aggregationValSerializer.open(aggregationBuffer);
+      combineOutputWriter = new CombineOutputWriter();
+      availableMemoryBytes -= tableMemory;
+    } else {
+      aggregationTable = null;
+      aggregationBuffer = null;
+      aggregationKeySerializer = null;
+      aggregationValSerializer = null;
+      combineOutputWriter = null;
+    }
     // Ideally, should be significantly larger.
     availableMemory = availableMemoryBytes;
 
@@ -190,7 +239,54 @@ public class UnorderedPartitionedKVWriter extends BaseUnorderedPartitionedKVWrit
       throw new IOException("Exception during spill", new IOException(spillException));
     }
     int partition = partitioner.getPartition(key, value, numPartitions);
-    write(key, value, partition);
+    if (aggregationTable != null) {
+      aggregate(key, value, partition);
+    } else {
+      write(key, value, partition);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void aggregate(Object key, Object value, int partition) throws IOException {
+    aggregationBuffer.reset();
+    aggregationKeySerializer.serialize(key);
+    int keyLength = aggregationBuffer.getLength();
+    aggregationValSerializer.serialize(value);
+    int valueLength = aggregationBuffer.getLength() - keyLength;
+    if (aggregationTable.add(partition, aggregationBuffer.getData(), keyLength, valueLength)) {
+      return;
+    }
+    flushAggregationTable();
+    if (!aggregationTable.add(partition, aggregationBuffer.getData(), keyLength, valueLength)) {
+      // Record too large for the table.
+      write(key, value, partition);
+    }
+  }
+
+  /**
+   * Runs the combiner on the records in the aggregation table, partition by
+   * partition, and writes its output to the buffers.
+   */
+  private void flushAggregationTable() throws IOException {
+    if (aggregationTable.isEmpty()) {
+      return;
+    }
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Flushing aggregation table: keys=" + aggregationTable.getNumKeys() + ", values="
+          + aggregationTable.getNumValues());
+    }
+    for (int i = 0; i < numPartitions; i++) {
+      if (aggregationTable.hasRecords(i)) {
+        combinePartition = i;
+        try {
+          combiner.combine(aggregationTable.getRecords(i), combineOutputWriter);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while running the combiner", e);
+        }
+      }
+    }
+    aggregationTable.clear();
   }
 
   @SuppressWarnings("unchecked")
@@ -411,6 +507,9 @@ public class UnorderedPartitionedKVWriter extends BaseUnorderedPartitionedKVWrit
 
   @Override
   public List<Event> close() throws IOException, InterruptedException {
+    if (aggregationTable != null && spillException == null) {
+      flushAggregationTable();
+    }
     isShutdown.set(true);
     spillLock.lock();
     LOG.info("Waiting for all spills to complete : Pending : " + pendingSpillCount.get());
@@ -705,6 +804,32 @@ public class UnorderedPartitionedKVWriter extends BaseUnorderedPartitionedKVWrit
     }
   }
 
+  /**
+   * Writes the output of the combiner to the buffers, in the partition being
+   * combined.
+   */
+  private class CombineOutputWriter extends IFile.Writer {
+
+    CombineOutputWriter() {
+      super(null, null);
+    }
+
+    @Override
+    public void append(Object key, Object value) throws IOException {
+      write(key, value, combinePartition);
+    }
+
+    @Override
+    public void append(DataInputBuffer key, DataInputBuffer value) throws IOException {
+      throw new UnsupportedOperationException(
+          "CombineOutputWriter.append(K-V DataInputBuffers) not supported");
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+  }
+
   private static class BufferTooSmallException extends IOException {
     private static final long serialVersionUID = 1L;
   }
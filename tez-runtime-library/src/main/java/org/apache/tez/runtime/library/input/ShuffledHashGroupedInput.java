@@ -0,0 +1,145 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.input;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.tez.common.TezJobConfig;
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.common.counters.TezCounter;
+import org.apache.tez.runtime.api.Event;
+import org.apache.tez.runtime.library.api.KeyValuesReader;
+import org.apache.tez.runtime.library.common.readers.ShuffledHashGroupedKVsReader;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Fetches unordered partitioned data, e.g. written by
+ * OnFileUnorderedPartitionedKVOutput, and groups the values by key with a
+ * hash table instead of sorting them. Provides the same {@link KeyValuesReader}
+ * as {@link ShuffledMergedInput}, for processors which do not need the keys to
+ * be sorted. Keys are grouped by their serialized bytes.
+ */
+public class ShuffledHashGroupedInput extends ShuffledInputBase<KeyValuesReader> {
+
+  private static final Log LOG = LogFactory.getLog(ShuffledHashGroupedInput.class);
+
+  @SuppressWarnings("rawtypes")
+  private ShuffledHashGroupedKVsReader kvsReader;
+
+  private TezCounter inputKeyCounter;
+  private TezCounter inputValueCounter;
+  private TezCounter spilledRecordsCounter;
+
+  private long fetchMemoryReq;
+  private long tableMemoryReq;
+  private long memoryAssigned;
+  private long tableMemory;
+
+  public ShuffledHashGroupedInput() {
+  }
+
+  @Override
+  public synchronized List<Event> initialize() throws Exception {
+    List<Event> events = super.initialize();
+    this.inputKeyCounter = getContext().getCounters().findCounter(TaskCounter.REDUCE_INPUT_GROUPS);
+    this.inputValueCounter = getContext().getCounters().findCounter(
+        TaskCounter.REDUCE_INPUT_RECORDS);
+    this.spilledRecordsCounter = getContext().getCounters().findCounter(
+        TaskCounter.SPILLED_RECORDS);
+    return events;
+  }
+
+  /**
+   * Requests memory for holding fetched inputs, and for the hash table.
+   */
+  @Override
+  protected long getInitialMemoryReq() {
+    fetchMemoryReq = super.getInitialMemoryReq();
+    int tableSizeMb = conf.getInt(TezJobConfig.TEZ_RUNTIME_HASH_GROUPED_INPUT_TABLE_SIZE_MB,
+        TezJobConfig.TEZ_RUNTIME_HASH_GROUPED_INPUT_TABLE_SIZE_MB_DEFAULT);
+    Preconditions.checkArgument(tableSizeMb > 0,
+        TezJobConfig.TEZ_RUNTIME_HASH_GROUPED_INPUT_TABLE_SIZE_MB + " should be larger than 0");
+    tableMemoryReq = ((long) tableSizeMb) << 20;
+    return fetchMemoryReq + tableMemoryReq;
+  }
+
+  /**
+   * Splits the assigned memory between fetching and grouping, in the ratio
+   * they were requested in.
+   */
+  @Override
+  protected long assignMemory(long memoryAssigned) {
+    this.memoryAssigned = memoryAssigned;
+    this.tableMemory = (long) (memoryAssigned
+        * ((double) tableMemoryReq / (fetchMemoryReq + tableMemoryReq)));
+    long fetchMemory = memoryAssigned - tableMemory;
+    LOG.info("Assigned memory: " + memoryAssigned + ", fetchMemory=" + fetchMemory
+        + ", tableMemory=" + tableMemory);
+    return fetchMemory;
+  }
+
+  /**
+   * The table may grow into the memory of the fetched inputs once they have
+   * all been read, but never beyond the memory assigned to the input.
+   */
+  @SuppressWarnings("rawtypes")
+  @Override
+  protected KeyValuesReader createReader(CompressionCodec codec, int ifileBufferSize,
+      boolean ifileReadAheadEnabled, int ifileReadAheadLength) throws IOException {
+    this.kvsReader = new ShuffledHashGroupedKVsReader(shuffleManager, conf,
+        getContext().getUniqueIdentifier(), tableMemory, memoryAssigned, codec,
+        ifileReadAheadEnabled, ifileReadAheadLength, ifileBufferSize, inputKeyCounter,
+        inputValueCounter, spilledRecordsCounter);
+    return kvsReader;
+  }
+
+  @Override
+  protected KeyValuesReader createEmptyReader() {
+    return new KeyValuesReader() {
+      @Override
+      public boolean next() throws IOException {
+        return false;
+      }
+
+      @Override
+      public Object getCurrentKey() throws IOException {
+        throw new RuntimeException("No data available in Input");
+      }
+
+      @Override
+      public Iterable<Object> getCurrentValues() throws IOException {
+        throw new RuntimeException("No data available in Input");
+      }
+    };
+  }
+
+  @Override
+  public synchronized List<Event> close() throws Exception {
+    List<Event> events = super.close();
+    if (this.kvsReader != null) {
+      this.kvsReader.close();
+    }
+    return events;
+  }
+}
@@ -0,0 +1,217 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.input;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.tez.common.TezJobConfig;
+import org.apache.tez.common.TezRuntimeFrameworkConfigs;
+import org.apache.tez.common.TezUtils;
+import org.apache.tez.runtime.api.AbstractLogicalInput;
+import org.apache.tez.runtime.api.Event;
+import org.apache.tez.runtime.api.Reader;
+import org.apache.tez.runtime.library.common.ConfigUtils;
+import org.apache.tez.runtime.library.common.MemoryUpdateCallbackHandler;
+import org.apache.tez.runtime.library.shuffle.common.ShuffleEventHandler;
+import org.apache.tez.runtime.library.shuffle.common.impl.ShuffleInputEventHandlerImpl;
+import org.apache.tez.runtime.library.shuffle.common.impl.ShuffleManager;
+import org.apache.tez.runtime.library.shuffle.common.impl.SimpleFetchedInputAllocator;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Common code for the inputs which fetch with a {@link ShuffleManager}, and
+ * hand the fetched inputs to a reader as they complete. Sub-classes provide
+ * the reader, and may take part of the assigned memory for it.
+ *
+ * @param <R> the type of reader provided by the input
+ */
+@Private
+public abstract class ShuffledInputBase<R extends Reader> extends AbstractLogicalInput {
+
+  private static final Log LOG = LogFactory.getLog(ShuffledInputBase.class);
+
+  protected Configuration conf;
+  protected ShuffleManager shuffleManager;
+  private final BlockingQueue<Event> pendingEvents = new LinkedBlockingQueue<Event>();
+  private long firstEventReceivedTime = -1;
+  private MemoryUpdateCallbackHandler memoryUpdateCallbackHandler;
+  private R reader;
+
+  private final AtomicBoolean isStarted = new AtomicBoolean(false);
+
+  private SimpleFetchedInputAllocator inputManager;
+  private ShuffleEventHandler inputEventHandler;
+
+  @Override
+  public synchronized List<Event> initialize() throws Exception {
+    Preconditions.checkArgument(getNumPhysicalInputs() != -1, "Number of Inputs has not been set");
+    this.conf = TezUtils.createConfFromUserPayload(getContext().getUserPayload());
+
+    if (getNumPhysicalInputs() == 0) {
+      getContext().requestInitialMemory(0l, null);
+      isStarted.set(true);
+      getContext().inputIsReady();
+      LOG.info("input fetch not required since there are 0 physical inputs for input vertex: "
+          + getContext().getSourceVertexName());
+      return Collections.emptyList();
+    } else {
+      long initalMemReq = getInitialMemoryReq();
+      memoryUpdateCallbackHandler = new MemoryUpdateCallbackHandler();
+      this.getContext().requestInitialMemory(initalMemReq, memoryUpdateCallbackHandler);
+    }
+
+    this.conf.setStrings(TezRuntimeFrameworkConfigs.LOCAL_DIRS, getContext().getWorkDirs());
+    return Collections.emptyList();
+  }
+
+  @Override
+  public synchronized void start() throws IOException {
+    if (!isStarted.get()) {
+      ////// Initial configuration
+      memoryUpdateCallbackHandler.validateUpdateReceived();
+      CompressionCodec codec;
+      if (ConfigUtils.isIntermediateInputCompressed(conf)) {
+        Class<? extends CompressionCodec> codecClass = ConfigUtils
+            .getIntermediateInputCompressorClass(conf, DefaultCodec.class);
+        codec = ReflectionUtils.newInstance(codecClass, conf);
+      } else {
+        codec = null;
+      }
+
+      boolean ifileReadAhead = conf.getBoolean(TezJobConfig.TEZ_RUNTIME_IFILE_READAHEAD,
+          TezJobConfig.TEZ_RUNTIME_IFILE_READAHEAD_DEFAULT);
+      int ifileReadAheadLength = 0;
+      int ifileBufferSize = 0;
+
+      if (ifileReadAhead) {
+        ifileReadAheadLength = conf.getInt(TezJobConfig.TEZ_RUNTIME_IFILE_READAHEAD_BYTES,
+            TezJobConfig.TEZ_RUNTIME_IFILE_READAHEAD_BYTES_DEFAULT);
+      }
+      ifileBufferSize = conf.getInt("io.file.buffer.size",
+          TezJobConfig.TEZ_RUNTIME_IFILE_BUFFER_SIZE_DEFAULT);
+
+      long fetchMemory = assignMemory(memoryUpdateCallbackHandler.getMemoryAssigned());
+      this.inputManager = new SimpleFetchedInputAllocator(getContext().getUniqueIdentifier(), conf,
+          getContext().getTotalMemoryAvailableToTask(), fetchMemory, getContext().getCounters());
+
+      this.shuffleManager = new ShuffleManager(getContext(), conf, getNumPhysicalInputs(),
+          ifileBufferSize, ifileReadAhead, ifileReadAheadLength, codec, inputManager);
+
+      this.inputEventHandler = new ShuffleInputEventHandlerImpl(getContext(), shuffleManager,
+          inputManager, codec, ifileReadAhead, ifileReadAheadLength);
+
+      ////// End of Initial configuration
+
+      this.shuffleManager.run();
+      this.reader = createReader(codec, ifileBufferSize, ifileReadAhead, ifileReadAheadLength);
+      List<Event> pending = new LinkedList<Event>();
+      pendingEvents.drainTo(pending);
+      if (pending.size() > 0) {
+        LOG.info("NoAutoStart delay in processing first event: "
+            + (System.currentTimeMillis() - firstEventReceivedTime));
+        inputEventHandler.handleEvents(pending);
+      }
+      isStarted.set(true);
+    }
+  }
+
+  @Override
+  public synchronized R getReader() throws Exception {
+    Preconditions.checkState(isStarted.get(), "Must start input before invoking this method");
+    if (getNumPhysicalInputs() == 0) {
+      return createEmptyReader();
+    }
+    return this.reader;
+  }
+
+  @Override
+  public void handleEvents(List<Event> inputEvents) throws IOException {
+    synchronized (this) {
+      if (getNumPhysicalInputs() == 0) {
+        throw new RuntimeException("No input events expected as numInputs is 0");
+      }
+      if (!isStarted.get()) {
+        if (firstEventReceivedTime == -1) {
+          firstEventReceivedTime = System.currentTimeMillis();
+        }
+        // This queue will keep growing if the Processor decides never to
+        // start the event. The Input, however has no idea, on whether start
+        // will be invoked or not.
+        pendingEvents.addAll(inputEvents);
+        return;
+      }
+    }
+    inputEventHandler.handleEvents(inputEvents);
+  }
+
+  @Override
+  public synchronized List<Event> close() throws Exception {
+    if (this.shuffleManager != null) {
+      this.shuffleManager.shutdown();
+    }
+    if (this.inputManager != null) {
+      this.inputManager.close();
+    }
+    return null;
+  }
+
+  /**
+   * @return the memory to request for this input. Defaults to the memory
+   *         requested for holding fetched inputs.
+   */
+  protected long getInitialMemoryReq() {
+    return SimpleFetchedInputAllocator.getInitialMemoryReq(conf,
+        getContext().getTotalMemoryAvailableToTask());
+  }
+
+  /**
+   * Invoked on start, with the memory assigned for the request made by
+   * {@link #getInitialMemoryReq()}.
+   *
+   * @return the part of the assigned memory to use for holding fetched inputs
+   */
+  protected long assignMemory(long memoryAssigned) {
+    return memoryAssigned;
+  }
+
+  /**
+   * Creates the reader of the fetched inputs, once the shuffle is running.
+   */
+  protected abstract R createReader(CompressionCodec codec, int ifileBufferSize,
+      boolean ifileReadAheadEnabled, int ifileReadAheadLength) throws IOException;
+
+  /**
+   * @return the reader to provide when there are no physical inputs
+   */
+  protected abstract R createEmptyReader();
+}
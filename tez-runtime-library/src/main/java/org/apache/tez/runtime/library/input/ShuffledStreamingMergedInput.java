@@ -0,0 +1,100 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.input;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.tez.common.TezJobConfig;
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.common.counters.TezCounter;
+import org.apache.tez.runtime.api.Event;
+import org.apache.tez.runtime.library.api.KeyValuesReader;
+import org.apache.tez.runtime.library.common.readers.ShuffledStreamingMergedKVsReader;
+
+/**
+ * An input which groups the records of sorted outputs (such as
+ * <code>OnFileSortedOutput</code>) by key while they are still being fetched,
+ * instead of waiting for the whole shuffle and merge to complete as
+ * {@link ShuffledMergedInput} does.
+ *
+ * Keys are only grouped within a batch of inputs which were fetched around
+ * the same time - a key may be returned more than once, and the keys are not
+ * ordered across batches. See {@link ShuffledStreamingMergedKVsReader}.
+ *
+ * Fetched inputs waiting to be read are bounded by
+ * {@link TezJobConfig#TEZ_RUNTIME_SHUFFLE_FETCH_MAX_UNCONSUMED_BYTES},
+ * which defaults to the memory assigned to this input.
+ */
+public class ShuffledStreamingMergedInput extends ShuffledInputBase<KeyValuesReader> {
+
+  private TezCounter inputKeyCounter;
+  private TezCounter inputValueCounter;
+
+  public ShuffledStreamingMergedInput() {
+  }
+
+  @Override
+  public synchronized List<Event> initialize() throws Exception {
+    List<Event> events = super.initialize();
+    this.inputKeyCounter = getContext().getCounters().findCounter(TaskCounter.REDUCE_INPUT_GROUPS);
+    this.inputValueCounter = getContext().getCounters().findCounter(
+        TaskCounter.REDUCE_INPUT_RECORDS);
+    return events;
+  }
+
+  @Override
+  protected long assignMemory(long memoryAssigned) {
+    if (conf.get(TezJobConfig.TEZ_RUNTIME_SHUFFLE_FETCH_MAX_UNCONSUMED_BYTES) == null) {
+      // Don't fetch further ahead of the reader than fits in memory
+      conf.setLong(TezJobConfig.TEZ_RUNTIME_SHUFFLE_FETCH_MAX_UNCONSUMED_BYTES, memoryAssigned);
+    }
+    return memoryAssigned;
+  }
+
+  @Override
+  protected ShuffledStreamingMergedKVsReader createReader(CompressionCodec codec,
+      int ifileBufferSize, boolean ifileReadAheadEnabled, int ifileReadAheadLength)
+      throws IOException {
+    return new ShuffledStreamingMergedKVsReader(shuffleManager, conf, codec,
+        ifileReadAheadEnabled, ifileReadAheadLength, ifileBufferSize, inputKeyCounter,
+        inputValueCounter);
+  }
+
+  @Override
+  protected KeyValuesReader createEmptyReader() {
+    return new KeyValuesReader() {
+      @Override
+      public boolean next() throws IOException {
+        return false;
+      }
+
+      @Override
+      public Object getCurrentKey() throws IOException {
+        throw new RuntimeException("No data available in Input");
+      }
+
+      @Override
+      public Iterable<Object> getCurrentValues() throws IOException {
+        throw new RuntimeException("No data available in Input");
+      }
+    };
+  }
+}
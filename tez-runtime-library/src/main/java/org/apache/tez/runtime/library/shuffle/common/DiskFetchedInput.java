@@ -27,6 +27,7 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.LocalDirAllocator;
+import org.apache.hadoop.fs.LocalFileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
 import org.apache.tez.runtime.library.common.task.local.output.TezTaskOutputFiles;
@@ -37,7 +38,7 @@ public class DiskFetchedInput extends FetchedInput {
 
   private static final Log LOG = LogFactory.getLog(DiskFetchedInput.class);
   
-  private final FileSystem localFS;
+  private final LocalFileSystem localFS;
   private final Path tmpOutputPath;
   private final Path outputPath;
 
@@ -65,6 +66,15 @@ public class DiskFetchedInput extends FetchedInput {
   public InputStream getInputStream() throws IOException {
     return localFS.open(outputPath);
   }
+
+  /**
+   * Return an input stream which reads the previously fetched data through a
+   * memory mapping of the local file. Users are expected to close the
+   * InputStream when they're done, which releases the mapping.
+   */
+  public InputStream getMappedInputStream() throws IOException {
+    return new MappedFileInputStream(localFS.pathToFile(outputPath));
+  }
   
   @Override
   public void commit() throws IOException {
@@ -35,6 +35,8 @@ package org.apache.tez.runtime.library.shuffle.common;
  * limitations under the License.
  */
 
+import java.util.Map;
+
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
 
 public class FetchResult {
@@ -43,13 +45,26 @@ public class FetchResult {
   private final int port;
   private final int partition;
   private final Iterable<InputAttemptIdentifier> pendingInputs;
+  private final Map<InputAttemptIdentifier, Integer> inputPartitions;
 
   public FetchResult(String host, int port, int partition,
       Iterable<InputAttemptIdentifier> pendingInputs) {
+    this(host, port, partition, pendingInputs, null);
+  }
+
+  /**
+   * @param inputPartitions the partition of each input, for fetches which
+   *          covered more than one partition. null if all inputs are for
+   *          partition.
+   */
+  public FetchResult(String host, int port, int partition,
+      Iterable<InputAttemptIdentifier> pendingInputs,
+      Map<InputAttemptIdentifier, Integer> inputPartitions) {
     this.host = host;
     this.port = port;
     this.partition = partition;
     this.pendingInputs = pendingInputs;
+    this.inputPartitions = inputPartitions;
   }
 
   public String getHost() {
@@ -67,4 +82,17 @@ public class FetchResult {
   public Iterable<InputAttemptIdentifier> getPendingInputs() {
     return pendingInputs;
   }
+
+  /**
+   * @return the partition the given pending input is to be fetched from
+   */
+  public int getPartition(InputAttemptIdentifier input) {
+    if (inputPartitions != null) {
+      Integer inputPartition = inputPartitions.get(input);
+      if (inputPartition != null) {
+        return inputPartition;
+      }
+    }
+    return partition;
+  }
 }
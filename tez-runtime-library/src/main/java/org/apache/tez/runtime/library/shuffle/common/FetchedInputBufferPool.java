@@ -0,0 +1,245 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.shuffle.common;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+import org.apache.tez.common.counters.TezCounter;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Recycles the byte arrays backing {@link MemoryFetchedInput}s, so that
+ * fetching many small inputs (e.g. for a broadcast) does not allocate a new
+ * array for each of them.
+ *
+ * Buffers are handed out rounded up to a size class - a quarter of the next
+ * lower power of two, so at most 25% larger than requested - and go back to
+ * the pool once they are released. Callers account for the rounded size, see
+ * {@link #getAllocationSize(int)}. The total size of buffers owned by the
+ * pool, in use or free, is bounded; free buffers are dropped to make room for
+ * buffers of a different size class.
+ */
+@Private
+public class FetchedInputBufferPool {
+
+  private static final Log LOG = LogFactory.getLog(FetchedInputBufferPool.class);
+
+  static final int MIN_BUFFER_SIZE = 4 * 1024;
+
+  private final long maxPoolSize;
+  private final int maxBufferSize;
+  private final TezCounter poolHits;
+  private final TezCounter poolMisses;
+
+  // Free buffers by size class. Guarded by this
+  private final TreeMap<Integer, Deque<byte[]>> freeBuffers = new TreeMap<Integer, Deque<byte[]>>();
+  private long freeBytes = 0;
+  private long usedBytes = 0;
+  private boolean closed = false;
+
+  /**
+   * @param maxPoolSize upper bound on the total size of buffers owned by the
+   *          pool
+   * @param maxBufferSize requests larger than this are not pooled
+   */
+  public FetchedInputBufferPool(long maxPoolSize, int maxBufferSize, TezCounter poolHits,
+      TezCounter poolMisses) {
+    this.maxPoolSize = maxPoolSize;
+    this.maxBufferSize = maxBufferSize;
+    this.poolHits = poolHits;
+    this.poolMisses = poolMisses;
+  }
+
+  /**
+   * @return the size of the buffer allocated for a request of size bytes
+   */
+  public int getAllocationSize(int size) {
+    return size > maxBufferSize ? size : getSizeClass(size);
+  }
+
+  /**
+   * @return a buffer of {@link #getAllocationSize(int)} bytes, to be released
+   *         by the caller
+   */
+  public Buffer allocate(int size) {
+    if (size > maxBufferSize) {
+      return new Buffer(null, new byte[size]);
+    }
+    int sizeClass = getSizeClass(size);
+    synchronized (this) {
+      Deque<byte[]> buffers = freeBuffers.get(sizeClass);
+      if (buffers != null && !buffers.isEmpty()) {
+        byte[] data = buffers.pop();
+        freeBytes -= data.length;
+        usedBytes += data.length;
+        poolHits.increment(1);
+        return new Buffer(this, data);
+      }
+      poolMisses.increment(1);
+      evictFreeBuffers(sizeClass);
+      if (closed || usedBytes + freeBytes + sizeClass > maxPoolSize) {
+        // All of the pool is in use, don't grow it beyond its limit
+        return new Buffer(null, new byte[sizeClass]);
+      }
+      usedBytes += sizeClass;
+    }
+    return new Buffer(this, new byte[sizeClass]);
+  }
+
+  private void evictFreeBuffers(int required) {
+    Iterator<Map.Entry<Integer, Deque<byte[]>>> iter = freeBuffers.descendingMap().entrySet()
+        .iterator();
+    while (usedBytes + freeBytes + required > maxPoolSize && iter.hasNext()) {
+      Deque<byte[]> buffers = iter.next().getValue();
+      while (usedBytes + freeBytes + required > maxPoolSize && !buffers.isEmpty()) {
+        freeBytes -= buffers.pop().length;
+      }
+      if (buffers.isEmpty()) {
+        iter.remove();
+      }
+    }
+  }
+
+  /**
+   * Drops free buffers until at most maxFreeBytes of them are left, for
+   * callers which count free buffers towards their memory limit. Buffers a
+   * request of nextSize bytes could reuse are dropped last, and one of them
+   * is not counted, since reusing it does not take up more memory.
+   */
+  public synchronized void trimFreeBuffers(long maxFreeBytes, int nextSize) {
+    int sizeClass = getAllocationSize(nextSize);
+    Deque<byte[]> reusable = nextSize > maxBufferSize ? null : freeBuffers.get(sizeClass);
+    if (reusable != null && !reusable.isEmpty()) {
+      maxFreeBytes += sizeClass;
+    }
+    Iterator<Map.Entry<Integer, Deque<byte[]>>> iter = freeBuffers.descendingMap().entrySet()
+        .iterator();
+    while (freeBytes > maxFreeBytes && iter.hasNext()) {
+      Deque<byte[]> buffers = iter.next().getValue();
+      if (buffers == reusable) {
+        continue;
+      }
+      while (freeBytes > maxFreeBytes && !buffers.isEmpty()) {
+        freeBytes -= buffers.pop().length;
+      }
+      if (buffers.isEmpty()) {
+        iter.remove();
+      }
+    }
+    if (reusable != null) {
+      while (freeBytes > maxFreeBytes && !reusable.isEmpty()) {
+        freeBytes -= reusable.pop().length;
+      }
+      if (reusable.isEmpty()) {
+        freeBuffers.remove(sizeClass);
+      }
+    }
+  }
+
+  private synchronized void release(byte[] data) {
+    usedBytes -= data.length;
+    if (closed) {
+      return;
+    }
+    Deque<byte[]> buffers = freeBuffers.get(data.length);
+    if (buffers == null) {
+      buffers = new ArrayDeque<byte[]>();
+      freeBuffers.put(data.length, buffers);
+    }
+    buffers.push(data);
+    freeBytes += data.length;
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Returned buffer of size " + data.length + " to pool, used: " + usedBytes
+          + ", free: " + freeBytes);
+    }
+  }
+
+  /**
+   * Drops all free buffers. Buffers released afterwards are not pooled again.
+   */
+  public synchronized void close() {
+    closed = true;
+    freeBuffers.clear();
+    freeBytes = 0;
+  }
+
+  /**
+   * @return the total size of the buffers held by the pool which are not in
+   *         use
+   */
+  public synchronized long getFreeBytes() {
+    return freeBytes;
+  }
+
+  synchronized long getUsedBytes() {
+    return usedBytes;
+  }
+
+  static int getSizeClass(int size) {
+    if (size <= MIN_BUFFER_SIZE) {
+      return MIN_BUFFER_SIZE;
+    }
+    int step = Integer.highestOneBit(size) / 4;
+    return (int) (((long) size + step - 1) / step * step);
+  }
+
+  /**
+   * A buffer with a single owner. The backing array is returned to the pool
+   * it came from when the buffer is released, and must not be accessed by the
+   * owner after that.
+   */
+  public static class Buffer {
+
+    private final FetchedInputBufferPool pool;
+    private final byte[] data;
+    private final AtomicBoolean released = new AtomicBoolean(false);
+
+    private Buffer(FetchedInputBufferPool pool, byte[] data) {
+      this.pool = pool;
+      this.data = data;
+    }
+
+    /**
+     * Wraps an array which does not belong to any pool.
+     */
+    public static Buffer wrap(byte[] data) {
+      return new Buffer(null, data);
+    }
+
+    public byte[] getData() {
+      return data;
+    }
+
+    public void release() {
+      Preconditions.checkState(!released.getAndSet(true), "Buffer has already been released");
+      if (pool != null) {
+        pool.release(data);
+      }
+    }
+  }
+}
@@ -21,12 +21,16 @@ package org.apache.tez.runtime.library.shuffle.common;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -35,16 +39,22 @@ import javax.crypto.SecretKey;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.io.compress.CompressionCodec;
 import org.apache.hadoop.security.ssl.SSLFactory;
 import org.apache.hadoop.yarn.api.records.ApplicationId;
 import org.apache.tez.common.TezJobConfig;
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+import org.apache.tez.runtime.library.common.InputIdentifier;
 import org.apache.tez.runtime.library.common.shuffle.impl.ShuffleHeader;
 import org.apache.tez.runtime.library.shuffle.common.FetchedInput.Type;
 import org.apache.tez.runtime.library.shuffle.common.HttpConnection.HttpConnectionParams;
+import org.apache.tez.runtime.library.shuffle.common.InputHost.PartitionInputs;
 
 import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 
 /**
  * Responsible for fetching inputs served by the ShuffleHandler for a single
@@ -61,6 +71,10 @@ public class Fetcher implements Callable<FetchResult> {
 
   private boolean ifileReadAhead = TezJobConfig.TEZ_RUNTIME_IFILE_READAHEAD_DEFAULT;
   private int ifileReadAheadLength = TezJobConfig.TEZ_RUNTIME_IFILE_READAHEAD_BYTES_DEFAULT;
+
+  private boolean localDiskFetchEnabled = false;
+  private Configuration localDiskConf;
+  private int localDiskBufferSize;
   
   private final SecretKey shuffleSecret;
 
@@ -79,10 +93,16 @@ public class Fetcher implements Callable<FetchResult> {
   private String host;
   private int port;
   private int partition;
+  private int partitionCount;
+  // The partition each input is fetched from
+  private Map<InputAttemptIdentifier, Integer> inputPartitions;
 
-  // Maps from the pathComponents (unique per srcTaskId) to the specific taskId
+  // Maps from the pathComponents (unique per srcTaskId) and partition to the
+  // specific taskId
   private final Map<String, InputAttemptIdentifier> pathToAttemptMap;
   private LinkedHashSet<InputAttemptIdentifier> remaining;
+  // The pathComponents in the request
+  private final Set<String> requestedPaths = new HashSet<String>();
 
   private URL url;
   private volatile DataInputStream input;
@@ -90,6 +110,8 @@ public class Fetcher implements Callable<FetchResult> {
   private HttpConnection httpConnection;
   private HttpConnectionParams httpConnectionParams;
 
+  private volatile NioHostFetch nioHostFetch;
+
   private Fetcher(FetcherCallback fetcherCallback, HttpConnectionParams params,
       FetchedInputAllocator inputManager, ApplicationId appId, SecretKey shuffleSecret,
       String srcNameTrimmed) {
@@ -107,20 +129,32 @@ public class Fetcher implements Callable<FetchResult> {
   @Override
   public FetchResult call() throws Exception {
     if (srcAttempts.size() == 0) {
-      return new FetchResult(host, port, partition, srcAttempts);
+      return new FetchResult(host, port, partition, srcAttempts, inputPartitions);
     }
 
     for (InputAttemptIdentifier in : srcAttempts) {
-      pathToAttemptMap.put(in.getPathComponent(), in);
+      pathToAttemptMap.put(getAttemptKey(in.getPathComponent(), inputPartitions.get(in)), in);
     }
 
     remaining = new LinkedHashSet<InputAttemptIdentifier>(srcAttempts);
 
+    if (localDiskFetchEnabled && ShuffleUtils.isLocalHost(host)) {
+      // Anything which can't be read locally is fetched over HTTP below.
+      fetchLocalInputs();
+      if (remaining.isEmpty() || isShutDown.get()) {
+        return new FetchResult(host, port, partition, remaining, inputPartitions);
+      }
+    }
+
     try {
       StringBuilder baseURI = ShuffleUtils.constructBaseURIForShuffleHandler(host,
-        port, partition, appId.toString(), httpConnectionParams.isSSLShuffleEnabled());
-      this.url = ShuffleUtils.constructInputURL(baseURI.toString(), srcAttempts,
-        httpConnectionParams.getKeepAlive());
+        port, partition, partitionCount, appId.toString(),
+        httpConnectionParams.isSSLShuffleEnabled());
+      this.url = ShuffleUtils.constructInputURL(baseURI.toString(),
+        new ArrayList<InputAttemptIdentifier>(remaining), httpConnectionParams.getKeepAlive());
+      for (InputAttemptIdentifier in : remaining) {
+        requestedPaths.add(in.getPathComponent());
+      }
 
       httpConnection = new HttpConnection(url, httpConnectionParams, logIdentifier, shuffleSecret);
       httpConnection.connect();
@@ -136,13 +170,13 @@ public class Fetcher implements Callable<FetchResult> {
           fetcherCallback.fetchFailed(host, leftIter.next(), true);
         }
       }
-      return new FetchResult(host, port, partition, remaining);
+      return new FetchResult(host, port, partition, remaining, inputPartitions);
     }
     if (isShutDown.get()) {
       // shutdown would have no effect if in the process of establishing the connection.
       shutdownInternal();
       LOG.info("Detected fetcher has been shutdown after connection establishment. Returning");
-      return new FetchResult(host, port, partition, remaining);
+      return new FetchResult(host, port, partition, remaining, inputPartitions);
     }
 
     try {
@@ -157,11 +191,11 @@ public class Fetcher implements Callable<FetchResult> {
       if (isShutDown.get()) {
         LOG.info("Not reporting fetch failure, since an Exception was caught after shutdown");
       } else {
-        InputAttemptIdentifier firstAttempt = srcAttempts.get(0);
+        InputAttemptIdentifier firstAttempt = getNextRemainingAttempt();
         LOG.warn("Fetch Failure from host while connecting: " + host + ", attempt: " + firstAttempt
             + " Informing ShuffleManager: ", e);
         fetcherCallback.fetchFailed(host, firstAttempt, false);
-        return new FetchResult(host, port, partition, remaining);
+        return new FetchResult(host, port, partition, remaining, inputPartitions);
       }
     }
 
@@ -173,7 +207,7 @@ public class Fetcher implements Callable<FetchResult> {
       // shutdown would have no effect if in the process of establishing the connection.
       shutdownInternal();
       LOG.info("Detected fetcher has been shutdown after opening stream. Returning");
-      return new FetchResult(host, port, partition, remaining);
+      return new FetchResult(host, port, partition, remaining, inputPartitions);
     }
     // After this point, closing the stream and connection, should cause a
     // SocketException,
@@ -189,9 +223,13 @@ public class Fetcher implements Callable<FetchResult> {
     }
 
     if (failedInputs != null && failedInputs.length > 0) {
-      LOG.warn("copyInputs failed for tasks " + Arrays.toString(failedInputs));
-      for (InputAttemptIdentifier left : failedInputs) {
-        fetcherCallback.fetchFailed(host, left, false);
+      if (isShutDown.get()) {
+        LOG.info("Not reporting fetch failure, since an Exception was caught after shutdown");
+      } else {
+        LOG.warn("copyInputs failed for tasks " + Arrays.toString(failedInputs));
+        for (InputAttemptIdentifier left : failedInputs) {
+          fetcherCallback.fetchFailed(host, left, false);
+        }
       }
     }
 
@@ -203,8 +241,76 @@ public class Fetcher implements Callable<FetchResult> {
           + remaining.size() + " left.");
     }
 
-    return new FetchResult(host, port, partition, remaining);
+    return new FetchResult(host, port, partition, remaining, inputPartitions);
+
+  }
+
+  /**
+   * Runs this fetch on the given {@link NioFetchEngine}, instead of blocking
+   * the calling thread as {@link #call()} does. Inputs are not read from the
+   * local disks in this mode.
+   *
+   * @return a future which completes with the same result {@link #call()}
+   *         would return
+   */
+  public ListenableFuture<FetchResult> callAsync(NioFetchEngine engine) {
+    if (srcAttempts.size() == 0) {
+      return Futures.immediateFuture(
+          new FetchResult(host, port, partition, srcAttempts, inputPartitions));
+    }
+
+    URL inputUrl;
+    try {
+      StringBuilder baseURI = ShuffleUtils.constructBaseURIForShuffleHandler(host,
+        port, partition, partitionCount, appId.toString(),
+        httpConnectionParams.isSSLShuffleEnabled());
+      // Connections are not reused across NIO fetches
+      inputUrl = ShuffleUtils.constructInputURL(baseURI.toString(), srcAttempts, false);
+    } catch (IOException e) {
+      for (InputAttemptIdentifier left : srcAttempts) {
+        fetcherCallback.fetchFailed(host, left, true);
+      }
+      return Futures.immediateFuture(
+          new FetchResult(host, port, partition, srcAttempts, inputPartitions));
+    }
+
+    NioHostFetch fetch = new NioHostFetch(host, port, partition, partitionCount,
+        inputPartitions, inputUrl, srcAttempts, shuffleSecret, httpConnectionParams,
+        fetcherCallback, inputManager, codec, logIdentifier);
+    nioHostFetch = fetch;
+    if (isShutDown.get()) {
+      fetch.abort();
+    }
+    engine.submit(fetch);
+    return fetch.getResult();
+  }
+
+  public String getHost() {
+    return host;
+  }
 
+  public int getPort() {
+    return port;
+  }
+
+  /**
+   * @return the inputs assigned to this fetcher which are not in the given
+   *         set, for every partition this fetcher covers. Empty if all of
+   *         them are in the set.
+   */
+  public List<PartitionInputs> getUnfinishedInputs(Set<InputIdentifier> completedInputs) {
+    List<PartitionInputs> unfinished = new ArrayList<PartitionInputs>(partitionCount);
+    for (int i = 0; i < partitionCount; i++) {
+      unfinished.add(new PartitionInputs(partition + i, new ArrayList<InputAttemptIdentifier>()));
+    }
+    boolean found = false;
+    for (InputAttemptIdentifier input : srcAttempts) {
+      if (!completedInputs.contains(input.getInputIdentifier())) {
+        unfinished.get(inputPartitions.get(input) - partition).getInputs().add(input);
+        found = true;
+      }
+    }
+    return found ? unfinished : Collections.<PartitionInputs>emptyList();
   }
 
   public void shutdown() {
@@ -218,6 +324,9 @@ public class Fetcher implements Callable<FetchResult> {
     // Can't synchronize on the main class itself since that would cause the
     // shutdown request to block
     synchronized (isShutDown) {
+      if (nioHostFetch != null) {
+        nioHostFetch.abort();
+      }
       try {
         if (httpConnection != null) {
           httpConnection.cleanup(false);
@@ -232,6 +341,72 @@ public class Fetcher implements Callable<FetchResult> {
     }
   }
 
+  private void fetchLocalInputs() {
+    for (Iterator<InputAttemptIdentifier> iter = remaining.iterator(); iter.hasNext();) {
+      if (isShutDown.get()) {
+        return;
+      }
+      if (fetchLocalInput(iter.next())) {
+        iter.remove();
+      }
+    }
+  }
+
+  /**
+   * Reads the input directly from the local disks, bypassing the
+   * ShuffleHandler. The data is verified against the IFile checksums exactly
+   * as it would be when fetched over HTTP.
+   *
+   * @return true if the input was read, false if it should be fetched over HTTP
+   */
+  private boolean fetchLocalInput(InputAttemptIdentifier srcAttemptId) {
+    LocalDiskInput localInput = null;
+    FetchedInput fetchedInput = null;
+    try {
+      long startTime = System.currentTimeMillis();
+      localInput = LocalDiskInput.open(localDiskConf, srcAttemptId.getPathComponent(),
+          inputPartitions.get(srcAttemptId), localDiskBufferSize);
+      long compressedLength = localInput.getCompressedLength();
+      long decompressedLength = localInput.getDecompressedLength();
+
+      fetchedInput = inputManager.allocate(decompressedLength, compressedLength, srcAttemptId);
+
+      LOG.info("fetcher" + " about to read output of srcAttempt "
+          + fetchedInput.getInputAttemptIdentifier() + " from local disk, decomp: "
+          + decompressedLength + " len: " + compressedLength + " to "
+          + fetchedInput.getType());
+
+      if (fetchedInput.getType() == Type.MEMORY) {
+        ShuffleUtils.shuffleToMemory(((MemoryFetchedInput) fetchedInput).getBytes(),
+          localInput.getInputStream(), (int) decompressedLength, (int) compressedLength, codec,
+          ifileReadAhead, ifileReadAheadLength, LOG,
+          fetchedInput.getInputAttemptIdentifier().toString());
+      } else {
+        ShuffleUtils.shuffleToDisk(((DiskFetchedInput) fetchedInput).getOutputStream(),
+          (host +":" +port), localInput.getInputStream(), compressedLength, LOG,
+          fetchedInput.getInputAttemptIdentifier().toString());
+      }
+
+      long endTime = System.currentTimeMillis();
+      fetcherCallback.fetchSucceeded(host, srcAttemptId, fetchedInput,
+          compressedLength, decompressedLength, (endTime - startTime));
+      return true;
+    } catch (IOException e) {
+      LOG.warn("Failed to read output of " + srcAttemptId
+          + " from local disk, will fetch it from " + host, e);
+      if (fetchedInput != null) {
+        try {
+          fetchedInput.abort();
+        } catch (IOException ioe) {
+          LOG.info("Failure to cleanup fetchedInput: " + fetchedInput);
+        }
+      }
+      return false;
+    } finally {
+      IOUtils.cleanup(LOG, localInput);
+    }
+  }
+
   private InputAttemptIdentifier[] fetchInputs(DataInputStream input) {
     FetchedInput fetchedInput = null;
     InputAttemptIdentifier srcAttemptId = null;
@@ -247,11 +422,11 @@ public class Fetcher implements Callable<FetchResult> {
         ShuffleHeader header = new ShuffleHeader();
         header.readFields(input);
         pathComponent = header.getMapId();
+        responsePartition = header.getPartition();
 
-        srcAttemptId = pathToAttemptMap.get(pathComponent);
+        srcAttemptId = pathToAttemptMap.get(getAttemptKey(pathComponent, responsePartition));
         compressedLength = header.getCompressedLength();
         decompressedLength = header.getUncompressedLength();
-        responsePartition = header.getPartition();
       } catch (IllegalArgumentException e) {
         // badIdErrs.increment(1);
         LOG.warn("Invalid src id ", e);
@@ -259,6 +434,16 @@ public class Fetcher implements Callable<FetchResult> {
         return remaining.toArray(new InputAttemptIdentifier[remaining.size()]);
       }
 
+      if (isUnrequestedInput(pathComponent, responsePartition, srcAttemptId,
+          compressedLength, decompressedLength)) {
+        // A request for several partitions returns each of them for every
+        // requested output, including the ones which are not pending here.
+        LOG.info("Skipping " + compressedLength + " bytes of partition " + responsePartition
+            + " of " + pathComponent + ", which was not requested");
+        IOUtils.skipFully(input, compressedLength);
+        return null;
+      }
+
       // Do some basic sanity verification
       if (!verifySanity(compressedLength, decompressedLength,
           responsePartition, srcAttemptId, pathComponent)) {
@@ -364,7 +549,8 @@ public class Fetcher implements Callable<FetchResult> {
       return false;
     }
 
-    if (fetchPartition != this.partition) {
+    if (fetchPartition < this.partition
+        || fetchPartition >= this.partition + this.partitionCount) {
       // wrongReduceErrs.increment(1);
       LOG.warn(" data for the wrong reduce -> headerPathComponent: "
           + pathComponent + "nextRemainingSrcAttemptId: "
@@ -385,6 +571,23 @@ public class Fetcher implements Callable<FetchResult> {
     return true;
   }
   
+  /**
+   * @return true if the header is for a requested output and a partition in
+   *         the requested range, but the input is not pending, e.g. because
+   *         it was not assigned to this fetch
+   */
+  private boolean isUnrequestedInput(String pathComponent, int responsePartition,
+      InputAttemptIdentifier srcAttemptId, long compressedLength, long decompressedLength) {
+    return compressedLength >= 0 && decompressedLength >= 0
+        && responsePartition >= partition && responsePartition < partition + partitionCount
+        && requestedPaths.contains(pathComponent)
+        && (srcAttemptId == null || !remaining.contains(srcAttemptId));
+  }
+
+  static String getAttemptKey(String pathComponent, int partition) {
+    return pathComponent + "_" + partition;
+  }
+
   private InputAttemptIdentifier getNextRemainingAttempt() {
     if (remaining.size() > 0) {
       return remaining.iterator().next();
@@ -423,12 +626,46 @@ public class Fetcher implements Callable<FetchResult> {
       return this;
     }
 
+    /**
+     * Allows inputs produced on this node to be read directly from the local
+     * dirs configured in conf.
+     */
+    public FetcherBuilder setLocalDiskFetchParams(boolean enabled, Configuration conf,
+        int bufferSize) {
+      fetcher.localDiskFetchEnabled = enabled;
+      fetcher.localDiskConf = conf;
+      fetcher.localDiskBufferSize = bufferSize;
+      return this;
+    }
+
     public FetcherBuilder assignWork(String host, int port, int partition,
         List<InputAttemptIdentifier> inputs) {
+      return assignWork(host, port,
+          Collections.singletonList(new PartitionInputs(partition, inputs)));
+    }
+
+    /**
+     * Assigns inputs for a contiguous range of partitions, which are fetched
+     * in a single request if there is more than one.
+     */
+    public FetcherBuilder assignWork(String host, int port,
+        List<PartitionInputs> partitionInputs) {
+      Preconditions.checkArgument(!partitionInputs.isEmpty(), "No partitions assigned");
       fetcher.host = host;
       fetcher.port = port;
-      fetcher.partition = partition;
-      fetcher.srcAttempts = inputs;
+      fetcher.partition = partitionInputs.get(0).getPartition();
+      fetcher.partitionCount = partitionInputs.size();
+      fetcher.srcAttempts = new ArrayList<InputAttemptIdentifier>();
+      fetcher.inputPartitions = new HashMap<InputAttemptIdentifier, Integer>();
+      for (int i = 0; i < partitionInputs.size(); i++) {
+        PartitionInputs pending = partitionInputs.get(i);
+        Preconditions.checkArgument(pending.getPartition() == fetcher.partition + i,
+            "Partitions must be contiguous: " + partitionInputs);
+        for (InputAttemptIdentifier input : pending.getInputs()) {
+          fetcher.srcAttempts.add(input);
+          fetcher.inputPartitions.put(input, pending.getPartition());
+        }
+      }
       workAssigned = true;
       return this;
     }
@@ -19,9 +19,10 @@
 package org.apache.tez.runtime.library.shuffle.common;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Map;
+import java.util.TreeMap;
 
 import org.apache.hadoop.yarn.api.records.ApplicationId;
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
@@ -29,26 +30,28 @@ import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
 /**
  * Represents a Host with respect to the MapReduce ShuffleHandler.
  * 
- * srcPhysicalIndex / partition is part of this since that only knows how to
- * serve ine partition at a time.
+ * Pending inputs are tracked per srcPhysicalIndex / partition, so that a
+ * single fetch can be limited to one partition, or to a contiguous range of
+ * partitions when the ShuffleHandler can serve them in one request.
  */
 public class InputHost {
 
   private final String host;
   private final int port;
-  private final int srcPhysicalIndex;
   private final String identifier;
 
-  private final BlockingQueue<InputAttemptIdentifier> inputs = new LinkedBlockingQueue<InputAttemptIdentifier>();
+  // Guarded by this
+  private final TreeMap<Integer, List<InputAttemptIdentifier>> partitionToInputs =
+      new TreeMap<Integer, List<InputAttemptIdentifier>>();
+  private int numPendingInputs = 0;
 
   public static String createIdentifier(String host, int port) {
     return (host + ":" + String.valueOf(port));
   }
   
-  public InputHost(String hostName, int port, ApplicationId appId, int srcPhysicalIndex) {
+  public InputHost(String hostName, int port, ApplicationId appId) {
     this.host = hostName;
     this.port = port;
-    this.srcPhysicalIndex = srcPhysicalIndex;
     this.identifier = createIdentifier(hostName, port);
   }
 
@@ -64,23 +67,72 @@ public class InputHost {
     return this.identifier;
   }
 
-  public int getSrcPhysicalIndex() {
-    return this.srcPhysicalIndex;
-  }
-
-  public int getNumPendingInputs() {
-    return inputs.size();
+  public synchronized int getNumPendingInputs() {
+    return numPendingInputs;
   }
   
-  public void addKnownInput(InputAttemptIdentifier srcAttempt) {
+  public synchronized void addKnownInput(int srcPhysicalIndex,
+      InputAttemptIdentifier srcAttempt) {
+    List<InputAttemptIdentifier> inputs = partitionToInputs.get(srcPhysicalIndex);
+    if (inputs == null) {
+      inputs = new ArrayList<InputAttemptIdentifier>();
+      partitionToInputs.put(srcPhysicalIndex, inputs);
+    }
     inputs.add(srcAttempt);
+    numPendingInputs++;
   }
 
-  public List<InputAttemptIdentifier> clearAndGetPendingInputs() {
-    List<InputAttemptIdentifier> inputsCopy = new ArrayList<InputAttemptIdentifier>(
-        inputs.size());
-    inputs.drainTo(inputsCopy);
-    return inputsCopy;
+  /**
+   * Removes and returns the pending inputs for the lowest pending partition,
+   * along with those for the partitions directly following it - up to
+   * maxPartitions partitions in all. Inputs for any other partitions stay
+   * pending.
+   *
+   * @return the inputs, by partition, in partition order. Empty if there are
+   *         no pending inputs.
+   */
+  public synchronized List<PartitionInputs> clearAndGetPendingInputs(int maxPartitions) {
+    List<PartitionInputs> pending = new ArrayList<PartitionInputs>();
+    Iterator<Map.Entry<Integer, List<InputAttemptIdentifier>>> iter = partitionToInputs
+        .entrySet().iterator();
+    int nextPartition = -1;
+    while (iter.hasNext() && pending.size() < maxPartitions) {
+      Map.Entry<Integer, List<InputAttemptIdentifier>> entry = iter.next();
+      if (nextPartition != -1 && entry.getKey() != nextPartition) {
+        break;
+      }
+      pending.add(new PartitionInputs(entry.getKey(), entry.getValue()));
+      numPendingInputs -= entry.getValue().size();
+      iter.remove();
+      nextPartition = entry.getKey() + 1;
+    }
+    return pending;
+  }
+
+  /**
+   * The pending inputs for a single partition of the host.
+   */
+  public static class PartitionInputs {
+    private final int partition;
+    private final List<InputAttemptIdentifier> inputs;
+
+    public PartitionInputs(int partition, List<InputAttemptIdentifier> inputs) {
+      this.partition = partition;
+      this.inputs = inputs;
+    }
+
+    public int getPartition() {
+      return partition;
+    }
+
+    public List<InputAttemptIdentifier> getInputs() {
+      return inputs;
+    }
+
+    @Override
+    public String toString() {
+      return "partition=" + partition + ", inputs=" + inputs;
+    }
   }
 
   @Override
@@ -89,7 +141,6 @@ public class InputHost {
     int result = 1;
     result = prime * result + ((host == null) ? 0 : host.hashCode());
     result = prime * result + port;
-    result = prime * result + srcPhysicalIndex;
     return result;
   }
 
@@ -114,20 +165,15 @@ public class InputHost {
     if (port != other.port) {
       return false;
     }
-    if (srcPhysicalIndex != other.srcPhysicalIndex) {
-      return false;
-    }
     return true;
   }
 
-  public String toDetailedString() {
-    return "InputHost [host=" + host + ", port=" + port + ",srcPhysicalIndex=" + srcPhysicalIndex
-        + ", inputs=" + inputs + "]";
+  public synchronized String toDetailedString() {
+    return "InputHost [host=" + host + ", port=" + port + ", inputs=" + partitionToInputs + "]";
   }
   
   @Override
   public String toString() {
-    return "InputHost [host=" + host + ", port=" + port + ", srcPhysicalIndex=" + srcPhysicalIndex
-        + "]";
+    return "InputHost [host=" + host + ", port=" + port + "]";
   }
 }
@@ -0,0 +1,120 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.shuffle.common;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+import org.apache.tez.runtime.library.common.sort.impl.TezIndexRecord;
+import org.apache.tez.runtime.library.common.sort.impl.TezSpillRecord;
+import org.apache.tez.runtime.library.common.task.local.output.TezTaskOutputFiles;
+
+/**
+ * A single partition of an output which was produced on this node, read
+ * directly from the local dirs of the application instead of going through
+ * the ShuffleHandler. The stream is positioned at the start of the partition
+ * and carries the same IFile bytes (including checksums) the ShuffleHandler
+ * would have sent.
+ */
+@Private
+public class LocalDiskInput implements Closeable {
+
+  private final TezIndexRecord indexRecord;
+  private final FileInputStream fileIn;
+  private final InputStream input;
+
+  private LocalDiskInput(TezIndexRecord indexRecord, FileInputStream fileIn,
+      int bufferSize) {
+    this.indexRecord = indexRecord;
+    this.fileIn = fileIn;
+    this.input = new BufferedInputStream(fileIn, bufferSize);
+  }
+
+  /**
+   * Opens the given partition of the output identified by pathComponent.
+   *
+   * @param conf configuration with the local dirs of the application set
+   * @throws IOException if the output does not exist locally or its index
+   *           fails verification
+   */
+  public static LocalDiskInput open(Configuration conf, String pathComponent,
+      int partition, int bufferSize) throws IOException {
+    // The path component comes from an event, don't let it point anywhere
+    // other than an output directory.
+    if (pathComponent == null
+        || !pathComponent.startsWith(InputAttemptIdentifier.PATH_PREFIX)
+        || pathComponent.contains(Path.SEPARATOR) || pathComponent.contains("..")) {
+      throw new IOException("Invalid path component: " + pathComponent);
+    }
+    TezTaskOutputFiles outputFiles = new TezTaskOutputFiles(conf, pathComponent);
+    Path indexFile = outputFiles.getOutputIndexFile();
+    Path dataFile = outputFiles.getOutputFile();
+
+    TezSpillRecord spillRecord = new TezSpillRecord(indexFile, conf);
+    if (partition < 0 || partition >= spillRecord.size()) {
+      throw new IOException("Partition " + partition + " not found in " + indexFile
+          + " with " + spillRecord.size() + " partitions");
+    }
+    TezIndexRecord indexRecord = spillRecord.getIndex(partition);
+
+    FileInputStream fileIn = new FileInputStream(new File(dataFile.toUri().getPath()));
+    try {
+      if (indexRecord.getStartOffset() + indexRecord.getPartLength() > fileIn
+          .getChannel().size()) {
+        throw new IOException("Index for partition " + partition + " points past the end of "
+            + dataFile);
+      }
+      fileIn.getChannel().position(indexRecord.getStartOffset());
+    } catch (IOException e) {
+      IOUtils.closeStream(fileIn);
+      throw e;
+    }
+    return new LocalDiskInput(indexRecord, fileIn, bufferSize);
+  }
+
+  public InputStream getInputStream() {
+    return input;
+  }
+
+  public long getCompressedLength() {
+    return indexRecord.getPartLength();
+  }
+
+  public long getDecompressedLength() {
+    return indexRecord.getRawLength();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      input.close();
+    } finally {
+      fileIn.close();
+    }
+  }
+}
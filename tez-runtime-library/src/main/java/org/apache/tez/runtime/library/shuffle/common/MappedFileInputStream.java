@@ -0,0 +1,176 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.shuffle.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.nativeio.NativeIO;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+
+/**
+ * Reads a local file through read-only memory mappings, so that data is read
+ * straight from the page cache instead of going through a buffered file
+ * stream. Files larger than a single mapping allows (2 GB) are mapped in
+ * chunks. The mappings are released on {@link #close()}.
+ */
+@Private
+public class MappedFileInputStream extends InputStream {
+
+  private static final Log LOG = LogFactory.getLog(MappedFileInputStream.class);
+
+  private static final long MAX_CHUNK_SIZE = Integer.MAX_VALUE;
+
+  private final MappedByteBuffer[] chunks;
+  private final long length;
+  private long position = 0;
+  private int currentChunk = 0;
+  private boolean closed = false;
+
+  public MappedFileInputStream(File file) throws IOException {
+    this(file, MAX_CHUNK_SIZE);
+  }
+
+  @VisibleForTesting
+  MappedFileInputStream(File file, long chunkSize) throws IOException {
+    Preconditions.checkArgument(chunkSize > 0 && chunkSize <= MAX_CHUNK_SIZE,
+        "Invalid chunk size: " + chunkSize);
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      this.length = channel.size();
+      int numChunks = (int) ((length + chunkSize - 1) / chunkSize);
+      this.chunks = new MappedByteBuffer[numChunks];
+      try {
+        for (int i = 0; i < numChunks; i++) {
+          long offset = i * chunkSize;
+          chunks[i] = channel.map(MapMode.READ_ONLY, offset, Math.min(chunkSize, length - offset));
+        }
+      } catch (IOException e) {
+        unmap();
+        throw e;
+      }
+    } finally {
+      // The mappings stay valid after the channel is closed
+      IOUtils.cleanup(LOG, raf);
+    }
+  }
+
+  @Override
+  public int read() throws IOException {
+    MappedByteBuffer chunk = getCurrentChunk();
+    if (chunk == null) {
+      return -1;
+    }
+    position++;
+    return chunk.get() & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    Preconditions.checkPositionIndexes(off, off + len, b.length);
+    if (len == 0) {
+      return 0;
+    }
+    MappedByteBuffer chunk = getCurrentChunk();
+    if (chunk == null) {
+      return -1;
+    }
+    int n = Math.min(len, chunk.remaining());
+    chunk.get(b, off, n);
+    position += n;
+    return n;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    long skipped = 0;
+    while (skipped < n) {
+      MappedByteBuffer chunk = getCurrentChunk();
+      if (chunk == null) {
+        break;
+      }
+      int toSkip = (int) Math.min(n - skipped, chunk.remaining());
+      chunk.position(chunk.position() + toSkip);
+      skipped += toSkip;
+    }
+    position += skipped;
+    return skipped;
+  }
+
+  @Override
+  public int available() throws IOException {
+    checkOpen();
+    return (int) Math.min(Integer.MAX_VALUE, length - position);
+  }
+
+  public long getPosition() {
+    return position;
+  }
+
+  @Override
+  public void close() {
+    if (!closed) {
+      closed = true;
+      unmap();
+    }
+  }
+
+  private MappedByteBuffer getCurrentChunk() throws IOException {
+    checkOpen();
+    while (currentChunk < chunks.length && !chunks[currentChunk].hasRemaining()) {
+      currentChunk++;
+    }
+    return currentChunk < chunks.length ? chunks[currentChunk] : null;
+  }
+
+  private void checkOpen() throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+  }
+
+  private void unmap() {
+    for (int i = 0; i < chunks.length; i++) {
+      if (chunks[i] != null) {
+        try {
+          NativeIO.POSIX.munmap(chunks[i]);
+        } catch (LinkageError e) {
+          // Not supported by this JVM, the mapping goes away once the buffer
+          // is garbage collected.
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("Unable to unmap buffer: " + e);
+          }
+        }
+        chunks[i] = null;
+      }
+    }
+  }
+}
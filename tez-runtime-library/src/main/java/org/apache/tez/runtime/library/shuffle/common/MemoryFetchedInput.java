@@ -24,18 +24,34 @@ import java.io.OutputStream;
 
 import org.apache.hadoop.io.BoundedByteArrayOutputStream;
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+import org.apache.tez.runtime.library.shuffle.common.FetchedInputBufferPool.Buffer;
 
 import com.google.common.base.Preconditions;
 
 public class MemoryFetchedInput extends FetchedInput {
 
   private BoundedByteArrayOutputStream byteStream;
+  private Buffer buffer;
 
   public MemoryFetchedInput(long actualSize, long compressedSize,
       InputAttemptIdentifier inputAttemptIdentifier,
       FetchedInputCallback callbackHandler) {
+    this(actualSize, compressedSize, inputAttemptIdentifier, callbackHandler,
+        Buffer.wrap(new byte[(int) actualSize]));
+  }
+
+  /**
+   * @param buffer a buffer of at least actualSize bytes, handed over to this
+   *          input, and released when it is freed or aborted.
+   */
+  public MemoryFetchedInput(long actualSize, long compressedSize,
+      InputAttemptIdentifier inputAttemptIdentifier,
+      FetchedInputCallback callbackHandler, Buffer buffer) {
     super(Type.MEMORY, actualSize, compressedSize, inputAttemptIdentifier, callbackHandler);
-    this.byteStream = new BoundedByteArrayOutputStream((int) actualSize);
+    Preconditions.checkArgument(buffer.getData().length >= actualSize,
+        "Buffer smaller than the input");
+    this.buffer = buffer;
+    this.byteStream = new BufferOutputStream(buffer.getData(), (int) actualSize);
   }
 
   @Override
@@ -45,9 +61,13 @@ public class MemoryFetchedInput extends FetchedInput {
 
   @Override
   public InputStream getInputStream() {
-    return new ByteArrayInputStream(byteStream.getBuffer());
+    return new ByteArrayInputStream(byteStream.getBuffer(), 0, (int) actualSize);
   }
 
+  /**
+   * The array may be larger than the input, only the first
+   * {@link #getActualSize()} bytes belong to it.
+   */
   public byte[] getBytes() {
     return byteStream.getBuffer();
   }
@@ -65,6 +85,7 @@ public class MemoryFetchedInput extends FetchedInput {
     if (state == State.PENDING) {
       state = State.ABORTED;
       notifyFetchFailure();
+      releaseBuffer();
     }
   }
   
@@ -77,6 +98,23 @@ public class MemoryFetchedInput extends FetchedInput {
       state = State.FREED;
       this.byteStream = null;
       notifyFreedResource();
+      releaseBuffer();
+    }
+  }
+
+  private void releaseBuffer() {
+    if (buffer != null) {
+      buffer.release();
+      buffer = null;
+    }
+  }
+
+  /**
+   * Writes to the first limit bytes of an existing array.
+   */
+  private static class BufferOutputStream extends BoundedByteArrayOutputStream {
+    BufferOutputStream(byte[] buffer, int limit) {
+      super(buffer, 0, limit);
     }
   }
 
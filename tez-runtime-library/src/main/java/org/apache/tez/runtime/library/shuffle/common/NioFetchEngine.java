@@ -0,0 +1,190 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.shuffle.common;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Runs fetches from ShuffleHandlers over non-blocking connections. A small
+ * number of selector threads multiplex all open host connections, so the
+ * number of concurrent fetches is not bound by the number of threads, and a
+ * slow host does not hold on to a thread.
+ *
+ * Fetches are submitted via {@link Fetcher#callAsync(NioFetchEngine)}, and
+ * follow the same protocol, security checks and {@link FetcherCallback}
+ * contract as a {@link Fetcher} running on its own thread. In-memory inputs
+ * are decompressed on a separate pool of threads, so that the selector
+ * threads only move bytes.
+ */
+@Private
+public class NioFetchEngine {
+
+  private static final Log LOG = LogFactory.getLog(NioFetchEngine.class);
+
+  /** Upper bound on how long timeouts and aborts can go unnoticed */
+  private static final long SELECT_TIMEOUT_MS = 500;
+
+  private final SelectorThread[] selectorThreads;
+  private final ExecutorService decompressExecutor;
+  private final AtomicInteger nextSelector = new AtomicInteger(0);
+  private final AtomicBoolean isShutdown = new AtomicBoolean(false);
+
+  public NioFetchEngine(int numSelectors, int numDecompressors, String srcNameTrimmed)
+      throws IOException {
+    Preconditions.checkArgument(numSelectors > 0, "numSelectors must be positive");
+    Preconditions.checkArgument(numDecompressors > 0, "numDecompressors must be positive");
+    decompressExecutor = Executors.newFixedThreadPool(numDecompressors,
+        new ThreadFactoryBuilder().setDaemon(true)
+            .setNameFormat("NioFetcher Decompressor [" + srcNameTrimmed + "] #%d").build());
+    selectorThreads = new SelectorThread[numSelectors];
+    for (int i = 0; i < numSelectors; i++) {
+      selectorThreads[i] = new SelectorThread(Selector.open(),
+          "NioFetcher [" + srcNameTrimmed + "] #" + i);
+    }
+    for (SelectorThread selectorThread : selectorThreads) {
+      selectorThread.start();
+    }
+  }
+
+  void submit(NioHostFetch fetch) {
+    if (isShutdown.get()) {
+      fetch.abort();
+      fetch.complete();
+      return;
+    }
+    int index = (nextSelector.getAndIncrement() & Integer.MAX_VALUE) % selectorThreads.length;
+    selectorThreads[index].register(fetch);
+  }
+
+  /**
+   * Closes all connections. Fetches which are still running complete with
+   * their pending inputs, without reporting failures.
+   */
+  public void shutdown() {
+    if (!isShutdown.getAndSet(true)) {
+      for (SelectorThread selectorThread : selectorThreads) {
+        selectorThread.selector.wakeup();
+      }
+      // Decompressors of aborted fetches exit once their selector thread
+      // completes the fetch
+      decompressExecutor.shutdown();
+    }
+  }
+
+  private class SelectorThread extends Thread {
+
+    private final Selector selector;
+    private final Queue<NioHostFetch> newFetches = new ConcurrentLinkedQueue<NioHostFetch>();
+    // Only accessed from this thread
+    private final Set<NioHostFetch> activeFetches = new HashSet<NioHostFetch>();
+    private volatile boolean stopped = false;
+
+    SelectorThread(Selector selector, String name) {
+      this.selector = selector;
+      setName(name);
+      setDaemon(true);
+    }
+
+    void register(NioHostFetch fetch) {
+      newFetches.add(fetch);
+      selector.wakeup();
+      if (stopped) {
+        // Raced with the loop exiting, and will not be picked up by it
+        abortNewFetches();
+      }
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (!isShutdown.get()) {
+          NioHostFetch fetch;
+          while ((fetch = newFetches.poll()) != null) {
+            if (fetch.start(selector, decompressExecutor)) {
+              activeFetches.add(fetch);
+            }
+          }
+
+          selector.select(SELECT_TIMEOUT_MS);
+
+          Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+          while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            fetch = (NioHostFetch) key.attachment();
+            if (!fetch.handle(key)) {
+              activeFetches.remove(fetch);
+            }
+          }
+
+          long now = System.currentTimeMillis();
+          for (Iterator<NioHostFetch> iter = activeFetches.iterator(); iter.hasNext();) {
+            if (!iter.next().checkProgress(now)) {
+              iter.remove();
+            }
+          }
+        }
+      } catch (Throwable t) {
+        LOG.error("Unexpected error in " + getName() + ", aborting "
+            + activeFetches.size() + " running fetches", t);
+        // Fetches complete below with all their inputs pending, which
+        // ShuffleManager schedules again.
+      } finally {
+        stopped = true;
+        for (NioHostFetch fetch : activeFetches) {
+          fetch.abort();
+          fetch.complete();
+        }
+        activeFetches.clear();
+        abortNewFetches();
+        try {
+          selector.close();
+        } catch (IOException e) {
+          LOG.info("Failed to close selector for " + getName() + ": " + e.getMessage());
+        }
+      }
+    }
+
+    private void abortNewFetches() {
+      NioHostFetch fetch;
+      while ((fetch = newFetches.poll()) != null) {
+        fetch.abort();
+        fetch.complete();
+      }
+    }
+  }
+}
@@ -0,0 +1,824 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.shuffle.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.crypto.SecretKey;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+import org.apache.tez.runtime.library.common.security.SecureShuffleUtils;
+import org.apache.tez.runtime.library.common.shuffle.impl.ShuffleHeader;
+import org.apache.tez.runtime.library.shuffle.common.FetchedInput.Type;
+import org.apache.tez.runtime.library.shuffle.common.HttpConnection.HttpConnectionParams;
+
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * A single non-blocking fetch of a set of inputs from one host, driven by a
+ * selector thread of the {@link NioFetchEngine}. Sends the same request as
+ * {@link HttpConnection}, validates the reply hash, and then parses
+ * {@link ShuffleHeader}s and input data as they arrive.
+ *
+ * In-memory inputs are verified and decompressed on a separate executor,
+ * which reads them through a bounded {@link InputPipe} while they arrive.
+ * Reads from the connection are suspended while the pipe is full, or while
+ * an input which has been read completely is still being decompressed.
+ *
+ * All methods other than {@link #abort()} are called from the selector thread.
+ */
+class NioHostFetch {
+
+  private static final Log LOG = LogFactory.getLog(NioHostFetch.class);
+
+  private static final int MIN_BUFFER_SIZE = 16 * 1024;
+  private static final byte[] END_OF_HEADERS = new byte[] { '\r', '\n', '\r', '\n' };
+  /** Size of the pipe to the decompressor, in read buffers */
+  private static final int PIPE_BUFFERS = 4;
+
+  private static enum State {
+    CONNECTING, SENDING_REQUEST, READING_RESPONSE, READING_SHUFFLE_HEADER, READING_INPUT
+  }
+
+  private final String host;
+  private final int port;
+  private final int partition;
+  private final int partitionCount;
+  private final Map<InputAttemptIdentifier, Integer> inputPartitions;
+  private final URL url;
+  private final SecretKey shuffleSecret;
+  private final HttpConnectionParams httpConnectionParams;
+  private final FetcherCallback fetcherCallback;
+  private final FetchedInputAllocator inputManager;
+  private final CompressionCodec codec;
+  private final String logIdentifier;
+
+  private final Map<String, InputAttemptIdentifier> pathToAttemptMap;
+  private final LinkedHashSet<InputAttemptIdentifier> remaining;
+  // The pathComponents in the request
+  private final Set<String> requestedPaths = new HashSet<String>();
+  private final SettableFuture<FetchResult> result = SettableFuture.create();
+
+  private volatile boolean aborted = false;
+  private volatile Selector selector;
+  private Executor decompressExecutor;
+  private SelectionKey key;
+
+  private SocketChannel channel;
+  private State state = State.CONNECTING;
+  private boolean connectSucceeded = false;
+  private boolean responseValidated = false;
+  private long lastProgressTime;
+  private String encHash;
+  private ByteBuffer requestBuffer;
+  private ByteBuffer readBuffer;
+  private final DataInputBuffer headerInput = new DataInputBuffer();
+
+  // The input currently being read
+  private InputAttemptIdentifier srcAttemptId;
+  private FetchedInput fetchedInput;
+  private long compressedLength;
+  private long decompressedLength;
+  private long bytesRead;
+  // Whether the current input is skipped
+  private boolean skippingInput;
+  private OutputStream diskOutput;
+  private long inputStartTime;
+  private InputPipe inputPipe;
+  // Set while reads wait for the decompressor
+  private boolean readPaused = false;
+  private boolean decompressStarted = false;
+  private volatile boolean decompressDone = false;
+  private volatile IOException decompressError;
+  // Guarded by this
+  private boolean decompressing = false;
+  private boolean completed = false;
+
+  NioHostFetch(String host, int port, int partition, int partitionCount,
+      Map<InputAttemptIdentifier, Integer> inputPartitions, URL url,
+      List<InputAttemptIdentifier> srcAttempts, SecretKey shuffleSecret,
+      HttpConnectionParams httpConnectionParams, FetcherCallback fetcherCallback,
+      FetchedInputAllocator inputManager, CompressionCodec codec, String logIdentifier) {
+    this.host = host;
+    this.port = port;
+    this.partition = partition;
+    this.partitionCount = partitionCount;
+    this.inputPartitions = inputPartitions;
+    this.url = url;
+    this.shuffleSecret = shuffleSecret;
+    this.httpConnectionParams = httpConnectionParams;
+    this.fetcherCallback = fetcherCallback;
+    this.inputManager = inputManager;
+    this.codec = codec;
+    this.logIdentifier = logIdentifier;
+    this.pathToAttemptMap = new HashMap<String, InputAttemptIdentifier>();
+    for (InputAttemptIdentifier in : srcAttempts) {
+      pathToAttemptMap.put(
+          Fetcher.getAttemptKey(in.getPathComponent(), inputPartitions.get(in)), in);
+      requestedPaths.add(in.getPathComponent());
+    }
+    this.remaining = new LinkedHashSet<InputAttemptIdentifier>(srcAttempts);
+  }
+
+  ListenableFuture<FetchResult> getResult() {
+    return result;
+  }
+
+  /**
+   * Stops the fetch without reporting failures. May be called from any thread.
+   */
+  void abort() {
+    aborted = true;
+    Selector currentSelector = selector;
+    if (currentSelector != null) {
+      currentSelector.wakeup();
+    }
+  }
+
+  /**
+   * Opens the connection and registers with the selector.
+   *
+   * @param decompressExecutor runs the decompression of in-memory inputs
+   * @return true if the fetch is in progress, false if it has completed
+   */
+  boolean start(Selector selector, Executor decompressExecutor) {
+    this.selector = selector;
+    this.decompressExecutor = decompressExecutor;
+    if (aborted) {
+      complete();
+      return false;
+    }
+    lastProgressTime = System.currentTimeMillis();
+    try {
+      // generate hash of the url, exactly as HttpConnection does
+      String msgToEncode = SecureShuffleUtils.buildMsgFrom(url);
+      encHash = SecureShuffleUtils.hashFromString(msgToEncode, shuffleSecret);
+      requestBuffer = ByteBuffer.wrap(buildRequest().getBytes(Charsets.UTF_8));
+      readBuffer = ByteBuffer.allocate(
+          Math.max(MIN_BUFFER_SIZE, httpConnectionParams.getBufferSize()));
+
+      channel = SocketChannel.open();
+      channel.configureBlocking(false);
+      if (channel.connect(new InetSocketAddress(host, port))) {
+        connectSucceeded = true;
+        state = State.SENDING_REQUEST;
+        key = channel.register(selector, SelectionKey.OP_WRITE, this);
+      } else {
+        key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+      }
+      return true;
+    } catch (IOException e) {
+      failed(e);
+      return false;
+    }
+  }
+
+  /**
+   * Handles a ready key.
+   *
+   * @return true if the fetch is still in progress, false if it has completed
+   */
+  boolean handle(SelectionKey key) {
+    try {
+      if (!key.isValid()) {
+        throw new IOException("Connection to " + host + " was closed");
+      }
+      if (key.isConnectable()) {
+        if (!channel.finishConnect()) {
+          return true;
+        }
+        connectSucceeded = true;
+        lastProgressTime = System.currentTimeMillis();
+        state = State.SENDING_REQUEST;
+        key.interestOps(SelectionKey.OP_WRITE);
+      } else if (key.isWritable()) {
+        channel.write(requestBuffer);
+        lastProgressTime = System.currentTimeMillis();
+        if (!requestBuffer.hasRemaining()) {
+          state = State.READING_RESPONSE;
+          key.interestOps(SelectionKey.OP_READ);
+        }
+      } else if (key.isReadable()) {
+        int n = channel.read(readBuffer);
+        if (n > 0) {
+          lastProgressTime = System.currentTimeMillis();
+        }
+        if (processReadBuffer()) {
+          complete();
+          return false;
+        }
+        if (readPaused) {
+          // Anything after the current input stays in the buffer until it
+          // has been handed over, including the end of the stream
+          return true;
+        }
+        if (n < 0) {
+          throw new EOFException("Connection closed by " + host + " with "
+              + remaining.size() + " inputs pending");
+        }
+        if (!readBuffer.hasRemaining()) {
+          throw new IOException("Header from " + host + " exceeds buffer size "
+              + readBuffer.capacity());
+        }
+      }
+      return true;
+    } catch (IllegalArgumentException e) {
+      // Invalid src id. Don't know which one was bad, so consider all of them as bad
+      LOG.warn("Invalid src id ", e);
+      srcAttemptId = null;
+      failed(new IOException(e));
+      return false;
+    } catch (IOException e) {
+      failed(e);
+      return false;
+    }
+  }
+
+  /**
+   * Checks for aborts and timeouts.
+   *
+   * @return true if the fetch is still in progress, false if it has completed
+   */
+  boolean checkProgress(long now) {
+    if (aborted) {
+      complete();
+      return false;
+    }
+    if (readPaused) {
+      // Waiting for the decompressor, rather than for the host
+      lastProgressTime = now;
+      try {
+        if (resumeReading()) {
+          complete();
+          return false;
+        }
+      } catch (IllegalArgumentException e) {
+        LOG.warn("Invalid src id ", e);
+        srcAttemptId = null;
+        failed(new IOException(e));
+        return false;
+      } catch (IOException e) {
+        failed(e);
+        return false;
+      }
+      return true;
+    }
+    long timeout = connectSucceeded ? httpConnectionParams.getReadTimeout()
+        : httpConnectionParams.getConnectionTimeout();
+    if (timeout > 0 && now - lastProgressTime > timeout) {
+      failed(new SocketTimeoutException((connectSucceeded ? "Read" : "Connect")
+          + " timed out after " + timeout + " ms on " + host + ":" + port));
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Completes the fetch with the inputs which are still pending, releasing
+   * the connection and any partially read input.
+   */
+  synchronized void complete() {
+    completed = true;
+    if (channel != null) {
+      IOUtils.cleanup(LOG, channel);
+    }
+    if (inputPipe != null) {
+      inputPipe.abort();
+    }
+    if (fetchedInput != null) {
+      IOUtils.cleanup(LOG, diskOutput);
+      if (!decompressing) {
+        abortInput(fetchedInput);
+      }
+      // else the decompressor still writes to the input, and aborts it once
+      // it notices the pipe has been aborted
+      clearCurrentInput();
+    }
+    result.set(new FetchResult(host, port, partition, remaining, inputPartitions));
+  }
+
+  private String buildRequest() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("GET ").append(url.getFile()).append(" HTTP/1.1\r\n");
+    sb.append("Host: ").append(host).append(':').append(port).append("\r\n");
+    // put url hash and shuffle version into http header
+    sb.append(SecureShuffleUtils.HTTP_HEADER_URL_HASH).append(": ").append(encHash)
+        .append("\r\n");
+    sb.append(ShuffleHeader.HTTP_HEADER_NAME).append(": ")
+        .append(ShuffleHeader.DEFAULT_HTTP_HEADER_NAME).append("\r\n");
+    sb.append(ShuffleHeader.HTTP_HEADER_VERSION).append(": ")
+        .append(ShuffleHeader.DEFAULT_HTTP_HEADER_VERSION).append("\r\n");
+    // Connections are not reused across fetches
+    sb.append("Connection: close\r\n");
+    sb.append("\r\n");
+    return sb.toString();
+  }
+
+  /**
+   * Processes the read buffer, and readies it for the next read.
+   *
+   * @return true once all inputs have been fetched
+   */
+  private boolean processReadBuffer() throws IOException {
+    readBuffer.flip();
+    try {
+      return process();
+    } finally {
+      readBuffer.compact();
+    }
+  }
+
+  /**
+   * Resumes reading once the decompressor has finished the current input,
+   * or has made room in the pipe for more of it.
+   *
+   * @return true once all inputs have been fetched
+   */
+  private boolean resumeReading() throws IOException {
+    if (decompressDone) {
+      if (decompressError != null) {
+        throw decompressError;
+      }
+      finishInput();
+      state = State.READING_SHUFFLE_HEADER;
+    } else if (bytesRead == compressedLength || !inputPipe.hasSpace()) {
+      return false;
+    }
+    readPaused = false;
+    key.interestOps(SelectionKey.OP_READ);
+    return processReadBuffer();
+  }
+
+  /**
+   * Consumes as much of the read buffer as possible.
+   *
+   * @return true once all inputs have been fetched
+   */
+  private boolean process() throws IOException {
+    while (true) {
+      switch (state) {
+      case READING_RESPONSE:
+        if (!readResponseHeaders()) {
+          return false;
+        }
+        state = State.READING_SHUFFLE_HEADER;
+        break;
+      case READING_SHUFFLE_HEADER:
+        if (remaining.isEmpty()) {
+          return true;
+        }
+        if (!readShuffleHeader()) {
+          return false;
+        }
+        state = State.READING_INPUT;
+        break;
+      case READING_INPUT:
+        if (!readInputData()) {
+          return false;
+        }
+        state = State.READING_SHUFFLE_HEADER;
+        break;
+      default:
+        throw new IllegalStateException("Unexpected state " + state + " while reading");
+      }
+    }
+  }
+
+  private boolean readResponseHeaders() throws IOException {
+    int end = indexOf(readBuffer, END_OF_HEADERS);
+    if (end < 0) {
+      return false;
+    }
+    byte[] headerBytes = new byte[end - readBuffer.position()];
+    readBuffer.get(headerBytes);
+    readBuffer.position(readBuffer.position() + END_OF_HEADERS.length);
+
+    String[] lines = new String(headerBytes, Charsets.ISO_8859_1).split("\r\n");
+    String[] statusLine = lines[0].split(" ", 3);
+    int rc;
+    try {
+      rc = statusLine.length < 2 ? -1 : Integer.parseInt(statusLine[1]);
+    } catch (NumberFormatException e) {
+      rc = -1;
+    }
+    if (rc != 200) {
+      throw new IOException("Got invalid response code " + rc + " from " + url
+          + ": " + lines[0]);
+    }
+    Map<String, String> headers = new HashMap<String, String>();
+    for (int i = 1; i < lines.length; i++) {
+      int colon = lines[i].indexOf(':');
+      if (colon > 0) {
+        headers.put(lines[i].substring(0, colon).trim().toLowerCase(),
+            lines[i].substring(colon + 1).trim());
+      }
+    }
+    // get the shuffle version
+    if (!ShuffleHeader.DEFAULT_HTTP_HEADER_NAME.equals(
+        headers.get(ShuffleHeader.HTTP_HEADER_NAME.toLowerCase()))
+        || !ShuffleHeader.DEFAULT_HTTP_HEADER_VERSION.equals(
+            headers.get(ShuffleHeader.HTTP_HEADER_VERSION.toLowerCase()))) {
+      throw new IOException("Incompatible shuffle response version");
+    }
+    // get the replyHash which is HMac of the encHash we sent to the server
+    String replyHash = headers.get(SecureShuffleUtils.HTTP_HEADER_REPLY_URL_HASH.toLowerCase());
+    if (replyHash == null) {
+      throw new IOException("security validation of TT Map output failed");
+    }
+    // verify that replyHash is HMac of encHash
+    SecureShuffleUtils.verifyReply(replyHash, encHash, shuffleSecret);
+    responseValidated = true;
+    return true;
+  }
+
+  private boolean readShuffleHeader() throws IOException {
+    int start = readBuffer.arrayOffset() + readBuffer.position();
+    headerInput.reset(readBuffer.array(), start, readBuffer.remaining());
+    ShuffleHeader header = new ShuffleHeader();
+    try {
+      header.readFields(headerInput);
+    } catch (EOFException e) {
+      // Not all of the header has arrived yet
+      return false;
+    }
+    readBuffer.position(readBuffer.position() + headerInput.getPosition() - start);
+
+    InputAttemptIdentifier attemptId = pathToAttemptMap.get(
+        Fetcher.getAttemptKey(header.getMapId(), header.getPartition()));
+    compressedLength = header.getCompressedLength();
+    decompressedLength = header.getUncompressedLength();
+    bytesRead = 0;
+
+    if (compressedLength >= 0 && decompressedLength >= 0
+        && header.getPartition() >= partition
+        && header.getPartition() < partition + partitionCount
+        && requestedPaths.contains(header.getMapId())
+        && (attemptId == null || !remaining.contains(attemptId))) {
+      // A request for several partitions returns each of them for every
+      // requested output, including the ones which are not pending here.
+      LOG.info("Skipping " + compressedLength + " bytes of partition " + header.getPartition()
+          + " of " + header.getMapId() + ", which was not requested");
+      skippingInput = true;
+      return true;
+    }
+
+    // Do some basic sanity verification
+    if (compressedLength < 0 || decompressedLength < 0
+        || header.getPartition() < partition
+        || header.getPartition() >= partition + partitionCount
+        || !remaining.contains(attemptId)) {
+      LOG.warn("Invalid input header from " + host + " -> headerPathComponent: "
+          + header.getMapId() + ", mappedSrcAttemptId: " + attemptId + " len: "
+          + compressedLength + ", decomp len: " + decompressedLength + " for partition "
+          + header.getPartition() + ", expected partitions: " + partition + " to "
+          + (partition + partitionCount - 1));
+      srcAttemptId = attemptId == null || !remaining.contains(attemptId)
+          ? remaining.iterator().next() : attemptId;
+      throw new IOException("Invalid input header for " + srcAttemptId);
+    }
+    srcAttemptId = attemptId;
+
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("header: " + srcAttemptId + ", len: " + compressedLength
+          + ", decomp len: " + decompressedLength);
+    }
+
+    inputStartTime = System.currentTimeMillis();
+    fetchedInput = inputManager.allocate(decompressedLength, compressedLength, srcAttemptId);
+    LOG.info(logIdentifier + " about to shuffle output of srcAttempt "
+        + fetchedInput.getInputAttemptIdentifier() + " decomp: "
+        + decompressedLength + " len: " + compressedLength + " to "
+        + fetchedInput.getType());
+    if (fetchedInput.getType() == Type.MEMORY) {
+      if (inputPipe == null) {
+        inputPipe = new InputPipe(readBuffer.capacity() * PIPE_BUFFERS, selector);
+      }
+      inputPipe.reset(compressedLength);
+    } else {
+      diskOutput = ((DiskFetchedInput) fetchedInput).getOutputStream();
+    }
+    return true;
+  }
+
+  private boolean readInputData() throws IOException {
+    int n = (int) Math.min(readBuffer.remaining(), compressedLength - bytesRead);
+    if (skippingInput) {
+      readBuffer.position(readBuffer.position() + n);
+      bytesRead += n;
+      if (bytesRead < compressedLength) {
+        return false;
+      }
+      skippingInput = false;
+      return true;
+    }
+    if (fetchedInput.getType() == Type.MEMORY) {
+      int written = inputPipe.write(readBuffer, n);
+      bytesRead += written;
+      if (written < n || bytesRead == compressedLength) {
+        // Small inputs fit into the pipe, and only take up a decompressor
+        // thread once they have been read completely
+        if (!decompressStarted) {
+          startDecompression();
+        }
+        readPaused = true;
+        key.interestOps(0);
+      }
+      // Continues in resumeReading()
+      return false;
+    }
+
+    diskOutput.write(readBuffer.array(), readBuffer.arrayOffset() + readBuffer.position(), n);
+    readBuffer.position(readBuffer.position() + n);
+    bytesRead += n;
+    if (bytesRead < compressedLength) {
+      return false;
+    }
+    diskOutput.close();
+    LOG.info("Read " + compressedLength + " bytes from input for "
+        + fetchedInput.getInputAttemptIdentifier());
+    finishInput();
+    return true;
+  }
+
+  private void startDecompression() throws IOException {
+    synchronized (this) {
+      decompressing = true;
+    }
+    decompressStarted = true;
+    try {
+      decompressExecutor.execute(
+          new Decompressor((MemoryFetchedInput) fetchedInput, inputPipe));
+    } catch (RejectedExecutionException e) {
+      synchronized (this) {
+        decompressing = false;
+      }
+      throw new IOException("Failed to start decompressing " + srcAttemptId, e);
+    }
+  }
+
+  private void finishInput() throws IOException {
+    // Inform the shuffle scheduler
+    long endTime = System.currentTimeMillis();
+    fetcherCallback.fetchSucceeded(host, srcAttemptId, fetchedInput,
+        compressedLength, decompressedLength, (endTime - inputStartTime));
+
+    // Note successful shuffle
+    remaining.remove(srcAttemptId);
+    clearCurrentInput();
+  }
+
+  private void clearCurrentInput() {
+    srcAttemptId = null;
+    fetchedInput = null;
+    diskOutput = null;
+    decompressStarted = false;
+    decompressDone = false;
+    decompressError = null;
+  }
+
+  private static void abortInput(FetchedInput input) {
+    try {
+      input.abort();
+    } catch (IOException e) {
+      LOG.info("Failure to cleanup fetchedInput: " + input);
+    }
+  }
+
+  /**
+   * Reports failures the same way {@link Fetcher} does for the equivalent
+   * stage of a blocking fetch, and completes the fetch.
+   */
+  private void failed(IOException e) {
+    if (aborted) {
+      LOG.info("Not reporting fetch failure, since an Exception was caught after shutdown: ["
+          + e.getClass().getName() + ", " + e.getMessage() + "]");
+    } else if (!connectSucceeded) {
+      // If connect did not succeed, just mark all the inputs as failed,
+      // indirectly penalizing the host
+      LOG.warn("Failed to connect to " + host + ":" + port + " with " + remaining.size()
+          + " inputs", e);
+      for (InputAttemptIdentifier left : remaining) {
+        fetcherCallback.fetchFailed(host, left, true);
+      }
+    } else if (!responseValidated || srcAttemptId != null) {
+      // A problem with the first input before the response was validated,
+      // typically a lost output, or a failure reading a specific input.
+      InputAttemptIdentifier failedAttempt = srcAttemptId != null ? srcAttemptId
+          : remaining.iterator().next();
+      LOG.warn("Fetch Failure from host: " + host + ", attempt: " + failedAttempt
+          + " Informing ShuffleManager: ", e);
+      fetcherCallback.fetchFailed(host, failedAttempt, false);
+    } else {
+      LOG.warn("Failed to read input header from " + host + ", failing all "
+          + remaining.size() + " remaining inputs", e);
+      for (InputAttemptIdentifier left : remaining) {
+        fetcherCallback.fetchFailed(host, left, false);
+      }
+    }
+    complete();
+  }
+
+  private static int indexOf(ByteBuffer buffer, byte[] pattern) {
+    byte[] array = buffer.array();
+    int offset = buffer.arrayOffset();
+    for (int i = buffer.position(); i <= buffer.limit() - pattern.length; i++) {
+      int j = 0;
+      while (j < pattern.length && array[offset + i + j] == pattern[j]) {
+        j++;
+      }
+      if (j == pattern.length) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Verifies and decompresses one in-memory input from the pipe.
+   */
+  private class Decompressor implements Runnable {
+
+    private final MemoryFetchedInput input;
+    private final InputPipe pipe;
+
+    Decompressor(MemoryFetchedInput input, InputPipe pipe) {
+      this.input = input;
+      this.pipe = pipe;
+    }
+
+    @Override
+    public void run() {
+      IOException error = null;
+      try {
+        ShuffleUtils.shuffleToMemory(input.getBytes(), pipe, (int) input.getActualSize(),
+            (int) input.getCompressedSize(), codec, false, 0, LOG,
+            input.getInputAttemptIdentifier().toString());
+        // The codec may not read up to the end of the input
+        pipe.skipToEnd();
+      } catch (IOException e) {
+        error = e;
+      } catch (RuntimeException e) {
+        error = new IOException("Failed to decompress " + input.getInputAttemptIdentifier(), e);
+      }
+      synchronized (NioHostFetch.this) {
+        decompressing = false;
+        if (!completed) {
+          decompressError = error;
+          decompressDone = true;
+          selector.wakeup();
+          return;
+        }
+      }
+      // The fetch has completed, and left the input to be released here
+      abortInput(input);
+    }
+  }
+
+  /**
+   * A bounded pipe from the selector thread, which never blocks on it, to a
+   * {@link Decompressor} reading a single input.
+   */
+  private static class InputPipe extends InputStream {
+
+    private final byte[] data;
+    private final Selector selector;
+    private int readPos;
+    private int count;
+    private long length;
+    private long consumed;
+    private boolean writerWaiting;
+    private boolean aborted = false;
+
+    InputPipe(int size, Selector selector) {
+      this.data = new byte[size];
+      this.selector = selector;
+    }
+
+    synchronized void reset(long length) {
+      this.length = length;
+      readPos = 0;
+      count = 0;
+      consumed = 0;
+      writerWaiting = false;
+    }
+
+    /**
+     * Copies up to len bytes from the buffer, without blocking.
+     *
+     * @return the number of bytes copied
+     */
+    synchronized int write(ByteBuffer src, int len) {
+      int n = Math.min(len, data.length - count);
+      int writePos = (readPos + count) % data.length;
+      int first = Math.min(n, data.length - writePos);
+      src.get(data, writePos, first);
+      src.get(data, 0, n - first);
+      count += n;
+      writerWaiting = n < len;
+      notifyAll();
+      return n;
+    }
+
+    /**
+     * @return true if at least half of the pipe is free
+     */
+    synchronized boolean hasSpace() {
+      return data.length - count >= data.length / 2;
+    }
+
+    synchronized void abort() {
+      aborted = true;
+      notifyAll();
+    }
+
+    void skipToEnd() throws IOException {
+      byte[] buf = new byte[4096];
+      while (read(buf, 0, buf.length) >= 0) {
+      }
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      while (count == 0) {
+        if (aborted) {
+          throw new IOException("Fetch was aborted");
+        }
+        if (consumed == length) {
+          return -1;
+        }
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while reading input");
+        }
+      }
+      if (aborted) {
+        throw new IOException("Fetch was aborted");
+      }
+      int n = Math.min(len, count);
+      int first = Math.min(n, data.length - readPos);
+      System.arraycopy(data, readPos, b, off, first);
+      System.arraycopy(data, 0, b, off + first, n - first);
+      readPos = (readPos + n) % data.length;
+      count -= n;
+      consumed += n;
+      if (writerWaiting && hasSpace()) {
+        writerWaiting = false;
+        selector.wakeup();
+      }
+      return n;
+    }
+  }
+}
@@ -24,7 +24,9 @@ import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.ByteBuffer;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 import javax.crypto.SecretKey;
 
@@ -38,19 +40,26 @@ import org.apache.hadoop.io.compress.CodecPool;
 import org.apache.hadoop.io.compress.CompressionCodec;
 import org.apache.hadoop.io.compress.Decompressor;
 import org.apache.hadoop.security.token.Token;
+import org.apache.hadoop.yarn.api.ApplicationConstants;
 import org.apache.tez.common.TezJobConfig;
 import org.apache.tez.common.security.JobTokenIdentifier;
 import org.apache.tez.common.security.JobTokenSecretManager;
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
 import org.apache.tez.runtime.library.common.sort.impl.IFileInputStream;
+import org.apache.tez.runtime.library.common.sort.impl.ParallelCompression;
 import org.apache.tez.runtime.library.shuffle.common.HttpConnection.HttpConnectionParams;
 import org.apache.tez.runtime.library.shuffle.common.HttpConnection.HttpConnectionParamsBuilder;
 
+import com.google.common.annotations.VisibleForTesting;
+
 public class ShuffleUtils {
 
   private static final Log LOG = LogFactory.getLog(ShuffleUtils.class);
   public static String SHUFFLE_HANDLER_SERVICE_ID = "mapreduce_shuffle";
 
+  private static volatile String localHost =
+      System.getenv(ApplicationConstants.Environment.NM_HOST.toString());
+
   public static SecretKey getJobTokenSecretFromTokenBytes(ByteBuffer meta)
       throws IOException {
     DataInputByteBuffer in = new DataInputByteBuffer();
@@ -97,13 +106,14 @@ public class ShuffleUtils {
     if (codec != null) {
       decompressor = CodecPool.getDecompressor(codec);
       decompressor.reset();
-      input = codec.createInputStream(input, decompressor);
+      input = ParallelCompression.createInputStream(input, codec, decompressor);
     }
 
     try {
-      IOUtils.readFully(input, shuffleData, 0, shuffleData.length);
+      // shuffleData may be larger than the input if it comes from a pool
+      IOUtils.readFully(input, shuffleData, 0, decompressedLength);
       // metrics.inputBytes(shuffleData.length);
-      LOG.info("Read " + shuffleData.length + " bytes from input for "
+      LOG.info("Read " + decompressedLength + " bytes from input for "
           + identifier);
     } catch (IOException ioe) {
       // Close the streams
@@ -158,6 +168,23 @@ public class ShuffleUtils {
     }
   }
 
+  /**
+   * Whether outputs produced on the given host are on the local disks of the
+   * node this task is running on.
+   */
+  public static boolean isLocalHost(String host) {
+    return localHost != null && localHost.equals(host);
+  }
+
+  /**
+   * Overrides the name of this node, which is taken from the NM_HOST
+   * environment variable otherwise.
+   */
+  @VisibleForTesting
+  public static void setLocalHost(String host) {
+    localHost = host;
+  }
+
   // TODO NEWTEZ handle ssl shuffle
   public static StringBuilder constructBaseURIForShuffleHandler(String host,
       int port, int partition, String appId, boolean sslShuffle) {
@@ -167,6 +194,23 @@ public class ShuffleUtils {
   
   public static StringBuilder constructBaseURIForShuffleHandler(String hostIdentifier,
       int partition, String appId, boolean sslShuffle) {
+    return buildBaseURIForShuffleHandler(hostIdentifier, partition, 1, appId, sslShuffle);
+  }
+
+  /**
+   * Constructs the base URI for a request covering partitionCount contiguous
+   * partitions, starting at partition. A range is requested as
+   * reduce=&lt;first&gt;-&lt;last&gt;, and needs a ShuffleHandler which
+   * supports partition ranges; a single partition uses the regular format.
+   */
+  public static StringBuilder constructBaseURIForShuffleHandler(String host,
+      int port, int partition, int partitionCount, String appId, boolean sslShuffle) {
+    return buildBaseURIForShuffleHandler(host + ":" + String.valueOf(port),
+      partition, partitionCount, appId, sslShuffle);
+  }
+
+  private static StringBuilder buildBaseURIForShuffleHandler(String hostIdentifier,
+      int partition, int partitionCount, String appId, boolean sslShuffle) {
     final String http_protocol = (sslShuffle) ? "https://" : "http://";
     StringBuilder sb = new StringBuilder(http_protocol);
     sb.append(hostIdentifier);
@@ -175,6 +219,9 @@ public class ShuffleUtils {
     sb.append(appId.replace("application", "job"));
     sb.append("&reduce=");
     sb.append(String.valueOf(partition));
+    if (partitionCount > 1) {
+      sb.append("-").append(String.valueOf(partition + partitionCount - 1));
+    }
     sb.append("&map=");
     return sb;
   }
@@ -182,13 +229,19 @@ public class ShuffleUtils {
   public static URL constructInputURL(String baseURI, 
       List<InputAttemptIdentifier> inputs, boolean keepAlive) throws MalformedURLException {
     StringBuilder url = new StringBuilder(baseURI);
-    boolean first = true;
+    // Inputs for different partitions of the same source share a path
+    // component, which only needs to be requested once.
+    Set<String> pathComponents = new LinkedHashSet<String>();
     for (InputAttemptIdentifier input : inputs) {
+      pathComponents.add(input.getPathComponent());
+    }
+    boolean first = true;
+    for (String pathComponent : pathComponents) {
       if (first) {
         first = false;
-        url.append(input.getPathComponent());
+        url.append(pathComponent);
       } else {
-        url.append(",").append(input.getPathComponent());
+        url.append(",").append(pathComponent);
       }
     }
     //It is possible to override keep-alive setting in cluster by adding keepAlive in url.
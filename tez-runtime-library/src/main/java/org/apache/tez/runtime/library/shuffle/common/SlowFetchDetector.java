@@ -0,0 +1,185 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.shuffle.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.yarn.util.Clock;
+import org.apache.hadoop.yarn.util.SystemClock;
+import org.apache.tez.common.TezJobConfig;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * Tracks the transfer rate of running fetches, to find fetches which are
+ * much slower than the others, e.g. because the host serving them is
+ * overloaded. The rate of a fetch is the number of bytes of the inputs it
+ * completed, over the time it has been running.
+ *
+ * @param <T> the type identifying a fetch
+ */
+@Private
+public class SlowFetchDetector<T> {
+
+  // Number of rates of completed fetches the median is computed from
+  private static final int MAX_SAMPLES = 100;
+  // Minimum number of rates before any fetch is considered slow
+  private static final int MIN_SAMPLES = 3;
+
+  private static class FetchProgress {
+    final long startTime;
+    long bytes = 0;
+    // Already duplicated, or itself a duplicate. Never reported as slow.
+    boolean speculative;
+
+    FetchProgress(long startTime, boolean speculative) {
+      this.startTime = startTime;
+      this.speculative = speculative;
+    }
+
+    double getRate(long now) {
+      return (double) bytes / Math.max(1, now - startTime);
+    }
+  }
+
+  private final float slowFraction;
+  private final long minRunTime;
+  private final Clock clock;
+  private final Map<T, FetchProgress> runningFetches = new HashMap<T, FetchProgress>();
+  private final LinkedList<Double> completedRates = new LinkedList<Double>();
+
+  /**
+   * @param slowFraction fraction of the median rate below which a fetch is
+   *          slow
+   * @param minRunTime time in ms a fetch has to run before it can be
+   *          considered slow
+   */
+  public SlowFetchDetector(float slowFraction, long minRunTime) {
+    this(slowFraction, minRunTime, new SystemClock());
+  }
+
+  @VisibleForTesting
+  SlowFetchDetector(float slowFraction, long minRunTime, Clock clock) {
+    this.slowFraction = slowFraction;
+    this.minRunTime = minRunTime;
+    this.clock = clock;
+  }
+
+  /**
+   * @return a detector configured by conf, or null if speculative fetches are
+   *         disabled
+   */
+  public static <T> SlowFetchDetector<T> create(Configuration conf) {
+    if (!conf.getBoolean(TezJobConfig.TEZ_RUNTIME_SHUFFLE_FETCH_SPECULATION_ENABLED,
+        TezJobConfig.TEZ_RUNTIME_SHUFFLE_FETCH_SPECULATION_ENABLED_DEFAULT)) {
+      return null;
+    }
+    return new SlowFetchDetector<T>(
+        conf.getFloat(TezJobConfig.TEZ_RUNTIME_SHUFFLE_FETCH_SPECULATION_SLOW_FRACTION,
+            TezJobConfig.TEZ_RUNTIME_SHUFFLE_FETCH_SPECULATION_SLOW_FRACTION_DEFAULT),
+        conf.getLong(TezJobConfig.TEZ_RUNTIME_SHUFFLE_FETCH_SPECULATION_MIN_RUNTIME_MS,
+            TezJobConfig.TEZ_RUNTIME_SHUFFLE_FETCH_SPECULATION_MIN_RUNTIME_MS_DEFAULT));
+  }
+
+  /**
+   * @return the interval in ms at which {@link #getSlowFetches()} should be
+   *         called
+   */
+  public long getCheckInterval() {
+    return Math.max(100, minRunTime / 4);
+  }
+
+  /**
+   * @param speculative whether the fetch duplicates another one, in which
+   *          case it is not reported as slow itself
+   */
+  public synchronized void fetchStarted(T fetch, boolean speculative) {
+    runningFetches.put(fetch, new FetchProgress(clock.getTime(), speculative));
+  }
+
+  public synchronized void bytesFetched(T fetch, long bytes) {
+    FetchProgress progress = runningFetches.get(fetch);
+    if (progress != null) {
+      progress.bytes += bytes;
+    }
+  }
+
+  public synchronized void fetchFinished(T fetch) {
+    FetchProgress progress = runningFetches.remove(fetch);
+    if (progress != null && progress.bytes > 0) {
+      completedRates.add(progress.getRate(clock.getTime()));
+      if (completedRates.size() > MAX_SAMPLES) {
+        completedRates.removeFirst();
+      }
+    }
+  }
+
+  /**
+   * Returns the fetches which have been running for at least the minimum
+   * time, at a rate below the configured fraction of the median rate of
+   * recent fetches. Every fetch is returned at most once.
+   */
+  public synchronized List<T> getSlowFetches() {
+    List<T> slowFetches = new ArrayList<T>();
+    long now = clock.getTime();
+    List<Double> rates = new ArrayList<Double>(completedRates);
+    for (FetchProgress progress : runningFetches.values()) {
+      if (now - progress.startTime >= minRunTime) {
+        rates.add(progress.getRate(now));
+      }
+    }
+    if (rates.size() < MIN_SAMPLES) {
+      return slowFetches;
+    }
+    double[] sorted = new double[rates.size()];
+    for (int i = 0; i < sorted.length; i++) {
+      sorted[i] = rates.get(i);
+    }
+    Arrays.sort(sorted);
+    double threshold = sorted[sorted.length / 2] * slowFraction;
+    for (Map.Entry<T, FetchProgress> entry : runningFetches.entrySet()) {
+      FetchProgress progress = entry.getValue();
+      if (!progress.speculative && now - progress.startTime >= minRunTime
+          && progress.getRate(now) < threshold) {
+        progress.speculative = true;
+        slowFetches.add(entry.getKey());
+      }
+    }
+    return slowFetches;
+  }
+
+  /**
+   * Called for a fetch returned by {@link #getSlowFetches()} which could not
+   * be duplicated, so that it is returned again by a later call if it is
+   * still slow.
+   */
+  public synchronized void fetchNotDuplicated(T fetch) {
+    FetchProgress progress = runningFetches.get(fetch);
+    if (progress != null) {
+      progress.speculative = false;
+    }
+  }
+}
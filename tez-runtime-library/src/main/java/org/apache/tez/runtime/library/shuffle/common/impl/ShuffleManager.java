@@ -21,9 +21,12 @@ package org.apache.tez.runtime.library.shuffle.common.impl;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
@@ -32,6 +35,7 @@ import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Condition;
@@ -63,10 +67,14 @@ import org.apache.tez.runtime.library.shuffle.common.FetcherCallback;
 import org.apache.tez.runtime.library.shuffle.common.HttpConnection;
 import org.apache.tez.runtime.library.shuffle.common.HttpConnection.HttpConnectionParams;
 import org.apache.tez.runtime.library.shuffle.common.InputHost;
+import org.apache.tez.runtime.library.shuffle.common.InputHost.PartitionInputs;
+import org.apache.tez.runtime.library.shuffle.common.NioFetchEngine;
 import org.apache.tez.runtime.library.shuffle.common.ShuffleUtils;
+import org.apache.tez.runtime.library.shuffle.common.SlowFetchDetector;
 import org.apache.tez.runtime.library.shuffle.common.FetchedInput.Type;
 import org.apache.tez.runtime.library.shuffle.common.Fetcher.FetcherBuilder;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.FutureCallback;
@@ -100,6 +108,14 @@ public class ShuffleManager implements FetcherCallback {
   private final BlockingQueue<InputHost> pendingHosts;
   private final Set<InputAttemptIdentifier> obsoletedInputs;
   private Set<Fetcher> runningFetchers;
+  // Where each input can be fetched from. More than one location if there
+  // are several attempts of the source task.
+  private final ConcurrentMap<InputIdentifier, List<InputLocation>> inputLocations;
+  // null if slow fetches are not duplicated
+  private final SlowFetchDetector<Fetcher> slowFetchDetector;
+  // Fetches which were duplicated, and their duplicates. Any of them is shut
+  // down once all of its inputs have been fetched by another one.
+  private final Set<Fetcher> duplicatedFetchers;
   
   private final AtomicInteger numCompletedInputs = new AtomicInteger(0);
   
@@ -111,12 +127,23 @@ public class ShuffleManager implements FetcherCallback {
   private final Condition wakeLoop = lock.newCondition();
   
   private final int numFetchers;
+  // Bounded by numFetchers, unless fetches run on the nioFetchEngine
+  private final int maxConcurrentFetches;
+  private final NioFetchEngine nioFetchEngine;
   
   // Parameters required by Fetchers
   private final SecretKey shuffleSecret;
   private final CompressionCodec codec;
   
   private final int ifileBufferSize;
+  private final Configuration conf;
+  private final boolean localDiskFetchEnabled;
+  private final int maxPartitionsPerFetch;
+  // Fetches are not scheduled while more than this many fetched bytes are
+  // waiting for the reader. <= 0 if unbounded.
+  private final long maxUnconsumedBytes;
+  // Guarded by lock
+  private long unconsumedBytes = 0;
   private final boolean ifileReadAhead;
   private final int ifileReadAheadLength;
   
@@ -150,6 +177,16 @@ public class ShuffleManager implements FetcherCallback {
     this.bytesShuffledToMemCounter = inputContext.getCounters().findCounter(TaskCounter.SHUFFLE_BYTES_TO_MEM);
   
     this.ifileBufferSize = bufferSize;
+    this.conf = conf;
+    this.localDiskFetchEnabled = conf.getBoolean(
+        TezJobConfig.TEZ_RUNTIME_SHUFFLE_LOCAL_FETCH_ENABLED,
+        TezJobConfig.TEZ_RUNTIME_SHUFFLE_LOCAL_FETCH_ENABLED_DEFAULT);
+    this.maxPartitionsPerFetch = Math.max(1, conf.getInt(
+        TezJobConfig.TEZ_RUNTIME_SHUFFLE_FETCH_MAX_PARTITIONS_PER_REQUEST,
+        TezJobConfig.TEZ_RUNTIME_SHUFFLE_FETCH_MAX_PARTITIONS_PER_REQUEST_DEFAULT));
+    this.maxUnconsumedBytes = conf.getLong(
+        TezJobConfig.TEZ_RUNTIME_SHUFFLE_FETCH_MAX_UNCONSUMED_BYTES,
+        TezJobConfig.TEZ_RUNTIME_SHUFFLE_FETCH_MAX_UNCONSUMED_BYTES_DEFAULT);
     this.ifileReadAhead = ifileReadAheadEnabled;
     this.ifileReadAheadLength = ifileReadAheadLength;
     this.codec = codec;
@@ -163,6 +200,9 @@ public class ShuffleManager implements FetcherCallback {
     pendingHosts = new LinkedBlockingQueue<InputHost>();
     obsoletedInputs = Collections.newSetFromMap(new ConcurrentHashMap<InputAttemptIdentifier, Boolean>());
     runningFetchers = Collections.newSetFromMap(new ConcurrentHashMap<Fetcher, Boolean>());
+    inputLocations = new ConcurrentHashMap<InputIdentifier, List<InputLocation>>();
+    duplicatedFetchers = Collections.newSetFromMap(new ConcurrentHashMap<Fetcher, Boolean>());
+    slowFetchDetector = SlowFetchDetector.create(conf);
 
     int maxConfiguredFetchers = 
         conf.getInt(
@@ -189,10 +229,35 @@ public class ShuffleManager implements FetcherCallback {
             .getServiceConsumerMetaData(TezConfiguration.TEZ_SHUFFLE_HANDLER_SERVICE_ID));
     httpConnectionParams =
         ShuffleUtils.constructHttpShuffleConnectionParams(conf);
+
+    boolean nioEnabled = conf.getBoolean(TezJobConfig.TEZ_RUNTIME_SHUFFLE_NIO_ENABLED,
+        TezJobConfig.TEZ_RUNTIME_SHUFFLE_NIO_ENABLED_DEFAULT);
+    if (nioEnabled && httpConnectionParams.isSSLShuffleEnabled()) {
+      LOG.warn("Non-blocking shuffle fetches do not support SSL, using fetcher threads");
+      nioEnabled = false;
+    }
+    if (nioEnabled) {
+      this.nioFetchEngine = new NioFetchEngine(
+          conf.getInt(TezJobConfig.TEZ_RUNTIME_SHUFFLE_NIO_SELECTORS,
+              TezJobConfig.TEZ_RUNTIME_SHUFFLE_NIO_SELECTORS_DEFAULT), numFetchers,
+          srcNameTrimmed);
+      this.maxConcurrentFetches = Math.min(numInputs,
+          conf.getInt(TezJobConfig.TEZ_RUNTIME_SHUFFLE_NIO_MAX_CONNECTIONS,
+              TezJobConfig.TEZ_RUNTIME_SHUFFLE_NIO_MAX_CONNECTIONS_DEFAULT));
+    } else {
+      this.nioFetchEngine = null;
+      this.maxConcurrentFetches = numFetchers;
+    }
     LOG.info(this.getClass().getSimpleName() + " : numInputs=" + numInputs + ", compressionCodec="
         + (codec == null ? "NoCompressionCodec" : codec.getClass().getName()) + ", numFetchers="
         + numFetchers + ", ifileBufferSize=" + ifileBufferSize + ", ifileReadAheadEnabled="
-        + ifileReadAhead + ", ifileReadAheadLength=" + ifileReadAheadLength +", "
+        + ifileReadAhead + ", ifileReadAheadLength=" + ifileReadAheadLength
+        + ", localDiskFetchEnabled=" + localDiskFetchEnabled
+        + ", maxPartitionsPerFetch=" + maxPartitionsPerFetch
+        + ", maxUnconsumedBytes=" + maxUnconsumedBytes
+        + ", nioFetchEnabled=" + (nioFetchEngine != null)
+        + ", maxConcurrentFetches=" + maxConcurrentFetches
+        + ", speculativeFetchEnabled=" + (slowFetchDetector != null) + ", "
         + httpConnectionParams.toString());
   }
 
@@ -212,11 +277,19 @@ public class ShuffleManager implements FetcherCallback {
       while (!isShutdown.get() && numCompletedInputs.get() < numInputs) {
         lock.lock();
         try {
-          if (runningFetchers.size() >= numFetchers || pendingHosts.isEmpty()) {
+          if (runningFetchers.size() >= maxConcurrentFetches || pendingHosts.isEmpty()
+              || isFetchThrottled()) {
             if (numCompletedInputs.get() < numInputs) {
-              wakeLoop.await();
+              if (slowFetchDetector != null) {
+                wakeLoop.await(slowFetchDetector.getCheckInterval(), TimeUnit.MILLISECONDS);
+              } else {
+                wakeLoop.await();
+              }
             }
           }
+          if (slowFetchDetector != null && !isShutdown.get()) {
+            duplicateSlowFetches();
+          }
         } finally {
           lock.unlock();
         }
@@ -233,9 +306,9 @@ public class ShuffleManager implements FetcherCallback {
         if (numCompletedInputs.get() < numInputs && !isShutdown.get()) {
           lock.lock();
           try {
-            int maxFetchersToRun = numFetchers - runningFetchers.size();
+            int maxFetchersToRun = maxConcurrentFetches - runningFetchers.size();
             int count = 0;
-            while (pendingHosts.peek() != null && !isShutdown.get()) {
+            while (pendingHosts.peek() != null && !isShutdown.get() && !isFetchThrottled()) {
               InputHost inputHost = null;
               try {
                 inputHost = pendingHosts.take();
@@ -253,13 +326,14 @@ public class ShuffleManager implements FetcherCallback {
               if (inputHost.getNumPendingInputs() > 0 && !isShutdown.get()) {
                 LOG.info("Scheduling fetch for inputHost: " + inputHost.getIdentifier());
                 Fetcher fetcher = constructFetcherForHost(inputHost);
-                runningFetchers.add(fetcher);
+                if (inputHost.getNumPendingInputs() > 0) {
+                  // Inputs for other partitions are left for another fetcher
+                  pendingHosts.add(inputHost);
+                }
                 if (isShutdown.get()) {
                   LOG.info("hasBeenShutdown, Breaking out of ShuffleScheduler Loop");
                 }
-                ListenableFuture<FetchResult> future = fetcherExecutor
-                    .submit(fetcher);
-                Futures.addCallback(future, new FetchFutureCallback(fetcher));
+                startFetcher(fetcher, false);
                 if (++count >= maxFetchersToRun) {
                   break;
                 }
@@ -280,43 +354,183 @@ public class ShuffleManager implements FetcherCallback {
       if (!fetcherExecutor.isShutdown()) {
         fetcherExecutor.shutdownNow();
       }
+      if (nioFetchEngine != null) {
+        nioFetchEngine.shutdown();
+      }
       return null;
     }
   }
   
-  private Fetcher constructFetcherForHost(InputHost inputHost) {
-    FetcherBuilder fetcherBuilder = new FetcherBuilder(ShuffleManager.this,
-      httpConnectionParams, inputManager, inputContext.getApplicationId(),
-      shuffleSecret, srcNameTrimmed);
-    if (codec != null) {
-      fetcherBuilder.setCompressionParameters(codec);
+  /**
+   * Must be called with the lock held.
+   */
+  @VisibleForTesting
+  void startFetcher(Fetcher fetcher, boolean speculative) {
+    runningFetchers.add(fetcher);
+    if (slowFetchDetector != null) {
+      slowFetchDetector.fetchStarted(fetcher, speculative);
+    }
+    ListenableFuture<FetchResult> future;
+    if (nioFetchEngine != null && !(localDiskFetchEnabled
+        && ShuffleUtils.isLocalHost(fetcher.getHost()))) {
+      future = fetcher.callAsync(nioFetchEngine);
+    } else {
+      future = fetcherExecutor.submit(fetcher);
     }
-    fetcherBuilder.setIFileParams(ifileReadAhead, ifileReadAheadLength);
+    Futures.addCallback(future, new FetchFutureCallback(fetcher));
+  }
 
-    // Remove obsolete inputs from the list being given to the fetcher. Also
-    // remove from the obsolete list.
-    List<InputAttemptIdentifier> pendingInputsForHost = inputHost
-        .clearAndGetPendingInputs();
-    for (Iterator<InputAttemptIdentifier> inputIter = pendingInputsForHost
-        .iterator(); inputIter.hasNext();) {
-      InputAttemptIdentifier input = inputIter.next();
-      // Avoid adding attempts which have already completed.
-      if (completedInputSet.contains(input.getInputIdentifier())) {
-        inputIter.remove();
+  /**
+   * Duplicates the fetches which are much slower than the others. Inputs
+   * which have an attempt on another host are fetched from there, the rest
+   * over a new connection to the same host. Must be called with the lock
+   * held.
+   */
+  private void duplicateSlowFetches() {
+    for (Fetcher slowFetcher : slowFetchDetector.getSlowFetches()) {
+      if (runningFetchers.size() >= maxConcurrentFetches) {
+        // Duplicated at a later check, if a fetcher is free by then
+        slowFetchDetector.fetchNotDuplicated(slowFetcher);
         continue;
       }
-      // Avoid adding attempts which have been marked as OBSOLETE 
-      if (obsoletedInputs.contains(input)) {
-        inputIter.remove();
+      List<PartitionInputs> unfinished = slowFetcher.getUnfinishedInputs(completedInputSet);
+      if (unfinished.isEmpty()) {
+        continue;
+      }
+      // Inputs with another attempt, by host and partition
+      Map<String, InputLocation> replicas = new LinkedHashMap<String, InputLocation>();
+      Map<String, List<InputAttemptIdentifier>> replicaInputs =
+          new LinkedHashMap<String, List<InputAttemptIdentifier>>();
+      boolean sameHostInputs = false;
+      for (PartitionInputs partitionInputs : unfinished) {
+        for (Iterator<InputAttemptIdentifier> iter = partitionInputs.getInputs().iterator(); iter
+            .hasNext();) {
+          InputLocation replica = findReplica(iter.next(), slowFetcher.getHost(),
+              slowFetcher.getPort());
+          if (replica == null) {
+            sameHostInputs = true;
+            continue;
+          }
+          iter.remove();
+          String key = replica.host.getIdentifier() + "_" + replica.partition;
+          List<InputAttemptIdentifier> inputs = replicaInputs.get(key);
+          if (inputs == null) {
+            inputs = new ArrayList<InputAttemptIdentifier>();
+            replicas.put(key, replica);
+            replicaInputs.put(key, inputs);
+          }
+          inputs.add(replica.attempt);
+        }
+      }
+
+      LOG.info("Duplicating slow fetch from " + slowFetcher.getHost() + ":"
+          + slowFetcher.getPort() + " of " + unfinished + ", using "
+          + replicaInputs.size() + " other hosts");
+      duplicatedFetchers.add(slowFetcher);
+      // Inputs left out once all the fetchers are running are only fetched
+      // by the slow fetch
+      for (Map.Entry<String, List<InputAttemptIdentifier>> entry : replicaInputs.entrySet()) {
+        if (runningFetchers.size() >= maxConcurrentFetches) {
+          break;
+        }
+        InputLocation replica = replicas.get(entry.getKey());
+        Fetcher fetcher = constructFetcher(replica.host.getHost(), replica.host.getPort(),
+            Collections.singletonList(new PartitionInputs(replica.partition, entry.getValue())));
+        duplicatedFetchers.add(fetcher);
+        startFetcher(fetcher, true);
+      }
+      if (sameHostInputs && runningFetchers.size() < maxConcurrentFetches) {
+        Fetcher fetcher = constructFetcher(slowFetcher.getHost(), slowFetcher.getPort(),
+            unfinished);
+        duplicatedFetchers.add(fetcher);
+        startFetcher(fetcher, true);
+      }
+    }
+  }
+
+  /**
+   * @return a location of another attempt of the given input, on a
+   *         different host, or null if there is none
+   */
+  private InputLocation findReplica(InputAttemptIdentifier input, String host, int port) {
+    List<InputLocation> locations = inputLocations.get(input.getInputIdentifier());
+    if (locations == null) {
+      return null;
+    }
+    synchronized (locations) {
+      for (InputLocation location : locations) {
+        if (!location.attempt.equals(input) && !obsoletedInputs.contains(location.attempt)
+            && !(location.host.getHost().equals(host) && location.host.getPort() == port)) {
+          return location;
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Shuts down duplicated fetches whose inputs have all been fetched.
+   */
+  private void cancelFinishedDuplicates() {
+    for (Iterator<Fetcher> iter = duplicatedFetchers.iterator(); iter.hasNext();) {
+      Fetcher fetcher = iter.next();
+      if (fetcher.getUnfinishedInputs(completedInputSet).isEmpty()) {
+        iter.remove();
+        LOG.info("Shutting down fetch from " + fetcher.getHost() + ":" + fetcher.getPort()
+            + " since all its inputs were fetched by another fetch");
+        fetcher.shutdown();
+      }
+    }
+  }
+
+  private Fetcher constructFetcherForHost(InputHost inputHost) {
+    // Remove obsolete inputs from the list being given to the fetcher. Also
+    // remove from the obsolete list.
+    List<PartitionInputs> pendingInputsForHost = inputHost
+        .clearAndGetPendingInputs(maxPartitionsPerFetch);
+    for (PartitionInputs partitionInputs : pendingInputsForHost) {
+      for (Iterator<InputAttemptIdentifier> inputIter = partitionInputs.getInputs()
+          .iterator(); inputIter.hasNext();) {
+        InputAttemptIdentifier input = inputIter.next();
+        // Avoid adding attempts which have already completed.
+        if (completedInputSet.contains(input.getInputIdentifier())) {
+          inputIter.remove();
+          continue;
+        }
+        // Avoid adding attempts which have been marked as OBSOLETE 
+        if (obsoletedInputs.contains(input)) {
+          inputIter.remove();
+        }
       }
     }
     // TODO NEWTEZ Maybe limit the number of inputs being given to a single
     // fetcher, especially in the case where #hosts < #fetchers
-    fetcherBuilder.assignWork(inputHost.getHost(), inputHost.getPort(),
-        inputHost.getSrcPhysicalIndex(), pendingInputsForHost);
-    LOG.info("Created Fetcher for host: " + inputHost.getHost()
-        + ", with inputs: " + pendingInputsForHost);
-    return fetcherBuilder.build();
+    return constructFetcher(inputHost.getHost(), inputHost.getPort(), pendingInputsForHost);
+  }
+
+  private Fetcher constructFetcher(String host, int port, List<PartitionInputs> inputs) {
+    ProgressTrackingCallback progressCallback = null;
+    FetcherCallback callback = ShuffleManager.this;
+    if (slowFetchDetector != null) {
+      progressCallback = new ProgressTrackingCallback();
+      callback = progressCallback;
+    }
+    FetcherBuilder fetcherBuilder = new FetcherBuilder(callback,
+      httpConnectionParams, inputManager, inputContext.getApplicationId(),
+      shuffleSecret, srcNameTrimmed);
+    if (codec != null) {
+      fetcherBuilder.setCompressionParameters(codec);
+    }
+    fetcherBuilder.setIFileParams(ifileReadAhead, ifileReadAheadLength);
+    fetcherBuilder.setLocalDiskFetchParams(localDiskFetchEnabled, conf, ifileBufferSize);
+    fetcherBuilder.assignWork(host, port, inputs);
+    LOG.info("Created Fetcher for host: " + host
+        + ", with inputs: " + inputs);
+    Fetcher fetcher = fetcherBuilder.build();
+    if (progressCallback != null) {
+      progressCallback.fetcher = fetcher;
+    }
+    return fetcher;
   }
   
   /////////////////// Methods for InputEventHandler
@@ -326,7 +540,7 @@ public class ShuffleManager implements FetcherCallback {
     String identifier = InputHost.createIdentifier(hostName, port);
     InputHost host = knownSrcHosts.get(identifier);
     if (host == null) {
-      host = new InputHost(hostName, port, inputContext.getApplicationId(), srcPhysicalIndex);
+      host = new InputHost(hostName, port, inputContext.getApplicationId());
       assert identifier.equals(host.getIdentifier());
       InputHost old = knownSrcHosts.putIfAbsent(identifier, host);
       if (old != null) {
@@ -336,7 +550,19 @@ public class ShuffleManager implements FetcherCallback {
     if (LOG.isDebugEnabled()) {
       LOG.debug("Adding input: " + srcAttemptIdentifier + ", to host: " + host);
     }
-    host.addKnownInput(srcAttemptIdentifier);
+    host.addKnownInput(srcPhysicalIndex, srcAttemptIdentifier);
+    if (slowFetchDetector != null) {
+      List<InputLocation> locations = inputLocations.get(srcAttemptIdentifier.getInputIdentifier());
+      if (locations == null) {
+        locations = Collections.synchronizedList(new ArrayList<InputLocation>(1));
+        List<InputLocation> old = inputLocations.putIfAbsent(
+            srcAttemptIdentifier.getInputIdentifier(), locations);
+        if (old != null) {
+          locations = old;
+        }
+      }
+      locations.add(new InputLocation(host, srcPhysicalIndex, srcAttemptIdentifier));
+    }
     lock.lock();
     try {
       boolean added = pendingHosts.offer(host);
@@ -462,6 +688,9 @@ public class ShuffleManager implements FetcherCallback {
     if (!committed) {
       fetchedInput.abort(); // If this fails, the fetcher may attempt another abort.
     } else {
+      if (!duplicatedFetchers.isEmpty()) {
+        cancelFinishedDuplicates();
+      }
       lock.lock();
       try {
         // Signal the wakeLoop to check for termination.
@@ -524,6 +753,9 @@ public class ShuffleManager implements FetcherCallback {
       if (this.fetcherExecutor != null && !this.fetcherExecutor.isShutdown()) {
         this.fetcherExecutor.shutdownNow(); // Interrupts all running fetchers.
       }
+      if (this.nioFetchEngine != null) {
+        this.nioFetchEngine.shutdown();
+      }
     }
     //All threads are shutdown.  It is safe to shutdown SSL factory
     if (httpConnectionParams.isSSLShuffleEnabled()) {
@@ -536,6 +768,9 @@ public class ShuffleManager implements FetcherCallback {
     try {
       completedInputSet.add(fetchedInput.getInputAttemptIdentifier().getInputIdentifier());
       completedInputs.add(fetchedInput);
+      if (!(fetchedInput instanceof NullFetchedInput)) {
+        unconsumedBytes += fetchedInput.getActualSize();
+      }
       if (!inputReadyNotificationSent.getAndSet(true)) {
         // TODO Should eventually be controlled by Inputs which are processing the data.
         inputContext.inputIsReady();
@@ -595,8 +830,28 @@ public class ShuffleManager implements FetcherCallback {
       }
       input = completedInputs.take(); // block
     } while (input instanceof NullFetchedInput);
+    if (input != null) {
+      lock.lock();
+      try {
+        unconsumedBytes -= input.getActualSize();
+        // Fetches may have been held back for this input to be consumed
+        wakeLoop.signal();
+      } finally {
+        lock.unlock();
+      }
+    }
     return input;
   }
+
+  /**
+   * Whether fetched inputs which the reader has not taken yet are using up
+   * the configured limit. Fetches which are already running complete, but no
+   * new ones are started until the reader catches up. Must be called with
+   * the lock held.
+   */
+  private boolean isFetchThrottled() {
+    return maxUnconsumedBytes > 0 && unconsumedBytes >= maxUnconsumedBytes;
+  }
   /////////////////// End of methods for walking the available inputs
 
 
@@ -637,6 +892,43 @@ public class ShuffleManager implements FetcherCallback {
   }
   
   
+  /**
+   * An attempt of an input, and where it can be fetched from.
+   */
+  private static class InputLocation {
+    final InputHost host;
+    final int partition;
+    final InputAttemptIdentifier attempt;
+
+    InputLocation(InputHost host, int partition, InputAttemptIdentifier attempt) {
+      this.host = host;
+      this.partition = partition;
+      this.attempt = attempt;
+    }
+  }
+
+  /**
+   * Reports the bytes fetched by a fetcher to the {@link SlowFetchDetector}.
+   */
+  private class ProgressTrackingCallback implements FetcherCallback {
+    volatile Fetcher fetcher;
+
+    @Override
+    public void fetchSucceeded(String host, InputAttemptIdentifier srcAttemptIdentifier,
+        FetchedInput fetchedInput, long fetchedBytes, long decompressedLength, long copyDuration)
+        throws IOException {
+      slowFetchDetector.bytesFetched(fetcher, fetchedBytes);
+      ShuffleManager.this.fetchSucceeded(host, srcAttemptIdentifier, fetchedInput, fetchedBytes,
+          decompressedLength, copyDuration);
+    }
+
+    @Override
+    public void fetchFailed(String host, InputAttemptIdentifier srcAttemptIdentifier,
+        boolean connectFailed) {
+      ShuffleManager.this.fetchFailed(host, srcAttemptIdentifier, connectFailed);
+    }
+  }
+
   private class SchedulerFutureCallback implements FutureCallback<Void> {
 
     @Override
@@ -668,6 +960,10 @@ public class ShuffleManager implements FetcherCallback {
       lock.lock();
       try {
         runningFetchers.remove(fetcher);
+        if (slowFetchDetector != null) {
+          slowFetchDetector.fetchFinished(fetcher);
+          duplicatedFetchers.remove(fetcher);
+        }
         wakeLoop.signal();
       } finally {
         lock.unlock();
@@ -685,7 +981,7 @@ public class ShuffleManager implements FetcherCallback {
           InputHost inputHost = knownSrcHosts.get(InputHost.createIdentifier(result.getHost(), result.getPort()));
           assert inputHost != null;
           for (InputAttemptIdentifier input : pendingInputs) {
-            inputHost.addKnownInput(input);
+            inputHost.addKnownInput(result.getPartition(input), input);
           }
           pendingHosts.add(inputHost);
         }
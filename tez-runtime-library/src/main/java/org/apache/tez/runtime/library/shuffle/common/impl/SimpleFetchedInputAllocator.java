@@ -27,6 +27,8 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.LocalDirAllocator;
 import org.apache.tez.common.TezJobConfig;
 import org.apache.tez.common.TezRuntimeFrameworkConfigs;
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.common.counters.TezCounters;
 import org.apache.tez.dag.api.TezUncheckedException;
 import org.apache.tez.runtime.library.common.Constants;
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
@@ -34,9 +36,12 @@ import org.apache.tez.runtime.library.common.task.local.output.TezTaskOutputFile
 import org.apache.tez.runtime.library.shuffle.common.DiskFetchedInput;
 import org.apache.tez.runtime.library.shuffle.common.FetchedInput;
 import org.apache.tez.runtime.library.shuffle.common.FetchedInputAllocator;
+import org.apache.tez.runtime.library.shuffle.common.FetchedInputBufferPool;
 import org.apache.tez.runtime.library.shuffle.common.FetchedInputCallback;
 import org.apache.tez.runtime.library.shuffle.common.MemoryFetchedInput;
 
+import com.google.common.annotations.VisibleForTesting;
+
 
 /**
  * Usage: Create instance, setInitialMemoryAvailable(long), configureAndStart()
@@ -62,8 +67,19 @@ public class SimpleFetchedInputAllocator implements FetchedInputAllocator,
   
   private volatile long usedMemory = 0;
 
+  // null if pooling is disabled
+  private final FetchedInputBufferPool bufferPool;
+
   public SimpleFetchedInputAllocator(String uniqueIdentifier, Configuration conf,
       long maxTaskAvailableMemory, long memoryAvailable) {
+    this(uniqueIdentifier, conf, maxTaskAvailableMemory, memoryAvailable, new TezCounters());
+  }
+
+  /**
+   * @param counters counters to report buffer pool usage to
+   */
+  public SimpleFetchedInputAllocator(String uniqueIdentifier, Configuration conf,
+      long maxTaskAvailableMemory, long memoryAvailable, TezCounters counters) {
     this.conf = conf;    
     this.maxAvailableTaskMemory = maxTaskAvailableMemory;
     this.initialMemoryAvailable = memoryAvailable;
@@ -105,8 +121,20 @@ public class SimpleFetchedInputAllocator implements FetchedInputAllocator,
 
     this.maxSingleShuffleLimit = (long) (memoryLimit * singleShuffleMemoryLimitPercent);
     
+    int maxPooledBufferSize = conf.getInt(
+        TezJobConfig.TEZ_RUNTIME_SHUFFLE_FETCH_BUFFER_POOL_MAX_BUFFER_SIZE,
+        TezJobConfig.TEZ_RUNTIME_SHUFFLE_FETCH_BUFFER_POOL_MAX_BUFFER_SIZE_DEFAULT);
+    if (maxPooledBufferSize > 0) {
+      this.bufferPool = new FetchedInputBufferPool(memoryLimit, maxPooledBufferSize,
+          counters.findCounter(TaskCounter.SHUFFLE_BUFFER_POOL_HITS),
+          counters.findCounter(TaskCounter.SHUFFLE_BUFFER_POOL_MISSES));
+    } else {
+      this.bufferPool = null;
+    }
+
     LOG.info("SimpleInputManager -> " + "MemoryLimit: " + 
-        this.memoryLimit + ", maxSingleMemLimit: " + this.maxSingleShuffleLimit);
+        this.memoryLimit + ", maxSingleMemLimit: " + this.maxSingleShuffleLimit
+        + ", maxPooledBufferSize: " + maxPooledBufferSize);
   }
 
   @Private
@@ -127,14 +155,25 @@ public class SimpleFetchedInputAllocator implements FetchedInputAllocator,
   @Override
   public synchronized FetchedInput allocate(long actualSize, long compressedSize,
       InputAttemptIdentifier inputAttemptIdentifier) throws IOException {
+    long memorySize = getMemorySize(actualSize);
     if (actualSize > maxSingleShuffleLimit
-        || this.usedMemory + actualSize > this.memoryLimit) {
+        || this.usedMemory + memorySize > this.memoryLimit) {
       return new DiskFetchedInput(actualSize, compressedSize,
           inputAttemptIdentifier, this, conf, localDirAllocator,
           fileNameAllocator);
     } else {
-      this.usedMemory += actualSize;
-      LOG.info("Used memory after allocating " + actualSize  + " : " + usedMemory);
+      if (bufferPool != null) {
+        // Free pooled buffers are still on the heap, so they count towards
+        // the limit as well
+        bufferPool.trimFreeBuffers(this.memoryLimit - this.usedMemory - memorySize,
+            (int) actualSize);
+      }
+      this.usedMemory += memorySize;
+      LOG.info("Used memory after allocating " + memorySize  + " : " + usedMemory);
+      if (bufferPool != null) {
+        return new MemoryFetchedInput(actualSize, compressedSize, inputAttemptIdentifier, this,
+            bufferPool.allocate((int) actualSize));
+      }
       return new MemoryFetchedInput(actualSize, compressedSize, inputAttemptIdentifier, this);
     }
   }
@@ -167,7 +206,7 @@ public class SimpleFetchedInputAllocator implements FetchedInputAllocator,
     case DISK:
       break;
     case MEMORY:
-      unreserve(fetchedInput.getActualSize());
+      unreserve(getMemorySize(fetchedInput.getActualSize()));
       break;
     default:
       throw new TezUncheckedException("InputType: " + fetchedInput.getType()
@@ -175,6 +214,35 @@ public class SimpleFetchedInputAllocator implements FetchedInputAllocator,
     }
   }
 
+  /**
+   * @return the memory taken by an input of actualSize bytes held in memory,
+   *         including the rounding of pooled buffers
+   */
+  private long getMemorySize(long actualSize) {
+    if (bufferPool == null) {
+      return actualSize;
+    }
+    return bufferPool.getAllocationSize((int) actualSize);
+  }
+
+  /**
+   * Drops the free buffers of the pool, once no more inputs are fetched.
+   * Buffers of inputs which are freed later are not pooled.
+   */
+  public void close() {
+    if (bufferPool != null) {
+      bufferPool.close();
+    }
+  }
+
+  /**
+   * @return the memory held by inputs in memory and by free pooled buffers
+   */
+  @VisibleForTesting
+  synchronized long getMemoryHeld() {
+    return usedMemory + (bufferPool == null ? 0 : bufferPool.getFreeBytes());
+  }
+
   private synchronized void unreserve(long size) {
     this.usedMemory -= size;
     LOG.info("Used memory after freeing " + size  + " : " + usedMemory);
@@ -0,0 +1,222 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.readers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.tez.common.TezJobConfig;
+import org.apache.tez.common.TezRuntimeFrameworkConfigs;
+import org.apache.tez.common.counters.TezCounter;
+import org.apache.tez.common.counters.TezCounters;
+import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+import org.apache.tez.runtime.library.common.sort.impl.IFile;
+import org.apache.tez.runtime.library.shuffle.common.FetchedInput;
+import org.apache.tez.runtime.library.shuffle.common.FetchedInputCallback;
+import org.apache.tez.runtime.library.shuffle.common.MemoryFetchedInput;
+import org.apache.tez.runtime.library.shuffle.common.impl.ShuffleManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestShuffledHashGroupedKVsReader {
+
+  private static final File TEST_DIR = new File(System.getProperty("test.build.data",
+      System.getProperty("java.io.tmpdir")), TestShuffledHashGroupedKVsReader.class.getName());
+
+  private Configuration conf;
+  private TezCounters counters;
+
+  @Before
+  public void setup() {
+    FileUtil.fullyDelete(TEST_DIR);
+    // The local dirs are only checked once per configuration value
+    TEST_DIR.mkdirs();
+    conf = new Configuration();
+    conf.setStrings(TezRuntimeFrameworkConfigs.LOCAL_DIRS, TEST_DIR.getAbsolutePath());
+    conf.set(TezJobConfig.TEZ_RUNTIME_INTERMEDIATE_INPUT_KEY_CLASS, Text.class.getName());
+    conf.set(TezJobConfig.TEZ_RUNTIME_INTERMEDIATE_INPUT_VALUE_CLASS,
+        IntWritable.class.getName());
+    counters = new TezCounters();
+  }
+
+  @After
+  public void cleanup() {
+    FileUtil.fullyDelete(TEST_DIR);
+  }
+
+  @Test
+  public void testInMemory() throws Exception {
+    verifyGrouping(100, 1024 * 1024);
+  }
+
+  @Test
+  public void testSpill() throws Exception {
+    // Requires partitions to be split several times
+    verifyGrouping(5000, 4096);
+  }
+
+  @Test
+  public void testSkipValues() throws Exception {
+    ShuffledHashGroupedKVsReader<Text, IntWritable> reader = createReader(
+        createShuffleManager(10), 1024 * 1024);
+    int numKeys = 0;
+    while (reader.next()) {
+      numKeys++;
+      if (numKeys % 2 == 0) {
+        // Read the first value only
+        assertTrue(reader.getCurrentValues().iterator().hasNext());
+        reader.getCurrentValues().iterator().next();
+      }
+    }
+    assertEquals(10, numKeys);
+    reader.close();
+  }
+
+  @Test
+  public void testTableGrowth() throws Exception {
+    // A single key cannot be partitioned, the table grows to fit its values
+    ShuffledHashGroupedKVsReader<Text, IntWritable> reader = createReader(
+        createShuffleManager(1, 1000), 4096, 1024 * 1024);
+    assertTrue(reader.next());
+    int count = 0;
+    for (Object value : reader.getCurrentValues()) {
+      count++;
+    }
+    assertEquals(3000, count);
+    assertFalse(reader.next());
+    reader.close();
+  }
+
+  @Test
+  public void testTableGrowthLimited() throws Exception {
+    ShuffledHashGroupedKVsReader<Text, IntWritable> reader = createReader(
+        createShuffleManager(1, 1000), 4096, 16384);
+    try {
+      reader.next();
+      fail("Values of a single key should not fit in the table");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains(
+          TezJobConfig.TEZ_RUNTIME_HASH_GROUPED_INPUT_TABLE_SIZE_MB));
+    }
+    reader.close();
+    String[] files = TEST_DIR.list();
+    assertTrue(files == null || files.length == 0 || allDirs(files));
+  }
+
+  private void verifyGrouping(int numKeys, long tableMemory) throws Exception {
+    ShuffledHashGroupedKVsReader<Text, IntWritable> reader = createReader(
+        createShuffleManager(numKeys), tableMemory);
+    Map<String, Integer> sums = new HashMap<String, Integer>();
+    while (reader.next()) {
+      String key = reader.getCurrentKey().toString();
+      assertFalse("Key returned twice: " + key, sums.containsKey(key));
+      int sum = 0;
+      int count = 0;
+      for (Object value : reader.getCurrentValues()) {
+        sum += ((IntWritable) value).get();
+        count++;
+      }
+      assertEquals(3, count);
+      sums.put(key, sum);
+    }
+    assertEquals(numKeys, sums.size());
+    for (int i = 0; i < numKeys; i++) {
+      // Values 1, 10 and 100 times the key
+      assertEquals(Integer.valueOf(111 * i), sums.get("key" + i));
+    }
+    reader.close();
+    String[] files = TEST_DIR.list();
+    assertTrue(files == null || files.length == 0 || allDirs(files));
+  }
+
+  private boolean allDirs(String[] files) {
+    for (String file : files) {
+      if (!new File(TEST_DIR, file).isDirectory()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private ShuffledHashGroupedKVsReader<Text, IntWritable> createReader(
+      ShuffleManager shuffleManager, long tableMemory) throws IOException {
+    return createReader(shuffleManager, tableMemory, tableMemory);
+  }
+
+  private ShuffledHashGroupedKVsReader<Text, IntWritable> createReader(
+      ShuffleManager shuffleManager, long tableMemory, long maxTableMemory) throws IOException {
+    TezCounter counter = counters.findCounter("test", "test");
+    return new ShuffledHashGroupedKVsReader<Text, IntWritable>(shuffleManager, conf, "test",
+        tableMemory, maxTableMemory, null, false, 0, 4096, counter, counter, counter);
+  }
+
+  // Three inputs, each with one value per key
+  private ShuffleManager createShuffleManager(int numKeys) throws Exception {
+    return createShuffleManager(numKeys, 1);
+  }
+
+  private ShuffleManager createShuffleManager(int numKeys, int valuesPerKey) throws Exception {
+    FetchedInput[] inputs = new FetchedInput[3];
+    int multiplier = 1;
+    for (int i = 0; i < inputs.length; i++) {
+      inputs[i] = createInput(i, numKeys, valuesPerKey, multiplier);
+      multiplier *= 10;
+    }
+    ShuffleManager shuffleManager = mock(ShuffleManager.class);
+    when(shuffleManager.getNextInput()).thenReturn(inputs[0], inputs[1], inputs[2], null);
+    return shuffleManager;
+  }
+
+  private FetchedInput createInput(int index, int numKeys, int valuesPerKey, int multiplier)
+      throws IOException {
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    FSDataOutputStream out = new FSDataOutputStream(bout, null);
+    IFile.Writer writer = new IFile.Writer(conf, out, Text.class, IntWritable.class, null, null,
+        null);
+    for (int i = 0; i < numKeys; i++) {
+      for (int j = 0; j < valuesPerKey; j++) {
+        writer.append(new Text("key" + i), new IntWritable(i * multiplier));
+      }
+    }
+    writer.close();
+    out.close();
+    byte[] data = bout.toByteArray();
+    MemoryFetchedInput input = new MemoryFetchedInput(data.length, data.length,
+        new InputAttemptIdentifier(index, 0), mock(FetchedInputCallback.class));
+    System.arraycopy(data, 0, input.getBytes(), 0, data.length);
+    input.commit();
+    return input;
+  }
+}
@@ -0,0 +1,197 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.readers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.tez.common.TezJobConfig;
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.common.counters.TezCounters;
+import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+import org.apache.tez.runtime.library.common.sort.impl.IFile;
+import org.apache.tez.runtime.library.shuffle.common.FetchedInput;
+import org.apache.tez.runtime.library.shuffle.common.FetchedInputCallback;
+import org.apache.tez.runtime.library.shuffle.common.MemoryFetchedInput;
+import org.apache.tez.runtime.library.shuffle.common.impl.ShuffleManager;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestShuffledStreamingMergedKVsReader {
+
+  private static final int NUM_KEYS = 20;
+
+  private Configuration conf;
+  private TezCounters counters;
+  private final Set<Integer> freedInputs = Collections.synchronizedSet(new HashSet<Integer>());
+
+  @Before
+  public void setup() {
+    conf = new Configuration();
+    conf.set(TezJobConfig.TEZ_RUNTIME_INTERMEDIATE_INPUT_KEY_CLASS, Text.class.getName());
+    conf.set(TezJobConfig.TEZ_RUNTIME_INTERMEDIATE_INPUT_VALUE_CLASS,
+        IntWritable.class.getName());
+    conf.setInt(TezJobConfig.TEZ_RUNTIME_IO_SORT_FACTOR, 2);
+    counters = new TezCounters();
+    freedInputs.clear();
+  }
+
+  @Test
+  public void testBatchesLimitedBySortFactor() throws Exception {
+    // All inputs are available up front, batches are cut at the sort factor
+    ShuffleManager shuffleManager = createShuffleManager(5,
+        true, true, true, true, false);
+    List<List<Set<Integer>>> batches = readBatches(shuffleManager);
+    verifyBatches(batches, new int[][] { { 0, 1 }, { 2, 3 }, { 4 } });
+  }
+
+  @Test
+  public void testBatchesOfAvailableInputs() throws Exception {
+    // Inputs trickle in, batches only take whatever has already been fetched
+    ShuffleManager shuffleManager = createShuffleManager(5,
+        false, true, true, false);
+    List<List<Set<Integer>>> batches = readBatches(shuffleManager);
+    verifyBatches(batches, new int[][] { { 0 }, { 1, 2 }, { 3, 4 } });
+  }
+
+  /**
+   * Splits the keys returned by the reader into runs of ascending keys, each
+   * of which is expected to be one batch.
+   */
+  private List<List<Set<Integer>>> readBatches(ShuffleManager shuffleManager)
+      throws IOException {
+    ShuffledStreamingMergedKVsReader reader = new ShuffledStreamingMergedKVsReader(
+        shuffleManager, conf, null, false, 0, 4096,
+        counters.findCounter(TaskCounter.REDUCE_INPUT_GROUPS),
+        counters.findCounter(TaskCounter.REDUCE_INPUT_RECORDS));
+    List<List<Set<Integer>>> batches = new ArrayList<List<Set<Integer>>>();
+    List<Set<Integer>> batch = null;
+    String prevKey = null;
+    while (reader.next()) {
+      String key = reader.getCurrentKey().toString();
+      if (prevKey == null || key.compareTo(prevKey) <= 0) {
+        batch = new ArrayList<Set<Integer>>();
+        batches.add(batch);
+        // Previous batches have been freed before the next one is merged
+        int numFreed = 0;
+        for (List<Set<Integer>> previous : batches) {
+          if (previous != batch) {
+            numFreed += previous.get(0).size();
+          }
+        }
+        assertEquals(numFreed, freedInputs.size());
+      }
+      prevKey = key;
+      assertEquals(String.format("key%03d", batch.size()), key);
+      Set<Integer> values = new TreeSet<Integer>();
+      for (Object value : reader.getCurrentValues()) {
+        assertTrue(values.add(((IntWritable) value).get()));
+      }
+      batch.add(values);
+    }
+    return batches;
+  }
+
+  private void verifyBatches(List<List<Set<Integer>>> batches, int[][] expectedInputs) {
+    assertEquals(expectedInputs.length, batches.size());
+    int numRecords = 0;
+    for (int i = 0; i < expectedInputs.length; i++) {
+      Set<Integer> expected = new TreeSet<Integer>();
+      for (int input : expectedInputs[i]) {
+        expected.add(input);
+      }
+      List<Set<Integer>> batch = batches.get(i);
+      assertEquals(NUM_KEYS, batch.size());
+      for (Set<Integer> values : batch) {
+        assertEquals(expected, values);
+      }
+      numRecords += NUM_KEYS * expected.size();
+    }
+    assertEquals(numRecords, counters.findCounter(TaskCounter.REDUCE_INPUT_RECORDS).getValue());
+    assertEquals(numRecords / NUM_KEYS, freedInputs.size());
+  }
+
+  /**
+   * @param available whether another input is available, after each input
+   *          is taken
+   */
+  private ShuffleManager createShuffleManager(int numInputs, Boolean... available)
+      throws Exception {
+    FetchedInput[] inputs = new FetchedInput[numInputs];
+    for (int i = 0; i < numInputs; i++) {
+      inputs[i] = createInput(i);
+    }
+    ShuffleManager shuffleManager = mock(ShuffleManager.class);
+    FetchedInput[] nextInputs = new FetchedInput[numInputs];
+    System.arraycopy(inputs, 1, nextInputs, 0, numInputs - 1);
+    when(shuffleManager.getNextInput()).thenReturn(inputs[0], nextInputs);
+    Boolean[] nextAvailable = new Boolean[available.length - 1];
+    System.arraycopy(available, 1, nextAvailable, 0, nextAvailable.length);
+    when(shuffleManager.newInputAvailable()).thenReturn(available[0], nextAvailable);
+    return shuffleManager;
+  }
+
+  // Each input has one value per key, the index of the input
+  private FetchedInput createInput(int index) throws IOException {
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    FSDataOutputStream out = new FSDataOutputStream(bout, null);
+    IFile.Writer writer = new IFile.Writer(conf, out, Text.class, IntWritable.class, null, null,
+        null);
+    for (int i = 0; i < NUM_KEYS; i++) {
+      writer.append(new Text(String.format("key%03d", i)), new IntWritable(index));
+    }
+    writer.close();
+    out.close();
+    byte[] data = bout.toByteArray();
+    MemoryFetchedInput input = new MemoryFetchedInput(data.length, data.length,
+        new InputAttemptIdentifier(index, 0), new FetchedInputCallback() {
+          @Override
+          public void fetchComplete(FetchedInput fetchedInput) {
+          }
+
+          @Override
+          public void fetchFailed(FetchedInput fetchedInput) {
+          }
+
+          @Override
+          public void freeResources(FetchedInput fetchedInput) {
+            freedInputs.add(fetchedInput.getInputAttemptIdentifier().getInputIdentifier()
+                .getInputIndex());
+          }
+        });
+    System.arraycopy(data, 0, input.getBytes(), 0, data.length);
+    input.commit();
+    return input;
+  }
+}
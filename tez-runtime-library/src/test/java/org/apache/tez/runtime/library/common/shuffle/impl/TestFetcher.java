@@ -0,0 +1,210 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.shuffle.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.crypto.SecretKey;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalDirAllocator;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.yarn.api.ApplicationConstants;
+import org.apache.tez.common.TezJobConfig;
+import org.apache.tez.common.TezRuntimeFrameworkConfigs;
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.common.counters.TezCounters;
+import org.apache.tez.common.security.JobTokenSecretManager;
+import org.apache.tez.runtime.api.TezInputContext;
+import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+import org.apache.tez.runtime.library.common.sort.impl.TezRawKeyValueIterator;
+import org.apache.tez.runtime.library.shuffle.common.HttpConnection.HttpConnectionParams;
+import org.apache.tez.runtime.library.shuffle.common.HttpConnection.HttpConnectionParamsBuilder;
+import org.apache.tez.runtime.library.shuffle.common.ShuffleUtils;
+import org.apache.tez.runtime.library.shuffle.common.TestLocalDiskInput;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs the Fetcher against map outputs produced on the local node, which are
+ * read from disk instead of the ShuffleHandler.
+ */
+public class TestFetcher {
+
+  private static final long TASK_MEMORY = 10 * 1024 * 1024;
+  private static final int NUM_INPUTS = 10;
+  private static final int PARTITION = 1;
+  private static final int NUM_RECORDS = 50;
+
+  private final SecretKey secret = JobTokenSecretManager.createSecretKey("secret".getBytes());
+
+  private Configuration conf;
+  private FileSystem localFs;
+  private Path workDir;
+  private TezCounters counters;
+  private TezInputContext inputContext;
+  private ShuffleScheduler scheduler;
+  private MergeManager mergeManager;
+  // Nothing listens on it, so any attempt to fetch over HTTP fails
+  private int closedPort;
+
+  @Before
+  public void setup() throws IOException {
+    conf = new Configuration();
+    localFs = FileSystem.getLocal(conf);
+    workDir = new Path(System.getProperty("test.build.data", "/tmp"),
+        TestFetcher.class.getSimpleName()).makeQualified(localFs);
+    localFs.delete(workDir, true);
+    localFs.mkdirs(workDir);
+    conf.setStrings(TezRuntimeFrameworkConfigs.LOCAL_DIRS, workDir.toUri().getPath());
+    conf.set(TezJobConfig.TEZ_RUNTIME_INTERMEDIATE_INPUT_KEY_CLASS, IntWritable.class.getName());
+    conf.set(TezJobConfig.TEZ_RUNTIME_INTERMEDIATE_INPUT_VALUE_CLASS,
+        IntWritable.class.getName());
+    conf.setBoolean(TezJobConfig.TEZ_RUNTIME_SHUFFLE_LOCAL_FETCH_ENABLED, true);
+
+    counters = new TezCounters();
+    inputContext = mock(TezInputContext.class);
+    doReturn(counters).when(inputContext).getCounters();
+    doReturn(TASK_MEMORY).when(inputContext).getTotalMemoryAvailableToTask();
+    doReturn("srcVertex").when(inputContext).getSourceVertexName();
+    doReturn("uniqueId").when(inputContext).getUniqueIdentifier();
+
+    ServerSocket socket = new ServerSocket(0);
+    closedPort = socket.getLocalPort();
+    socket.close();
+    ShuffleUtils.setLocalHost("localhost");
+  }
+
+  @After
+  public void cleanup() throws Throwable {
+    ShuffleUtils.setLocalHost(System.getenv(ApplicationConstants.Environment.NM_HOST.toString()));
+    if (scheduler != null) {
+      scheduler.close();
+    }
+    localFs.delete(workDir, true);
+  }
+
+  @Test(timeout = 10000)
+  public void testLocalFetch() throws Throwable {
+    List<InputAttemptIdentifier> inputs = createInputs(2);
+    writeLocalOutput(inputs.get(0));
+    writeLocalOutput(inputs.get(1));
+
+    copyFromLocalHost(inputs);
+
+    assertTrue(scheduler.isInputFinished(0));
+    assertTrue(scheduler.isInputFinished(1));
+    assertEquals(2, counters.findCounter(TaskCounter.NUM_SHUFFLED_INPUTS).getValue());
+    assertEquals(0, counters.findCounter(TaskCounter.NUM_FAILED_SHUFFLE_INPUTS).getValue());
+    verifyMergedRecords(2);
+  }
+
+  @Test(timeout = 10000)
+  public void testLocalFetchWithHttpFallback() throws Throwable {
+    List<InputAttemptIdentifier> inputs = createInputs(2);
+    // The output of the second input is not on this node's disks
+    writeLocalOutput(inputs.get(0));
+
+    copyFromLocalHost(inputs);
+
+    // Only the input which is not on disk is fetched over HTTP, and fails
+    assertTrue(scheduler.isInputFinished(0));
+    assertFalse(scheduler.isInputFinished(1));
+    assertEquals(1, counters.findCounter(TaskCounter.NUM_SHUFFLED_INPUTS).getValue());
+    assertEquals(1, counters.findCounter(TaskCounter.NUM_FAILED_SHUFFLE_INPUTS).getValue());
+    verifyMergedRecords(1);
+  }
+
+  private List<InputAttemptIdentifier> createInputs(int numInputs) {
+    List<InputAttemptIdentifier> inputs = new ArrayList<InputAttemptIdentifier>();
+    for (int i = 0; i < numInputs; i++) {
+      inputs.add(new InputAttemptIdentifier(i, 0, InputAttemptIdentifier.PATH_PREFIX + "_" + i));
+    }
+    return inputs;
+  }
+
+  private void writeLocalOutput(InputAttemptIdentifier input) throws IOException {
+    int[] numRecords = new int[PARTITION + 1];
+    numRecords[PARTITION] = NUM_RECORDS;
+    TestLocalDiskInput.writeOutput(conf, input.getPathComponent(), numRecords);
+  }
+
+  private void copyFromLocalHost(List<InputAttemptIdentifier> inputs) throws Exception {
+    scheduler = new ShuffleScheduler(inputContext, conf, NUM_INPUTS, null,
+        counters.findCounter(TaskCounter.NUM_SHUFFLED_INPUTS),
+        counters.findCounter(TaskCounter.SHUFFLE_BYTES),
+        counters.findCounter(TaskCounter.SHUFFLE_BYTES_DECOMPRESSED),
+        counters.findCounter(TaskCounter.NUM_FAILED_SHUFFLE_INPUTS),
+        counters.findCounter(TaskCounter.SHUFFLE_BYTES_TO_DISK),
+        counters.findCounter(TaskCounter.SHUFFLE_BYTES_TO_MEM));
+    String baseUrl = ShuffleUtils.constructBaseURIForShuffleHandler("localhost", closedPort,
+        PARTITION, "application_10000_0001", false).toString();
+    for (InputAttemptIdentifier input : inputs) {
+      scheduler.addKnownMapOutput("localhost", closedPort, PARTITION, baseUrl, input);
+    }
+    mergeManager = new MergeManager(conf, localFs,
+        new LocalDirAllocator(TezRuntimeFrameworkConfigs.LOCAL_DIRS), inputContext, null,
+        counters.findCounter(TaskCounter.SPILLED_RECORDS),
+        counters.findCounter(TaskCounter.COMBINE_INPUT_RECORDS),
+        counters.findCounter(TaskCounter.MERGED_MAP_OUTPUTS), new ExceptionReporter() {
+          @Override
+          public void reportException(Throwable t) {
+            throw new RuntimeException(t);
+          }
+        }, TASK_MEMORY, null, false, 0);
+    mergeManager.configureAndStart();
+
+    HttpConnectionParams params = new HttpConnectionParamsBuilder()
+        .setTimeout(10000, 10000).build();
+    ShuffleClientMetrics metrics = new ShuffleClientMetrics("dag", "vertex", 0, conf, "user");
+    Fetcher fetcher = new Fetcher(params, scheduler, mergeManager, metrics, null, secret, false,
+        0, null, inputContext, conf);
+    MapHost host = scheduler.getHost();
+    assertEquals(inputs.size(), host.getNumKnownMapOutputs());
+    fetcher.copyFromHost(host);
+    scheduler.freeHost(host);
+  }
+
+  private void verifyMergedRecords(int numInputs) throws Throwable {
+    TezRawKeyValueIterator iter = mergeManager.close();
+    IntWritable key = new IntWritable();
+    IntWritable value = new IntWritable();
+    for (int i = 0; i < NUM_RECORDS * numInputs; i++) {
+      assertTrue(iter.next());
+      key.readFields(iter.getKey());
+      value.readFields(iter.getValue());
+      // The inputs hold the same keys, which are merged in order
+      assertEquals(i / numInputs, key.get());
+      assertEquals(PARTITION, value.get());
+    }
+    assertFalse(iter.next());
+  }
+}
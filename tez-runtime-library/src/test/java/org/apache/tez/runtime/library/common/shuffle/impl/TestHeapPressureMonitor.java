@@ -0,0 +1,78 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.shuffle.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.management.MemoryPoolMXBean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class TestHeapPressureMonitor {
+
+  private static class CountingListener implements HeapPressureMonitor.Listener {
+    final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public void onHeapPressure() {
+      count.incrementAndGet();
+    }
+  }
+
+  @Test(timeout = 5000)
+  public void testSharedThreshold() {
+    CountingListener listener1 = new CountingListener();
+    CountingListener listener2 = new CountingListener();
+    HeapPressureMonitor monitor1 = HeapPressureMonitor.create(0.9f, listener1);
+    if (monitor1 == null) {
+      // The JVM does not support collection usage thresholds
+      return;
+    }
+    MemoryPoolMXBean oldGen = HeapPressureMonitor.getOldGen();
+    monitor1.close();
+    assertEquals(0, HeapPressureMonitor.getNumMonitors());
+    long originalThreshold = oldGen.getCollectionUsageThreshold();
+
+    monitor1 = HeapPressureMonitor.create(0.9f, listener1);
+    assertEquals(monitor1.getThreshold(), oldGen.getCollectionUsageThreshold());
+    HeapPressureMonitor monitor2 = HeapPressureMonitor.create(0.5f, listener2);
+    // The pool notifies at the lowest threshold
+    assertEquals(monitor2.getThreshold(), oldGen.getCollectionUsageThreshold());
+
+    // Each listener is only notified above its own threshold
+    monitor1.usageExceeded(monitor2.getThreshold());
+    monitor2.usageExceeded(monitor2.getThreshold());
+    assertEquals(0, listener1.count.get());
+    assertEquals(1, listener2.count.get());
+    monitor1.usageExceeded(monitor1.getThreshold());
+    monitor2.usageExceeded(monitor1.getThreshold());
+    assertEquals(1, listener1.count.get());
+    assertEquals(2, listener2.count.get());
+
+    monitor2.close();
+    assertEquals(monitor1.getThreshold(), oldGen.getCollectionUsageThreshold());
+    // Closing twice is harmless
+    monitor2.close();
+    assertEquals(1, HeapPressureMonitor.getNumMonitors());
+    monitor1.close();
+    assertEquals(0, HeapPressureMonitor.getNumMonitors());
+    assertEquals(originalThreshold, oldGen.getCollectionUsageThreshold());
+  }
+}
@@ -0,0 +1,206 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.shuffle.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalDirAllocator;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BoundedByteArrayOutputStream;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.tez.common.TezJobConfig;
+import org.apache.tez.common.TezRuntimeFrameworkConfigs;
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.common.counters.TezCounter;
+import org.apache.tez.common.counters.TezCounters;
+import org.apache.tez.runtime.api.TezInputContext;
+import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+import org.apache.tez.runtime.library.common.sort.impl.TezRawKeyValueIterator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestMergeManager {
+
+  private static final long TASK_MEMORY = 10 * 1024 * 1024;
+  // Two IntWritables and their lengths
+  private static final int RECORD_LENGTH = 10;
+
+  private Configuration conf;
+  private FileSystem localFs;
+  private Path workDir;
+  private TezCounters counters;
+  private TezCounter spilledRecordsCounter;
+  // The usage of the old generation after the last GC, as seen by the monitor
+  private final AtomicLong usedAfterCollection = new AtomicLong(0);
+  private HeapPressureMonitor monitor;
+
+  @Before
+  public void setup() throws IOException {
+    conf = new Configuration();
+    localFs = FileSystem.getLocal(conf);
+    workDir = new Path(System.getProperty("test.build.data", "/tmp"),
+        TestMergeManager.class.getSimpleName()).makeQualified(localFs);
+    localFs.delete(workDir, true);
+    localFs.mkdirs(workDir);
+    conf.setStrings(TezRuntimeFrameworkConfigs.LOCAL_DIRS, workDir.toUri().getPath());
+    conf.set(TezJobConfig.TEZ_RUNTIME_INTERMEDIATE_INPUT_KEY_CLASS, IntWritable.class.getName());
+    conf.set(TezJobConfig.TEZ_RUNTIME_INTERMEDIATE_INPUT_VALUE_CLASS,
+        IntWritable.class.getName());
+    conf.setBoolean(TezJobConfig.TEZ_RUNTIME_SHUFFLE_MEMORY_ADAPTIVE, true);
+    counters = new TezCounters();
+    spilledRecordsCounter = counters.findCounter(TaskCounter.SPILLED_RECORDS);
+  }
+
+  @After
+  public void cleanup() throws IOException {
+    localFs.delete(workDir, true);
+  }
+
+  @Test(timeout = 10000)
+  public void testReserveToDiskUnderHeapPressure() throws Throwable {
+    MergeManager mergeManager = createMergeManager();
+    InputAttemptIdentifier src = new InputAttemptIdentifier(0, 0);
+
+    MapOutput output = mergeManager.reserve(src, 1024, 0);
+    assertEquals(MapOutput.Type.MEMORY, output.getType());
+    output.abort();
+
+    // The last GC left the old generation above the threshold
+    usedAfterCollection.set(monitor.getThreshold());
+    output = mergeManager.reserve(src, 1024, 0);
+    assertEquals(MapOutput.Type.DISK, output.getType());
+    output.abort();
+
+    usedAfterCollection.set(monitor.getThreshold() - 1);
+    output = mergeManager.reserve(src, 1024, 0);
+    assertEquals(MapOutput.Type.MEMORY, output.getType());
+    output.abort();
+    mergeManager.close();
+  }
+
+  @Test(timeout = 10000)
+  public void testSpillOnHeapPressure() throws Throwable {
+    MergeManager mergeManager = createMergeManager();
+    int[] numRecords = new int[] { 100, 400, 200, 300 };
+    int total = 0;
+    for (int i = 0; i < numRecords.length; i++) {
+      commitInMemoryOutput(mergeManager, new InputAttemptIdentifier(i, 0), total, numRecords[i]);
+      total += numRecords[i];
+    }
+    assertEquals(0, counters.findCounter(TaskCounter.NUM_MEM_TO_DISK_MERGES).getValue());
+
+    // A notification below the threshold is ignored
+    monitor.usageExceeded(monitor.getThreshold() - 1);
+    mergeManager.waitForInMemoryMerge();
+    assertEquals(0, counters.findCounter(TaskCounter.NUM_MEM_TO_DISK_MERGES).getValue());
+
+    monitor.usageExceeded(monitor.getThreshold());
+    mergeManager.waitForInMemoryMerge();
+    assertEquals(1, counters.findCounter(TaskCounter.NUM_MEM_TO_DISK_MERGES).getValue());
+    // The largest outputs are spilled, until half of the memory is freed.
+    // Records take RECORD_LENGTH bytes each, plus a small IFile overhead.
+    long spilledBytes = counters.findCounter(TaskCounter.ADDITIONAL_SPILLS_BYTES_WRITTEN)
+        .getValue();
+    assertTrue("Spilled " + spilledBytes + " bytes",
+        spilledBytes >= (400 + 300) * RECORD_LENGTH
+            && spilledBytes < (400 + 300 + 100) * RECORD_LENGTH);
+
+    // All records are still merged in order
+    TezRawKeyValueIterator iter = mergeManager.close();
+    IntWritable key = new IntWritable();
+    int count = 0;
+    while (iter.next()) {
+      DataInputBuffer keyBuffer = iter.getKey();
+      key.readFields(keyBuffer);
+      assertEquals(count, key.get());
+      count++;
+    }
+    assertEquals(total, count);
+  }
+
+  private void commitInMemoryOutput(MergeManager mergeManager, InputAttemptIdentifier src,
+      int firstKey, int numRecords) throws IOException {
+    BoundedByteArrayOutputStream data = new BoundedByteArrayOutputStream(1024 * 1024);
+    InMemoryWriter writer = new InMemoryWriter(data);
+    DataOutputBuffer keyOut = new DataOutputBuffer();
+    DataOutputBuffer valueOut = new DataOutputBuffer();
+    DataInputBuffer keyIn = new DataInputBuffer();
+    DataInputBuffer valueIn = new DataInputBuffer();
+    for (int i = firstKey; i < firstKey + numRecords; i++) {
+      keyOut.reset();
+      valueOut.reset();
+      new IntWritable(i).write(keyOut);
+      new IntWritable(i * 2).write(valueOut);
+      keyIn.reset(keyOut.getData(), keyOut.getLength());
+      valueIn.reset(valueOut.getData(), valueOut.getLength());
+      writer.append(keyIn, valueIn);
+    }
+    writer.close();
+
+    MapOutput output = mergeManager.reserve(src, data.size(), 0);
+    assertEquals(MapOutput.Type.MEMORY, output.getType());
+    System.arraycopy(data.getBuffer(), 0, output.getMemory(), 0, data.size());
+    output.commit();
+  }
+
+  private MergeManager createMergeManager() {
+    TezInputContext inputContext = mock(TezInputContext.class);
+    doReturn(counters).when(inputContext).getCounters();
+    doReturn(TASK_MEMORY).when(inputContext).getTotalMemoryAvailableToTask();
+    doReturn("srcVertex").when(inputContext).getSourceVertexName();
+    doReturn("uniqueId").when(inputContext).getUniqueIdentifier();
+    ExceptionReporter exceptionReporter = new ExceptionReporter() {
+      @Override
+      public void reportException(Throwable t) {
+        throw new RuntimeException(t);
+      }
+    };
+
+    MergeManager mergeManager = new MergeManager(conf, localFs,
+        new LocalDirAllocator(TezRuntimeFrameworkConfigs.LOCAL_DIRS), inputContext, null,
+        spilledRecordsCounter, counters.findCounter(TaskCounter.COMBINE_INPUT_RECORDS),
+        counters.findCounter(TaskCounter.MERGED_MAP_OUTPUTS), exceptionReporter, TASK_MEMORY,
+        null, false, 0) {
+      @Override
+      HeapPressureMonitor createHeapPressureMonitor(float thresholdFraction,
+          HeapPressureMonitor.Listener listener) {
+        monitor = new HeapPressureMonitor(TASK_MEMORY, listener) {
+          @Override
+          long getUsedAfterCollection() {
+            return usedAfterCollection.get();
+          }
+        };
+        return monitor;
+      }
+    };
+    mergeManager.configureAndStart();
+    return mergeManager;
+  }
+}
@@ -0,0 +1,259 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.shuffle.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.tez.common.TezJobConfig;
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.common.counters.TezCounters;
+import org.apache.tez.runtime.api.TezInputContext;
+import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+import org.apache.tez.runtime.library.common.shuffle.impl.ShuffleScheduler.HostStats;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestShuffleScheduler {
+
+  private static final int NUM_INPUTS = 10;
+  private static final double DELTA = 0.0001;
+
+  private Configuration conf;
+  private ShuffleScheduler scheduler;
+  private int nextInput = 0;
+
+  @Before
+  public void setup() {
+    conf = new Configuration();
+    nextInput = 0;
+  }
+
+  @After
+  public void cleanup() throws InterruptedException {
+    if (scheduler != null) {
+      scheduler.close();
+    }
+  }
+
+  @Test
+  public void testHostStatsMovingAverages() {
+    HostStats stats = new HostStats();
+    // Not measured yet
+    assertEquals(-1, stats.getInputsPerMs(1, 1000), DELTA);
+
+    stats.updateThroughput(1000, 10);
+    assertEquals(100, stats.bytesPerMs, DELTA);
+    stats.updateThroughput(1000, 5);
+    assertEquals(ShuffleScheduler.ewma(100, 200), stats.bytesPerMs, DELTA);
+    assertEquals(130, stats.bytesPerMs, DELTA);
+
+    // No latency without data copied
+    stats.updateLatency(100, 0);
+    assertEquals(-1, stats.latencyMs, DELTA);
+    assertEquals(-1, stats.getInputsPerMs(1, 1300), DELTA);
+    // 1300 bytes copied in 10ms, the other 30ms are latency
+    stats.updateLatency(40, 1300);
+    assertEquals(30, stats.latencyMs, DELTA);
+    stats.updateLatency(10, 1300);
+    assertEquals(ShuffleScheduler.ewma(30, 0), stats.latencyMs, DELTA);
+
+    // 2 inputs of 1300 bytes take the latency, 20ms of transfer and 1ms
+    assertEquals(2 / (stats.latencyMs + 21), stats.getInputsPerMs(2, 1300), DELTA);
+  }
+
+  @Test(timeout = 10000)
+  public void testHostsPickedByExpectedRate() throws Exception {
+    scheduler = createScheduler();
+    MapHost fast = addInput("fast", 0);
+    MapHost slow = addInput("slow", 0);
+    // 1000 bytes per ms and per 3 ms, without latency
+    scheduler.updateFetchStats(fast, 1000, 1);
+    scheduler.updateFetchStats(slow, 1000, 3);
+    scheduler.getHostStats(fast).updateLatency(1, 1000);
+    scheduler.getHostStats(slow).updateLatency(3, 1000);
+    // A new host is weighted like the fastest one
+    MapHost unknown = addInput("unknown", 0);
+
+    Map<MapHost, Integer> picks = new HashMap<MapHost, Integer>();
+    int numPicks = 10000;
+    for (int i = 0; i < numPicks; i++) {
+      MapHost host = scheduler.pickHost();
+      Integer count = picks.get(host);
+      picks.put(host, count == null ? 1 : count + 1);
+    }
+    // Expected inputs per ms: 1 / (1 + 1), 1 / (3 + 1), and 1 / (1 + 1)
+    assertEquals(0.4, (double) picks.get(fast) / numPicks, 0.03);
+    assertEquals(0.2, (double) picks.get(slow) / numPicks, 0.03);
+    assertEquals(0.4, (double) picks.get(unknown) / numPicks, 0.03);
+  }
+
+  @Test(timeout = 10000)
+  public void testFetchesPerHostLimited() throws Exception {
+    conf.setInt(TezJobConfig.TEZ_RUNTIME_SHUFFLE_FETCH_MAX_CONCURRENT_PER_HOST, 2);
+    scheduler = createScheduler();
+    // Partitions of the same ShuffleHandler count towards the same limit
+    MapHost partition0 = addInput("host1", 0);
+    MapHost partition1 = addInput("host1", 1);
+    MapHost partition2 = addInput("host1", 2);
+    MapHost other = addInput("host2", 0);
+
+    Set<MapHost> waiting = new HashSet<MapHost>(Arrays.asList(partition0, partition1, partition2));
+    MapHost first = null;
+    for (int i = 0; i < 2; i++) {
+      MapHost host;
+      while ((host = scheduler.getHost()) == other) {
+        scheduler.freeHost(host);
+      }
+      if (first == null) {
+        first = host;
+      }
+      assertTrue(waiting.remove(host));
+      scheduler.getMapsForHost(host);
+    }
+    assertEquals(2, scheduler.getHostStats(partition0).activeFetches);
+    for (int i = 0; i < 100; i++) {
+      assertSame(other, scheduler.pickHost());
+    }
+
+    // The last partition can be fetched once a fetch is done
+    scheduler.freeHost(first);
+    assertEquals(1, scheduler.getHostStats(partition0).activeFetches);
+    MapHost last = waiting.iterator().next();
+    boolean pickedLast = false;
+    for (int i = 0; i < 100 && !pickedLast; i++) {
+      MapHost host = scheduler.pickHost();
+      assertTrue(host == other || host == last);
+      pickedLast = host == last;
+    }
+    assertTrue(pickedLast);
+  }
+
+  @Test(timeout = 10000)
+  public void testFailureOfConcurrentFetch() throws Exception {
+    conf.setInt(TezJobConfig.TEZ_RUNTIME_SHUFFLE_FETCH_MAX_CONCURRENT_PER_HOST, 2);
+    scheduler = createScheduler();
+    for (int i = 0; i < 4; i++) {
+      addInput("host1", 0);
+    }
+
+    MapHost host = scheduler.getHost();
+    // Another fetcher waits for a host, so the inputs are split between them
+    final AtomicReference<MapHost> helperHost = new AtomicReference<MapHost>();
+    Thread helper = new Thread() {
+      @Override
+      public void run() {
+        try {
+          helperHost.set(scheduler.getHost());
+        } catch (InterruptedException e) {
+        }
+      }
+    };
+    helper.start();
+    while (helper.getState() != Thread.State.WAITING) {
+      Thread.sleep(10);
+    }
+    List<InputAttemptIdentifier> inputs = scheduler.getMapsForHost(host);
+    assertEquals(2, inputs.size());
+    helper.join();
+    assertSame(host, helperHost.get());
+    assertEquals(2, scheduler.getMapsForHost(host).size());
+    assertEquals(2, scheduler.getHostStats(host).activeFetches);
+
+    // One of the fetches fails, the other one carries on
+    scheduler.putBackKnownMapOutput(host, inputs.get(1));
+    scheduler.copyFailed(inputs.get(0), host, false, false);
+    scheduler.putBackKnownMapOutput(host, inputs.get(0));
+    scheduler.freeHost(host);
+    assertEquals(MapHost.State.PENALIZED, host.getState());
+    assertNull(scheduler.pickHost());
+
+    // The host is not fetched from again when the other fetch is done
+    scheduler.freeHost(host);
+    assertEquals(0, scheduler.getHostStats(host).activeFetches);
+    assertEquals(MapHost.State.PENALIZED, host.getState());
+    assertNull(scheduler.pickHost());
+
+    // but once the penalty expires
+    MapHost pending;
+    while ((pending = scheduler.pickHost()) == null) {
+      Thread.sleep(100);
+    }
+    assertSame(host, pending);
+    assertEquals(MapHost.State.PENDING, host.getState());
+  }
+
+  @Test
+  public void testHostPenalizedUntilAllPenaltiesExpire() {
+    MapHost host = new MapHost(0, "host1:8080", "http://host1:8080/");
+    host.addKnownMap(new InputAttemptIdentifier(0, 0, "attempt_0"));
+    host.penalize();
+    host.penalize();
+    assertFalse(host.penaltyExpired());
+    assertTrue(host.penaltyExpired());
+    assertEquals(MapHost.State.PENDING, host.markAvailable());
+  }
+
+  private MapHost addInput(String hostName, int partition) {
+    int index = nextInput++;
+    InputAttemptIdentifier input = new InputAttemptIdentifier(index, 0, "attempt_" + index);
+    scheduler.addKnownMapOutput(hostName, 8080, partition, "http://" + hostName + ":8080/",
+        input);
+    MapHost host = null;
+    for (int i = 0; i < 100 && host == null; i++) {
+      MapHost picked = scheduler.pickHost();
+      if (picked != null && picked.getHostIdentifier().equals(hostName + ":8080")
+          && picked.getPartitionId() == partition) {
+        host = picked;
+      }
+    }
+    assertNotNull(host);
+    return host;
+  }
+
+  private ShuffleScheduler createScheduler() {
+    TezInputContext inputContext = mock(TezInputContext.class);
+    TezCounters counters = new TezCounters();
+    doReturn(counters).when(inputContext).getCounters();
+    doReturn("src").when(inputContext).getSourceVertexName();
+    return new ShuffleScheduler(inputContext, conf, NUM_INPUTS, null,
+        counters.findCounter(TaskCounter.NUM_SHUFFLED_INPUTS),
+        counters.findCounter(TaskCounter.SHUFFLE_BYTES),
+        counters.findCounter(TaskCounter.SHUFFLE_BYTES_DECOMPRESSED),
+        counters.findCounter(TaskCounter.NUM_FAILED_SHUFFLE_INPUTS),
+        counters.findCounter(TaskCounter.SHUFFLE_BYTES_TO_DISK),
+        counters.findCounter(TaskCounter.SHUFFLE_BYTES_TO_MEM));
+  }
+}
@@ -19,9 +19,13 @@
 package org.apache.tez.runtime.library.common.sort.impl;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -30,14 +34,20 @@ import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.DefaultCodec;
 import org.apache.hadoop.io.serializer.Deserializer;
 import org.apache.hadoop.io.serializer.SerializationFactory;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.tez.common.TezJobConfig;
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
 import org.apache.tez.runtime.library.common.shuffle.impl.InMemoryReader;
 import org.apache.tez.runtime.library.common.sort.impl.IFile.Reader;
 import org.apache.tez.runtime.library.common.sort.impl.IFile.Writer;
+import org.apache.tez.runtime.library.shuffle.common.ShuffleUtils;
 import org.apache.tez.runtime.library.testutils.KVDataGen;
 import org.apache.tez.runtime.library.testutils.KVDataGen.KVPair;
 import org.junit.After;
@@ -135,6 +145,191 @@ public class TestIFile {
     reader.close();
   }
 
+  @Test
+  public void testPrefixCompressedKeys() throws IOException {
+    verifyPrefixCompressedKeys(false);
+  }
+
+  @Test
+  public void testPrefixCompressedKeysWithRLE() throws IOException {
+    verifyPrefixCompressedKeys(true);
+  }
+
+  private void verifyPrefixCompressedKeys(boolean useRle) throws IOException {
+    List<KVPair> data = new ArrayList<KVPair>();
+    for (int i = 0; i < 100; i++) {
+      Text key = new Text(String.format("http://www.example.com/some/long/path/%05d", i / 3 * 10));
+      data.add(new KVPair(key, new IntWritable(i)));
+      if (i % 10 == 0) {
+        // Shares nothing with the previous key
+        data.add(new KVPair(new Text("k" + i), new IntWritable(i)));
+      }
+    }
+
+    Configuration conf = new Configuration(defaultConf);
+    conf.setBoolean(TezJobConfig.TEZ_RUNTIME_IFILE_KEY_PREFIX_COMPRESSION, true);
+    conf.setInt(TezJobConfig.TEZ_RUNTIME_IFILE_KEY_PREFIX_RESTART_INTERVAL, 4);
+    Path prefixPath = new Path(workDir, "prefix.out");
+    Writer prefixWriter = writeTestFile(conf, prefixPath, useRle, data);
+    Writer plainWriter = writeTestFile(defaultConf, new Path(workDir, "plain.out"), useRle, data);
+    assertTrue("Keys not compressed: " + prefixWriter.getRawLength() + " bytes, "
+        + plainWriter.getRawLength() + " without prefix compression",
+        prefixWriter.getRawLength() < plainWriter.getRawLength() * 2 / 3);
+    assertEquals(localFs.getFileStatus(prefixPath).getLen(), prefixWriter.getCompressedLength());
+
+    IFile.Reader reader = new IFile.Reader(localFs, prefixPath, null, null, null, false, 0, -1);
+    readAndVerify(reader, data);
+    reader.close();
+
+    FSDataInputStream inStream = localFs.open(prefixPath);
+    byte[] bytes = new byte[(int) prefixWriter.getRawLength()];
+    readDataToMem(inStream, bytes);
+    inStream.close();
+    InMemoryReader inMemReader = new InMemoryReader(null, new InputAttemptIdentifier(0, 0),
+        bytes, 0, bytes.length);
+    readAndVerify(inMemReader, data);
+  }
+
+  @Test
+  public void testSeekToKey() throws IOException {
+    List<KVPair> data = new ArrayList<KVPair>();
+    for (int i = 0; i < 1000; i++) {
+      // Every key twice
+      data.add(new KVPair(new Text(String.format("key%05d", i / 2 * 2)), new IntWritable(i)));
+    }
+
+    Configuration conf = new Configuration(defaultConf);
+    conf.setInt(TezJobConfig.TEZ_RUNTIME_IFILE_KEY_INDEX_INTERVAL_BYTES, 256);
+    conf.setBoolean(TezJobConfig.TEZ_RUNTIME_IFILE_KEY_PREFIX_COMPRESSION, true);
+    Path outputPath = new Path(workDir, "seek.out");
+    Writer writer = writeTestFile(conf, outputPath, false, data);
+    List<TezKeyIndex.Entry> entries = writer.getKeyIndex();
+    assertTrue(entries.size() > 10);
+    assertEquals(0, entries.get(0).getOffset());
+
+    // Stored and loaded again
+    TezKeyIndex keyIndex = new TezKeyIndex(2);
+    keyIndex.putEntries(entries, 1);
+    Path keyIndexPath = TezKeyIndex.getKeyIndexFile(new Path(workDir, "seek.out.index"));
+    keyIndex.writeToFile(keyIndexPath, conf);
+    keyIndex = new TezKeyIndex(keyIndexPath, conf);
+    assertEquals(2, keyIndex.size());
+    assertEquals(0, keyIndex.getEntries(0).size());
+    assertEquals(entries.size(), keyIndex.getEntries(1).size());
+    for (int i = 0; i < entries.size(); i++) {
+      assertEquals(entries.get(i).getOffset(), keyIndex.getEntries(1).get(i).getOffset());
+      assertTrue(Arrays.equals(entries.get(i).getKey(),
+          keyIndex.getEntries(1).get(i).getKey()));
+    }
+
+    // Before the first key, at a key, between keys and past the last key
+    verifySeek(outputPath, keyIndex.getEntries(1), data, "a", 0);
+    verifySeek(outputPath, keyIndex.getEntries(1), data, "key00000", 0);
+    verifySeek(outputPath, keyIndex.getEntries(1), data, "key00512", 512);
+    verifySeek(outputPath, keyIndex.getEntries(1), data, "key00513", 514);
+    verifySeek(outputPath, keyIndex.getEntries(1), data, "key00998", 998);
+    verifySeek(outputPath, keyIndex.getEntries(1), data, "key00999", 1000);
+  }
+
+  @Test
+  public void testParallelCompression() throws IOException {
+    List<KVPair> data = new ArrayList<KVPair>();
+    Random random = new Random(0);
+    for (int i = 0; i < 2000; i++) {
+      data.add(new KVPair(new Text("key" + random.nextInt(1000)), new IntWritable(i)));
+    }
+    CompressionCodec codec = ReflectionUtils.newInstance(DefaultCodec.class, defaultConf);
+    Configuration conf = new Configuration(defaultConf);
+    conf.setBoolean(TezJobConfig.TEZ_RUNTIME_IFILE_PARALLEL_COMPRESSION, true);
+    conf.setInt(TezJobConfig.TEZ_RUNTIME_IFILE_PARALLEL_COMPRESSION_BLOCK_SIZE, 1024);
+    conf.setInt(TezJobConfig.TEZ_RUNTIME_IFILE_PARALLEL_COMPRESSION_PARALLELISM, 3);
+    Path parallelPath = new Path(workDir, "parallel.out");
+    Writer writer = writeTestFile(conf, codec, parallelPath, false, data);
+    assertTrue(writer.getRawLength() > 10 * 1024);
+    assertEquals(localFs.getFileStatus(parallelPath).getLen(), writer.getCompressedLength());
+
+    IFile.Reader reader =
+        new IFile.Reader(localFs, parallelPath, codec, null, null, false, 0, -1);
+    readAndVerify(reader, data);
+    reader.close();
+
+    byte[] bytes = new byte[(int) writer.getRawLength()];
+    FSDataInputStream inStream = localFs.open(parallelPath);
+    ShuffleUtils.shuffleToMemory(bytes, inStream, bytes.length,
+        (int) writer.getCompressedLength(), codec, false, 0, LOG, "parallel.out");
+    inStream.close();
+    InMemoryReader inMemReader = new InMemoryReader(null, new InputAttemptIdentifier(0, 0),
+        bytes, 0, bytes.length);
+    readAndVerify(inMemReader, data);
+
+    // Data compressed as a single stream is still read
+    Path plainPath = new Path(workDir, "plain.out");
+    writeTestFile(defaultConf, codec, plainPath, false, data);
+    reader = new IFile.Reader(localFs, plainPath, codec, null, null, false, 0, -1);
+    readAndVerify(reader, data);
+    reader.close();
+  }
+
+  @Test
+  public void testParallelCompressionReadAheadLimit() throws IOException {
+    List<KVPair> data = new ArrayList<KVPair>();
+    Random random = new Random(0);
+    for (int i = 0; i < 2000; i++) {
+      data.add(new KVPair(new Text("key" + random.nextInt(1000)), new IntWritable(i)));
+    }
+    CompressionCodec codec = ReflectionUtils.newInstance(DefaultCodec.class, defaultConf);
+    Configuration conf = new Configuration(defaultConf);
+    conf.setBoolean(TezJobConfig.TEZ_RUNTIME_IFILE_PARALLEL_COMPRESSION, true);
+    conf.setInt(TezJobConfig.TEZ_RUNTIME_IFILE_PARALLEL_COMPRESSION_BLOCK_SIZE, 1024);
+    Path path = new Path(workDir, "parallel.out");
+    writeTestFile(conf, codec, path, false, data);
+
+    long limit = ParallelCompression.getReadAheadMemoryLimit();
+    try {
+      // Without read ahead memory, each block is decompressed when needed
+      ParallelCompression.setReadAheadMemoryLimit(0);
+      IFile.Reader reader = new IFile.Reader(localFs, path, codec, null, null, false, 0, -1);
+      readAndVerify(reader, data);
+      reader.close();
+      assertEquals(0, ParallelCompression.getReadAheadMemoryUsed());
+
+      // Readers share the read ahead memory
+      ParallelCompression.setReadAheadMemoryLimit(4096);
+      IFile.Reader reader1 = new IFile.Reader(localFs, path, codec, null, null, false, 0, -1);
+      IFile.Reader reader2 = new IFile.Reader(localFs, path, codec, null, null, false, 0, -1);
+      DataInputBuffer key = new DataInputBuffer();
+      for (int i = 0; i < 100; i++) {
+        assertTrue(reader1.nextRawKey(key));
+        reader1.nextRawValue(key);
+        assertTrue(reader2.nextRawKey(key));
+        reader2.nextRawValue(key);
+        assertTrue(ParallelCompression.getReadAheadMemoryUsed() <= 4096);
+      }
+      assertTrue(ParallelCompression.getReadAheadMemoryUsed() > 0);
+      reader1.close();
+      reader2.close();
+      assertEquals(0, ParallelCompression.getReadAheadMemoryUsed());
+    } finally {
+      ParallelCompression.setReadAheadMemoryLimit(limit);
+    }
+  }
+
+  private void verifySeek(Path path, List<TezKeyIndex.Entry> keyIndex, List<KVPair> data,
+      String key, int expectedRecord) throws IOException {
+    DataOutputBuffer keyOut = new DataOutputBuffer();
+    new Text(key).write(keyOut);
+    DataInputBuffer keyIn = new DataInputBuffer();
+    keyIn.reset(keyOut.getData(), keyOut.getLength());
+
+    IFile.Reader reader = new IFile.Reader(localFs, path, null, null, null, false, 0, -1);
+    boolean found = reader.seekToKey(keyIn, keyIndex, new Text.Comparator());
+    assertEquals(expectedRecord < data.size(), found);
+    if (found) {
+      readAndVerify(reader, data.subList(expectedRecord, data.size()));
+    }
+    reader.close();
+  }
+
   private void readDataToMem(FSDataInputStream inStream, byte[] bytes) throws IOException {
     int toRead = bytes.length;
     int offset = 0;
@@ -186,9 +381,19 @@ public class TestIFile {
 
   private Writer writeTestFile(Path outputPath, boolean useRle, List<KVPair> data)
       throws IOException {
+    return writeTestFile(defaultConf, outputPath, useRle, data);
+  }
+
+  private Writer writeTestFile(Configuration conf, Path outputPath, boolean useRle,
+      List<KVPair> data) throws IOException {
+    return writeTestFile(conf, null, outputPath, useRle, data);
+  }
+
+  private Writer writeTestFile(Configuration conf, CompressionCodec codec, Path outputPath,
+      boolean useRle, List<KVPair> data) throws IOException {
 
-    IFile.Writer writer = new IFile.Writer(defaultConf, localFs, outputPath,
-        Text.class, IntWritable.class, null, null, null);
+    IFile.Writer writer = new IFile.Writer(conf, localFs, outputPath,
+        Text.class, IntWritable.class, codec, null, null);
     writer.setRLE(useRle);
 
     for (KVPair kvp : data) {
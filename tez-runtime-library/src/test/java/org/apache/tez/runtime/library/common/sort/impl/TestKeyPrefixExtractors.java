@@ -0,0 +1,131 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.sort.impl;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparator;
+import org.junit.Test;
+
+@SuppressWarnings("rawtypes")
+public class TestKeyPrefixExtractors {
+
+  private static final int NUM_KEYS = 500;
+  private static final byte[] TEXT_ALPHABET = new byte[] { 'a', 'b', (byte) 0xff };
+
+  private final Random rnd = new Random(31);
+
+  @Test
+  public void testUnsupportedComparator() {
+    assertNull(KeyPrefixExtractors.get(LongWritable.class,
+        new LongWritable.DecreasingComparator()));
+    assertNull(KeyPrefixExtractors.get(Text.class, WritableComparator.get(IntWritable.class)));
+    assertNotNull(KeyPrefixExtractors.get(Text.class, WritableComparator.get(Text.class)));
+  }
+
+  @Test
+  public void testTextPrefix() throws IOException {
+    Writable[] keys = new Writable[NUM_KEYS];
+    for (int i = 0; i < keys.length; i++) {
+      // short alphabet and lengths around 8 bytes to produce plenty of ties
+      byte[] b = new byte[rnd.nextInt(12)];
+      for (int j = 0; j < b.length; j++) {
+        b[j] = TEXT_ALPHABET[rnd.nextInt(TEXT_ALPHABET.length)];
+      }
+      keys[i] = new Text(b);
+    }
+    verifyConsistentWithComparator(Text.class, keys);
+  }
+
+  @Test
+  public void testBytesWritablePrefix() throws IOException {
+    Writable[] keys = new Writable[NUM_KEYS];
+    for (int i = 0; i < keys.length; i++) {
+      byte[] b = new byte[rnd.nextInt(12)];
+      for (int j = 0; j < b.length; j++) {
+        b[j] = (byte) (rnd.nextInt(3) * 127);
+      }
+      keys[i] = new BytesWritable(b);
+    }
+    verifyConsistentWithComparator(BytesWritable.class, keys);
+  }
+
+  @Test
+  public void testIntWritablePrefix() throws IOException {
+    Writable[] keys = new Writable[NUM_KEYS];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = new IntWritable(rnd.nextInt());
+    }
+    keys[0] = new IntWritable(Integer.MIN_VALUE);
+    keys[1] = new IntWritable(Integer.MAX_VALUE);
+    verifyConsistentWithComparator(IntWritable.class, keys);
+  }
+
+  @Test
+  public void testLongWritablePrefix() throws IOException {
+    Writable[] keys = new Writable[NUM_KEYS];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = new LongWritable(rnd.nextLong());
+    }
+    keys[0] = new LongWritable(Long.MIN_VALUE);
+    keys[1] = new LongWritable(Long.MAX_VALUE);
+    verifyConsistentWithComparator(LongWritable.class, keys);
+  }
+
+  private void verifyConsistentWithComparator(Class keyClass, Writable[] keys)
+      throws IOException {
+    RawComparator comparator = WritableComparator.get(keyClass);
+    KeyPrefixExtractor extractor = KeyPrefixExtractors.get(keyClass, comparator);
+    assertNotNull(extractor);
+
+    byte[][] serialized = new byte[keys.length][];
+    long[] prefixes = new long[keys.length];
+    DataOutputBuffer out = new DataOutputBuffer();
+    for (int i = 0; i < keys.length; i++) {
+      out.reset();
+      keys[i].write(out);
+      serialized[i] = new byte[out.getLength()];
+      System.arraycopy(out.getData(), 0, serialized[i], 0, out.getLength());
+      prefixes[i] = extractor.getPrefix(serialized[i], 0, serialized[i].length);
+    }
+
+    for (int i = 0; i < keys.length; i++) {
+      for (int j = 0; j < keys.length; j++) {
+        if (prefixes[i] < prefixes[j]) {
+          int cmp = comparator.compare(serialized[i], 0, serialized[i].length,
+              serialized[j], 0, serialized[j].length);
+          assertTrue("Prefix order disagrees with comparator for " + keys[i] + ", " + keys[j],
+              cmp < 0);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,143 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.sort.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestLoserTree {
+
+  @Test
+  public void testMerge() {
+    for (int k : new int[] { 1, 2, 3, 10, 100, 500 }) {
+      verifyMerge(k, 200);
+    }
+  }
+
+  @Test
+  public void testUnevenStreams() {
+    Stream[] streams = new Stream[] { new Stream(new int[] { 3 }),
+        new Stream(new int[] { 1, 2, 2, 8, 9 }), new Stream(new int[] { 2 }),
+        new Stream(new int[] { 0, 4 }), new Stream(new int[] { 6 }) };
+    CountingTree tree = new CountingTree(streams.length);
+    for (Stream stream : streams) {
+      tree.put(stream);
+    }
+    int[] merged = drain(tree, 10);
+    assertTrue(Arrays.equals(new int[] { 0, 1, 2, 2, 2, 3, 4, 6, 8, 9 }, merged));
+    assertNull(tree.top());
+    assertNull(tree.pop());
+  }
+
+  @Test
+  public void testClearAndReuse() {
+    CountingTree tree = new CountingTree(2);
+    tree.put(new Stream(new int[] { 5 }));
+    tree.put(new Stream(new int[] { 4 }));
+    assertEquals(4, tree.top().current());
+    tree.clear();
+    assertEquals(0, tree.size());
+    assertNull(tree.top());
+    tree.put(new Stream(new int[] { 7 }));
+    assertEquals(7, tree.pop().current());
+  }
+
+  private void verifyMerge(int k, int recordsPerStream) {
+    Random random = new Random(k);
+    Stream[] streams = new Stream[k];
+    int[] expected = new int[k * recordsPerStream];
+    for (int i = 0; i < k; i++) {
+      int[] values = new int[recordsPerStream];
+      for (int j = 0; j < recordsPerStream; j++) {
+        values[j] = random.nextInt(10000);
+      }
+      Arrays.sort(values);
+      System.arraycopy(values, 0, expected, i * recordsPerStream, recordsPerStream);
+      streams[i] = new Stream(values);
+    }
+    Arrays.sort(expected);
+
+    CountingTree tree = new CountingTree(k);
+    for (Stream stream : streams) {
+      tree.put(stream);
+    }
+    int[] merged = drain(tree, expected.length);
+    assertTrue("Merge of " + k + " streams is not sorted", Arrays.equals(expected, merged));
+    assertEquals(0, tree.size());
+
+    // k - 1 matches to build, and one per level for every record after that
+    int levels = 32 - Integer.numberOfLeadingZeros(k - 1);
+    long maxComparisons = (k - 1) + (long) expected.length * levels;
+    assertTrue("Too many comparisons for k=" + k + ": " + tree.comparisons,
+        tree.comparisons <= maxComparisons);
+  }
+
+  private int[] drain(CountingTree tree, int numRecords) {
+    int[] merged = new int[numRecords];
+    int count = 0;
+    while (tree.size() > 0) {
+      Stream min = tree.top();
+      merged[count++] = min.current();
+      if (min.advance()) {
+        tree.adjustTop();
+      } else {
+        tree.pop();
+      }
+    }
+    assertEquals(numRecords, count);
+    return merged;
+  }
+
+  private static class Stream {
+    private final int[] values;
+    private int pos = 0;
+
+    Stream(int[] values) {
+      this.values = values;
+    }
+
+    int current() {
+      return values[pos];
+    }
+
+    boolean advance() {
+      return ++pos < values.length;
+    }
+  }
+
+  private static class CountingTree extends LoserTree<Stream> {
+    private long comparisons = 0;
+
+    CountingTree(int maxSize) {
+      initialize(maxSize);
+    }
+
+    @Override
+    protected boolean lessThan(Object a, Object b) {
+      comparisons++;
+      return ((Stream) a).current() < ((Stream) b).current();
+    }
+  }
+}
@@ -0,0 +1,240 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.sort.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.tez.common.TezJobConfig;
+import org.apache.tez.common.TezRuntimeFrameworkConfigs;
+import org.apache.tez.common.counters.TezCounters;
+import org.apache.tez.runtime.api.TezOutputContext;
+import org.apache.tez.runtime.library.common.task.local.output.TezTaskOutput;
+import org.apache.tez.runtime.library.partitioner.HashPartitioner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestPipelinedSorter {
+
+  private static final Path TEST_ROOT_DIR = new Path(System.getProperty("test.build.data",
+      System.getProperty("java.io.tmpdir")), TestPipelinedSorter.class.getName());
+
+  private static final int NUM_PARTITIONS = 5;
+  private static final int NUM_RECORDS = 100000;
+
+  private RawLocalFileSystem localFs;
+
+  @Before
+  public void setup() throws IOException {
+    localFs = (RawLocalFileSystem) FileSystem.getLocal(new Configuration()).getRaw();
+    FileUtil.fullyDelete(localFs.pathToFile(TEST_ROOT_DIR));
+  }
+
+  @After
+  public void cleanup() throws IOException {
+    FileUtil.fullyDelete(localFs.pathToFile(TEST_ROOT_DIR));
+  }
+
+  @Test(timeout = 60000)
+  public void testParallelMerge() throws Exception {
+    verifyParallelMerge(false, false);
+  }
+
+  @Test(timeout = 60000)
+  public void testParallelMergeCompressed() throws Exception {
+    verifyParallelMerge(true, false);
+  }
+
+  @Test(timeout = 60000)
+  public void testParallelMergeOverflow() throws Exception {
+    verifyParallelMerge(false, true);
+  }
+
+  @Test(timeout = 60000)
+  public void testDirectBuffers() throws Exception {
+    Configuration conf = createConf("direct", 4, false);
+    conf.setBoolean(TezJobConfig.TEZ_RUNTIME_PIPELINED_SORTER_DIRECT_BUFFERS, true);
+    conf.setInt(TezJobConfig.TEZ_RUNTIME_IO_SORT_MB, 1);
+    // The buffer is not taken from the heap memory assigned to the output
+    assertEquals(0, ExternalSorter.getInitialMemoryRequirement(conf, 1 << 30));
+    PipelinedSorter heap = createSorter("heap", 1, false, false);
+    PipelinedSorter direct = createSorter(conf, "direct", 0, NUM_PARTITIONS, false);
+    writeRecords(heap);
+    writeRecords(direct);
+    verifySameOutput(heap, direct, NUM_PARTITIONS);
+
+    // Given back on flush, and reused by the next sorter
+    ByteBuffer released = PipelinedSorter.getReleasedDirectBuffer();
+    assertNotNull(released);
+    assertTrue(released.isDirect());
+    PipelinedSorter reuse = createSorter(conf, "reuse", 0, NUM_PARTITIONS, false);
+    assertNull(PipelinedSorter.getReleasedDirectBuffer());
+    // Given back on close, even if the output is never flushed
+    reuse.close();
+    assertSame(released, PipelinedSorter.getReleasedDirectBuffer());
+  }
+
+  @Test(timeout = 60000)
+  public void testKeyPrefixes() throws Exception {
+    Configuration conf = createConf("prefixed", 4, false);
+    conf.setBoolean(TezJobConfig.TEZ_RUNTIME_SORT_KEY_PREFIX_ENABLED, true);
+    PipelinedSorter plain = createSorter("plain", 4, false, false);
+    PipelinedSorter prefixed = createSorter(conf, "prefixed", 1 << 20, NUM_PARTITIONS, false);
+    writeRecords(plain);
+    writeRecords(prefixed);
+    verifySameOutput(plain, prefixed, NUM_PARTITIONS);
+  }
+
+  @Test(timeout = 60000)
+  public void testPartitionBucketing() throws Exception {
+    int numPartitions = 37;
+    Configuration conf = createConf("bucketed", 4, false);
+    conf.setBoolean(TezJobConfig.TEZ_RUNTIME_PIPELINED_SORTER_PARTITION_BUCKETING, true);
+    PipelinedSorter plain = createSorter(createConf("plain", 4, false), "plain", 1 << 20,
+        numPartitions, false);
+    PipelinedSorter bucketed = createSorter(conf, "bucketed", 1 << 20, numPartitions, false);
+    writeRecords(plain);
+    writeRecords(bucketed);
+    verifySameOutput(plain, bucketed, numPartitions);
+  }
+
+  /**
+   * Sorts the same records with one thread, which merges the partitions one
+   * after the other, and with several, and compares the partitions written.
+   */
+  private void verifyParallelMerge(boolean compress, boolean overflow) throws Exception {
+    PipelinedSorter serial = createSorter("serial", 1, compress, false);
+    PipelinedSorter parallel = createSorter("parallel", 4, compress, overflow);
+    writeRecords(serial);
+    writeRecords(parallel);
+    verifySameOutput(serial, parallel, NUM_PARTITIONS);
+
+    // Partitions merged into separate files have been cleaned up
+    Path outputFile = parallel.getMapOutput().getOutputFile();
+    for (FileStatus status : localFs.listStatus(outputFile.getParent())) {
+      assertFalse(status.getPath().getName().matches(outputFile.getName() + "\\.[0-9]+"));
+    }
+  }
+
+  private void verifySameOutput(PipelinedSorter expected, PipelinedSorter actual,
+      int numPartitions) throws IOException {
+    TezTaskOutput expectedOutput = expected.getMapOutput();
+    TezTaskOutput actualOutput = actual.getMapOutput();
+    TezSpillRecord expectedIndex = new TezSpillRecord(expectedOutput.getOutputIndexFile(),
+        new Configuration());
+    TezSpillRecord actualIndex = new TezSpillRecord(actualOutput.getOutputIndexFile(),
+        new Configuration());
+    assertEquals(numPartitions, actualIndex.size());
+    for (int i = 0; i < numPartitions; i++) {
+      TezIndexRecord expectedRec = expectedIndex.getIndex(i);
+      TezIndexRecord actualRec = actualIndex.getIndex(i);
+      assertEquals(expectedRec.getRawLength(), actualRec.getRawLength());
+      assertEquals(expectedRec.getPartLength(), actualRec.getPartLength());
+      assertTrue(expectedRec.getPartLength() > 1000);
+      assertArrayEquals(readPartition(expectedOutput.getOutputFile(), expectedRec),
+          readPartition(actualOutput.getOutputFile(), actualRec));
+    }
+  }
+
+  private byte[] readPartition(Path file, TezIndexRecord rec) throws IOException {
+    byte[] data = new byte[(int) rec.getPartLength()];
+    FSDataInputStream in = localFs.open(file);
+    try {
+      in.readFully(rec.getStartOffset(), data);
+    } finally {
+      in.close();
+    }
+    return data;
+  }
+
+  private void writeRecords(PipelinedSorter sorter) throws IOException {
+    Text key = new Text();
+    Text value = new Text();
+    for (long i = 0; i < NUM_RECORDS; i++) {
+      // Distinct keys in no particular order, many of which share a prefix
+      key.set(String.format("key%08x", (i * 2654435761L) & 0xffffffffL));
+      value.set("value" + i);
+      sorter.write(key, value);
+    }
+    sorter.flush();
+    sorter.close();
+    assertTrue(sorter.numSpills > 2);
+  }
+
+  private PipelinedSorter createSorter(String uniqueId, int sortThreads, boolean compress,
+      boolean overflow) throws IOException {
+    return createSorter(createConf(uniqueId, sortThreads, compress), uniqueId, 1 << 20,
+        NUM_PARTITIONS, overflow);
+  }
+
+  private Configuration createConf(String uniqueId, int sortThreads, boolean compress) {
+    Configuration conf = new Configuration(false);
+    conf.setStrings(TezRuntimeFrameworkConfigs.LOCAL_DIRS,
+        new Path(TEST_ROOT_DIR, uniqueId).toString());
+    conf.set(TezJobConfig.TEZ_RUNTIME_INTERMEDIATE_OUTPUT_KEY_CLASS, Text.class.getName());
+    conf.set(TezJobConfig.TEZ_RUNTIME_INTERMEDIATE_OUTPUT_VALUE_CLASS, Text.class.getName());
+    conf.set(TezJobConfig.TEZ_RUNTIME_PARTITIONER_CLASS, HashPartitioner.class.getName());
+    conf.setInt(TezJobConfig.TEZ_RUNTIME_SORT_THREADS, sortThreads);
+    conf.setBoolean(TezJobConfig.TEZ_RUNTIME_INTERMEDIATE_OUTPUT_SHOULD_COMPRESS, compress);
+    if (compress) {
+      conf.set(TezJobConfig.TEZ_RUNTIME_INTERMEDIATE_OUTPUT_COMPRESS_CODEC,
+          DefaultCodec.class.getName());
+    }
+    return conf;
+  }
+
+  private PipelinedSorter createSorter(Configuration conf, String uniqueId,
+      long initialMemoryAvailable, int numPartitions, final boolean overflow)
+      throws IOException {
+    TezOutputContext outputContext = mock(TezOutputContext.class);
+    doReturn(new TezCounters()).when(outputContext).getCounters();
+    doReturn(uniqueId).when(outputContext).getUniqueIdentifier();
+    doReturn("destinationVertexName").when(outputContext).getDestinationVertexName();
+
+    return new PipelinedSorter(outputContext, conf, numPartitions, initialMemoryAvailable) {
+      @Override
+      long getMergedPartitionBound(int partition, List<TezSpillRecord> indexCacheList) {
+        long bound = super.getMergedPartitionBound(partition, indexCacheList);
+        // Odd partitions do not fit in their region
+        return overflow && partition % 2 == 1 ? bound / 2 : bound;
+      }
+    };
+  }
+}
@@ -0,0 +1,135 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.sort.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.IOUtils;
+import org.junit.Test;
+
+public class TestSegmentPrefetcher {
+
+  @Test
+  public void testReadsSegmentOnly() throws IOException {
+    byte[] data = new byte[10000];
+    new Random(0).nextBytes(data);
+    SegmentPrefetcher prefetcher = new SegmentPrefetcher(2, 1024, 1 << 20, "Test");
+
+    TrackingInputStream source = new TrackingInputStream(data);
+    IOUtils.skipFully(source, 100);
+    InputStream in = prefetcher.prefetch(source, 5000);
+    assertNotSame(source, in);
+    assertEquals(2048, prefetcher.getUsedMemory());
+
+    byte[] read = new byte[5000];
+    read[0] = (byte) in.read();
+    IOUtils.readFully(in, read, 1, read.length - 1);
+    assertEquals(-1, in.read());
+    assertEquals(-1, in.read(new byte[10], 0, 10));
+    byte[] expected = new byte[5000];
+    System.arraycopy(data, 100, expected, 0, expected.length);
+    assertArrayEquals(expected, read);
+    // Nothing beyond the segment is read from the source
+    assertEquals(5100, data.length - source.available());
+
+    in.close();
+    assertTrue(source.closed);
+    assertEquals(0, prefetcher.getUsedMemory());
+  }
+
+  @Test
+  public void testMemoryLimit() throws IOException {
+    SegmentPrefetcher prefetcher = new SegmentPrefetcher(1, 1024, 4096, "Test");
+    InputStream in1 = prefetcher.prefetch(new ByteArrayInputStream(new byte[8192]), 8192);
+    InputStream in2 = prefetcher.prefetch(new ByteArrayInputStream(new byte[8192]), 8192);
+    assertEquals(4096, prefetcher.getUsedMemory());
+
+    // Out of memory, read directly
+    InputStream source = new ByteArrayInputStream(new byte[8192]);
+    assertSame(source, prefetcher.prefetch(source, 8192));
+
+    // Closing before all of it is read gives the memory back
+    in1.read();
+    in1.close();
+    assertEquals(2048, prefetcher.getUsedMemory());
+    assertNotSame(source, prefetcher.prefetch(source, 8192));
+    in2.close();
+  }
+
+  @Test
+  public void testIFileReader() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    IFileOutputStream checksumOut = new IFileOutputStream(bytes);
+    DataOutputStream out = new DataOutputStream(checksumOut);
+    for (int i = 0; i < 1000; i++) {
+      out.writeByte(4);
+      out.writeByte(4);
+      out.writeInt(i);
+      out.writeInt(i * 2);
+    }
+    out.writeByte(IFile.EOF_MARKER);
+    out.writeByte(IFile.EOF_MARKER);
+    out.flush();
+    checksumOut.finish();
+    byte[] ifile = bytes.toByteArray();
+
+    SegmentPrefetcher prefetcher = new SegmentPrefetcher(2, 512, 1 << 20, "Test");
+    IFile.Reader reader = new IFile.Reader(
+        prefetcher.prefetch(new ByteArrayInputStream(ifile), ifile.length), ifile.length,
+        null, null, null, false, 0, -1);
+    DataInputBuffer key = new DataInputBuffer();
+    DataInputBuffer value = new DataInputBuffer();
+    int count = 0;
+    while (reader.nextRawKey(key)) {
+      reader.nextRawValue(value);
+      assertEquals(count, key.readInt());
+      assertEquals(count * 2, value.readInt());
+      count++;
+    }
+    reader.close();
+    assertEquals(1000, count);
+    assertEquals(0, prefetcher.getUsedMemory());
+  }
+
+  private static class TrackingInputStream extends ByteArrayInputStream {
+    private boolean closed = false;
+
+    TrackingInputStream(byte[] data) {
+      super(data);
+    }
+
+    @Override
+    public void close() throws IOException {
+      closed = true;
+      super.close();
+    }
+  }
+}
@@ -0,0 +1,153 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.sort.impl.dflt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+import org.apache.hadoop.io.Text;
+import org.apache.tez.common.TezJobConfig;
+import org.apache.tez.common.TezRuntimeFrameworkConfigs;
+import org.apache.tez.common.counters.TezCounters;
+import org.apache.tez.runtime.api.TezOutputContext;
+import org.apache.tez.runtime.library.common.sort.impl.TezIndexRecord;
+import org.apache.tez.runtime.library.common.sort.impl.TezSpillRecord;
+import org.apache.tez.runtime.library.common.task.local.output.TezTaskOutput;
+import org.apache.tez.runtime.library.partitioner.HashPartitioner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestDefaultSorter {
+
+  private static final Path TEST_ROOT_DIR = new Path(System.getProperty("test.build.data",
+      System.getProperty("java.io.tmpdir")), TestDefaultSorter.class.getName());
+
+  private static final int NUM_PARTITIONS = 5;
+  private static final int NUM_RECORDS = 100000;
+
+  private RawLocalFileSystem localFs;
+
+  @Before
+  public void setup() throws IOException {
+    localFs = (RawLocalFileSystem) FileSystem.getLocal(new Configuration()).getRaw();
+    FileUtil.fullyDelete(localFs.pathToFile(TEST_ROOT_DIR));
+  }
+
+  @After
+  public void cleanup() throws IOException {
+    FileUtil.fullyDelete(localFs.pathToFile(TEST_ROOT_DIR));
+  }
+
+  @Test(timeout = 60000)
+  public void testKeyPrefixes() throws Exception {
+    // Large records, every spill fits in the key prefixes set aside
+    verifyKeyPrefixes(64);
+  }
+
+  @Test(timeout = 60000)
+  public void testKeyPrefixesOverflow() throws Exception {
+    // Small records, spills have more records than key prefixes set aside
+    // and are sorted on the keys alone
+    verifyKeyPrefixes(0);
+  }
+
+  /**
+   * Sorts the same records with and without key prefixes, and compares the
+   * partitions written.
+   */
+  private void verifyKeyPrefixes(int valuePadding) throws Exception {
+    DefaultSorter plain = createSorter("plain", false);
+    DefaultSorter prefixed = createSorter("prefixed", true);
+    writeRecords(plain, valuePadding);
+    writeRecords(prefixed, valuePadding);
+
+    TezTaskOutput plainOutput = plain.getMapOutput();
+    TezTaskOutput prefixedOutput = prefixed.getMapOutput();
+    TezSpillRecord plainIndex = new TezSpillRecord(plainOutput.getOutputIndexFile(),
+        new Configuration());
+    TezSpillRecord prefixedIndex = new TezSpillRecord(prefixedOutput.getOutputIndexFile(),
+        new Configuration());
+    assertEquals(NUM_PARTITIONS, prefixedIndex.size());
+    for (int i = 0; i < NUM_PARTITIONS; i++) {
+      TezIndexRecord plainRec = plainIndex.getIndex(i);
+      TezIndexRecord prefixedRec = prefixedIndex.getIndex(i);
+      assertEquals(plainRec.getRawLength(), prefixedRec.getRawLength());
+      assertTrue(plainRec.getPartLength() > 1000);
+      assertArrayEquals(readPartition(plainOutput.getOutputFile(), plainRec),
+          readPartition(prefixedOutput.getOutputFile(), prefixedRec));
+    }
+  }
+
+  private byte[] readPartition(Path file, TezIndexRecord rec) throws IOException {
+    byte[] data = new byte[(int) rec.getPartLength()];
+    FSDataInputStream in = localFs.open(file);
+    try {
+      in.readFully(rec.getStartOffset(), data);
+    } finally {
+      in.close();
+    }
+    return data;
+  }
+
+  private void writeRecords(DefaultSorter sorter, int valuePadding) throws IOException {
+    StringBuilder padding = new StringBuilder();
+    for (int i = 0; i < valuePadding; i++) {
+      padding.append('v');
+    }
+    Text key = new Text();
+    Text value = new Text();
+    for (long i = 0; i < NUM_RECORDS; i++) {
+      // Distinct keys in no particular order, many of which share a prefix
+      key.set(String.format("key%08x", (i * 2654435761L) & 0xffffffffL));
+      value.set(padding.toString() + i);
+      sorter.write(key, value);
+    }
+    sorter.flush();
+    sorter.close();
+    assertTrue(sorter.numSpills > 2);
+  }
+
+  private DefaultSorter createSorter(String uniqueId, boolean keyPrefixes) throws IOException {
+    TezOutputContext outputContext = mock(TezOutputContext.class);
+    doReturn(new TezCounters()).when(outputContext).getCounters();
+    doReturn(uniqueId).when(outputContext).getUniqueIdentifier();
+    doReturn("destinationVertexName").when(outputContext).getDestinationVertexName();
+
+    Configuration conf = new Configuration(false);
+    conf.setStrings(TezRuntimeFrameworkConfigs.LOCAL_DIRS,
+        new Path(TEST_ROOT_DIR, uniqueId).toString());
+    conf.set(TezJobConfig.TEZ_RUNTIME_INTERMEDIATE_OUTPUT_KEY_CLASS, Text.class.getName());
+    conf.set(TezJobConfig.TEZ_RUNTIME_INTERMEDIATE_OUTPUT_VALUE_CLASS, Text.class.getName());
+    conf.set(TezJobConfig.TEZ_RUNTIME_PARTITIONER_CLASS, HashPartitioner.class.getName());
+    conf.setBoolean(TezJobConfig.TEZ_RUNTIME_SORT_KEY_PREFIX_ENABLED, keyPrefixes);
+    return new DefaultSorter(outputContext, conf, NUM_PARTITIONS, 1 << 20);
+  }
+}
@@ -0,0 +1,112 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.writers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.tez.runtime.library.common.sort.impl.TezRawKeyValueIterator;
+import org.junit.Test;
+
+public class TestHashAggregationTable {
+
+  @Test
+  public void testGrouping() throws IOException {
+    HashAggregationTable table = new HashAggregationTable(2, 1024 * 1024);
+    assertTrue(table.isEmpty());
+    assertTrue(add(table, 0, "a", "1"));
+    assertTrue(add(table, 0, "b", "2"));
+    assertTrue(add(table, 1, "a", "3"));
+    assertTrue(add(table, 0, "a", "4"));
+    assertTrue(add(table, 0, "b", "5"));
+    assertEquals(3, table.getNumKeys());
+    assertEquals(5, table.getNumValues());
+    assertTrue(table.hasRecords(0));
+    assertTrue(table.hasRecords(1));
+
+    assertEquals(toList("a", "1", "a", "4", "b", "2", "b", "5"), read(table, 0));
+    assertEquals(toList("a", "3"), read(table, 1));
+
+    table.clear();
+    assertTrue(table.isEmpty());
+    assertFalse(table.hasRecords(0));
+    assertTrue(read(table, 0).isEmpty());
+  }
+
+  @Test
+  public void testFull() throws IOException {
+    HashAggregationTable table = new HashAggregationTable(1, 1024);
+    int added = 0;
+    while (add(table, 0, "key" + added, "value")) {
+      added++;
+    }
+    assertTrue(added > 0);
+    assertEquals(added, table.getNumKeys());
+    assertEquals(2 * added, read(table, 0).size());
+
+    table.clear();
+    assertTrue(add(table, 0, "key", "value"));
+  }
+
+  @Test
+  public void testMemorySize() {
+    for (long memory = 1024; memory <= 64 * 1024 * 1024; memory = memory * 3 / 2) {
+      HashAggregationTable table = new HashAggregationTable(1, memory);
+      assertTrue("Table of " + memory + " bytes takes " + table.getMemorySize(),
+          table.getMemorySize() <= memory);
+      assertTrue(table.getMemorySize() > memory * 0.99);
+    }
+  }
+
+  private static boolean add(HashAggregationTable table, int partition, String key,
+      String value) {
+    byte[] buffer = (key + value).getBytes();
+    return table.add(partition, buffer, key.length(), value.length());
+  }
+
+  private static List<String> read(HashAggregationTable table, int partition)
+      throws IOException {
+    List<String> records = new ArrayList<String>();
+    TezRawKeyValueIterator iter = table.getRecords(partition);
+    while (iter.next()) {
+      records.add(toString(iter.getKey()));
+      records.add(toString(iter.getValue()));
+    }
+    return records;
+  }
+
+  private static String toString(DataInputBuffer buffer) {
+    return new String(buffer.getData(), buffer.getPosition(),
+        buffer.getLength() - buffer.getPosition());
+  }
+
+  private static List<String> toList(String... values) {
+    List<String> list = new ArrayList<String>();
+    for (String value : values) {
+      list.add(value);
+    }
+    return list;
+  }
+}
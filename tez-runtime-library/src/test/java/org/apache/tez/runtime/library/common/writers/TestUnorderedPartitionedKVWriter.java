@@ -65,10 +65,13 @@ import org.apache.tez.common.counters.TezCounter;
 import org.apache.tez.common.counters.TezCounters;
 import org.apache.tez.runtime.api.Event;
 import org.apache.tez.runtime.api.TezOutputContext;
+import org.apache.tez.runtime.api.TezTaskContext;
 import org.apache.tez.runtime.api.events.CompositeDataMovementEvent;
 import org.apache.tez.runtime.library.api.Partitioner;
+import org.apache.tez.runtime.library.common.combine.Combiner;
 import org.apache.tez.runtime.library.common.sort.impl.IFile;
 import org.apache.tez.runtime.library.common.sort.impl.TezIndexRecord;
+import org.apache.tez.runtime.library.common.sort.impl.TezRawKeyValueIterator;
 import org.apache.tez.runtime.library.common.sort.impl.TezSpillRecord;
 import org.apache.tez.runtime.library.common.task.local.output.TezTaskOutput;
 import org.apache.tez.runtime.library.common.task.local.output.TezTaskOutputFiles;
@@ -213,6 +216,96 @@ public class TestUnorderedPartitionedKVWriter {
     textTest(100, 10, 2048, 10, 10, 10);
   }
 
+  @Test(timeout = 10000)
+  public void testHashAggregation() throws IOException, InterruptedException {
+    // All the keys fit in the table, each one is written once
+    assertEquals(100, aggregationTest(100, 1000, 64 * 1024));
+  }
+
+  @Test(timeout = 10000)
+  public void testHashAggregationWithFlushes() throws IOException, InterruptedException {
+    // The table is flushed several times, keys are written once per flush
+    int numRecordsWritten = aggregationTest(100, 1000, 4096);
+    assertTrue(numRecordsWritten > 100);
+    assertTrue(numRecordsWritten < 1000);
+  }
+
+  /**
+   * Writes numRecords values of 1 for numKeys keys, in runs of 5 values per
+   * key, through a combiner which sums them, and verifies the sum of each key
+   * in its partition.
+   *
+   * @return the number of records written by the combiner
+   */
+  private int aggregationTest(int numKeys, int numRecords, long availableMemory)
+      throws IOException, InterruptedException {
+    PartitionerForTest partitioner = new PartitionerForTest();
+    ApplicationId appId = ApplicationId.newInstance(10000, 1);
+    TezCounters counters = new TezCounters();
+    String uniqueId = UUID.randomUUID().toString();
+    TezOutputContext outputContext = createMockOutputContext(counters, appId, uniqueId);
+
+    Configuration conf = createConfiguration(outputContext, IntWritable.class, LongWritable.class,
+        shouldCompress, -1);
+    conf.setBoolean(TezJobConfig.TEZ_RUNTIME_UNORDERED_OUTPUT_HASH_AGGREGATION_ENABLED, true);
+    conf.setFloat(TezJobConfig.TEZ_RUNTIME_UNORDERED_OUTPUT_HASH_AGGREGATION_MEMORY_FRACTION,
+        0.5f);
+    conf.set(TezJobConfig.TEZ_RUNTIME_COMBINER_CLASS, SumCombiner.class.getName());
+    CompressionCodec codec = null;
+    if (shouldCompress) {
+      codec = new DefaultCodec();
+      ((Configurable) codec).setConf(conf);
+    }
+
+    int numOutputs = 10;
+    UnorderedPartitionedKVWriter kvWriter = new UnorderedPartitionedKVWriterForTest(outputContext,
+        conf, numOutputs, availableMemory);
+    assertTrue(kvWriter.aggregationTable != null);
+
+    IntWritable intWritable = new IntWritable();
+    LongWritable longWritable = new LongWritable(1);
+    for (int i = 0; i < numRecords; i++) {
+      // Runs of 5 values per key
+      intWritable.set((i / 5) % numKeys);
+      kvWriter.write(intWritable, longWritable);
+    }
+    kvWriter.close();
+    verify(outputContext, never()).fatalError(any(Throwable.class), any(String.class));
+
+    TezTaskOutput taskOutput = new TezTaskOutputFiles(conf, uniqueId);
+    Path outputFilePath = taskOutput.getOutputFile();
+    TezSpillRecord spillRecord = new TezSpillRecord(taskOutput.getOutputIndexFile(), conf);
+    DataInputBuffer keyBuffer = new DataInputBuffer();
+    DataInputBuffer valBuffer = new DataInputBuffer();
+    IntWritable keyDeser = new IntWritable();
+    LongWritable valDeser = new LongWritable();
+    Map<Integer, Long> sums = new HashMap<Integer, Long>();
+    int numRecordsRead = 0;
+    for (int i = 0; i < numOutputs; i++) {
+      TezIndexRecord indexRecord = spillRecord.getIndex(i);
+      FSDataInputStream inStream = FileSystem.getLocal(conf).open(outputFilePath);
+      inStream.seek(indexRecord.getStartOffset());
+      IFile.Reader reader = new IFile.Reader(inStream, indexRecord.getPartLength(), codec, null,
+          null, false, 0, -1);
+      while (reader.nextRawKey(keyBuffer)) {
+        reader.nextRawValue(valBuffer);
+        keyDeser.readFields(keyBuffer);
+        valDeser.readFields(valBuffer);
+        assertEquals(i, partitioner.getPartition(keyDeser, valDeser, numOutputs));
+        Long sum = sums.get(keyDeser.get());
+        sums.put(keyDeser.get(), (sum == null ? 0 : sum) + valDeser.get());
+        numRecordsRead++;
+      }
+      inStream.close();
+    }
+    assertEquals(numKeys, sums.size());
+    for (int i = 0; i < numKeys; i++) {
+      assertEquals(Long.valueOf(numRecords / numKeys), sums.get(i));
+    }
+    assertEquals(numRecordsRead, counters.findCounter(TaskCounter.OUTPUT_RECORDS).getValue());
+    return numRecordsRead;
+  }
+
   public void textTest(int numRegularRecords, int numPartitions, long availableMemory,
       int numLargeKeys, int numLargevalues, int numLargeKvPairs) throws IOException,
       InterruptedException {
@@ -659,6 +752,47 @@ public class TestUnorderedPartitionedKVWriter {
     }
   }
 
+  /**
+   * Sums the LongWritable values of each IntWritable key.
+   */
+  public static class SumCombiner implements Combiner {
+
+    public SumCombiner(TezTaskContext taskContext) {
+    }
+
+    @Override
+    public void combine(TezRawKeyValueIterator rawIter, IFile.Writer writer)
+        throws InterruptedException, IOException {
+      DataInputBuffer in = new DataInputBuffer();
+      IntWritable key = new IntWritable();
+      LongWritable value = new LongWritable();
+      boolean hasKey = false;
+      long sum = 0;
+      while (rawIter.next()) {
+        // Read from a copy, the iterator may return the same key buffer
+        DataInputBuffer keyBuffer = rawIter.getKey();
+        in.reset(keyBuffer.getData(), keyBuffer.getPosition(),
+            keyBuffer.getLength() - keyBuffer.getPosition());
+        IntWritable nextKey = new IntWritable();
+        nextKey.readFields(in);
+        DataInputBuffer valBuffer = rawIter.getValue();
+        in.reset(valBuffer.getData(), valBuffer.getPosition(),
+            valBuffer.getLength() - valBuffer.getPosition());
+        value.readFields(in);
+        if (hasKey && !nextKey.equals(key)) {
+          writer.append(key, new LongWritable(sum));
+          sum = 0;
+        }
+        key = nextKey;
+        hasKey = true;
+        sum += value.get();
+      }
+      if (hasKey) {
+        writer.append(key, new LongWritable(sum));
+      }
+    }
+  }
+
   private static class UnorderedPartitionedKVWriterForTest extends UnorderedPartitionedKVWriter {
 
     public UnorderedPartitionedKVWriterForTest(TezOutputContext outputContext, Configuration conf,
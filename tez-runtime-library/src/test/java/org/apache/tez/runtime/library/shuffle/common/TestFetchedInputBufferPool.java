@@ -0,0 +1,183 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.shuffle.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.common.counters.TezCounters;
+import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+import org.apache.tez.runtime.library.shuffle.common.FetchedInputBufferPool.Buffer;
+import org.junit.Test;
+
+public class TestFetchedInputBufferPool {
+
+  @Test
+  public void testSizeClasses() {
+    assertEquals(4096, FetchedInputBufferPool.getSizeClass(1));
+    FetchedInputBufferPool pool = createPool(1 << 20, new TezCounters());
+    assertEquals(10240, pool.getAllocationSize(8193));
+    assertEquals((1 << 20) + 1, pool.getAllocationSize((1 << 20) + 1));
+    assertEquals(10240, pool.allocate(8193).getData().length);
+    assertEquals(4096, FetchedInputBufferPool.getSizeClass(4096));
+    assertEquals(5120, FetchedInputBufferPool.getSizeClass(4097));
+    assertEquals(8192, FetchedInputBufferPool.getSizeClass(8000));
+    assertEquals(10240, FetchedInputBufferPool.getSizeClass(8193));
+    for (int size = 1; size < 1 << 20; size += 997) {
+      int sizeClass = FetchedInputBufferPool.getSizeClass(size);
+      assertTrue(sizeClass >= size);
+      assertTrue(size <= 4096 || sizeClass <= size * 1.25);
+    }
+  }
+
+  @Test
+  public void testReuse() {
+    TezCounters counters = new TezCounters();
+    FetchedInputBufferPool pool = createPool(1 << 20, counters);
+
+    Buffer buffer = pool.allocate(10000);
+    byte[] data = buffer.getData();
+    buffer.release();
+    assertEquals(data.length, pool.getFreeBytes());
+
+    // Same size class
+    Buffer reused = pool.allocate(9500);
+    assertSame(data, reused.getData());
+    assertEquals(0, pool.getFreeBytes());
+
+    // Different size class
+    Buffer other = pool.allocate(100000);
+    assertNotSame(data, other.getData());
+
+    assertEquals(1, counters.findCounter(TaskCounter.SHUFFLE_BUFFER_POOL_HITS).getValue());
+    assertEquals(2, counters.findCounter(TaskCounter.SHUFFLE_BUFFER_POOL_MISSES).getValue());
+  }
+
+  @Test
+  public void testRelease() {
+    FetchedInputBufferPool pool = createPool(1 << 20, new TezCounters());
+    Buffer buffer = pool.allocate(10000);
+    assertEquals(0, pool.getFreeBytes());
+    buffer.release();
+    assertEquals(buffer.getData().length, pool.getFreeBytes());
+    try {
+      buffer.release();
+      fail("Expected a failure for releasing a released buffer");
+    } catch (IllegalStateException e) {
+    }
+  }
+
+  @Test
+  public void testClose() {
+    FetchedInputBufferPool pool = createPool(1 << 20, new TezCounters());
+    Buffer inUse = pool.allocate(10000);
+    pool.allocate(20000).release();
+    assertTrue(pool.getFreeBytes() > 0);
+    pool.close();
+    assertEquals(0, pool.getFreeBytes());
+    // Buffers released after the pool is closed are dropped
+    inUse.release();
+    assertEquals(0, pool.getFreeBytes());
+    assertEquals(0, pool.getUsedBytes());
+  }
+
+  @Test
+  public void testPoolLimit() {
+    FetchedInputBufferPool pool = createPool(20480, new TezCounters());
+    Buffer b1 = pool.allocate(10240);
+    Buffer b2 = pool.allocate(10240);
+    // Pool is fully in use, allocated outside of it, still rounded up
+    Buffer b3 = pool.allocate(10000);
+    assertEquals(10240, b3.getData().length);
+    assertEquals(20480, pool.getUsedBytes());
+    b3.release();
+    assertEquals(0, pool.getFreeBytes());
+
+    b1.release();
+    b2.release();
+    assertEquals(20480, pool.getFreeBytes());
+    // Free buffers of another size class are dropped to make room
+    Buffer b4 = pool.allocate(16384);
+    assertEquals(16384, pool.getUsedBytes());
+    assertEquals(0, pool.getFreeBytes());
+    b4.release();
+
+    // Not pooled
+    Buffer large = pool.allocate(2 << 20);
+    assertEquals(2 << 20, large.getData().length);
+    large.release();
+    assertEquals(16384, pool.getFreeBytes());
+  }
+
+  @Test
+  public void testTrimFreeBuffers() {
+    FetchedInputBufferPool pool = createPool(1 << 20, new TezCounters());
+    Buffer small = pool.allocate(4096);
+    Buffer medium = pool.allocate(10240);
+    Buffer large = pool.allocate(40960);
+    small.release();
+    medium.release();
+    large.release();
+    assertEquals(55296, pool.getFreeBytes());
+
+    // The buffer a request of 10000 bytes reuses is kept, it is not counted
+    pool.trimFreeBuffers(4096, 10000);
+    assertEquals(14336, pool.getFreeBytes());
+    assertSame(medium.getData(), pool.allocate(10000).getData());
+
+    // Dropped last, if there is no other way to get below the limit
+    pool.allocate(40960).release();
+    pool.trimFreeBuffers(0, 4000);
+    assertEquals(4096, pool.getFreeBytes());
+    pool.trimFreeBuffers(0, 2 << 20);
+    assertEquals(0, pool.getFreeBytes());
+  }
+
+  @Test
+  public void testMemoryFetchedInputReleasesBuffer() throws Exception {
+    FetchedInputBufferPool pool = createPool(1 << 20, new TezCounters());
+    FetchedInputCallback callback = mock(FetchedInputCallback.class);
+
+    Buffer buffer = pool.allocate(10000);
+    MemoryFetchedInput committed = new MemoryFetchedInput(10000, 100,
+        new InputAttemptIdentifier(0, 0), callback, buffer);
+    assertEquals(10000, committed.getInputStream().available());
+    committed.commit();
+    assertEquals(0, pool.getFreeBytes());
+    committed.free();
+    assertEquals(buffer.getData().length, pool.getFreeBytes());
+
+    MemoryFetchedInput aborted = new MemoryFetchedInput(10000, 100,
+        new InputAttemptIdentifier(1, 0), callback, pool.allocate(10000));
+    assertEquals(0, pool.getFreeBytes());
+    aborted.abort();
+    assertEquals(buffer.getData().length, pool.getFreeBytes());
+  }
+
+  private FetchedInputBufferPool createPool(long maxPoolSize, TezCounters counters) {
+    return new FetchedInputBufferPool(maxPoolSize, 1 << 20,
+        counters.findCounter(TaskCounter.SHUFFLE_BUFFER_POOL_HITS),
+        counters.findCounter(TaskCounter.SHUFFLE_BUFFER_POOL_MISSES));
+  }
+}
@@ -0,0 +1,173 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.shuffle.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.crypto.SecretKey;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.yarn.api.ApplicationConstants;
+import org.apache.hadoop.yarn.api.records.ApplicationId;
+import org.apache.tez.common.TezRuntimeFrameworkConfigs;
+import org.apache.tez.common.security.JobTokenSecretManager;
+import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+import org.apache.tez.runtime.library.common.shuffle.impl.InMemoryReader;
+import org.apache.tez.runtime.library.shuffle.common.Fetcher.FetcherBuilder;
+import org.apache.tez.runtime.library.shuffle.common.HttpConnection.HttpConnectionParams;
+import org.apache.tez.runtime.library.shuffle.common.HttpConnection.HttpConnectionParamsBuilder;
+import org.apache.tez.runtime.library.shuffle.common.TestNioFetchEngine.RecordingCallback;
+import org.apache.tez.runtime.library.shuffle.common.TestNioFetchEngine.StandInShuffleServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Iterables;
+
+/**
+ * Runs the Fetcher against outputs produced on the local node, which are read
+ * from disk, with the rest served by a stand-in ShuffleHandler.
+ */
+public class TestFetcher {
+
+  private static final int PARTITION = 2;
+  private static final int NUM_RECORDS = 50;
+
+  private final SecretKey secret = JobTokenSecretManager.createSecretKey("secret".getBytes());
+  private final ApplicationId appId = ApplicationId.newInstance(10000, 1);
+
+  private Configuration conf;
+  private FileSystem localFs;
+  private Path workDir;
+  private StandInShuffleServer server;
+
+  @Before
+  public void setup() throws IOException {
+    conf = new Configuration();
+    localFs = FileSystem.getLocal(conf);
+    workDir = new Path(System.getProperty("test.build.data", "/tmp"),
+        TestFetcher.class.getSimpleName()).makeQualified(localFs);
+    localFs.delete(workDir, true);
+    localFs.mkdirs(workDir);
+    conf.setStrings(TezRuntimeFrameworkConfigs.LOCAL_DIRS, workDir.toUri().getPath());
+    server = new StandInShuffleServer(secret);
+    server.start();
+    ShuffleUtils.setLocalHost("localhost");
+  }
+
+  @After
+  public void cleanup() throws IOException {
+    ShuffleUtils.setLocalHost(System.getenv(ApplicationConstants.Environment.NM_HOST.toString()));
+    server.shutdown();
+    localFs.delete(workDir, true);
+  }
+
+  @Test(timeout = 60000)
+  public void testLocalFetchWithHttpFallback() throws Exception {
+    List<InputAttemptIdentifier> inputs = createInputs(3);
+    // The output of the second input is not on this node's disks
+    writeLocalOutput(inputs.get(0));
+    writeLocalOutput(inputs.get(2));
+    RecordingCallback callback = new RecordingCallback();
+
+    FetchResult result = createFetcher(callback, inputs, server.getPort(), true).call();
+
+    assertFalse(result.getPendingInputs().iterator().hasNext());
+    assertEquals(0, callback.failures.size());
+    assertEquals(3, callback.fetchedInputs.size());
+    verifyLocalInput(inputs.get(0), callback.fetchedInputs.get(inputs.get(0)));
+    verifyLocalInput(inputs.get(2), callback.fetchedInputs.get(inputs.get(2)));
+    assertArrayEquals(StandInShuffleServer.getData(inputs.get(1).getPathComponent(), PARTITION),
+        callback.fetchedInputs.get(inputs.get(1)));
+  }
+
+  @Test(timeout = 60000)
+  public void testLocalFetchWithFailedHttpFallback() throws Exception {
+    int port = server.getPort();
+    server.shutdown();
+    server.join();
+    List<InputAttemptIdentifier> inputs = createInputs(2);
+    writeLocalOutput(inputs.get(0));
+    RecordingCallback callback = new RecordingCallback();
+
+    FetchResult result = createFetcher(callback, inputs, port, true).call();
+
+    // Only the input which is not on disk is failed and retried
+    assertEquals(1, callback.fetchedInputs.size());
+    verifyLocalInput(inputs.get(0), callback.fetchedInputs.get(inputs.get(0)));
+    assertEquals(1, callback.failures.size());
+    assertTrue(callback.failures.containsKey(inputs.get(1).getPathComponent()));
+    assertEquals(1, Iterables.size(result.getPendingInputs()));
+    assertEquals(inputs.get(1), result.getPendingInputs().iterator().next());
+  }
+
+  @Test(timeout = 60000)
+  public void testLocalFetchDisabled() throws Exception {
+    List<InputAttemptIdentifier> inputs = createInputs(2);
+    writeLocalOutput(inputs.get(0));
+    RecordingCallback callback = new RecordingCallback();
+
+    FetchResult result = createFetcher(callback, inputs, server.getPort(), false).call();
+
+    assertFalse(result.getPendingInputs().iterator().hasNext());
+    assertEquals(0, callback.failures.size());
+    for (InputAttemptIdentifier input : inputs) {
+      assertArrayEquals(StandInShuffleServer.getData(input.getPathComponent(), PARTITION),
+          callback.fetchedInputs.get(input));
+    }
+  }
+
+  private List<InputAttemptIdentifier> createInputs(int numInputs) {
+    List<InputAttemptIdentifier> inputs = new ArrayList<InputAttemptIdentifier>();
+    for (int i = 0; i < numInputs; i++) {
+      inputs.add(new InputAttemptIdentifier(i, 0, InputAttemptIdentifier.PATH_PREFIX + "_" + i));
+    }
+    return inputs;
+  }
+
+  private void writeLocalOutput(InputAttemptIdentifier input) throws IOException {
+    int[] numRecords = new int[PARTITION + 1];
+    numRecords[PARTITION] = NUM_RECORDS;
+    TestLocalDiskInput.writeOutput(conf, input.getPathComponent(), numRecords);
+  }
+
+  private void verifyLocalInput(InputAttemptIdentifier input, byte[] data) throws IOException {
+    TestLocalDiskInput.verifyPartition(new InMemoryReader(null, input, data, 0, data.length),
+        PARTITION, NUM_RECORDS);
+  }
+
+  private Fetcher createFetcher(RecordingCallback callback, List<InputAttemptIdentifier> inputs,
+      int port, boolean localDiskFetchEnabled) {
+    HttpConnectionParams params = new HttpConnectionParamsBuilder()
+        .setTimeout(10000, 10000).setBufferSize(8 * 1024).build();
+    FetcherBuilder builder = new FetcherBuilder(callback, params, callback, appId, secret, "test");
+    builder.setLocalDiskFetchParams(localDiskFetchEnabled, conf, 4096);
+    builder.assignWork("localhost", port, PARTITION, inputs);
+    return builder.build();
+  }
+}
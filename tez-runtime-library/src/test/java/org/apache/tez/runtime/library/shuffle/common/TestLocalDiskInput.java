@@ -0,0 +1,196 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.shuffle.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.tez.common.TezRuntimeFrameworkConfigs;
+import org.apache.tez.runtime.library.common.sort.impl.IFile;
+import org.apache.tez.runtime.library.common.sort.impl.TezIndexRecord;
+import org.apache.tez.runtime.library.common.sort.impl.TezSpillRecord;
+import org.apache.tez.runtime.library.common.task.local.output.TezTaskOutputFiles;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestLocalDiskInput {
+
+  private static final String PATH_COMPONENT = "attempt_local_0";
+
+  private Configuration conf;
+  private FileSystem localFs;
+  private Path workDir;
+
+  @Before
+  public void setup() throws IOException {
+    conf = new Configuration();
+    localFs = FileSystem.getLocal(conf);
+    workDir = new Path(System.getProperty("test.build.data", "/tmp"),
+        TestLocalDiskInput.class.getSimpleName()).makeQualified(localFs);
+    localFs.delete(workDir, true);
+    localFs.mkdirs(workDir);
+    conf.setStrings(TezRuntimeFrameworkConfigs.LOCAL_DIRS, workDir.toUri().getPath());
+  }
+
+  @After
+  public void cleanup() throws IOException {
+    localFs.delete(workDir, true);
+  }
+
+  @Test
+  public void testReadPartitions() throws IOException {
+    int[] numRecords = new int[] { 10, 0, 25 };
+    writeOutput(conf, PATH_COMPONENT, numRecords);
+
+    // Read in a different order than written, each starts at its own offset
+    for (int partition : new int[] { 2, 0, 1 }) {
+      LocalDiskInput input = LocalDiskInput.open(conf, PATH_COMPONENT, partition, 4096);
+      try {
+        assertTrue(input.getDecompressedLength() > 0);
+        // Not compressed, the partition only carries the checksum on top
+        assertTrue(input.getCompressedLength() > input.getDecompressedLength());
+        verifyPartition(new IFile.Reader(input.getInputStream(), input.getCompressedLength(),
+            null, null, null, false, 0, -1), partition, numRecords[partition]);
+      } finally {
+        input.close();
+      }
+    }
+  }
+
+  @Test
+  public void testMissingOutput() throws IOException {
+    try {
+      LocalDiskInput.open(conf, PATH_COMPONENT, 0, 4096);
+      fail("Output does not exist");
+    } catch (IOException e) {
+    }
+  }
+
+  @Test
+  public void testPartitionOutOfRange() throws IOException {
+    writeOutput(conf, PATH_COMPONENT, new int[] { 1, 1 });
+    for (int partition : new int[] { -1, 2 }) {
+      try {
+        LocalDiskInput.open(conf, PATH_COMPONENT, partition, 4096);
+        fail("Partition " + partition + " does not exist");
+      } catch (IOException e) {
+        assertTrue(e.getMessage().contains("Partition " + partition + " not found"));
+      }
+    }
+  }
+
+  @Test
+  public void testTruncatedOutput() throws IOException {
+    writeOutput(conf, PATH_COMPONENT, new int[] { 10, 10 });
+    Path dataFile = new TezTaskOutputFiles(conf, PATH_COMPONENT).getOutputFile();
+    RandomAccessFile file = new RandomAccessFile(dataFile.toUri().getPath(), "rw");
+    try {
+      file.setLength(file.length() - 1);
+    } finally {
+      file.close();
+    }
+
+    LocalDiskInput.open(conf, PATH_COMPONENT, 0, 4096).close();
+    try {
+      LocalDiskInput.open(conf, PATH_COMPONENT, 1, 4096);
+      fail("Partition 1 is truncated");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("points past the end"));
+    }
+  }
+
+  @Test
+  public void testInvalidPathComponent() throws IOException {
+    writeOutput(conf, PATH_COMPONENT, new int[] { 1 });
+    String[] invalid = new String[] { null, "output_local_0", PATH_COMPONENT + "/..",
+        "attempt..", "attempt_local_0/../" + PATH_COMPONENT };
+    for (String pathComponent : invalid) {
+      try {
+        LocalDiskInput.open(conf, pathComponent, 0, 4096);
+        fail("Opened " + pathComponent);
+      } catch (IOException e) {
+        assertTrue(e.getMessage().startsWith("Invalid path component"));
+      }
+    }
+  }
+
+  /**
+   * Writes an output with the given number of records per partition, laid out
+   * in the local dirs of conf the way the ShuffleHandler expects it. Partition
+   * p holds the keys 0 to numRecords[p] - 1, each with the value p.
+   */
+  public static void writeOutput(Configuration conf, String pathComponent, int[] numRecords)
+      throws IOException {
+    FileSystem localFs = FileSystem.getLocal(conf).getRaw();
+    TezTaskOutputFiles outputFiles = new TezTaskOutputFiles(conf, pathComponent);
+    Path dataFile = outputFiles.getOutputFileForWrite();
+    TezSpillRecord spillRecord = new TezSpillRecord(numRecords.length);
+
+    FSDataOutputStream out = localFs.create(dataFile, true);
+    try {
+      for (int partition = 0; partition < numRecords.length; partition++) {
+        long startOffset = out.getPos();
+        IFile.Writer writer = new IFile.Writer(conf, out, IntWritable.class,
+            IntWritable.class, null, null, null);
+        for (int i = 0; i < numRecords[partition]; i++) {
+          writer.append(new IntWritable(i), new IntWritable(partition));
+        }
+        writer.close();
+        spillRecord.putIndex(new TezIndexRecord(startOffset, writer.getRawLength(),
+            writer.getCompressedLength()), partition);
+      }
+    } finally {
+      out.close();
+    }
+    spillRecord.writeToFile(outputFiles.getOutputIndexFileForWrite(0), conf);
+  }
+
+  /**
+   * Verifies the records of a partition written by
+   * {@link #writeOutput(Configuration, String, int[])}.
+   */
+  public static void verifyPartition(IFile.Reader reader, int partition, int numRecords)
+      throws IOException {
+    DataInputBuffer keyBuffer = new DataInputBuffer();
+    DataInputBuffer valueBuffer = new DataInputBuffer();
+    IntWritable key = new IntWritable();
+    IntWritable value = new IntWritable();
+    for (int i = 0; i < numRecords; i++) {
+      assertTrue(reader.nextRawKey(keyBuffer));
+      reader.nextRawValue(valueBuffer);
+      key.readFields(keyBuffer);
+      value.readFields(valueBuffer);
+      assertEquals(i, key.get());
+      assertEquals(partition, value.get());
+    }
+    assertFalse(reader.nextRawKey(keyBuffer));
+  }
+}
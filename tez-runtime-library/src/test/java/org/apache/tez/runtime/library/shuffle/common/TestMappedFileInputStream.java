@@ -0,0 +1,143 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.shuffle.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.tez.runtime.library.common.sort.impl.IFile;
+import org.apache.tez.runtime.library.common.sort.impl.IFileOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestMappedFileInputStream {
+
+  private File file;
+
+  @Before
+  public void setup() throws IOException {
+    file = File.createTempFile(getClass().getSimpleName(), ".out");
+  }
+
+  @After
+  public void cleanup() {
+    file.delete();
+  }
+
+  @Test
+  public void testReadAcrossChunks() throws IOException {
+    byte[] data = new byte[10000];
+    new Random(0).nextBytes(data);
+    writeFile(data);
+
+    MappedFileInputStream in = new MappedFileInputStream(file, 1024);
+    byte[] read = new byte[data.length];
+    assertEquals(data[0] & 0xff, in.read());
+    read[0] = data[0];
+    // Spans chunk boundaries
+    IOUtils.readFully(in, read, 1, 3000);
+    assertEquals(5000, in.skip(5000));
+    IOUtils.readFully(in, read, 8001, data.length - 8001);
+    assertEquals(-1, in.read());
+    assertEquals(data.length, in.getPosition());
+    in.close();
+
+    System.arraycopy(data, 3001, read, 3001, 5000);
+    assertArrayEquals(data, read);
+  }
+
+  @Test
+  public void testIFileReader() throws IOException {
+    byte[] ifile = createIFile(100);
+    writeFile(ifile);
+
+    IFile.Reader reader = new IFile.Reader(new MappedFileInputStream(file, 4096), ifile.length,
+        null, null, null, false, 0, -1);
+    DataInputBuffer key = new DataInputBuffer();
+    DataInputBuffer value = new DataInputBuffer();
+    int count = 0;
+    while (reader.nextRawKey(key)) {
+      reader.nextRawValue(value);
+      assertEquals(count, key.readInt());
+      assertEquals(count * 2, value.readInt());
+      count++;
+    }
+    reader.close();
+    assertEquals(100, count);
+  }
+
+  @Test
+  public void testChecksumVerified() throws IOException {
+    byte[] ifile = createIFile(100);
+    ifile[ifile.length / 2] ^= 0xff;
+    writeFile(ifile);
+
+    IFile.Reader reader = new IFile.Reader(new MappedFileInputStream(file), ifile.length,
+        null, null, null, false, 0, -1);
+    DataInputBuffer key = new DataInputBuffer();
+    DataInputBuffer value = new DataInputBuffer();
+    try {
+      while (reader.nextRawKey(key)) {
+        reader.nextRawValue(value);
+      }
+      reader.close();
+      fail("Expected a checksum failure");
+    } catch (IOException e) {
+      // Either a ChecksumException, or a failure on corrupted record lengths
+    }
+  }
+
+  private byte[] createIFile(int numRecords) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    IFileOutputStream checksumOut = new IFileOutputStream(bytes);
+    DataOutputStream out = new DataOutputStream(checksumOut);
+    for (int i = 0; i < numRecords; i++) {
+      // key and value lengths, followed by the key and value
+      out.writeByte(4);
+      out.writeByte(4);
+      out.writeInt(i);
+      out.writeInt(i * 2);
+    }
+    out.writeByte(IFile.EOF_MARKER);
+    out.writeByte(IFile.EOF_MARKER);
+    out.flush();
+    checksumOut.finish();
+    return bytes.toByteArray();
+  }
+
+  private void writeFile(byte[] data) throws IOException {
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(data);
+    } finally {
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,443 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.shuffle.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.yarn.api.records.ApplicationId;
+import org.apache.tez.common.security.JobTokenSecretManager;
+import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+import org.apache.tez.runtime.library.common.security.SecureShuffleUtils;
+import org.apache.tez.runtime.library.common.shuffle.impl.ShuffleHeader;
+import org.apache.tez.runtime.library.common.sort.impl.IFileOutputStream;
+import org.apache.tez.runtime.library.shuffle.common.Fetcher.FetcherBuilder;
+import org.apache.tez.runtime.library.shuffle.common.HttpConnection.HttpConnectionParams;
+import org.apache.tez.runtime.library.shuffle.common.HttpConnection.HttpConnectionParamsBuilder;
+import org.apache.tez.runtime.library.shuffle.common.InputHost.PartitionInputs;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Runs the NIO fetch engine against a stand-in ShuffleHandler serving
+ * synthetic IFile partitions.
+ */
+public class TestNioFetchEngine {
+
+  private static final Log LOG = LogFactory.getLog(TestNioFetchEngine.class);
+
+  private static final int PARTITION = 3;
+
+  private final SecretKey secret = JobTokenSecretManager.createSecretKey("secret".getBytes());
+  private final ApplicationId appId = ApplicationId.newInstance(10000, 1);
+
+  private StandInShuffleServer server;
+  private NioFetchEngine engine;
+
+  @Before
+  public void setup() throws IOException {
+    server = new StandInShuffleServer(secret);
+    server.start();
+    engine = new NioFetchEngine(2, 2, "test");
+  }
+
+  @After
+  public void cleanup() throws IOException {
+    engine.shutdown();
+    server.shutdown();
+  }
+
+  @Test(timeout = 60000)
+  public void testConcurrentFetches() throws Exception {
+    int numFetches = 100;
+    int inputsPerFetch = 4;
+    RecordingCallback callback = new RecordingCallback();
+
+    long start = System.nanoTime();
+    List<Fetcher> fetchers = new ArrayList<Fetcher>();
+    List<FetchResult> results = new ArrayList<FetchResult>();
+    int inputIndex = 0;
+    for (int i = 0; i < numFetches; i++) {
+      List<InputAttemptIdentifier> inputs = new ArrayList<InputAttemptIdentifier>();
+      for (int j = 0; j < inputsPerFetch; j++) {
+        inputs.add(new InputAttemptIdentifier(inputIndex, 0,
+            InputAttemptIdentifier.PATH_PREFIX + "_" + inputIndex));
+        inputIndex++;
+      }
+      fetchers.add(createFetcher(callback, inputs));
+    }
+    List<ListenableFuture<FetchResult>> futures = new ArrayList<ListenableFuture<FetchResult>>();
+    for (Fetcher fetcher : fetchers) {
+      futures.add(fetcher.callAsync(engine));
+    }
+    for (ListenableFuture<FetchResult> future : futures) {
+      results.add(future.get(30, TimeUnit.SECONDS));
+    }
+    long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+    for (FetchResult result : results) {
+      assertFalse(result.getPendingInputs().iterator().hasNext());
+    }
+    assertEquals(0, callback.failures.size());
+    assertEquals(numFetches * inputsPerFetch, callback.fetched.size());
+    long bytes = 0;
+    for (String pathComponent : callback.fetched.keySet()) {
+      byte[] expected = StandInShuffleServer.getData(pathComponent, PARTITION);
+      assertArrayEquals(expected, callback.fetched.get(pathComponent));
+      bytes += expected.length;
+    }
+    LOG.info("Fetched " + bytes + " bytes in " + (numFetches * inputsPerFetch) + " inputs over "
+        + numFetches + " concurrent connections in " + elapsedMs + " ms");
+  }
+
+  @Test(timeout = 60000)
+  public void testInvalidReplyHash() throws Exception {
+    server.setReplySecret(JobTokenSecretManager.createSecretKey("other".getBytes()));
+    RecordingCallback callback = new RecordingCallback();
+    List<InputAttemptIdentifier> inputs = new ArrayList<InputAttemptIdentifier>();
+    for (int i = 0; i < 3; i++) {
+      inputs.add(new InputAttemptIdentifier(i, 0, InputAttemptIdentifier.PATH_PREFIX + "_" + i));
+    }
+    FetchResult result = createFetcher(callback, inputs).callAsync(engine)
+        .get(30, TimeUnit.SECONDS);
+
+    // Only the first input is penalized, the rest are retried
+    assertEquals(1, callback.failures.size());
+    assertTrue(callback.failures.containsKey(inputs.get(0).getPathComponent()));
+    assertFalse(callback.failures.get(inputs.get(0).getPathComponent()));
+    assertEquals(3, Iterables.size(result.getPendingInputs()));
+    assertEquals(0, callback.fetched.size());
+  }
+
+  @Test(timeout = 60000)
+  public void testCorruptInput() throws Exception {
+    RecordingCallback callback = new RecordingCallback();
+    List<InputAttemptIdentifier> inputs = new ArrayList<InputAttemptIdentifier>();
+    for (int i = 0; i < 3; i++) {
+      inputs.add(new InputAttemptIdentifier(i, 0, InputAttemptIdentifier.PATH_PREFIX + "_" + i));
+    }
+    server.setCorruptPath(inputs.get(1).getPathComponent());
+    FetchResult result = createFetcher(callback, inputs).callAsync(engine)
+        .get(30, TimeUnit.SECONDS);
+
+    // The checksum failure found by the decompressor fails only that input
+    assertEquals(1, callback.fetched.size());
+    assertArrayEquals(StandInShuffleServer.getData(inputs.get(0).getPathComponent(), PARTITION),
+        callback.fetched.get(inputs.get(0).getPathComponent()));
+    assertEquals(1, callback.failures.size());
+    assertFalse(callback.failures.get(inputs.get(1).getPathComponent()));
+    assertEquals(2, Iterables.size(result.getPendingInputs()));
+  }
+
+  @Test(timeout = 60000)
+  public void testConnectFailure() throws Exception {
+    int port = server.getPort();
+    server.shutdown();
+    // A connection racing with the close could still be accepted
+    server.join();
+    RecordingCallback callback = new RecordingCallback();
+    List<InputAttemptIdentifier> inputs = new ArrayList<InputAttemptIdentifier>();
+    for (int i = 0; i < 2; i++) {
+      inputs.add(new InputAttemptIdentifier(i, 0, InputAttemptIdentifier.PATH_PREFIX + "_" + i));
+    }
+    Fetcher fetcher = createFetcher(callback, inputs, port);
+    fetcher.callAsync(engine).get(30, TimeUnit.SECONDS);
+    assertEquals(2, callback.failures.size());
+    for (Boolean connectFailed : callback.failures.values()) {
+      assertTrue(connectFailed);
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void testBatchedPartitionFetch() throws Exception {
+    int numPartitions = 3;
+    int numSources = 5;
+    RecordingCallback callback = new RecordingCallback();
+    List<PartitionInputs> partitionInputs = new ArrayList<PartitionInputs>();
+    int inputIndex = 0;
+    for (int p = PARTITION; p < PARTITION + numPartitions; p++) {
+      List<InputAttemptIdentifier> inputs = new ArrayList<InputAttemptIdentifier>();
+      for (int i = 0; i < numSources; i++) {
+        // Each source contributes an input per partition, with the same path
+        inputs.add(new InputAttemptIdentifier(inputIndex++, 0,
+            InputAttemptIdentifier.PATH_PREFIX + "_" + i));
+      }
+      partitionInputs.add(new PartitionInputs(p, inputs));
+    }
+    HttpConnectionParams params = new HttpConnectionParamsBuilder()
+        .setTimeout(10000, 10000).setBufferSize(8 * 1024).build();
+    FetcherBuilder builder = new FetcherBuilder(callback, params, callback, appId, secret, "test");
+    builder.assignWork("localhost", server.getPort(), partitionInputs);
+
+    FetchResult result = builder.build().callAsync(engine).get(30, TimeUnit.SECONDS);
+
+    assertFalse(result.getPendingInputs().iterator().hasNext());
+    assertEquals(0, callback.failures.size());
+    assertEquals(numPartitions * numSources, callback.fetchedInputs.size());
+    for (PartitionInputs pending : partitionInputs) {
+      for (InputAttemptIdentifier input : pending.getInputs()) {
+        assertArrayEquals(
+            StandInShuffleServer.getData(input.getPathComponent(), pending.getPartition()),
+            callback.fetchedInputs.get(input));
+      }
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void testBatchedPartitionFetchWithUnrequestedInputs() throws Exception {
+    for (boolean async : new boolean[] { true, false }) {
+      int numPartitions = 3;
+      int numSources = 4;
+      RecordingCallback callback = new RecordingCallback();
+      List<PartitionInputs> partitionInputs = new ArrayList<PartitionInputs>();
+      int inputIndex = 0;
+      for (int p = PARTITION; p < PARTITION + numPartitions; p++) {
+        List<InputAttemptIdentifier> inputs = new ArrayList<InputAttemptIdentifier>();
+        for (int i = 0; i < numSources; i++) {
+          // Source i has no pending input in partition PARTITION + i, which
+          // the server still returns
+          if (p != PARTITION + i) {
+            inputs.add(new InputAttemptIdentifier(inputIndex++, 0,
+                InputAttemptIdentifier.PATH_PREFIX + "_" + i));
+          }
+        }
+        partitionInputs.add(new PartitionInputs(p, inputs));
+      }
+      HttpConnectionParams params = new HttpConnectionParamsBuilder()
+          .setTimeout(10000, 10000).setBufferSize(8 * 1024).build();
+      FetcherBuilder builder = new FetcherBuilder(callback, params, callback, appId, secret,
+          "test");
+      builder.assignWork("localhost", server.getPort(), partitionInputs);
+      Fetcher fetcher = builder.build();
+
+      FetchResult result = async ? fetcher.callAsync(engine).get(30, TimeUnit.SECONDS)
+          : fetcher.call();
+
+      // The unrequested inputs are skipped, without blaming other inputs
+      assertFalse(result.getPendingInputs().iterator().hasNext());
+      assertEquals(0, callback.failures.size());
+      assertEquals(inputIndex, callback.fetchedInputs.size());
+      for (PartitionInputs pending : partitionInputs) {
+        for (InputAttemptIdentifier input : pending.getInputs()) {
+          assertArrayEquals(
+              StandInShuffleServer.getData(input.getPathComponent(), pending.getPartition()),
+              callback.fetchedInputs.get(input));
+        }
+      }
+    }
+  }
+
+  private Fetcher createFetcher(RecordingCallback callback, List<InputAttemptIdentifier> inputs) {
+    return createFetcher(callback, inputs, server.getPort());
+  }
+
+  private Fetcher createFetcher(RecordingCallback callback, List<InputAttemptIdentifier> inputs,
+      int port) {
+    HttpConnectionParams params = new HttpConnectionParamsBuilder()
+        .setTimeout(10000, 10000).setBufferSize(8 * 1024).build();
+    FetcherBuilder builder = new FetcherBuilder(callback, params, callback, appId, secret, "test");
+    builder.assignWork("localhost", port, PARTITION, inputs);
+    return builder.build();
+  }
+
+  static class RecordingCallback implements FetcherCallback, FetchedInputAllocator,
+      FetchedInputCallback {
+
+    final ConcurrentMap<String, byte[]> fetched = new ConcurrentHashMap<String, byte[]>();
+    final ConcurrentMap<InputAttemptIdentifier, byte[]> fetchedInputs =
+        new ConcurrentHashMap<InputAttemptIdentifier, byte[]>();
+    final ConcurrentMap<String, Boolean> failures = new ConcurrentHashMap<String, Boolean>();
+
+    @Override
+    public FetchedInput allocate(long actualSize, long compresedSize,
+        InputAttemptIdentifier inputAttemptIdentifier) {
+      return new MemoryFetchedInput(actualSize, compresedSize, inputAttemptIdentifier, this);
+    }
+
+    @Override
+    public void fetchSucceeded(String host, InputAttemptIdentifier srcAttemptIdentifier,
+        FetchedInput fetchedInput, long fetchedBytes, long decompressedLength,
+        long copyDuration) {
+      fetched.put(srcAttemptIdentifier.getPathComponent(),
+          ((MemoryFetchedInput) fetchedInput).getBytes());
+      fetchedInputs.put(srcAttemptIdentifier, ((MemoryFetchedInput) fetchedInput).getBytes());
+    }
+
+    @Override
+    public void fetchFailed(String host, InputAttemptIdentifier srcAttemptIdentifier,
+        boolean connectFailed) {
+      failures.put(srcAttemptIdentifier.getPathComponent(), connectFailed);
+    }
+
+    @Override
+    public void fetchComplete(FetchedInput fetchedInput) {
+    }
+
+    @Override
+    public void fetchFailed(FetchedInput fetchedInput) {
+    }
+
+    @Override
+    public void freeResources(FetchedInput fetchedInput) {
+    }
+  }
+
+  /**
+   * Serves requests in the ShuffleHandler wire format, with a synthetic IFile
+   * partition per requested path component and partition.
+   */
+  static class StandInShuffleServer extends Thread {
+
+    private final ServerSocket serverSocket;
+    private volatile SecretKey replySecret;
+    private volatile String corruptPath;
+
+    StandInShuffleServer(SecretKey secret) throws IOException {
+      this.serverSocket = new ServerSocket(0);
+      this.replySecret = secret;
+      setDaemon(true);
+    }
+
+    int getPort() {
+      return serverSocket.getLocalPort();
+    }
+
+    void setReplySecret(SecretKey replySecret) {
+      this.replySecret = replySecret;
+    }
+
+    void setCorruptPath(String corruptPath) {
+      this.corruptPath = corruptPath;
+    }
+
+    static byte[] getData(String pathComponent, int partition) {
+      Random random = new Random(pathComponent.hashCode() * 31 + partition);
+      byte[] data = new byte[16 * 1024 + random.nextInt(64 * 1024)];
+      random.nextBytes(data);
+      return data;
+    }
+
+    @Override
+    public void run() {
+      while (!serverSocket.isClosed()) {
+        final Socket socket;
+        try {
+          socket = serverSocket.accept();
+        } catch (IOException e) {
+          return;
+        }
+        Thread handler = new Thread() {
+          @Override
+          public void run() {
+            try {
+              serve(socket);
+            } catch (IOException e) {
+              LOG.info("Stand-in server failed to serve request", e);
+            } finally {
+              IOUtils.closeSocket(socket);
+            }
+          }
+        };
+        handler.setDaemon(true);
+        handler.start();
+      }
+    }
+
+    private void serve(Socket socket) throws IOException {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(
+          socket.getInputStream(), Charsets.ISO_8859_1));
+      String requestLine = reader.readLine();
+      String urlHash = null;
+      String line;
+      while ((line = reader.readLine()) != null && !line.isEmpty()) {
+        if (line.startsWith(SecureShuffleUtils.HTTP_HEADER_URL_HASH + ":")) {
+          urlHash = line.substring(line.indexOf(':') + 1).trim();
+        }
+      }
+      String query = requestLine.split(" ")[1];
+      String[] pathComponents = query.substring(query.indexOf("&map=") + 5).split(",");
+      String[] partitionRange = query.substring(query.indexOf("&reduce=") + 8,
+          query.indexOf("&map=")).split("-");
+      int firstPartition = Integer.parseInt(partitionRange[0]);
+      int lastPartition = Integer.parseInt(partitionRange[partitionRange.length - 1]);
+
+      DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+      StringBuilder response = new StringBuilder("HTTP/1.1 200 OK\r\n");
+      response.append(ShuffleHeader.HTTP_HEADER_NAME).append(": ")
+          .append(ShuffleHeader.DEFAULT_HTTP_HEADER_NAME).append("\r\n");
+      response.append(ShuffleHeader.HTTP_HEADER_VERSION).append(": ")
+          .append(ShuffleHeader.DEFAULT_HTTP_HEADER_VERSION).append("\r\n");
+      response.append(SecureShuffleUtils.HTTP_HEADER_REPLY_URL_HASH).append(": ")
+          .append(SecureShuffleUtils.generateHash(urlHash.getBytes(), replySecret))
+          .append("\r\n\r\n");
+      out.write(response.toString().getBytes(Charsets.ISO_8859_1));
+
+      for (String pathComponent : pathComponents) {
+        for (int partition = firstPartition; partition <= lastPartition; partition++) {
+          byte[] data = getData(pathComponent, partition);
+          ByteArrayOutputStream ifileBytes = new ByteArrayOutputStream();
+          IFileOutputStream ifileOut = new IFileOutputStream(ifileBytes);
+          ifileOut.write(data, 0, data.length);
+          ifileOut.finish();
+          new ShuffleHeader(pathComponent, ifileBytes.size(), data.length, partition).write(out);
+          // Write in small pieces to exercise partial reads
+          byte[] bytes = ifileBytes.toByteArray();
+          if (pathComponent.equals(corruptPath)) {
+            bytes[bytes.length / 2] ^= 1;
+          }
+          for (int off = 0; off < bytes.length; off += 1000) {
+            out.write(bytes, off, Math.min(1000, bytes.length - off));
+            out.flush();
+          }
+        }
+      }
+      out.flush();
+    }
+
+    void shutdown() throws IOException {
+      serverSocket.close();
+    }
+  }
+}
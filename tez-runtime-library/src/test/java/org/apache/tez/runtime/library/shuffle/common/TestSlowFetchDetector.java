@@ -0,0 +1,101 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.shuffle.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import org.apache.hadoop.yarn.util.Clock;
+import org.junit.Test;
+
+public class TestSlowFetchDetector {
+
+  private static class TestClock implements Clock {
+    long time = 1000;
+
+    @Override
+    public long getTime() {
+      return time;
+    }
+  }
+
+  private final TestClock clock = new TestClock();
+
+  @Test
+  public void testSlowFetches() {
+    SlowFetchDetector<String> detector = new SlowFetchDetector<String>(0.25f, 0, clock);
+    detector.fetchStarted("fast1", false);
+    detector.fetchStarted("fast2", false);
+    detector.fetchStarted("slow", false);
+    clock.time += 20;
+    detector.bytesFetched("fast1", 1000000);
+    detector.bytesFetched("fast2", 800000);
+    detector.bytesFetched("slow", 10);
+    detector.fetchFinished("fast1");
+    detector.fetchFinished("fast2");
+    detector.fetchStarted("other", false);
+    clock.time += 1;
+    detector.bytesFetched("other", 900000);
+    assertEquals(Collections.singletonList("slow"), detector.getSlowFetches());
+    // Reported only once
+    assertTrue(detector.getSlowFetches().isEmpty());
+
+    // Duplicates are never reported
+    detector.fetchStarted("copy", true);
+    clock.time += 20;
+    assertTrue(detector.getSlowFetches().isEmpty());
+  }
+
+  @Test
+  public void testFetchNotDuplicated() {
+    SlowFetchDetector<String> detector = new SlowFetchDetector<String>(0.25f, 0, clock);
+    detector.fetchStarted("fast1", false);
+    detector.fetchStarted("fast2", false);
+    detector.fetchStarted("slow", false);
+    clock.time += 20;
+    detector.bytesFetched("fast1", 1000000);
+    detector.bytesFetched("fast2", 1000000);
+    detector.bytesFetched("slow", 10);
+    assertEquals(Collections.singletonList("slow"), detector.getSlowFetches());
+    assertTrue(detector.getSlowFetches().isEmpty());
+
+    // Reported again by the next check, while it is still slow
+    detector.fetchNotDuplicated("slow");
+    assertEquals(Collections.singletonList("slow"), detector.getSlowFetches());
+    detector.fetchNotDuplicated("slow");
+    detector.bytesFetched("slow", 2000000);
+    assertTrue(detector.getSlowFetches().isEmpty());
+  }
+
+  @Test
+  public void testMinRunTime() {
+    SlowFetchDetector<String> detector = new SlowFetchDetector<String>(0.25f, 60000, clock);
+    detector.fetchStarted("a", false);
+    detector.fetchStarted("b", false);
+    detector.fetchStarted("c", false);
+    clock.time += 59999;
+    detector.bytesFetched("a", 1000000);
+    detector.bytesFetched("b", 1000000);
+    assertTrue(detector.getSlowFetches().isEmpty());
+    clock.time += 1;
+    assertEquals(Collections.singletonList("c"), detector.getSlowFetches());
+  }
+}
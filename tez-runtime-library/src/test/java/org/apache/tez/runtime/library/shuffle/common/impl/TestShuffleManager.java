@@ -0,0 +1,150 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.shuffle.common.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.security.token.Token;
+import org.apache.hadoop.yarn.api.records.ApplicationId;
+import org.apache.tez.common.TezJobConfig;
+import org.apache.tez.common.counters.TezCounters;
+import org.apache.tez.common.security.JobTokenIdentifier;
+import org.apache.tez.dag.api.TezConfiguration;
+import org.apache.tez.runtime.api.TezInputContext;
+import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+import org.apache.tez.runtime.library.shuffle.common.FetchedInput;
+import org.apache.tez.runtime.library.shuffle.common.FetchedInputCallback;
+import org.apache.tez.runtime.library.shuffle.common.Fetcher;
+import org.apache.tez.runtime.library.shuffle.common.MemoryFetchedInput;
+import org.apache.tez.runtime.library.shuffle.common.ShuffleUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestShuffleManager {
+
+  private Configuration conf;
+  private TezInputContext inputContext;
+  private final BlockingQueue<String> startedFetches = new LinkedBlockingQueue<String>();
+  private ShuffleManager shuffleManager;
+
+  @Before
+  public void setup() throws IOException {
+    conf = new Configuration();
+    inputContext = mock(TezInputContext.class);
+    doReturn(new TezCounters()).when(inputContext).getCounters();
+    doReturn("src").when(inputContext).getSourceVertexName();
+    doReturn(ApplicationId.newInstance(10000, 1)).when(inputContext).getApplicationId();
+    Token<JobTokenIdentifier> token = new Token<JobTokenIdentifier>(new byte[0],
+        "secret".getBytes(), new Text("test"), new Text("test"));
+    doReturn(ShuffleUtils.convertJobTokenToBytes(token)).when(inputContext)
+        .getServiceConsumerMetaData(TezConfiguration.TEZ_SHUFFLE_HANDLER_SERVICE_ID);
+    startedFetches.clear();
+  }
+
+  @After
+  public void cleanup() throws InterruptedException {
+    if (shuffleManager != null) {
+      shuffleManager.shutdown();
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void testFetchesThrottledByUnconsumedBytes() throws Exception {
+    conf.setLong(TezJobConfig.TEZ_RUNTIME_SHUFFLE_FETCH_MAX_UNCONSUMED_BYTES, 100);
+    shuffleManager = createShuffleManager(4);
+    shuffleManager.run();
+
+    // Below the limit, fetches are started
+    FetchedInput input0 = createInput(0, 60);
+    shuffleManager.addCompletedInputWithData(input0.getInputAttemptIdentifier(), input0);
+    shuffleManager.addKnownInput("host1", 8080, new InputAttemptIdentifier(1, 0), 0);
+    assertEquals("host1", startedFetches.poll(5, TimeUnit.SECONDS));
+
+    // At the limit, no new fetch is started until the reader takes an input
+    FetchedInput input1 = createInput(1, 60);
+    shuffleManager.addCompletedInputWithData(input1.getInputAttemptIdentifier(), input1);
+    shuffleManager.addKnownInput("host2", 8080, new InputAttemptIdentifier(2, 0), 0);
+    assertNull(startedFetches.poll(500, TimeUnit.MILLISECONDS));
+
+    assertSame(input0, shuffleManager.getNextInput());
+    assertEquals("host2", startedFetches.poll(5, TimeUnit.SECONDS));
+
+    // Inputs without data do not count towards the limit
+    shuffleManager.addCompletedInputWithNoData(new InputAttemptIdentifier(2, 0));
+    FetchedInput input3 = createInput(3, 30);
+    shuffleManager.addCompletedInputWithData(input3.getInputAttemptIdentifier(), input3);
+    assertSame(input1, shuffleManager.getNextInput());
+    assertSame(input3, shuffleManager.getNextInput());
+    assertNull(shuffleManager.getNextInput());
+  }
+
+  @Test(timeout = 10000)
+  public void testFetchesNotThrottledByDefault() throws Exception {
+    shuffleManager = createShuffleManager(3);
+    shuffleManager.run();
+
+    FetchedInput input0 = createInput(0, 1 << 20);
+    shuffleManager.addCompletedInputWithData(input0.getInputAttemptIdentifier(), input0);
+    shuffleManager.addKnownInput("host1", 8080, new InputAttemptIdentifier(1, 0), 0);
+    assertEquals("host1", startedFetches.poll(5, TimeUnit.SECONDS));
+  }
+
+  private ShuffleManager createShuffleManager(int numInputs) throws IOException {
+    SimpleFetchedInputAllocator inputAllocator = new SimpleFetchedInputAllocator("test", conf,
+        1 << 20, 1 << 20);
+    return new ShuffleManager(inputContext, conf, numInputs, 4096, false, 0, null,
+        inputAllocator) {
+      @Override
+      void startFetcher(Fetcher fetcher, boolean speculative) {
+        // Nothing is fetched, the test completes the inputs
+        startedFetches.add(fetcher.getHost());
+      }
+    };
+  }
+
+  private FetchedInput createInput(int index, int size) throws IOException {
+    FetchedInput input = new MemoryFetchedInput(size, size, new InputAttemptIdentifier(index, 0),
+        new FetchedInputCallback() {
+          @Override
+          public void fetchComplete(FetchedInput fetchedInput) {
+          }
+
+          @Override
+          public void fetchFailed(FetchedInput fetchedInput) {
+          }
+
+          @Override
+          public void freeResources(FetchedInput fetchedInput) {
+          }
+        });
+    return input;
+  }
+}
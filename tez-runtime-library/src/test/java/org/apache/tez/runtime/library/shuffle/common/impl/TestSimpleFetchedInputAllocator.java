@@ -19,8 +19,11 @@
 package org.apache.tez.runtime.library.shuffle.common.impl;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 
 import org.apache.commons.logging.Log;
@@ -28,6 +31,7 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.tez.common.TezJobConfig;
 import org.apache.tez.common.TezRuntimeFrameworkConfigs;
+import org.apache.tez.runtime.library.common.Constants;
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
 import org.apache.tez.runtime.library.shuffle.common.FetchedInput;
 import org.junit.Test;
@@ -85,4 +89,66 @@ public class TestSimpleFetchedInputAllocator {
     assertEquals(FetchedInput.Type.DISK, fi5.getType());
   }
 
+  @Test
+  public void testPooledBufferRounding() throws IOException {
+    Configuration conf = new Configuration();
+    conf.setLong(Constants.TEZ_RUNTIME_TASK_MEMORY, 90000);
+    conf.setFloat(TezJobConfig.TEZ_RUNTIME_SHUFFLE_INPUT_BUFFER_PERCENT, 1.0f);
+    conf.setFloat(TezJobConfig.TEZ_RUNTIME_SHUFFLE_MEMORY_LIMIT_PERCENT, 1.0f);
+    conf.setStrings(TezRuntimeFrameworkConfigs.LOCAL_DIRS, "/tmp/" + this.getClass().getName());
+
+    SimpleFetchedInputAllocator inputManager = new SimpleFetchedInputAllocator(
+        UUID.randomUUID().toString(), conf, Runtime.getRuntime().maxMemory(), 90000);
+
+    // Rounded up to 49152 bytes each, so the second one does not fit
+    FetchedInput fi1 = inputManager.allocate(40961, 1, new InputAttemptIdentifier(1, 1));
+    assertEquals(FetchedInput.Type.MEMORY, fi1.getType());
+    FetchedInput fi2 = inputManager.allocate(40961, 1, new InputAttemptIdentifier(2, 1));
+    assertEquals(FetchedInput.Type.DISK, fi2.getType());
+
+    // The rounded size is given back
+    fi1.abort();
+    fi1.free();
+    FetchedInput fi3 = inputManager.allocate(81920, 1, new InputAttemptIdentifier(3, 1));
+    assertEquals(FetchedInput.Type.MEMORY, fi3.getType());
+    inputManager.close();
+  }
+
+  @Test
+  public void testFreePooledBuffersWithinLimit() throws IOException {
+    Configuration conf = new Configuration();
+    conf.setLong(Constants.TEZ_RUNTIME_TASK_MEMORY, 100000);
+    conf.setFloat(TezJobConfig.TEZ_RUNTIME_SHUFFLE_INPUT_BUFFER_PERCENT, 1.0f);
+    conf.setFloat(TezJobConfig.TEZ_RUNTIME_SHUFFLE_MEMORY_LIMIT_PERCENT, 1.0f);
+    conf.setInt(TezJobConfig.TEZ_RUNTIME_SHUFFLE_FETCH_BUFFER_POOL_MAX_BUFFER_SIZE, 8192);
+    conf.setStrings(TezRuntimeFrameworkConfigs.LOCAL_DIRS, "/tmp/" + this.getClass().getName());
+
+    SimpleFetchedInputAllocator inputManager = new SimpleFetchedInputAllocator(
+        UUID.randomUUID().toString(), conf, Runtime.getRuntime().maxMemory(), 100000);
+
+    List<FetchedInput> inputs = new ArrayList<FetchedInput>();
+    for (int i = 0; i < 20; i++) {
+      FetchedInput input = inputManager.allocate(4096, 1, new InputAttemptIdentifier(i, 1));
+      assertEquals(FetchedInput.Type.MEMORY, input.getType());
+      inputs.add(input);
+    }
+    for (FetchedInput input : inputs) {
+      input.abort();
+      input.free();
+    }
+    // The buffers stay in the pool
+    assertEquals(20 * 4096, inputManager.getMemoryHeld());
+
+    // Not pooled, free buffers are dropped to make room for it
+    FetchedInput large = inputManager.allocate(60000, 1, new InputAttemptIdentifier(20, 1));
+    assertEquals(FetchedInput.Type.MEMORY, large.getType());
+    assertTrue(inputManager.getMemoryHeld() <= 100000);
+    assertEquals(60000 + 9 * 4096, inputManager.getMemoryHeld());
+
+    // A pooled input reuses one of the remaining free buffers
+    FetchedInput small = inputManager.allocate(4096, 1, new InputAttemptIdentifier(21, 1));
+    assertEquals(FetchedInput.Type.MEMORY, small.getType());
+    assertEquals(60000 + 9 * 4096, inputManager.getMemoryHeld());
+    inputManager.close();
+  }
 }